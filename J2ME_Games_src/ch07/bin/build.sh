@@ -4,6 +4,12 @@
 # reset this variable to the path to the correct javac
 # command on your system:
 JAVA4_HOME=/usr/java/j2sdk1.4.0_01/bin
+# the server classes use java.util.concurrent, so they 
+# need a newer javac (Java 21 or later for virtual threads).
+# They also use the client's Position and Engine, which 
+# javac finds through the source path.  They should
+# compile with no warnings under -Xlint:all:
+JAVA_SERVER_HOME=/usr/java/jdk-21/bin
 # reset this variable to the corresct path to the WTK2.0
 # directory of the WTK2.0 toolkit that you downloaded:
 WTK2_HOME=../../../../WTK2.0
@@ -20,7 +26,7 @@ echo "Compiling source files"
 
 $JAVA4_HOME/javac -bootclasspath $WTK2_HOME/lib/midpapi.zip -d ../tmpclasses -classpath ../tmpclasses ../src/net/frog_parrot/util/*.java ../src/net/frog_parrot/dungeon/*.java ../src/net/frog_parrot/http/*.java ../src/net/frog_parrot/checkers/*.java 
 
-$JAVA4_HOME/javac -d ../serverclasses -classpath ../../../lib/servlet.jar ../src/net/frog_parrot/server/*.java ../src/net/frog_parrot/servlet/*.java 
+$JAVA_SERVER_HOME/javac -Xlint:all -d ../serverclasses -classpath ../../../lib/servlet.jar -sourcepath ../src ../src/net/frog_parrot/server/*.java ../src/net/frog_parrot/servlet/*.java 
 
 echo "placing servlet"
 mv ../serverclasses/net/frog_parrot/servlet/*.class /home/carol/j2me/jakarta-tomcat-4.1.27/webapps/games/WEB-INF/classes/net/frog_parrot/servlet
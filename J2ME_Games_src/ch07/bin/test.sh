@@ -0,0 +1,21 @@
+# This script compiles and runs the tests of the
+# server and of the client's rules (Position), which
+# are plain classes with a main() that stops with an
+# AssertionError if something is wrong.
+
+# reset this variable to the path to the javac and
+# java commands that build the server (see build.sh):
+JAVA_SERVER_HOME=/usr/java/jdk-21/bin
+
+echo "clear directories"
+rm -rf ../testclasses
+mkdir ../testclasses
+
+echo "Compiling tests"
+$JAVA_SERVER_HOME/javac -Xlint:all -d ../testclasses -sourcepath ../src:../test ../test/net/frog_parrot/*/*.java || exit 1
+
+echo "Running tests"
+for TEST in checkers.PositionTest server.FrameCodecTest server.TimerWheelTest server.SeatTest server.TablebaseTest
+do
+  $JAVA_SERVER_HOME/java -cp ../testclasses net.frog_parrot.$TEST || exit 1
+done
@@ -31,6 +31,11 @@ public class Checkers extends MIDlet implements CommandListener {
    */
   private Command myExitCommand = new Command("Exit", Command.EXIT, 99);
 
+  /**
+   * The button to have the game suggest a move.
+   */
+  private Command myHintCommand = new Command("Hint", Command.SCREEN, 1);
+
   //-----------------------------------------------------
   //    initialization and game state changes
 
@@ -42,6 +47,7 @@ public class Checkers extends MIDlet implements CommandListener {
       //create the canvas and set up the commands:
       myCanvas = new CheckersCanvas(Display.getDisplay(this));
       myCanvas.addCommand(myExitCommand);
+      myCanvas.addCommand(myHintCommand);
       myCanvas.setCommandListener(this);
       CheckersGame game = myCanvas.getGame();
       myCommunicator = new Communicator(this, myCanvas, game);
@@ -122,6 +128,8 @@ public class Checkers extends MIDlet implements CommandListener {
 	notifyDestroyed();
       } catch (MIDletStateChangeException ex) {
       }
+    } else if(c == myHintCommand) {
+      myCanvas.hint();
     }
   }
   
@@ -67,6 +67,12 @@ public class CheckersCanvas extends Canvas {
    */
   private CheckersGame myGame;
 
+  /**
+   * Whether the engine is working out a hint.  This is 
+   * only used on the display's thread.
+   */
+  private boolean myHinting;
+
   /**
    * checkers dimension: the width of the squares of the checkerboard.
    */
@@ -266,6 +272,34 @@ public class CheckersCanvas extends Canvas {
   //-------------------------------------------------------
   //  handle keystrokes
 
+  /**
+   * Show the move the engine suggests.  The engine 
+   * thinks for about CheckersGame.HINT_TIME, so it 
+   * searches a copy of the position on a thread of its 
+   * own, and the move is shown (back on the display's 
+   * thread) when it is done.
+   */
+  void hint() {
+    if((! myGame.isMyTurn()) || myHinting) {
+      return;
+    }
+    myHinting = true;
+    final Position position = myGame.copyPosition();
+    new Thread() {
+      public void run() {
+	final int move = myGame.findHint(position);
+	myDisplay.callSerially(new Runnable() {
+	    public void run() {
+	      myHinting = false;
+	      if(myGame.showHint(position, move)) {
+		repaint();
+	      }
+	    }
+	  });
+      }
+    }.start();
+  }
+
   /**
    * Move the player.
    */
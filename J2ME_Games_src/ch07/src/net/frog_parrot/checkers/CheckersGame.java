@@ -1,7 +1,5 @@
 package net.frog_parrot.checkers;
 
-import java.util.Vector;
-
 /**
  * This class takes care of the underlying logic and data of 
  * the checkers game being played.  That includes where 
@@ -25,6 +23,18 @@ public class CheckersGame {
    */
   public static final byte Y_LENGTH = 8;
 
+  /**
+   * How long the engine thinks about a hint, in 
+   * milliseconds.
+   */
+  public static final long HINT_TIME = 1000;
+
+  /**
+   * The size of the engine's TranspositionTable 
+   * (2 to this power entries of 12 bytes each).
+   */
+  public static final int HINT_TABLE_BITS = 10;
+
   //-------------------------------------------------------
   //   instance fields
 
@@ -35,18 +45,17 @@ public class CheckersGame {
   private Communicator myCommunicator;
 
   /**
-   * This array represents the black squares of the 
-   * checkerboard.  The two dimensions of the array 
-   * represent the two dimensions of the checkerboard.
-   * The value represents what type of piece is on 
-   * the square.
-   * 0 = empty
-   * 1 = local player's piece
-   * 2 = local player's king
-   * -1 = remote player's piece
-   * -2 = remote player's king
+   * The engine that suggests moves (made the first 
+   * time the player asks for a hint).  Only the hint 
+   * thread uses it (see CheckersCanvas.hint).
    */
-  private byte[][] myGrid;
+  private Engine myEngine;
+
+  /**
+   * The pieces on the black squares of the checkerboard,
+   * as bitboards (see Position).
+   */
+  private Position myPosition;
 
   /**
    * If the user has currently selected a piece to move, 
@@ -75,10 +84,14 @@ public class CheckersGame {
   private byte myDestinationY = -1;
 
   /**
-   * This Vector contains the coordinates of all of the 
-   * squares that the player could currently move to.
+   * This array holds the moves (packed by Position.pack) 
+   * that the selected piece could currently make, and 
+   * myPossibleMoveCount says how many there are.  Both 
+   * are reused on every key press so that choosing a 
+   * move doesn't allocate anything.
    */
-  private Vector myPossibleMoves = new Vector(4);
+  private int[] myPossibleMoves = new int[4];
+  private int myPossibleMoveCount;
 
   /**
    * Whether or not the currently displayed checkers has 
@@ -104,7 +117,7 @@ public class CheckersGame {
    * get the piece on the given grid square.
    */
   byte getPiece(byte x, byte y) {
-    return(myGrid[x][y]);
+    return(myPosition.getPiece(x, y));
   }
 
   /**
@@ -166,19 +179,9 @@ public class CheckersGame {
    * Constructor puts the pieces in their initial positions:
    */
   CheckersGame() {
-    myGrid = new byte[X_LENGTH][];
-    for(byte i = 0; i < myGrid.length; i++) {
-      myGrid[i] = new byte[Y_LENGTH];
-      for(byte j = 0; j < myGrid[i].length; j++) {
-	if(j < 3) {
-	  // fill the top of the board with remote players
-	  myGrid[i][j] = -1;
-	} else if(j > 4) {
-	  // fill the bottom of the board with local players
-	  myGrid[i][j] = 1;
-	}
-      }
-    }
+    // the remote player fills the top of the board and 
+    // the local player fills the bottom:
+    myPosition = new Position();
   }
 
   /**
@@ -189,7 +192,8 @@ public class CheckersGame {
     mySelectedX = 0;
     mySelectedY = 5;
     myTurn = true;
-    getMoves(mySelectedX, mySelectedY, myPossibleMoves, false);
+    myPossibleMoveCount 
+      = getMoves(mySelectedX, mySelectedY, myPossibleMoves, false);
   }
 
   //-------------------------------------------------------
@@ -213,26 +217,13 @@ public class CheckersGame {
     moveData[2] = (new Integer(X_LENGTH - moveData[2] - 1)).byteValue();
     moveData[1] = (new Integer(Y_LENGTH - moveData[1] - 1)).byteValue();
     moveData[3] = (new Integer(Y_LENGTH - moveData[3] - 1)).byteValue();
-    myGrid[moveData[2]][moveData[3]] 
-      = myGrid[moveData[0]][moveData[1]];
-    myGrid[moveData[0]][moveData[1]] = 0;
-    // deal with an opponent's jump:
-    if((moveData[1] - moveData[3] > 1) || 
-       (moveData[3] - moveData[1] > 1)) {
-      int jumpedY = (moveData[1] + moveData[3])/2;
-      int jumpedX = moveData[0];
-      int parity = moveData[1] % 2;
-      if((parity > 0) && (moveData[2] > moveData[0])) {
-	jumpedX++;
-      } else if((parity == 0) && (moveData[0] > moveData[2])) {
-	jumpedX--;
-      }
-      myGrid[jumpedX][jumpedY] = 0;
-    }
-    // if the opponent reaches the far side, 
-    // make him a king:
-    if(moveData[3] == Y_LENGTH - 1) {
-      myGrid[moveData[2]][moveData[3]] = -2;
+    // this also removes a piece the opponent jumped 
+    // and makes him a king if he reaches the far side
+    // (locked, since this is the communicator's thread 
+    // and copyPosition is called on the display's):
+    synchronized(this) {
+      myPosition.moveOpponent(Position.square(moveData[0], moveData[1]), 
+			      Position.square(moveData[2], moveData[3]));
     }
   }
 
@@ -279,21 +270,17 @@ public class CheckersGame {
       // if selectPrevious fails to fill myPossibleMoves, that 
       // means that the local player cannot move, so the game
       // is over:
-      if(myPossibleMoves.size() == 0) {
+      if(myPossibleMoveCount == 0) {
 	myCommunicator.endGame();
       }
     } else {
       // if the user has already selected a piece to move, 
       // we give the options of where the piece can move to:
-      for(byte i = 0; i < myPossibleMoves.size(); i++) {
-	byte[] coordinates = (byte[])myPossibleMoves.elementAt(i);
-	if((coordinates[0] == myDestinationX) && 
-	   (coordinates[1] == myDestinationY)) {
-	  i++;
-	  i = (new Integer(i % myPossibleMoves.size())).byteValue();
-	  coordinates = (byte[])myPossibleMoves.elementAt(i);
-	  myDestinationX = coordinates[0];
-	  myDestinationY = coordinates[1];
+      int destination = Position.square(myDestinationX, myDestinationY);
+      for(int i = 0; i < myPossibleMoveCount; i++) {
+	if(Position.getTo(myPossibleMoves[i]) == destination) {
+	  i = (i + 1) % myPossibleMoveCount;
+	  setDestination(myPossibleMoves[i]);
 	  break;
 	}
       }
@@ -314,21 +301,17 @@ public class CheckersGame {
       // if selectNext fails to fill myPossibleMoves, that 
       // means that the local player cannot move, so the game
       // is over:
-      if(myPossibleMoves.size() == 0) {
+      if(myPossibleMoveCount == 0) {
 	myCommunicator.endGame();
       }
     } else {
       // if the user has already selected a piece to move, 
       // we give the options of where the piece can move to:
-      for(byte i = 0; i < myPossibleMoves.size(); i++) {
-	byte[] coordinates = (byte[])myPossibleMoves.elementAt(i);
-	if((coordinates[0] == myDestinationX) && 
-	   (coordinates[1] == myDestinationY)) {
-	  i++;
-	  i = (new Integer(i % myPossibleMoves.size())).byteValue();
-	  coordinates = (byte[])myPossibleMoves.elementAt(i);
-	  myDestinationX = coordinates[0];
-	  myDestinationY = coordinates[1];
+      int destination = Position.square(myDestinationX, myDestinationY);
+      for(int i = 0; i < myPossibleMoveCount; i++) {
+	if(Position.getTo(myPossibleMoves[i]) == destination) {
+	  i = (i + 1) % myPossibleMoveCount;
+	  setDestination(myPossibleMoves[i]);
 	  break;
 	}
       }
@@ -378,6 +361,60 @@ public class CheckersGame {
     }
   }
 
+  /**
+   * Copy the position the local player is moving in, 
+   * for the engine to search.  If the player has just 
+   * jumped and may jump again, the copy says so.
+   */
+  Position copyPosition() {
+    Position retVal = new Position();
+    synchronized(this) {
+      retVal.set(myPosition);
+    }
+    if(myIsJumping) {
+      retVal.setJumping(Position.square(mySelectedX, mySelectedY));
+    }
+    return(retVal);
+  }
+
+  /**
+   * Ask the engine for a good move in a copy of the 
+   * position.  This takes about HINT_TIME, so it is 
+   * called on a thread of its own (see 
+   * CheckersCanvas.hint), and the copy is the engine's 
+   * to search, so the game may go on meanwhile.
+   * @return the packed move, or -1 if there is none.
+   */
+  int findHint(Position position) {
+    if(myEngine == null) {
+      myEngine = new Engine(new TranspositionTable(HINT_TABLE_BITS));
+    }
+    return(myEngine.search(position, HINT_TIME));
+  }
+
+  /**
+   * Select the move the engine found, as if the player 
+   * had chosen the piece and the destination: pressing 
+   * UP makes the move.  If the game has moved on since 
+   * the position was copied, the move is ignored.
+   * @return whether the move was selected.
+   */
+  boolean showHint(Position position, int move) {
+    // if the engine would stop jumping, the player 
+    // can press DOWN to end the turn:
+    if((! isMyTurn()) || (move < 0) || (move == Position.END_TURN)
+       || (copyPosition().getKey() != position.getKey())) {
+      return(false);
+    }
+    int from = Position.getFrom(move);
+    mySelectedX = (byte)Position.getX(from);
+    mySelectedY = (byte)Position.getY(from);
+    myPossibleMoveCount 
+      = getMoves(mySelectedX, mySelectedY, myPossibleMoves, myIsJumping);
+    setDestination(move);
+    return(true);
+  }
+
   //-------------------------------------------------------
   //   internal square selection methods
 
@@ -388,13 +425,21 @@ public class CheckersGame {
    * the player selects the destination square of the move.
    */
   private void fixSelection() {
-    byte[] destination = (byte[])myPossibleMoves.elementAt(0);
     // setting the destination coordinates to valid 
     // coordinates is the signal that the user is done 
     // selecting the piece to move and now is choosing 
     // the destination square:
-    myDestinationX = destination[0];
-    myDestinationY = destination[1];
+    setDestination(myPossibleMoves[0]);
+  }
+
+  /**
+   * Select the destination square of the given 
+   * (packed) move.
+   */
+  private void setDestination(int move) {
+    int destination = Position.getTo(move);
+    myDestinationX = (byte)Position.getX(destination);
+    myDestinationY = (byte)Position.getY(destination);
   }
 
   /**
@@ -407,6 +452,7 @@ public class CheckersGame {
     // currently selected square) until we find a square 
     // that contains one of the local player's pieces 
     // that can move:
+    int movable = myPosition.getMovable();
     byte testX = mySelectedX;
     byte testY = mySelectedY;
     while(true) {
@@ -416,9 +462,10 @@ public class CheckersGame {
 	testY++;
 	testY = (new Integer(testY % Y_LENGTH)).byteValue();
       }
-      getMoves(testX, testY, myPossibleMoves, false);
-      if((myPossibleMoves.size() != 0) || 
+      if(((movable & (1 << Position.square(testX, testY))) != 0) || 
 	   ((testX == mySelectedX) && (testY == mySelectedY))) {
+	myPossibleMoveCount 
+	  = getMoves(testX, testY, myPossibleMoves, false);
 	mySelectedX = testX;
 	mySelectedY = testY;
 	break;
@@ -436,6 +483,7 @@ public class CheckersGame {
     // currently selected square) until we find a square 
     // that contains one of the local player's pieces 
     // that can move:
+    int movable = myPosition.getMovable();
     byte testX = mySelectedX;
     byte testY = mySelectedY;
     while(true) {
@@ -447,9 +495,10 @@ public class CheckersGame {
 	  testY += Y_LENGTH;
 	}
       }
-      getMoves(testX, testY, myPossibleMoves, false);
-      if((myPossibleMoves.size() != 0) || 
+      if(((movable & (1 << Position.square(testX, testY))) != 0) || 
 	 ((testX == mySelectedX) && (testY == mySelectedY))) {
+	myPossibleMoveCount 
+	  = getMoves(testX, testY, myPossibleMoves, false);
 	mySelectedX = testX;
 	mySelectedY = testY;
 	break;
@@ -466,33 +515,18 @@ public class CheckersGame {
    */
   private void move() {
     // the piece that was on the source square is 
-    // now on the destination square:
-    myGrid[myDestinationX][myDestinationY] 
-      = myGrid[mySelectedX][mySelectedY];
-    // the source square is emptied:
-    myGrid[mySelectedX][mySelectedY] = 0;
-    if(myDestinationY == 0) {
-      myGrid[myDestinationX][myDestinationY] = 2;
-    }
+    // now on the destination square (and is a king 
+    // if it reached the top row).  If the move was 
+    // a jump, the piece that was jumped over is removed:
+    boolean jumped 
+      = myPosition.move(Position.square(mySelectedX, mySelectedY), 
+			Position.square(myDestinationX, myDestinationY));
     // tell the communicator to inform the other player 
     // of this move:
     myCommunicator.move(mySelectedX, mySelectedY, 
 			myDestinationX, myDestinationY);
     // deal with the special rules for jumps::
-    if((mySelectedY - myDestinationY > 1) || 
-       (myDestinationY - mySelectedY > 1)) {
-      int jumpedY = (mySelectedY + myDestinationY)/2;
-      int jumpedX = mySelectedX;
-      int parity = mySelectedY % 2;
-      // the coordinates of the jumped square depend on 
-      // what row we're in:
-      if((parity > 0) && (myDestinationX > mySelectedX)) {
-	jumpedX++;
-      } else if((parity == 0) && (mySelectedX > myDestinationX)) {
-	jumpedX--;
-      }
-      // remove the piece that was jumped over:
-      myGrid[jumpedX][jumpedY] = 0;
+    if(jumped) {
       // now get ready to jump again if possible:
       mySelectedX = myDestinationX;
       mySelectedY = myDestinationY;
@@ -502,14 +536,13 @@ public class CheckersGame {
       // The "true" argument tells the program to return 
       // only jumps because the player can go again ONLY 
       // if there's a jump:
-      getMoves(mySelectedX, mySelectedY, myPossibleMoves, true);
+      myPossibleMoveCount 
+	= getMoves(mySelectedX, mySelectedY, myPossibleMoves, true);
       // if there's another jump possible with the same piece, 
       // allow the player to continue jumping:
-      if(myPossibleMoves.size() != 0) {
+      if(myPossibleMoveCount != 0) {
 	myIsJumping = true;
-	byte[] landing = (byte[])myPossibleMoves.elementAt(0);
-	myDestinationX = landing[0];
-	myDestinationY = landing[1];
+	setDestination(myPossibleMoves[0]);
       } else {
 	myTurn = false;
 	myCommunicator.endTurn();
@@ -521,102 +554,27 @@ public class CheckersGame {
       mySelectedY = -1;
       myDestinationX = -1;
       myDestinationY = -1;
-      myPossibleMoves.removeAllElements();
+      myPossibleMoveCount = 0;
       myTurn = false;
       // tell the other player we're done:
       myCommunicator.endTurn();
     }
   }
   
-  /**
-   * Given a square on the grid, get the coordinates 
-   * of one of the adjoining (diagonal) squares.
-   * 0 = top left
-   * 1 = top right
-   * 2 = bottom left
-   * 3 = bottom right.
-   * @return the coordinates or null if the desired corner 
-   * is off the board.
-   */
-  private byte[] getCornerCoordinates(byte x, byte y, byte corner) {
-    byte[] retArray = null;
-    if(corner < 2) {
-      y--;
-    } else {
-      y++;
-    }
-    // Where the corner is on the grid depends on 
-    // whether this is an odd row or an even row:
-    if((corner % 2 == 0) && (y % 2 != 0)) {
-      x--;
-    } else if((corner % 2 != 0) && (y % 2 == 0)) {
-      x++;
-    }
-    try {
-      if(myGrid[x][y] > -15) {
-	// we don't really care about the value, this
-	// if statement is just there to get it to 
-	// throw if the coordinates aren't on the board.
-	retArray = new byte[2];
-	retArray[0] = x;
-	retArray[1] = y;
-      }
-    } catch(ArrayIndexOutOfBoundsException e) {
-      // this throws if the coordinates do not correspond 
-      // to a square on the board. It's not a problem, 
-      // so we do nothing--we just return null instead 
-      // of returning coordinates since no valid 
-      // coordinates correspond to the desired corner.
-    }
-    return(retArray);
-  }
-  
   /**
    * Determines where the piece in the given 
-   * grid location can move.  Clears the Vector
-   * and fills it with the locations that 
-   * the piece can move to.
+   * grid location can move.  Fills the array with 
+   * the moves (packed by Position.pack) that the 
+   * piece can make, in the order of the corners 
+   * they go to (top left, top right, bottom left, 
+   * bottom right).  Nothing is allocated.
+   * @param toFill an array with room for four moves.
    * @param jumpsOnly if we should return only moves that 
    *        are jumps.
+   * @return the number of moves.
    */
-  private void getMoves(byte x, byte y, Vector toFill, boolean jumpsOnly) {
-    toFill.removeAllElements();
-    // if the square does not contain one of the local player's 
-    // pieces, then there are no corresponding moves and we just
-    // return an empty vector.
-    if(myGrid[x][y] <= 0) {
-      return;
-    }
-    // check each of the four corners to see if the 
-    // piece can move there:
-    for(byte i = 0; i < 4; i++) {
-      byte[] coordinates = getCornerCoordinates(x, y, i);
-      // if the coordinate array is null, then the corresponding 
-      // corner is off the board and we don't deal with it.
-      // The later two conditions in the following if statement
-      // ensure that either the move is a forward move or the 
-      // current piece is a king:
-      if((coordinates != null) &&
-	 ((myGrid[x][y] > 1) || (i < 2))) {
-	// if the corner is empty (and we're not looking 
-	// for just jumps), then this is a possible move
-	// so we add it to the vector of moves:
-	if((myGrid[coordinates[0]][coordinates[1]] == 0) && (! jumpsOnly)) {
-	  toFill.addElement(coordinates);
-	  // if the space is occupied by an opponent, see if we can jump it:
-	} else if(myGrid[coordinates[0]][coordinates[1]] < 0) {
-	  byte[] jumpLanding = getCornerCoordinates(coordinates[0], 
-						 coordinates[1], i);
-	  // if the space on the far side of the opponent's piece
-	  // is on the board and is unoccupied, then a jump 
-	  // is possible, so we add it to the vector of moves:
-	  if((jumpLanding != null) && 
-	     (myGrid[jumpLanding[0]][jumpLanding[1]] == 0)) {
-	    toFill.addElement(jumpLanding);
-	  }
-	}
-      }
-    } // end for loop
+  private int getMoves(byte x, byte y, int[] toFill, boolean jumpsOnly) {
+    return(myPosition.getMoves(Position.square(x, y), jumpsOnly, toFill));
   }
   
 }
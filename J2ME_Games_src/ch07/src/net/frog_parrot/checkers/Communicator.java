@@ -20,10 +20,11 @@ public class Communicator extends Thread {
   //  static fields
 
   /**
-   * This is the URL to contact.
+   * This is the URL to contact.  We begin with the hello 
+   * or resume flag, so we use the server's hello port.
    */
   public static final String SERVER_URL 
-    = "ssl://malbec:8007";
+    = "ssl://malbec:8008";
 
   /**
    * The domain name (to verify on the certificate).
@@ -46,6 +47,51 @@ public class Communicator extends Thread {
    */
   public static final byte END_TURN_FLAG = -2;
 
+  /**
+   * The byte to signal that the sender is still there.
+   */
+  public static final byte HEARTBEAT_FLAG = -5;
+
+  /**
+   * How often we send a heartbeat while the local 
+   * player is thinking, in milliseconds.
+   */
+  public static final int HEARTBEAT_INTERVAL = 10000;
+
+  /**
+   * The byte that comes before our session token.
+   */
+  public static final byte SESSION_FLAG = -6;
+
+  /**
+   * The byte we send to take our seat back after the 
+   * connection drops.
+   */
+  public static final byte RESUME_FLAG = -7;
+
+  /**
+   * The byte we send to ask for a new game.
+   */
+  public static final byte HELLO_FLAG = -8;
+
+  /**
+   * The byte the server sends when we have our seat back.
+   */
+  public static final byte RESUMED_FLAG = -9;
+
+  /**
+   * How many times we try to reconnect, and how long 
+   * we wait before each try (in milliseconds).
+   */
+  public static final int RESUME_ATTEMPTS = 3;
+  public static final int RESUME_DELAY = 3000;
+
+  /**
+   * The number of frames we keep in case the server 
+   * didn't get them before the connection dropped.
+   */
+  public static final int SENT_LOG_FRAMES = 16;
+
   //--------------------------------------------------------
   //  game instance fields
 
@@ -88,6 +134,42 @@ public class Communicator extends Thread {
    */
   private boolean myTurnIsDone = true;
 
+  //--------------------------------------------------------
+  //  connection instance fields
+
+  /**
+   * The connection to the server.
+   */
+  private SecureConnection myConnection;
+
+  /**
+   * The stream we read from the server.
+   */
+  private DataInputStream myInput;
+
+  /**
+   * The stream we write to the server.
+   */
+  private DataOutputStream myOutput;
+
+  /**
+   * The session token the server gave us, so that we 
+   * can take our seat back if the connection drops.
+   */
+  private byte[] myToken;
+
+  /**
+   * The number of moves and end of turn flags we have 
+   * received and sent this game.
+   */
+  private int myReceived;
+  private int mySent;
+
+  /**
+   * The last frames we sent, in a ring.
+   */
+  private byte[] mySentLog = new byte[SENT_LOG_FRAMES * 4];
+
   //--------------------------------------------------------
   //  initialization
 
@@ -149,9 +231,6 @@ public class Communicator extends Thread {
    * information about moves.
    */
   public void run() {
-    DataInputStream dis = null;
-    DataOutputStream dos = null;
-    SecureConnection conn = null;
     byte[] fourBytes = new byte[4];
     try {
       // tell the user that we're waiting for the other player to join:
@@ -159,19 +238,10 @@ public class Communicator extends Thread {
       myCanvas.repaint();
       myCanvas.serviceRepaints();
       // now make the connection:
-      conn = (SecureConnection)Connector.open(SERVER_URL);
-      verifyCertificate(conn);
-      conn.setSocketOption(SocketConnection.KEEPALIVE, 1);
-      dos = conn.openDataOutputStream();
-      dis = conn.openDataInputStream();
-      // we read four bytes to make sure the connection works...
-      dis.readFully(fourBytes);
-      if(fourBytes[0] != START_GAME_FLAG) {
-	throw(new Exception("server-side error"));
-      }
+      connect();
       // On this line it will block waiting for another 
       // player to join the game or make a move:
-      dis.readFully(fourBytes);
+      readFrame(fourBytes);
       // if the server sends the start game flag again, 
       // that means that we start with the local player's turn.
       // Otherwise, we read the other player's first move from the 
@@ -187,7 +257,7 @@ public class Communicator extends Thread {
 	// in case there's a double-jump:
 	while(fourBytes[0] != END_TURN_FLAG) {
 	  myGame.moveOpponent(fourBytes);
-	  dis.readFully(fourBytes);
+	  readFrame(fourBytes);
 	}
       }
       // now signal the local game that the opponent is done
@@ -201,29 +271,25 @@ public class Communicator extends Thread {
       while(! myShouldStop) {
 	// now it's the local player's turn.
 	// wait for the player to move a piece:
-	synchronized(this) {
-	  wait();
-	}
+	waitForPlayer(false);
 	// after every wait, we check if the game 
 	// ended while we were waiting...
 	if(myShouldStop) {
 	  break;
 	}
-	while(! myTurnIsDone) {
+	while(((! myTurnIsDone) || (myMove != null)) && (! myShouldStop)) {
 	  // send the current move:
 	  if(myMove != null) {
-	    dos.write(myMove, 0, myMove.length);
+	    writeFrame(myMove);
 	    myMove = null;
 	  }
 	  // If the player can continue the move with a double 
-	  // jump, we wait for the player to do it:
-	  synchronized(this) {
-	    // make sure the turn isn't done before we start waiting
-	    // (the end turn notify might accidentally be called 
-	    // before we start waiting...)
-	    if(! myTurnIsDone) {
-	      wait();
-	    } 
+	  // jump, we wait for the player to do it
+	  // (making sure the turn isn't done before we start 
+	  // waiting, since the end turn notify might 
+	  // accidentally be called before we start waiting...)
+	  if(! myTurnIsDone) {
+	    waitForPlayer(true);
 	  }
 	}
 	// after every wait, we check if the game 
@@ -234,16 +300,16 @@ public class Communicator extends Thread {
 	// now we tell the other player the this player's 
 	// turn is over:
 	fourBytes[0] = END_TURN_FLAG;
-	dos.write(fourBytes, 0, fourBytes.length);
+	writeFrame(fourBytes);
 	// now that we've sent the move, we wait for a response:
-	dis.readFully(fourBytes);
+	readFrame(fourBytes);
 	while((fourBytes[0] != END_TURN_FLAG) && 
 	      (fourBytes[0] != END_GAME_FLAG) && (!myShouldStop)) {
 	  // we move the opponent on the local screen.
 	  // then we read from the opponent again, 
 	  // in case there's a double-jump:
 	  myGame.moveOpponent(fourBytes);
-	  dis.readFully(fourBytes);
+	  readFrame(fourBytes);
 	}
 	// if the other player has left the game, we tell the 
 	// local user that the game is over.
@@ -264,29 +330,217 @@ public class Communicator extends Thread {
       // now we send the information that we're leaving the game,
       // then close up and delete everything.
       try {
-	if(dos != null) {
-	  dos.write(END_GAME_FLAG);
-	  dos.close();
-	}
-	if(dis != null) {
-	  dis.close();
+	if(myOutput != null) {
+	  myOutput.write(END_GAME_FLAG);
 	}
-	if(conn != null) {
-	  conn.close();
-	}
-	dis = null;
-	dos = null;
-	conn = null;
       } catch(Exception e) {
 	// if this throws, at least we made our best effort 
 	// to close everything up....
       }
+      close();
     }
     // one last paint job to display the "Game Over"
     myCanvas.repaint();
     myCanvas.serviceRepaints();
   }
     
+  //--------------------------------------------------------
+  //  connection methods
+
+  /**
+   * Open the connection to the server.  The first time, 
+   * we ask for a new game and wait for the start game 
+   * flag.  After the connection has dropped, we send our 
+   * session token instead, and the server sends us the 
+   * frames we missed, and tells us how many of ours it 
+   * got so that we can send it the rest.
+   */
+  private void connect() throws Exception {
+    myConnection = (SecureConnection)Connector.open(SERVER_URL);
+    verifyCertificate(myConnection);
+    myConnection.setSocketOption(SocketConnection.KEEPALIVE, 1);
+    myOutput = myConnection.openDataOutputStream();
+    myInput = myConnection.openDataInputStream();
+    byte[] fourBytes = new byte[4];
+    if(myToken == null) {
+      fourBytes[0] = HELLO_FLAG;
+      myOutput.write(fourBytes, 0, fourBytes.length);
+      // we read four bytes to make sure the connection works...
+      myInput.readFully(fourBytes);
+      if(fourBytes[0] != START_GAME_FLAG) {
+	throw(new Exception("server-side error"));
+      }
+      // tell the server that we understand heartbeats:
+      sendHeartbeat();
+      return;
+    }
+    fourBytes[0] = RESUME_FLAG;
+    myOutput.write(fourBytes, 0, fourBytes.length);
+    myOutput.write(myToken, 0, myToken.length);
+    myOutput.writeInt(myReceived);
+    myInput.readFully(fourBytes);
+    if(fourBytes[0] != RESUMED_FLAG) {
+      myToken = null;
+      throw(new Exception("could not rejoin the game"));
+    }
+    int missing = mySent - myInput.readInt();
+    if((missing < 0) || (missing > SENT_LOG_FRAMES)) {
+      throw(new Exception("could not rejoin the game"));
+    }
+    for(int i = mySent - missing; i < mySent; i++) {
+      myOutput.write(mySentLog, (i % SENT_LOG_FRAMES) * 4, 4);
+    }
+  }
+
+  /**
+   * The connection has failed: if we have a session, 
+   * connect again and take our seat back.
+   * @throws Exception the original one if we can't.
+   */
+  private void reconnect(IOException cause) throws Exception {
+    if((myToken == null) || myShouldStop) {
+      throw(cause);
+    }
+    for(int i = 0; i < RESUME_ATTEMPTS; i++) {
+      close();
+      try {
+	Thread.sleep(RESUME_DELAY);
+	connect();
+	return;
+      } catch(IOException e) {
+	// no network yet; we try again.
+      }
+    }
+    throw(cause);
+  }
+
+  /**
+   * Close the connection, ignoring errors.
+   */
+  private void close() {
+    try {
+      if(myOutput != null) {
+	myOutput.close();
+      }
+      if(myInput != null) {
+	myInput.close();
+      }
+      if(myConnection != null) {
+	myConnection.close();
+      }
+    } catch(Exception e) {
+      // if this throws, at least we made our best effort 
+      // to close everything up....
+    }
+    myInput = null;
+    myOutput = null;
+    myConnection = null;
+  }
+
+  /**
+   * Send a move or the end of turn flag, keeping a copy 
+   * in case the connection drops before the server 
+   * gets it.
+   */
+  private void writeFrame(byte[] fourBytes) throws Exception {
+    System.arraycopy(fourBytes, 0, mySentLog, 
+		     (mySent % SENT_LOG_FRAMES) * 4, 4);
+    mySent++;
+    try {
+      myOutput.write(fourBytes, 0, 4);
+    } catch(IOException e) {
+      // reconnecting sends the frame again:
+      reconnect(e);
+    }
+  }
+
+  /**
+   * Read the next four bytes from the server, skipping 
+   * the server's heartbeats and keeping the session 
+   * token when it comes.
+   */
+  private void readFrame(byte[] fourBytes) throws Exception {
+    while(true) {
+      try {
+	myInput.readFully(fourBytes);
+	if(fourBytes[0] == SESSION_FLAG) {
+	  byte[] token = new byte[8];
+	  myInput.readFully(token);
+	  myToken = token;
+	  continue;
+	}
+      } catch(IOException e) {
+	reconnect(e);
+	continue;
+      }
+      if(fourBytes[0] == HEARTBEAT_FLAG) {
+	continue;
+      }
+      if((fourBytes[0] >= 0) || (fourBytes[0] == END_TURN_FLAG)) {
+	myReceived++;
+      }
+      return;
+    }
+  }
+
+  //--------------------------------------------------------
+  //  heartbeat methods
+
+  /**
+   * Wait until the local player makes a move (or ends 
+   * the turn, if the turn has begun) or the game ends.  
+   * While the player is thinking we send a heartbeat 
+   * now and then, so the server knows that the 
+   * connection is still there.  The heartbeat is sent 
+   * without holding the lock, since a write can block, 
+   * and the user interface needs the lock to move.
+   */
+  private void waitForPlayer(boolean turnBegun) throws Exception {
+    while(awaitPlayer(turnBegun)) {
+      sendHeartbeat();
+    }
+  }
+
+  /**
+   * Wait for the local player for at most one heartbeat 
+   * interval.
+   * @return true if we are still waiting for him, so 
+   *         a heartbeat is due.
+   */
+  private synchronized boolean awaitPlayer(boolean turnBegun) 
+      throws InterruptedException {
+    if(isWaiting(turnBegun)) {
+      wait(HEARTBEAT_INTERVAL);
+    }
+    return(isWaiting(turnBegun));
+  }
+
+  /**
+   * Whether the local player has yet to move (or to end 
+   * the turn, if the turn has begun) in a game that 
+   * hasn't ended.  The caller holds the lock.
+   */
+  private boolean isWaiting(boolean turnBegun) {
+    return((myMove == null) && (! myShouldStop) 
+	   && (! (turnBegun && myTurnIsDone)));
+  }
+
+  /**
+   * Send a heartbeat frame.  Only the communication 
+   * thread writes, and never while holding the lock.  
+   * If the connection has dropped, the next move will 
+   * find out.
+   */
+  private void sendHeartbeat() {
+    byte[] heartbeat = new byte[4];
+    heartbeat[0] = HEARTBEAT_FLAG;
+    try {
+      myOutput.write(heartbeat, 0, heartbeat.length);
+    } catch(IOException e) {
+      // reconnecting is left to writeFrame and readFrame.
+    }
+  }
+
   //--------------------------------------------------------
   //  security verification method
   
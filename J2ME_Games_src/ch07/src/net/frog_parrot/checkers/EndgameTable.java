@@ -0,0 +1,29 @@
+package net.frog_parrot.checkers;
+
+/**
+ * This interface is for anything that knows how some
+ * positions end with best play -- an endgame tablebase,
+ * for example -- so that an Engine can look them up
+ * instead of searching them.
+ *
+ * @author Carol Hamer
+ */
+public interface EndgameTable {
+
+  /**
+   * What getDistance returns for a position the table
+   * doesn't know.
+   */
+  public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+  /**
+   * Look up a position at the start of the local
+   * player's turn.
+   * @return n if the local player wins in n turns (his
+   *         and his opponent's, so n is odd), -(n + 1) if
+   *         he loses in n turns, zero for a draw, or
+   *         NOT_FOUND.
+   */
+  public int getDistance(Position position);
+
+}
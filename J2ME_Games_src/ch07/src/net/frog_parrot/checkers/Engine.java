@@ -0,0 +1,645 @@
+package net.frog_parrot.checkers;
+
+/**
+ * This class finds a good move for the player to move
+ * in a Position, so the game can suggest moves.  It is
+ * an iterative-deepening alpha-beta search: it searches
+ * one turn ahead, then two, and so on until its time is
+ * up, and answers with the best move of the deepest
+ * search it finished (or the best move found so far in
+ * the search it was in the middle of).  At the end of
+ * the search it keeps following jumps (quiescence), so
+ * it doesn't stop in the middle of an exchange.
+ * <p>
+ * Moves are tried in a good order: first the move the
+ * TranspositionTable remembers from an earlier search
+ * of the same position, then jumps, then the "killer"
+ * moves that refuted other moves at the same depth,
+ * then the rest by how often they have refuted moves
+ * before (the history).
+ * <p>
+ * Everything is allocated when the engine is made: the
+ * search makes and takes back moves on the Position it
+ * is given (which it leaves as it found it) and writes
+ * the moves into arrays it keeps for each ply.  It uses
+ * nothing that CLDC 1.0 lacks, so the same engine gives
+ * the client its hints and plays the server's bots.  An
+ * engine must only be used by one thread at a time, but
+ * several engines may share one table, and another
+ * thread may tell an engine to stop (see setHalted).
+ * With an EndgameTable, a position it knows is scored
+ * from the table instead of being searched.
+ *
+ * @author Carol Hamer
+ */
+public class Engine {
+
+  //-------------------------------------------------------
+  //   static fields
+
+  /**
+   * The score of a won position.  A win found n plies
+   * down scores WIN - n, so quicker wins score higher.
+   */
+  public static final int WIN = 30000;
+
+  /**
+   * Higher than any score.
+   */
+  private static final int INFINITY = 32000;
+
+  /**
+   * How far the search can go, counting each jump of a
+   * run of jumps and the quiescence search.
+   */
+  public static final int MAX_PLY = 64;
+
+  /**
+   * The deepest search (in turns) we start.
+   */
+  public static final int MAX_DEPTH = 40;
+
+  /**
+   * The most plies from the root a win or loss can be:
+   * as deep as the search goes and then as long as the
+   * longest win an EndgameTable can report (255 turns).
+   * A score beyond WIN - LONGEST_WIN either way is a
+   * certain win or loss.
+   */
+  public static final int LONGEST_WIN = MAX_PLY + 256;
+
+  /**
+   * We look at the clock each time this many more
+   * positions (less one) have been searched.
+   */
+  private static final int CHECK_INTERVAL = 1023;
+
+  /**
+   * What the pieces are worth, and the bonuses for a man
+   * in the far half of the board (nearer to being
+   * crowned) and for a man still in the back row
+   * (keeping the opponent from being crowned).
+   */
+  private static final int MAN = 100;
+  private static final int KING = 160;
+  private static final int ADVANCED = 4;
+  private static final int BACK_ROW = 8;
+
+  /**
+   * The squares of the top half and the bottom half of
+   * the board, and the rows at the top and bottom.
+   */
+  private static final int TOP_HALF = 0x0000FFFF;
+  private static final int BOTTOM_HALF = 0xFFFF0000;
+  private static final int TOP_ROW = 0x0000000F;
+  private static final int BOTTOM_ROW = 0xF0000000;
+
+  /**
+   * The ordering scores of the table move, jumps and
+   * killer moves, all higher than any history score.
+   */
+  private static final int TABLE_MOVE_ORDER = 1 << 30;
+  private static final int JUMP_ORDER = 1 << 29;
+  private static final int KILLER_ORDER = 1 << 28;
+
+  /**
+   * When a history score gets this high, all of them are
+   * halved.
+   */
+  private static final int HISTORY_LIMIT = 1 << 20;
+
+  //-------------------------------------------------------
+  //   instance fields
+
+  /**
+   * The position being searched.
+   */
+  private Position myPosition;
+
+  /**
+   * Where the results of searches are remembered (it
+   * may be shared with other engines).
+   */
+  private TranspositionTable myTable;
+
+  /**
+   * The endgames that needn't be searched, or null.
+   */
+  private EndgameTable myEndgames;
+
+  /**
+   * Two killer moves for each ply.
+   */
+  private int[] myKillers = new int[MAX_PLY * 2];
+
+  /**
+   * The history score of each packed move.
+   */
+  private int[] myHistory = new int[1024];
+
+  /**
+   * The moves at each ply, and their ordering scores.
+   */
+  private int[][] myMoves = new int[MAX_PLY][Position.MAX_MOVES];
+  private int[][] myOrder = new int[MAX_PLY][Position.MAX_MOVES];
+
+  /**
+   * When the search must stop, and whether it has.
+   */
+  private long myDeadline;
+  private boolean myStopped;
+
+  /**
+   * Set by another thread to stop the search.
+   */
+  private volatile boolean myHalted;
+
+  /**
+   * The depth of the pass being searched.
+   */
+  private int myPassDepth;
+
+  /**
+   * The statistics of the last search: positions
+   * searched, the deepest search finished, and its score.
+   */
+  private long myNodes;
+  private int myDepth;
+  private int myScore;
+
+  //-------------------------------------------------------
+  //   initialization
+
+  /**
+   * Constructor sets the data.
+   * @param table where to remember what is found (it may
+   *        be shared with other engines).
+   */
+  public Engine(TranspositionTable table) {
+    myTable = table;
+  }
+
+  /**
+   * Forget everything learned in earlier searches.
+   */
+  public void clear() {
+    myTable.clear();
+    for(int i = 0; i < myHistory.length; i++) {
+      myHistory[i] = 0;
+    }
+  }
+
+  /**
+   * Set the endgames to look up instead of searching
+   * (null for none).
+   */
+  public void setEndgameTable(EndgameTable endgames) {
+    myEndgames = endgames;
+  }
+
+  /**
+   * Tell the engine, from another thread, to stop
+   * searching as soon as it can, or that it may search
+   * again.  A search doesn't clear this, so it may be
+   * set before a search on another thread has begun.
+   */
+  public void setHalted(boolean halted) {
+    myHalted = halted;
+  }
+
+  //-------------------------------------------------------
+  //   get data
+
+  /**
+   * The number of positions the last search looked at.
+   */
+  public long getNodes() {
+    return(myNodes);
+  }
+
+  /**
+   * The depth (in turns) of the deepest search that
+   * the last call to search finished.
+   */
+  public int getDepth() {
+    return(myDepth);
+  }
+
+  /**
+   * The score of the move the last search chose, for
+   * the player to move.
+   */
+  public int getScore() {
+    return(myScore);
+  }
+
+  //-------------------------------------------------------
+  //   searching
+
+  /**
+   * Find the best move for the player to move.  The
+   * position is used for the search and is left as it
+   * was.
+   * @param millis how long to search for.
+   * @return the packed move (END_TURN if the best thing
+   *         to do in a run of jumps is to stop), or -1
+   *         if the player can't move.
+   */
+  public int search(Position position, long millis) {
+    return(search(position, System.currentTimeMillis() + millis, 
+		  MAX_DEPTH, 1));
+  }
+
+  /**
+   * Find the best move for the player to move, as above, 
+   * but stopping at a given time or depth.  A pass one 
+   * turn deep always finishes, however late it is.
+   * @param deadline when to stop 
+   *        (System.currentTimeMillis()).
+   * @param maxDepth the deepest pass, in turns.
+   * @param firstDepth the depth of the first pass (the 
+   *        server's ParallelSearch starts some engines 
+   *        deeper than others).
+   */
+  public int search(Position position, long deadline, int maxDepth,
+		    int firstDepth) {
+    myPosition = position;
+    myDeadline = deadline;
+    myStopped = false;
+    myNodes = 0;
+    myDepth = 0;
+    myScore = 0;
+    for(int i = 0; i < myKillers.length; i++) {
+      myKillers[i] = -1;
+    }
+    int count = position.getAllMoves(myMoves[0]);
+    int retVal = -1;
+    if(count > 0) {
+      retVal = myMoves[0][0];
+    }
+    if(maxDepth > MAX_DEPTH) {
+      maxDepth = MAX_DEPTH;
+    }
+    // with only one move there's nothing to think about:
+    for(int depth = firstDepth; (depth <= maxDepth) && (count > 1); 
+	depth++) {
+      myPassDepth = depth;
+      int move = searchRoot(depth, count);
+      if(move >= 0) {
+	retVal = move;
+      }
+      if(myStopped) {
+	break;
+      }
+      myDepth = depth;
+      // once a win or loss is certain, deeper is no better:
+      if((myScore > WIN - LONGEST_WIN) || (myScore < LONGEST_WIN - WIN)) {
+	break;
+      }
+    }
+    myPosition = null;
+    return(retVal);
+  }
+
+  /**
+   * Search each move at the root to the given depth.
+   * @return the best of the moves that were searched
+   *         completely (-1 if time ran out before any).
+   */
+  private int searchRoot(int depth, int count) {
+    int key = myPosition.getKey();
+    order(0, count, TranspositionTable.getMove(myTable.probe(key)));
+    int alpha = -INFINITY;
+    int retVal = -1;
+    for(int i = 0; i < count; i++) {
+      int move = pickNext(0, i, count);
+      int score = searchMove(move, depth, alpha, INFINITY, 0);
+      if(myStopped) {
+	break;
+      }
+      if(score > alpha) {
+	alpha = score;
+	retVal = move;
+	myScore = score;
+      }
+    }
+    if(! myStopped) {
+      store(key, depth, alpha, TranspositionTable.EXACT, retVal, 0);
+    }
+    return(retVal);
+  }
+
+  /**
+   * Make a move, search what follows and take it back.
+   * If the move is a jump and the same piece can jump
+   * again, the same player moves next, and that doesn't
+   * use up any depth.
+   * @param ply the ply the move is made at.
+   * @return the score for the player making the move.
+   */
+  private int searchMove(int move, int depth, int alpha, int beta, int ply) {
+    int undo = myPosition.makeMove(move);
+    int retVal;
+    if(myPosition.getJumping() >= 0) {
+      retVal = alphaBeta(depth, alpha, beta, ply + 1);
+    } else {
+      retVal = -alphaBeta(depth - 1, -beta, -alpha, ply + 1);
+    }
+    myPosition.unmakeMove(move, undo);
+    return(retVal);
+  }
+
+  /**
+   * The alpha-beta search.
+   * @param depth how many more turns to search.
+   * @param ply how many moves down from the root we are.
+   * @return the score for the player to move, or
+   *         nothing useful if the time ran out.
+   */
+  private int alphaBeta(int depth, int alpha, int beta, int ply) {
+    if(depth <= 0) {
+      return(quiesce(alpha, beta, ply));
+    }
+    if(tick()) {
+      return(0);
+    }
+    if(ply >= MAX_PLY - 1) {
+      return(evaluate());
+    }
+    if((myEndgames != null) && (myPosition.getJumping() < 0)) {
+      int distance = myEndgames.getDistance(myPosition);
+      if(distance != EndgameTable.NOT_FOUND) {
+	return(fromEndgame(distance, ply));
+      }
+    }
+    int key = myPosition.getKey();
+    long data = myTable.probe(key);
+    int tableMove = TranspositionTable.getMove(data);
+    if((data != 0) && (TranspositionTable.getDepth(data) >= depth)) {
+      int score = fromTable(TranspositionTable.getScore(data), ply);
+      int bound = TranspositionTable.getBound(data);
+      if((bound == TranspositionTable.EXACT)
+	 || ((bound == TranspositionTable.LOWER_BOUND) && (score >= beta))
+	 || ((bound == TranspositionTable.UPPER_BOUND) 
+	     && (score <= alpha))) {
+	return(score);
+      }
+    }
+    int count = myPosition.getAllMoves(myMoves[ply]);
+    if(count == 0) {
+      // a player who can't move has lost:
+      return(ply - WIN);
+    }
+    order(ply, count, tableMove);
+    int originalAlpha = alpha;
+    int best = -INFINITY;
+    int bestMove = -1;
+    for(int i = 0; i < count; i++) {
+      int move = pickNext(ply, i, count);
+      int score = searchMove(move, depth, alpha, beta, ply);
+      if(myStopped) {
+	return(0);
+      }
+      if(score > best) {
+	best = score;
+	bestMove = move;
+	if(score > alpha) {
+	  alpha = score;
+	  if(score >= beta) {
+	    refuted(move, depth, ply);
+	    break;
+	  }
+	}
+      }
+    }
+    int bound = TranspositionTable.EXACT;
+    if(best >= beta) {
+      bound = TranspositionTable.LOWER_BOUND;
+    } else if(best <= originalAlpha) {
+      bound = TranspositionTable.UPPER_BOUND;
+    }
+    store(key, depth, best, bound, bestMove, ply);
+    return(best);
+  }
+
+  /**
+   * The quiescence search: only jumps are searched, and
+   * a player who doesn't like any of them may stand pat
+   * (no one is obliged to jump).  In the middle of a run
+   * of jumps the choice is to jump again or to end the
+   * turn.
+   * @return the score for the player to move.
+   */
+  private int quiesce(int alpha, int beta, int ply) {
+    if(tick()) {
+      return(0);
+    }
+    if(ply >= MAX_PLY - 1) {
+      return(evaluate());
+    }
+    int count = myPosition.getJumps(myMoves[ply]);
+    int best = -INFINITY;
+    if(myPosition.getJumping() < 0) {
+      if((count == 0) && (myPosition.getMovers() == 0)) {
+	return(ply - WIN);
+      }
+      best = evaluate();
+      if(best >= beta) {
+	return(best);
+      }
+      if(best > alpha) {
+	alpha = best;
+      }
+    }
+    order(ply, count, -1);
+    for(int i = 0; i < count; i++) {
+      int move = pickNext(ply, i, count);
+      int undo = myPosition.makeMove(move);
+      int score;
+      if(myPosition.getJumping() >= 0) {
+	score = quiesce(alpha, beta, ply + 1);
+      } else {
+	score = -quiesce(-beta, -alpha, ply + 1);
+      }
+      myPosition.unmakeMove(move, undo);
+      if(myStopped) {
+	return(0);
+      }
+      if(score > best) {
+	best = score;
+	if(score > alpha) {
+	  alpha = score;
+	  if(score >= beta) {
+	    break;
+	  }
+	}
+      }
+    }
+    return(best);
+  }
+
+  /**
+   * Count a searched position, and see if the time is up
+   * or another thread has halted the search.
+   * @return whether the search must stop.
+   */
+  private boolean tick() {
+    myNodes++;
+    if(((myNodes & CHECK_INTERVAL) == 0)
+       && (myHalted 
+	   || ((myPassDepth > 1) 
+	       && (System.currentTimeMillis() >= myDeadline)))) {
+      myStopped = true;
+    }
+    return(myStopped);
+  }
+
+  /**
+   * How good the position is for the player to move:
+   * the material, plus a little for men that are on
+   * their way to being crowned and for men guarding
+   * the back row.
+   */
+  private int evaluate() {
+    int own = myPosition.getOwn();
+    int opponent = myPosition.getOpponent();
+    int kings = myPosition.getKings();
+    int ownMen = own & ~kings;
+    int opponentMen = opponent & ~kings;
+    return(MAN * (Position.count(ownMen) - Position.count(opponentMen))
+	   + KING * (Position.count(own & kings)
+		     - Position.count(opponent & kings))
+	   + ADVANCED * (Position.count(ownMen & TOP_HALF)
+			 - Position.count(opponentMen & BOTTOM_HALF))
+	   + BACK_ROW * (Position.count(ownMen & BOTTOM_ROW)
+			 - Position.count(opponentMen & TOP_ROW)));
+  }
+
+  //-------------------------------------------------------
+  //   move ordering
+
+  /**
+   * Give each move at the given ply its ordering score.
+   */
+  private void order(int ply, int count, int tableMove) {
+    int[] moves = myMoves[ply];
+    int[] order = myOrder[ply];
+    int killer = myKillers[ply * 2];
+    int secondKiller = myKillers[ply * 2 + 1];
+    for(int i = 0; i < count; i++) {
+      int move = moves[i];
+      if(move == tableMove) {
+	order[i] = TABLE_MOVE_ORDER;
+      } else if(Position.isJump(move)) {
+	order[i] = JUMP_ORDER + myHistory[move];
+      } else if(move == killer) {
+	order[i] = KILLER_ORDER + 1;
+      } else if(move == secondKiller) {
+	order[i] = KILLER_ORDER;
+      } else {
+	order[i] = myHistory[move];
+      }
+    }
+  }
+
+  /**
+   * Swap the best of the moves from the given one on
+   * into its place (the moves are picked one at a time
+   * because after a cutoff the rest aren't needed).
+   * @return the move.
+   */
+  private int pickNext(int ply, int from, int count) {
+    int[] moves = myMoves[ply];
+    int[] order = myOrder[ply];
+    int best = from;
+    for(int i = from + 1; i < count; i++) {
+      if(order[i] > order[best]) {
+	best = i;
+      }
+    }
+    int retVal = moves[best];
+    moves[best] = moves[from];
+    moves[from] = retVal;
+    int swap = order[best];
+    order[best] = order[from];
+    order[from] = swap;
+    return(retVal);
+  }
+
+  /**
+   * Remember a plain move that caused a cutoff, as a
+   * killer at this ply and in its history score.
+   */
+  private void refuted(int move, int depth, int ply) {
+    if(Position.isJump(move) || (move == Position.END_TURN)) {
+      return;
+    }
+    if(myKillers[ply * 2] != move) {
+      myKillers[ply * 2 + 1] = myKillers[ply * 2];
+      myKillers[ply * 2] = move;
+    }
+    myHistory[move] += depth * depth;
+    if(myHistory[move] > HISTORY_LIMIT) {
+      for(int i = 0; i < myHistory.length; i++) {
+	myHistory[i] >>= 1;
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  //   transposition table
+
+  /**
+   * Remember a search of a position in the table.
+   */
+  private void store(int key, int depth, int score, int bound,
+		     int move, int ply) {
+    myTable.store(key, depth, bound, toTable(score, ply), move);
+  }
+
+  /**
+   * A win or loss is scored by how far it is from the
+   * root, but in the table it is kept as how far it is
+   * from the position itself, since the same position
+   * can come up at a different ply.
+   */
+  private static int toTable(int score, int ply) {
+    if(score > WIN - LONGEST_WIN) {
+      return(score + ply);
+    }
+    if(score < LONGEST_WIN - WIN) {
+      return(score - ply);
+    }
+    return(score);
+  }
+
+  /**
+   * The score kept in the table, as a score at the
+   * given ply (see toTable).
+   */
+  private static int fromTable(int score, int ply) {
+    if(score > WIN - LONGEST_WIN) {
+      return(score - ply);
+    }
+    if(score < LONGEST_WIN - WIN) {
+      return(score + ply);
+    }
+    return(score);
+  }
+
+  /**
+   * The score at the given ply of a distance from the 
+   * EndgameTable: a win or loss n turns on is scored as 
+   * if the search had found it n plies deeper.
+   */
+  private static int fromEndgame(int distance, int ply) {
+    if(distance > 0) {
+      return(WIN - ply - distance);
+    }
+    if(distance < 0) {
+      return(ply - distance - 1 - WIN);
+    }
+    return(0);
+  }
+
+}
@@ -0,0 +1,948 @@
+package net.frog_parrot.checkers;
+
+import java.util.Random;
+
+/**
+ * This class holds the pieces on the checkerboard as
+ * three ints, one bit for each of the 32 black squares:
+ * the squares holding the local player's pieces, the
+ * squares holding the remote player's pieces, and the
+ * squares holding kings (of either color).
+ * <p>
+ * The square at grid coordinates (x, y) is bit
+ * (4 * y + x), so the top row (y = 0) is bits 0-3.
+ * Moving one square diagonally is then a shift of 3, 4
+ * or 5 bits, depending on the direction and on whether
+ * the row is odd or even.  For each direction we keep a
+ * mask of the squares (in the even rows and in the odd
+ * rows) that have a neighbor that way, so a whole set
+ * of pieces can be stepped at once with two masks, two
+ * shifts and an or, and finding where every piece can
+ * move or jump takes a handful of bit operations
+ * instead of a pass over the grid.
+ *
+ * @author Carol Hamer
+ */
+public class Position {
+
+  //-------------------------------------------------------
+  //   static fields
+
+  /**
+   * The four diagonal directions, numbered the way
+   * CheckersGame numbers the corners of a square.  The
+   * local player's pieces move up (toward y = 0) and
+   * the remote player's pieces move down.
+   */
+  public static final int UP_LEFT = 0;
+  public static final int UP_RIGHT = 1;
+  public static final int DOWN_LEFT = 2;
+  public static final int DOWN_RIGHT = 3;
+
+  /**
+   * The size of the board: the number of dark squares
+   * in a row, the number of rows, and the number of
+   * squares (one bit each).
+   */
+  public static final int X_LENGTH = 4;
+  public static final int Y_LENGTH = 8;
+  public static final int SQUARES = X_LENGTH * Y_LENGTH;
+
+  /**
+   * The squares each player starts on: the remote
+   * player fills the top three rows and the local
+   * player fills the bottom three.
+   */
+  public static final int START_OWN = 0xFFF00000;
+  public static final int START_OPPONENT = 0x00000FFF;
+
+  /**
+   * The most moves a player can have in one position
+   * (twelve kings with four moves each), which is the
+   * size of an array that can hold any list of moves.
+   */
+  public static final int MAX_MOVES = 48;
+
+  /**
+   * The top row, where the local player's pieces are
+   * crowned, and the bottom row, where the remote
+   * player's pieces are.
+   */
+  private static final int TOP_ROW = 0x0000000F;
+  private static final int BOTTOM_ROW = 0xF0000000;
+
+  /**
+   * The move that ends a turn in the middle of a run of
+   * jumps (the player may stop jumping even when another
+   * jump is possible).  It can't be confused with a real
+   * move because its source and destination are the same.
+   */
+  public static final int END_TURN = (31 << 5) | 31;
+
+  /**
+   * What makeMove returns so that unmakeMove can undo
+   * it: the low bits hold the square the player was
+   * jumping from before the move, plus one, and the
+   * flags say whether the piece was crowned, whether it
+   * jumped a king, and whether the turn passed to the
+   * other player (turning the board around).
+   */
+  private static final int UNDO_JUMPING = 63;
+  private static final int UNDO_CROWNED = 64;
+  private static final int UNDO_CAPTURED_KING = 128;
+  private static final int UNDO_FLIPPED = 256;
+
+  /**
+   * The kinds of pieces, as seen by the player to move,
+   * for the Zobrist keys.
+   */
+  private static final int OWN_MAN = 0;
+  private static final int OWN_KING = 1;
+  private static final int OPPONENT_MAN = 2;
+  private static final int OPPONENT_KING = 3;
+
+  /**
+   * The Zobrist keys: a random int for each kind of
+   * piece on each square, for the other player being
+   * the one to move, and for each square a run of jumps
+   * may continue from.  A position's key is the xor of
+   * the keys of everything in it, so a move changes the
+   * key by xoring in just the squares it changes.  The
+   * keys are for the board as the player who moved
+   * first sees it, so a position has the same key
+   * whichever way round it is being looked at.
+   */
+  private static final int[] PIECE_KEYS = new int[128];
+  private static final int[] JUMPING_KEYS = new int[32];
+  private static final int SIDE_KEY;
+
+  static {
+    // always the same seed so that keys are the same on 
+    // every run:
+    Random random = new Random(0x436b7273);
+    for(int i = 0; i < PIECE_KEYS.length; i++) {
+      PIECE_KEYS[i] = random.nextInt();
+    }
+    for(int i = 0; i < JUMPING_KEYS.length; i++) {
+      JUMPING_KEYS[i] = random.nextInt();
+    }
+    SIDE_KEY = random.nextInt();
+  }
+
+  /**
+   * For each direction, the squares in the even rows that
+   * have a neighbor that way (the leftmost square of an
+   * even row has nothing to its left) and how far the
+   * neighbor is.
+   */
+  private static final int[] EVEN_MASKS
+    = { 0x0E0E0E0E, 0x0F0F0F0F, 0x0E0E0E0E, 0x0F0F0F0F };
+  private static final int[] EVEN_SHIFTS = { 5, 4, 3, 4 };
+
+  /**
+   * For each direction, the squares in the odd rows that
+   * have a neighbor that way (the rightmost square of an
+   * odd row has nothing to its right) and how far the
+   * neighbor is.
+   */
+  private static final int[] ODD_MASKS
+    = { 0xF0F0F0F0, 0x70707070, 0xF0F0F0F0, 0x70707070 };
+  private static final int[] ODD_SHIFTS = { 4, 3, 4, 5 };
+
+  /**
+   * The square of each single bit, looked up by the top
+   * five bits of the bit times a de Bruijn number (CLDC
+   * has no Integer.numberOfTrailingZeros).
+   */
+  private static final int DE_BRUIJN = 0x077CB531;
+  private static final byte[] BIT_SQUARES = {
+    0, 1, 28, 2, 29, 14, 24, 3, 30, 22, 20, 15, 25, 17, 4, 8,
+    31, 27, 13, 23, 21, 19, 16, 7, 26, 12, 18, 6, 11, 5, 10, 9
+  };
+
+  //-------------------------------------------------------
+  //   instance fields
+
+  /**
+   * The squares holding the local player's pieces.
+   */
+  private int myOwn;
+
+  /**
+   * The squares holding the remote player's pieces.
+   */
+  private int myOpponent;
+
+  /**
+   * The squares holding kings.
+   */
+  private int myKings;
+
+  /**
+   * The square of the piece that has just jumped and
+   * may jump again before the turn ends (-1 if none).
+   */
+  private int myJumping = -1;
+
+  /**
+   * Whether the board has been turned around (by
+   * makeMove) so that the player who moved second is
+   * the local player.
+   */
+  private boolean myFlipped;
+
+  /**
+   * The Zobrist key of this position.
+   */
+  private int myKey;
+
+  /**
+   * For a game being played (see play), the number of
+   * moves the player to move has made this turn, and
+   * whether he can't move again (the board has already
+   * been turned around) but hasn't ended his turn yet.
+   * These aren't part of the key.
+   */
+  private int myTurnMoves;
+  private boolean myTurnOver;
+
+  //-------------------------------------------------------
+  //   initialization
+
+  /**
+   * Constructor puts the pieces in their initial positions.
+   */
+  public Position() {
+    myOwn = START_OWN;
+    myOpponent = START_OPPONENT;
+    myKey = computeKey();
+  }
+
+  /**
+   * Constructor sets the pieces from the three bitboards.
+   */
+  public Position(int own, int opponent, int kings) {
+    myOwn = own;
+    myOpponent = opponent;
+    myKings = kings;
+    myKey = computeKey();
+  }
+
+  /**
+   * Copy another position into this one.
+   */
+  public void set(Position other) {
+    myOwn = other.myOwn;
+    myOpponent = other.myOpponent;
+    myKings = other.myKings;
+    myJumping = other.myJumping;
+    myFlipped = other.myFlipped;
+    myKey = other.myKey;
+    myTurnMoves = other.myTurnMoves;
+    myTurnOver = other.myTurnOver;
+  }
+
+  /**
+   * Set the pieces from the three bitboards, at the
+   * start of the local player's turn.
+   */
+  public void set(int own, int opponent, int kings) {
+    myOwn = own;
+    myOpponent = opponent;
+    myKings = kings;
+    myJumping = -1;
+    myFlipped = false;
+    myTurnMoves = 0;
+    myTurnOver = false;
+    myKey = computeKey();
+  }
+
+  //-------------------------------------------------------
+  //   get data
+
+  /**
+   * The squares holding the local player's pieces.
+   */
+  public int getOwn() {
+    return(myOwn);
+  }
+
+  /**
+   * The squares holding the remote player's pieces.
+   */
+  public int getOpponent() {
+    return(myOpponent);
+  }
+
+  /**
+   * The squares holding kings.
+   */
+  public int getKings() {
+    return(myKings);
+  }
+
+  /**
+   * The squares with no piece on them.
+   */
+  public int getEmpty() {
+    return(~(myOwn | myOpponent));
+  }
+
+  /**
+   * The square of the piece that may jump again before 
+   * the turn ends, or -1 if the turn starts afresh.
+   */
+  public int getJumping() {
+    return(myJumping);
+  }
+
+  /**
+   * Say that the piece on the given square has just 
+   * jumped and may jump again (-1 for none).
+   */
+  public void setJumping(int square) {
+    if(myJumping >= 0) {
+      myKey ^= JUMPING_KEYS[absolute(myJumping)];
+    }
+    myJumping = square;
+    if(myJumping >= 0) {
+      myKey ^= JUMPING_KEYS[absolute(myJumping)];
+    }
+  }
+
+  /**
+   * Whether the board has been turned around so that
+   * the player who moved second is the local player
+   * (the pieces the first player had are now the
+   * opponent's, and the square at x, y is the one he
+   * sees at X_LENGTH - 1 - x, Y_LENGTH - 1 - y).
+   */
+  public boolean isFlipped() {
+    return(myFlipped);
+  }
+
+  /**
+   * The Zobrist key of this position, for looking it 
+   * up in a transposition table.
+   */
+  public int getKey() {
+    return(myKey);
+  }
+
+  /**
+   * get the piece on the given grid square, with the
+   * values CheckersCanvas draws:
+   * 0 = empty
+   * 1 = local player's piece
+   * 2 = local player's king
+   * -1 = remote player's piece
+   * -2 = remote player's king
+   */
+  public byte getPiece(int x, int y) {
+    int bit = 1 << square(x, y);
+    byte retVal = 0;
+    if((myOwn & bit) != 0) {
+      retVal = 1;
+    } else if((myOpponent & bit) != 0) {
+      retVal = -1;
+    }
+    if((myKings & bit) != 0) {
+      retVal *= 2;
+    }
+    return(retVal);
+  }
+
+  //-------------------------------------------------------
+  //   squares and bits
+
+  /**
+   * The square (bit number) of the given grid coordinates.
+   */
+  public static int square(int x, int y) {
+    return((y << 2) + x);
+  }
+
+  /**
+   * The X grid coordinate of a square.
+   */
+  public static int getX(int square) {
+    return(square & 3);
+  }
+
+  /**
+   * The Y grid coordinate of a square.
+   */
+  public static int getY(int square) {
+    return(square >> 2);
+  }
+
+  /**
+   * The lowest square in a set of squares.
+   * @return -1 if the set is empty.
+   */
+  public static int lowestSquare(int squares) {
+    if(squares == 0) {
+      return(-1);
+    }
+    return(BIT_SQUARES[((squares & -squares) * DE_BRUIJN) >>> 27]);
+  }
+
+  /**
+   * The number of squares in a set (CLDC has no 
+   * Integer.bitCount).
+   */
+  public static int count(int squares) {
+    squares -= (squares >>> 1) & 0x55555555;
+    squares = (squares & 0x33333333) + ((squares >>> 2) & 0x33333333);
+    squares = (squares + (squares >>> 4)) & 0x0F0F0F0F;
+    return((squares * 0x01010101) >>> 24);
+  }
+
+  /**
+   * Turn a set of squares around, as the other player 
+   * sees them: square i becomes square 31 - i, so this 
+   * just reverses the order of the bits.
+   */
+  public static int rotate(int squares) {
+    squares = ((squares & 0x55555555) << 1) | ((squares >>> 1) & 0x55555555);
+    squares = ((squares & 0x33333333) << 2) | ((squares >>> 2) & 0x33333333);
+    squares = ((squares & 0x0F0F0F0F) << 4) | ((squares >>> 4) & 0x0F0F0F0F);
+    return((squares << 24) | ((squares & 0xFF00) << 8) 
+	   | ((squares >>> 8) & 0xFF00) | (squares >>> 24));
+  }
+
+  /**
+   * Move every square in a set one step in the given
+   * direction.  Squares that would step off the board
+   * are dropped.
+   */
+  public static int step(int squares, int direction) {
+    int even = squares & EVEN_MASKS[direction];
+    int odd = squares & ODD_MASKS[direction];
+    if(direction < 2) {
+      return((even >>> EVEN_SHIFTS[direction])
+	     | (odd >>> ODD_SHIFTS[direction]));
+    }
+    return((even << EVEN_SHIFTS[direction])
+	   | (odd << ODD_SHIFTS[direction]));
+  }
+
+  /**
+   * The direction that leads back the way the given
+   * direction goes.
+   */
+  public static int reverse(int direction) {
+    return(3 - direction);
+  }
+
+  //-------------------------------------------------------
+  //   packed moves
+
+  /**
+   * Pack a move into an int: the source square in the
+   * upper bits and the destination in the low five.
+   */
+  public static int pack(int from, int to) {
+    return((from << 5) | to);
+  }
+
+  /**
+   * The source square of a packed move.
+   */
+  public static int getFrom(int move) {
+    return(move >>> 5);
+  }
+
+  /**
+   * The destination square of a packed move.
+   */
+  public static int getTo(int move) {
+    return(move & 31);
+  }
+
+  /**
+   * Whether a packed move is a jump (a jump goes 7 or
+   * 9 squares, a plain move 3, 4 or 5).
+   */
+  public static boolean isJump(int move) {
+    int distance = getTo(move) - getFrom(move);
+    return((distance < -5) || (distance > 5));
+  }
+
+  //-------------------------------------------------------
+  //   move generation
+
+  /**
+   * The local player's pieces that may move in the
+   * given direction: all of them forward, only kings
+   * backward.
+   */
+  private int getPieces(int direction) {
+    if(direction < 2) {
+      return(myOwn);
+    }
+    return(myOwn & myKings);
+  }
+
+  /**
+   * The local player's pieces that can make a plain
+   * (non-jumping) move.
+   */
+  public int getMovers() {
+    int empty = getEmpty();
+    int retVal = 0;
+    for(int i = 0; i < 4; i++) {
+      retVal |= step(step(getPieces(i), i) & empty, reverse(i));
+    }
+    return(retVal);
+  }
+
+  /**
+   * The local player's pieces that can jump.
+   */
+  public int getJumpers() {
+    int empty = getEmpty();
+    int retVal = 0;
+    for(int i = 0; i < 4; i++) {
+      int landings = step(step(getPieces(i), i) & myOpponent, i) & empty;
+      int back = reverse(i);
+      retVal |= step(step(landings, back), back);
+    }
+    return(retVal);
+  }
+
+  /**
+   * The local player's pieces that can move at all.
+   */
+  public int getMovable() {
+    return(getMovers() | getJumpers());
+  }
+
+  /**
+   * Where the local player's piece on the given square
+   * can go in the given direction: the neighboring
+   * square if it is empty, or the square beyond if the
+   * neighbor holds a remote piece that can be jumped.
+   * @param jumpsOnly if we should return only jumps.
+   * @return the destination square, or -1 if there's
+   *         no move that way.
+   */
+  public int getDestination(int square, int direction, boolean jumpsOnly) {
+    int bit = 1 << square;
+    if((getPieces(direction) & bit) == 0) {
+      return(-1);
+    }
+    int empty = getEmpty();
+    int corner = step(bit, direction);
+    if((corner & empty) != 0) {
+      if(jumpsOnly) {
+	return(-1);
+      }
+      return(lowestSquare(corner));
+    }
+    if((corner & myOpponent) != 0) {
+      return(lowestSquare(step(corner, direction) & empty));
+    }
+    return(-1);
+  }
+
+  /**
+   * Write the moves the local player's piece on the
+   * given square can make into the caller's array, in
+   * the order of the directions they go.  Nothing is
+   * allocated.
+   * @param jumpsOnly if we should return only jumps.
+   * @param toFill an array with room for four moves.
+   * @return the number of moves written.
+   */
+  public int getMoves(int square, boolean jumpsOnly, int[] toFill) {
+    int count = 0;
+    for(int i = 0; i < 4; i++) {
+      int destination = getDestination(square, i, jumpsOnly);
+      if(destination >= 0) {
+	toFill[count++] = pack(square, destination);
+      }
+    }
+    return(count);
+  }
+
+  /**
+   * Write every jump the local player can make into the
+   * caller's array.  In the middle of a run of jumps,
+   * those are the jumps of the piece that is jumping,
+   * followed by END_TURN.  The jumps are found a
+   * direction at a time for all of the pieces at once,
+   * and nothing is allocated.
+   * @param toFill an array with room for MAX_MOVES moves.
+   * @return the number of moves written.
+   */
+  public int getJumps(int[] toFill) {
+    if(myJumping >= 0) {
+      int count = getMoves(myJumping, true, toFill);
+      toFill[count++] = END_TURN;
+      return(count);
+    }
+    int empty = getEmpty();
+    int count = 0;
+    for(int i = 0; i < 4; i++) {
+      int back = reverse(i);
+      int landings = step(step(getPieces(i), i) & myOpponent, i) & empty;
+      while(landings != 0) {
+	int to = landings & -landings;
+	landings ^= to;
+	toFill[count++] = pack(lowestSquare(step(step(to, back), back)), 
+			       lowestSquare(to));
+      }
+    }
+    return(count);
+  }
+
+  /**
+   * Write every move the local player can make into the
+   * caller's array, the jumps first (see getJumps).
+   * Nothing is allocated.
+   * @param toFill an array with room for MAX_MOVES moves.
+   * @return the number of moves written.
+   */
+  public int getAllMoves(int[] toFill) {
+    int count = getJumps(toFill);
+    if(myJumping >= 0) {
+      return(count);
+    }
+    int empty = getEmpty();
+    for(int i = 0; i < 4; i++) {
+      int back = reverse(i);
+      int destinations = step(getPieces(i), i) & empty;
+      while(destinations != 0) {
+	int to = destinations & -destinations;
+	destinations ^= to;
+	toFill[count++] = pack(lowestSquare(step(to, back)), 
+			       lowestSquare(to));
+      }
+    }
+    return(count);
+  }
+
+  //-------------------------------------------------------
+  //   making moves
+
+  /**
+   * Move one of the local player's pieces, removing the
+   * piece it jumps (if any) and crowning it if it
+   * reaches the top row.
+   * @return whether the move was a jump.
+   */
+  public boolean move(int from, int to) {
+    int bits = (1 << from) | (1 << to);
+    myOwn ^= bits;
+    if((myKings & (1 << from)) != 0) {
+      myKings ^= bits;
+    } else if(((1 << to) & TOP_ROW) != 0) {
+      myKings |= 1 << to;
+    }
+    return(capture(from, to));
+  }
+
+  /**
+   * Move one of the remote player's pieces, removing the
+   * piece it jumps (if any) and crowning it if it
+   * reaches the bottom row.
+   * @return whether the move was a jump.
+   */
+  public boolean moveOpponent(int from, int to) {
+    int bits = (1 << from) | (1 << to);
+    myOpponent ^= bits;
+    if((myKings & (1 << from)) != 0) {
+      myKings ^= bits;
+    } else if(((1 << to) & BOTTOM_ROW) != 0) {
+      myKings |= 1 << to;
+    }
+    return(capture(from, to));
+  }
+
+  /**
+   * If the move between the two squares is a jump,
+   * empty the square that was jumped.
+   * @return whether the move was a jump.
+   */
+  private boolean capture(int from, int to) {
+    boolean retVal = isJump(pack(from, to));
+    if(retVal) {
+      int jumped = getJumped(from, to);
+      myOwn &= ~jumped;
+      myOpponent &= ~jumped;
+      myKings &= ~jumped;
+    }
+    myKey = computeKey();
+    return(retVal);
+  }
+
+  /**
+   * The square (as a set of one) that a jump between the 
+   * two squares jumps over.  A jump goes 7 or 9 squares, 
+   * and which of those it is tells the direction.
+   */
+  private static int getJumped(int from, int to) {
+    int distance = to - from;
+    int direction = DOWN_RIGHT;
+    if(distance == -9) {
+      direction = UP_LEFT;
+    } else if(distance == -7) {
+      direction = UP_RIGHT;
+    } else if(distance == 7) {
+      direction = DOWN_LEFT;
+    }
+    return(step(1 << from, direction));
+  }
+
+  //-------------------------------------------------------
+  //   playing
+
+  /**
+   * Whether the player to move may make the given move 
+   * now.  END_TURN is only allowed in a run of jumps.
+   * Nothing is allocated.
+   * @param move a packed move, which may be anything.
+   */
+  public boolean isLegal(int move) {
+    if(move == END_TURN) {
+      return(myJumping >= 0);
+    }
+    int from = getFrom(move);
+    if((from > 31) || ((myJumping >= 0) && (from != myJumping))) {
+      return(false);
+    }
+    for(int i = 0; i < 4; i++) {
+      if(getDestination(from, i, myJumping >= 0) == getTo(move)) {
+	return(true);
+      }
+    }
+    return(false);
+  }
+
+  /**
+   * Check a move the player to move says he has made,
+   * in grid coordinates as he sees the board, and make
+   * it if it is legal (see play(int)).
+   * @return whether the move was legal.
+   */
+  public boolean play(int fromX, int fromY, int toX, int toY) {
+    if((fromX < 0) || (fromX > 3) || (fromY < 0) || (fromY > 7)
+       || (toX < 0) || (toX > 3) || (toY < 0) || (toY > 7)) {
+      return(false);
+    }
+    return(play(pack(square(fromX, fromY), square(toX, toY))));
+  }
+
+  /**
+   * Check a move the player to move says he has made --
+   * in a game being played rather than searched -- and
+   * make it if it is legal.  A plain move, or a jump
+   * after which the piece can't jump again, turns the
+   * board around (as makeMove does), but the player who
+   * made it may not move again until endTurn.
+   * @return whether the move was legal (if not, nothing
+   *         has changed).
+   */
+  public boolean play(int move) {
+    if(myTurnOver || (move == END_TURN) || (! isLegal(move))) {
+      return(false);
+    }
+    myTurnMoves++;
+    myTurnOver = (makeMove(move) & UNDO_FLIPPED) != 0;
+    return(true);
+  }
+
+  /**
+   * End the turn of the player who has been playing
+   * moves (see play).  If he stopped in a run of jumps
+   * he could have gone on with, the board is turned
+   * around now.
+   * @return false if he hasn't made a move this turn,
+   *         which isn't allowed.
+   */
+  public boolean endTurn() {
+    if(myTurnMoves == 0) {
+      return(false);
+    }
+    if(! myTurnOver) {
+      makeMove(END_TURN);
+    }
+    myTurnMoves = 0;
+    myTurnOver = false;
+    return(true);
+  }
+
+  //-------------------------------------------------------
+  //   searching
+
+  /**
+   * Make a move for the player to move, in place, for 
+   * the search.  If the move is a jump and the piece can 
+   * jump again, the same player moves next (with the 
+   * jumps of that piece or END_TURN); otherwise the 
+   * board is turned around so that the other player is 
+   * the local player.  Nothing is copied or allocated.
+   * @param move a packed move from getAllMoves.
+   * @return what unmakeMove needs to take the move back.
+   */
+  public int makeMove(int move) {
+    int retVal = myJumping + 1;
+    setJumping(-1);
+    if(move != END_TURN) {
+      int from = getFrom(move);
+      int to = getTo(move);
+      int fromBit = 1 << from;
+      int toBit = 1 << to;
+      myOwn ^= fromBit | toBit;
+      if((myKings & fromBit) != 0) {
+	myKings ^= fromBit | toBit;
+	toggle(OWN_KING, from);
+	toggle(OWN_KING, to);
+      } else {
+	toggle(OWN_MAN, from);
+	if((toBit & TOP_ROW) != 0) {
+	  myKings |= toBit;
+	  toggle(OWN_KING, to);
+	  retVal |= UNDO_CROWNED;
+	} else {
+	  toggle(OWN_MAN, to);
+	}
+      }
+      if(isJump(move)) {
+	int jumped = getJumped(from, to);
+	myOpponent ^= jumped;
+	if((myKings & jumped) != 0) {
+	  myKings ^= jumped;
+	  toggle(OPPONENT_KING, lowestSquare(jumped));
+	  retVal |= UNDO_CAPTURED_KING;
+	} else {
+	  toggle(OPPONENT_MAN, lowestSquare(jumped));
+	}
+	for(int i = 0; i < 4; i++) {
+	  if(getDestination(to, i, true) >= 0) {
+	    setJumping(to);
+	    return(retVal);
+	  }
+	}
+      }
+    }
+    flip();
+    return(retVal | UNDO_FLIPPED);
+  }
+
+  /**
+   * Take back a move made by makeMove.
+   * @param move the move.
+   * @param undo what makeMove returned.
+   */
+  public void unmakeMove(int move, int undo) {
+    if((undo & UNDO_FLIPPED) != 0) {
+      flip();
+    }
+    setJumping(-1);
+    if(move != END_TURN) {
+      int from = getFrom(move);
+      int to = getTo(move);
+      int fromBit = 1 << from;
+      int toBit = 1 << to;
+      if(isJump(move)) {
+	int jumped = getJumped(from, to);
+	myOpponent |= jumped;
+	if((undo & UNDO_CAPTURED_KING) != 0) {
+	  myKings |= jumped;
+	  toggle(OPPONENT_KING, lowestSquare(jumped));
+	} else {
+	  toggle(OPPONENT_MAN, lowestSquare(jumped));
+	}
+      }
+      myOwn ^= fromBit | toBit;
+      if((undo & UNDO_CROWNED) != 0) {
+	myKings ^= toBit;
+	toggle(OWN_KING, to);
+	toggle(OWN_MAN, from);
+      } else if((myKings & toBit) != 0) {
+	myKings ^= fromBit | toBit;
+	toggle(OWN_KING, to);
+	toggle(OWN_KING, from);
+      } else {
+	toggle(OWN_MAN, to);
+	toggle(OWN_MAN, from);
+      }
+    }
+    setJumping((undo & UNDO_JUMPING) - 1);
+  }
+
+  /**
+   * Turn the board around so that the other player is 
+   * the local player.  The key only changes by whose 
+   * turn it is, since the keys are for the board as 
+   * the first player sees it.
+   */
+  private void flip() {
+    int own = myOwn;
+    myOwn = rotate(myOpponent);
+    myOpponent = rotate(own);
+    myKings = rotate(myKings);
+    myFlipped = ! myFlipped;
+    myKey ^= SIDE_KEY;
+  }
+
+  /**
+   * The square (as the first player sees it) that the 
+   * given square is in the board as it is now.
+   */
+  private int absolute(int square) {
+    if(myFlipped) {
+      return(31 - square);
+    }
+    return(square);
+  }
+
+  /**
+   * The Zobrist key of a kind of piece on a square.
+   */
+  private int getPieceKey(int kind, int square) {
+    if(myFlipped) {
+      // the local player's pieces are the second 
+      // player's pieces:
+      return(PIECE_KEYS[((kind ^ 2) << 5) | (31 - square)]);
+    }
+    return(PIECE_KEYS[(kind << 5) | square]);
+  }
+
+  /**
+   * Put a piece on a square or take it off, in the key.
+   */
+  private void toggle(int kind, int square) {
+    myKey ^= getPieceKey(kind, square);
+  }
+
+  /**
+   * Work out the key of this position from scratch.
+   */
+  private int computeKey() {
+    int retVal = 0;
+    for(int i = 0; i < 32; i++) {
+      int bit = 1 << i;
+      int kind = OWN_MAN;
+      if((myOpponent & bit) != 0) {
+	kind = OPPONENT_MAN;
+      } else if((myOwn & bit) == 0) {
+	continue;
+      }
+      if((myKings & bit) != 0) {
+	kind++;
+      }
+      retVal ^= getPieceKey(kind, i);
+    }
+    if(myFlipped) {
+      retVal ^= SIDE_KEY;
+    }
+    if(myJumping >= 0) {
+      retVal ^= JUMPING_KEYS[absolute(myJumping)];
+    }
+    return(retVal);
+  }
+
+}
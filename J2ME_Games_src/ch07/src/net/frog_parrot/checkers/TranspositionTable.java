@@ -0,0 +1,167 @@
+package net.frog_parrot.checkers;
+
+/**
+ * This class remembers what an Engine found out about the
+ * positions it searched, by their Zobrist keys (see
+ * Position.getKey), so that a position met again -- by
+ * another order of moves, in a deeper search, or by
+ * another engine -- can be cut off, or at least searched
+ * best move first.  It is a fixed number of entries in
+ * two primitive arrays, made once, so nothing is
+ * allocated while searching.
+ * <p>
+ * Several engines on different threads may share one
+ * table without locking (the server's ParallelSearch
+ * does).  Each entry is a long of data (the score, the
+ * depth, what kind of score it is and the best move) and
+ * an int check: the key xored with both halves of the
+ * data.  Two threads may write the same entry at once and
+ * leave one's data with the other's check, but then the
+ * check no longer matches the key, so a torn entry just
+ * reads as missing.
+ *
+ * @author Carol Hamer
+ */
+public class TranspositionTable {
+
+  //-------------------------------------------------------
+  //   static fields
+
+  /**
+   * What a remembered score is: the exact score, or only
+   * a bound on it because the search was cut off.  None
+   * of them is zero, so an entry's data never is.
+   */
+  public static final int EXACT = 1;
+  public static final int LOWER_BOUND = 2;
+  public static final int UPPER_BOUND = 3;
+
+  /**
+   * What the move bits of an entry hold when there's no
+   * best move (no packed move is this large).
+   */
+  private static final int NO_MOVE = 0xFFFF;
+
+  //-------------------------------------------------------
+  //   instance fields
+
+  /**
+   * Each entry's data and check.
+   */
+  private long[] myData;
+  private int[] myChecks;
+
+  /**
+   * The number of entries, less one.
+   */
+  private int myMask;
+
+  //-------------------------------------------------------
+  //   initialization
+
+  /**
+   * Constructor makes an empty table.
+   * @param bits the table has 2 to this power entries,
+   *        12 bytes each.
+   */
+  public TranspositionTable(int bits) {
+    myData = new long[1 << bits];
+    myChecks = new int[1 << bits];
+    myMask = (1 << bits) - 1;
+  }
+
+  /**
+   * Forget everything.  This isn't safe while the table
+   * is being searched with.
+   */
+  public void clear() {
+    for(int i = 0; i <= myMask; i++) {
+      myData[i] = 0;
+      myChecks[i] = 0;
+    }
+  }
+
+  //-------------------------------------------------------
+  //   business methods
+
+  /**
+   * Look up a position.
+   * @return the entry's data (see getScore and the rest),
+   *         or zero if the position isn't there.
+   */
+  public long probe(int key) {
+    int index = key & myMask;
+    long data = myData[index];
+    if((data == 0) || (myChecks[index] != check(key, data))) {
+      return(0);
+    }
+    return(data);
+  }
+
+  /**
+   * Remember a position, unless its entry already holds
+   * a deeper search of the same position.
+   * @param bound EXACT, LOWER_BOUND or UPPER_BOUND.
+   * @param move the best move (packed by Position.pack),
+   *        or -1 if there is none.
+   */
+  public void store(int key, int depth, int bound, int score, int move) {
+    int index = key & myMask;
+    long old = myData[index];
+    if((old != 0) && (myChecks[index] == check(key, old))
+       && (getDepth(old) > depth)) {
+      return;
+    }
+    long data = ((long)score << 32) | ((long)depth << 24)
+      | ((long)bound << 16) | (move & NO_MOVE);
+    myData[index] = data;
+    myChecks[index] = check(key, data);
+  }
+
+  //-------------------------------------------------------
+  //   reading entries
+
+  /**
+   * The score in an entry's data.
+   */
+  public static int getScore(long data) {
+    return((int)(data >> 32));
+  }
+
+  /**
+   * The depth (in turns) in an entry's data.
+   */
+  public static int getDepth(long data) {
+    return((int)(data >> 24) & 0xFF);
+  }
+
+  /**
+   * The kind of score (EXACT, LOWER_BOUND or
+   * UPPER_BOUND) in an entry's data.
+   */
+  public static int getBound(long data) {
+    return((int)(data >> 16) & 3);
+  }
+
+  /**
+   * The best move in an entry's data, or -1 if none.
+   */
+  public static int getMove(long data) {
+    int retVal = (int)data & NO_MOVE;
+    if(retVal == NO_MOVE) {
+      return(-1);
+    }
+    return(retVal);
+  }
+
+  //-------------------------------------------------------
+  //   internal utilities
+
+  /**
+   * The check kept with an entry's data.
+   */
+  private static int check(int key, long data) {
+    return(key ^ (int)data ^ (int)(data >>> 32));
+  }
+
+}
@@ -0,0 +1,197 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * This class decides whether the server takes on a new
+ * client, so that a storm of reconnecting clients (after
+ * a network blip, say) is turned away quickly instead of
+ * slowing down everyone already playing.  There are
+ * three limits:
+ * <ul>
+ * <li>a token bucket on accepts: admission.accept_rate
+ *     clients a second, with bursts of up to
+ *     admission.accept_burst,</li>
+ * <li>admission.max_pending handshakes waiting or in
+ *     progress, and</li>
+ * <li>admission.max_tables games, counting the ones the
+ *     players waiting in the Lobby will make.</li>
+ * </ul>
+ * The first two are checked on the accepting thread
+ * before any work is done for the client: a plain socket
+ * is sent the end game flag and closed, and an SSL socket
+ * (which can't be sent anything without a handshake) is
+ * just closed.  The table limit is checked once we know
+ * whether the client is a new player, since one taking
+ * his seat back or a spectator doesn't add a table.
+ * Zero means no limit.
+ * <p>
+ * The limits are settings in Metrics, so they can be
+ * changed over JMX while the server runs.
+ *
+ * @author Carol Hamer
+ */
+public class AdmissionControl {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * One token, in the units the bucket is kept in.
+   */
+  private static final long TOKEN = 1000000000L;
+
+  /**
+   * The limits.
+   */
+  static AtomicLong myAcceptRate = Metrics.setting("admission.accept_rate", 0);
+  static AtomicLong myAcceptBurst = Metrics.setting("admission.accept_burst", 100);
+  static AtomicLong myMaxPending = Metrics.setting("admission.max_pending", 1000);
+  static AtomicLong myMaxTables = Metrics.setting("admission.max_tables", 0);
+
+  /**
+   * The handshakes waiting or in progress.
+   */
+  private static AtomicInteger myPending = new AtomicInteger();
+
+  /**
+   * The clients turned away by each limit.
+   */
+  private static AtomicLong myRateRejects
+    = Metrics.counter("admission.rejected_rate");
+  private static AtomicLong myPendingRejects
+    = Metrics.counter("admission.rejected_pending");
+  private static AtomicLong myTableRejects
+    = Metrics.counter("admission.rejected_tables");
+
+  static {
+    Metrics.register("admission.pending", myPending);
+  }
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The tokens in the bucket, in billionths, and when it
+   * was last filled (System.nanoTime()).  Only used while
+   * holding the lock.
+   */
+  private long myTokens = -1;
+  private long myFilled;
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Decide whether to start a handshake with a newly
+   * accepted client, and turn the client away if not.
+   * This is called on the accepting thread.  A client
+   * who is let in must be matched by a call to
+   * handshakeDone().
+   */
+  boolean admit(Socket client) {
+    if(! takeToken()) {
+      myRateRejects.incrementAndGet();
+      reject(client);
+      return(false);
+    }
+    long max = myMaxPending.get();
+    if((myPending.incrementAndGet() > max) && (max > 0)) {
+      myPending.decrementAndGet();
+      myPendingRejects.incrementAndGet();
+      reject(client);
+      return(false);
+    }
+    return(true);
+  }
+
+  /**
+   * Called when a handshake that was let in has finished,
+   * whether or not it worked.
+   */
+  void handshakeDone() {
+    myPending.decrementAndGet();
+  }
+
+  /**
+   * Decide whether there is room for one more player,
+   * given the number waiting in the lobby.  The new
+   * player makes a table with one who is waiting, or
+   * waits himself, which counts as half a table.
+   * @return false (and the rejection is counted) if
+   *         there isn't.
+   */
+  boolean hasRoom(int waiting) {
+    long max = myMaxTables.get();
+    if((max <= 0)
+       || (RelayStats.getActiveTables() + (waiting + 2) / 2 <= max)) {
+      return(true);
+    }
+    myTableRejects.incrementAndGet();
+    return(false);
+  }
+
+  /**
+   * A summary for the log.
+   */
+  public String toString() {
+    return("admission: pending=" + myPending.get() + " rejected rate="
+           + myRateRejects.get() + " pending=" + myPendingRejects.get()
+           + " tables=" + myTableRejects.get());
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Take a token from the bucket, filling it first with
+   * the tokens earned since it was last filled.
+   * @return false if the bucket is empty.
+   */
+  private synchronized boolean takeToken() {
+    long rate = myAcceptRate.get();
+    if(rate <= 0) {
+      return(true);
+    }
+    long capacity = Math.max(myAcceptBurst.get(), 1) * TOKEN;
+    long now = System.nanoTime();
+    if(myTokens < 0) {
+      // start full:
+      myTokens = capacity;
+    } else {
+      // at most one full bucket can be earned, which
+      // also keeps the sum from overflowing:
+      long earned = Math.min(now - myFilled, capacity / rate) * rate;
+      myTokens = Math.min(myTokens + earned, capacity);
+    }
+    myFilled = now;
+    if(myTokens < TOKEN) {
+      return(false);
+    }
+    myTokens -= TOKEN;
+    return(true);
+  }
+
+  /**
+   * Turn a client away as cheaply as possible.
+   */
+  private static void reject(Socket client) {
+    try {
+      if(! (client instanceof SSLSocket)) {
+        byte[] data = { ServerGame.END_GAME_FLAG, 0, 0, 0 };
+        client.getOutputStream().write(data);
+      }
+    } catch(IOException e) {
+      // the client has gone already.
+    }
+    try {
+      client.close();
+    } catch(IOException e) {
+      // nothing more can be done.
+    }
+  }
+
+}
@@ -0,0 +1,394 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.frog_parrot.checkers.Position;
+import net.frog_parrot.checkers.TranspositionTable;
+
+/**
+ * This class is a computer opponent for a player who
+ * has waited too long in the Lobby.  It takes the place
+ * of a PlayerConnection at a ServerGame table and speaks
+ * the same four-byte frames, so the game can't tell it
+ * from a person: the frames the game writes to it are
+ * the human's moves, and the frames it is read from are
+ * its own.
+ * <p>
+ * The bot keeps the board as the client's Position, and
+ * its turns are worked out by the client's Engine (see
+ * ParallelSearch) on a small shared pool of low-priority
+ * threads, so the bots can
+ * never take more than that share of the processors
+ * from the threads relaying the human games.  Each
+ * search stops when the move's time is up, counted from
+ * when the human's turn ended, so a search that waited
+ * in line gets less time.  If too many searches are
+ * waiting already, the bot makes a quick move (looking
+ * just one turn ahead) instead of joining the line.
+ * All of the searches share one TranspositionTable, and
+ * each may use more than one thread when there are more
+ * processors than bot games.
+ *
+ * @author Carol Hamer
+ */
+class Bot extends PlayerConnection {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The number of threads the bots search on.
+   */
+  static int myThreads
+    = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  /**
+   * How long a bot may take over a turn, in milliseconds.
+   */
+  static int myMoveTime = 500;
+
+  /**
+   * How deep (in turns) a bot looks, at most.
+   */
+  static int myMaxDepth = 12;
+
+  /**
+   * The number of threads each search uses.
+   */
+  static int mySearchThreads = 1;
+
+  /**
+   * The searches' table has 2 to this power entries.
+   */
+  static int myTableBits = 18;
+
+  /**
+   * The most searches that may wait for a thread.
+   */
+  static int myQueueSize = 1024;
+
+  /**
+   * The endgame tablebase the searches look positions
+   * up in, or null for none.
+   */
+  static Tablebase myTablebase;
+
+  /**
+   * The search threads, made when the first bot is.
+   */
+  private static ThreadPoolExecutor myPool;
+
+  /**
+   * The table all of the searches share, made when the
+   * first bot is.
+   */
+  private static TranspositionTable myTable;
+
+  /**
+   * Each search thread's engines.  A quick turn, on a
+   * game's thread, only uses the first one.
+   */
+  private static ThreadLocal<ParallelSearch> mySearches
+    = new ThreadLocal<ParallelSearch>() {
+        protected ParallelSearch initialValue() {
+          return(new ParallelSearch(mySearchThreads, myTable, myTablebase));
+        }
+      };
+
+  /**
+   * The statistics: games the bots played, turns they
+   * made, and quick turns made because the line was full.
+   */
+  private static AtomicLong myGames = Metrics.counter("bot.games");
+  private static AtomicLong myTurns = Metrics.counter("bot.turns");
+  private static AtomicLong myQuickTurns = Metrics.counter("bot.quick_turns");
+
+  /**
+   * How long each turn took from the end of the human's
+   * turn, in milliseconds, and how deep the search went.
+   */
+  private static Histogram myTurnTime = Metrics.histogram("bot.turn_ms");
+  private static Histogram myDepths = Metrics.histogram("bot.depth");
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The board, turned to whichever player is to move
+   * (see Position.play()).
+   */
+  private Position myBoard = new Position();
+
+  /**
+   * The frame being written to the bot.
+   */
+  private byte[] myFrame = new byte[4];
+  private int myFrameLength;
+
+  /**
+   * The bot's frames that the game hasn't read yet.
+   * Only used while holding the bot's lock.
+   */
+  private byte[] myTurn = new byte[4 * (ParallelSearch.MAX_TURN + 1)];
+  private int myTurnStart;
+  private int myTurnEnd;
+
+  /**
+   * How long a read waits, in milliseconds (zero means
+   * forever).
+   */
+  private int myReadTimeout;
+
+  /**
+   * Whether the game is over for the bot.
+   */
+  private volatile boolean myClosed;
+
+  /**
+   * The stream the game reads the bot's frames from.
+   */
+  private InputStream myInput = new InputStream() {
+      public int read() throws IOException {
+        byte[] data = new byte[1];
+        return((read(data, 0, 1) < 0) ? -1 : (data[0] & 0xff));
+      }
+      public int read(byte[] data, int offset, int length)
+          throws IOException {
+        return(readTurn(data, offset, length));
+      }
+    };
+
+  /**
+   * The stream the game writes the human's frames to.
+   */
+  private OutputStream myOutput = new OutputStream() {
+      public void write(int b) throws IOException {
+        receive((byte)b);
+      }
+      public void write(byte[] data, int offset, int length)
+          throws IOException {
+        for(int i = offset; i < offset + length; i++) {
+          receive(data[i]);
+        }
+      }
+    };
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor starts the search threads if they
+   * haven't been started yet.
+   */
+  Bot() {
+    synchronized(Bot.class) {
+      if(myPool == null) {
+        myTable = new TranspositionTable(myTableBits);
+        myPool = new ThreadPoolExecutor(myThreads, myThreads, 0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(myQueueSize),
+            new ThreadFactory() {
+              private int myCount;
+              public synchronized Thread newThread(Runnable r) {
+                Thread retObj = new Thread(r, "Bot-" + (myCount++));
+                retObj.setDaemon(true);
+                retObj.setPriority(Thread.MIN_PRIORITY);
+                return(retObj);
+              }
+            });
+      }
+    }
+    myGames.incrementAndGet();
+  }
+
+  //-------------------------------------------------------------
+  //          PlayerConnection
+
+  /**
+   * get the stream to read the bot's frames from.
+   */
+  InputStream getInput() {
+    return(myInput);
+  }
+
+  /**
+   * get the stream to write to the bot.
+   */
+  OutputStream getOutput() {
+    return(myOutput);
+  }
+
+  /**
+   * Whether the game is over for the bot.
+   */
+  boolean isClosed() {
+    return(myClosed);
+  }
+
+  /**
+   * Set how long a read waits for the bot's next frame.
+   */
+  void setReadTimeout(int timeout) {
+    myReadTimeout = timeout;
+  }
+
+  /**
+   * The bot leaves the game.
+   */
+  void close() {
+    myClosed = true;
+    synchronized(this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * The bot leaves the game (there's nothing to send
+   * first).
+   */
+  void closeNow() {
+    close();
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Take one byte written by the game, and act on each
+   * whole frame.
+   */
+  private void receive(byte b) throws IOException {
+    if(myClosed) {
+      throw(new IOException("the bot has left"));
+    }
+    myFrame[myFrameLength++] = b;
+    if(myFrameLength < 4) {
+      return;
+    }
+    myFrameLength = 0;
+    if(myFrame[0] == ServerGame.END_GAME_FLAG) {
+      close();
+    } else if(myFrame[0] == ServerGame.START_GAME_FLAG) {
+      // we move first:
+      think();
+    } else if(myFrame[0] == ServerGame.END_TURN_FLAG) {
+      // now it's our turn:
+      if(! myBoard.endTurn()) {
+        Log.warn("Bot.receive-->the bot's board is out of step:",
+                 "a turn ended without a move");
+        close();
+        return;
+      }
+      think();
+    } else if(myFrame[0] >= 0) {
+      if(! myBoard.play(myFrame[0], myFrame[1], myFrame[2], myFrame[3])) {
+        Log.warn("Bot.receive-->the bot's board is out of step at move:",
+                 myFrame[0] + ", " + myFrame[1] + " to " + myFrame[2] + ", "
+                 + myFrame[3]);
+        close();
+      }
+    }
+    // heartbeats (the only other frames) mean nothing here.
+  }
+
+  /**
+   * Start working out the bot's turn.  This is called on
+   * the game's thread, which must not wait for it.
+   */
+  private void think() {
+    final Position board = new Position();
+    board.set(myBoard);
+    final long start = System.currentTimeMillis();
+    final long deadline = start + myMoveTime;
+    try {
+      myPool.execute(new Runnable() {
+          public void run() {
+            play(board, deadline, myMaxDepth, start);
+          }
+        });
+    } catch(RejectedExecutionException e) {
+      myQuickTurns.incrementAndGet();
+      play(board, deadline, 1, start);
+    }
+  }
+
+  /**
+   * Search for the bot's turn and queue its frames for
+   * the game to read.  This runs on a search thread
+   * (or, for a quick turn, on the game's thread).
+   */
+  private void play(Position board, long deadline, int depth, long start) {
+    if(myClosed) {
+      return;
+    }
+    ParallelSearch search = mySearches.get();
+    int[] moves = new int[ParallelSearch.MAX_TURN];
+    int count = search.search(board, deadline, depth, moves);
+    myTurnTime.record(System.currentTimeMillis() - start);
+    myDepths.record(search.getDepth());
+    myTurns.incrementAndGet();
+    synchronized(this) {
+      myTurnStart = 0;
+      myTurnEnd = 0;
+      if(count == 0) {
+        // we can't move, so we have lost:
+        myTurn[myTurnEnd++] = ServerGame.END_GAME_FLAG;
+        myTurn[myTurnEnd++] = 0;
+        myTurn[myTurnEnd++] = 0;
+        myTurn[myTurnEnd++] = 0;
+      }
+      for(int i = 0; i < count; i++) {
+        int from = Position.getFrom(moves[i]);
+        int to = Position.getTo(moves[i]);
+        myTurn[myTurnEnd++] = (byte)Position.getX(from);
+        myTurn[myTurnEnd++] = (byte)Position.getY(from);
+        myTurn[myTurnEnd++] = (byte)Position.getX(to);
+        myTurn[myTurnEnd++] = (byte)Position.getY(to);
+        myBoard.play(moves[i]);
+      }
+      if(count > 0) {
+        myTurn[myTurnEnd] = ServerGame.END_TURN_FLAG;
+        myTurnEnd += 4;
+        myBoard.endTurn();
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Called by the game to read the bot's frames: wait
+   * until the bot has made its turn.
+   * @return -1 if the game is over for the bot.
+   * @throws SocketTimeoutException if the read timeout
+   *         passes first, as with a socket.
+   */
+  private synchronized int readTurn(byte[] data, int offset, int length)
+      throws IOException {
+    long deadline = System.currentTimeMillis() + myReadTimeout;
+    while(myTurnStart == myTurnEnd) {
+      if(myClosed) {
+        return(-1);
+      }
+      long wait = 0;
+      if(myReadTimeout > 0) {
+        wait = deadline - System.currentTimeMillis();
+        if(wait <= 0) {
+          throw(new SocketTimeoutException("the bot is still thinking"));
+        }
+      }
+      try {
+        wait(wait);
+      } catch(InterruptedException e) {
+        throw(new InterruptedIOException());
+      }
+    }
+    int retObj = Math.min(length, myTurnEnd - myTurnStart);
+    System.arraycopy(myTurn, myTurnStart, data, offset, retObj);
+    myTurnStart += retObj;
+    return(retObj);
+  }
+
+}
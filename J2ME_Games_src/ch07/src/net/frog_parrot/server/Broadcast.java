@@ -0,0 +1,427 @@
+package net.frog_parrot.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class streams one table's game to any number of
+ * read-only spectators.  A spectator connects with the
+ * watch flag and a table number (see HandshakeStage),
+ * is sent a snapshot of the board and then each turn
+ * as it is played, as seen by the first player.
+ * <p>
+ * Each turn is encoded once, into an array that is never
+ * changed afterward, and every spectator is written the
+ * same array.  The last RING_TURNS turns are kept in a
+ * ring: a spectator who falls further behind than that
+ * skips them and is sent a new snapshot instead (one
+ * snapshot array is shared by everyone who catches up
+ * at the same turn), and one whose write is stuck for
+ * longer than myWriteTimeout is dropped.  The writes
+ * are made by a small pool of threads, so the game
+ * thread only ever adds a turn to the ring and never
+ * waits for a spectator.
+ *
+ * @author Carol Hamer
+ */
+public class Broadcast {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The int a spectator sends first, followed by the
+   * number of the table to watch (four bytes, zero for
+   * the most recent game).
+   */
+  public static final byte WATCH_FLAG = -10;
+
+  /**
+   * The int that begins a snapshot: the second byte is
+   * the player (1 or 2) whose turn it is, and it is
+   * followed by the 32 squares (as in Position, seen
+   * by the first player).
+   */
+  public static final byte SNAPSHOT_FLAG = -11;
+
+  /**
+   * The number of turns kept for spectators who are
+   * behind.
+   */
+  static final int RING_TURNS = 64;
+
+  /**
+   * How long a write to a spectator may take, in
+   * milliseconds, before the spectator is dropped.
+   */
+  static int myWriteTimeout = 5000;
+
+  /**
+   * The games that can be watched, by table number.
+   */
+  private static ConcurrentHashMap<Integer, Broadcast> myTables
+    = new ConcurrentHashMap<Integer, Broadcast>();
+
+  /**
+   * The game that started last.
+   */
+  private static volatile Broadcast myLatest;
+
+  /**
+   * The threads that write to the spectators.
+   */
+  private static ExecutorService myWriters
+    = Executors.newFixedThreadPool(
+        2 * Runtime.getRuntime().availableProcessors(),
+        new ThreadFactory() {
+          private int myCount;
+          public synchronized Thread newThread(Runnable r) {
+            Thread retObj = new Thread(r, "Broadcast-" + (myCount++));
+            retObj.setDaemon(true);
+            return(retObj);
+          }
+        });
+
+  /**
+   * The statistics: spectators who joined, were sent a
+   * snapshot to catch up, and were dropped as too slow.
+   */
+  private static AtomicLong myJoined = Metrics.counter("spectators.joined");
+  private static AtomicLong myCatchUps
+    = Metrics.counter("spectators.caught_up");
+  private static AtomicLong myDropped = Metrics.counter("spectators.dropped");
+
+  /**
+   * The number of turns written to spectators.
+   */
+  private static AtomicLong myDelivered
+    = Metrics.counter("spectators.turns_delivered");
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The table number.
+   */
+  private int myNumber;
+
+  /**
+   * The spectators.
+   */
+  private Set<Spectator> mySpectators
+    = Collections.newSetFromMap(new ConcurrentHashMap<Spectator, Boolean>());
+
+  /**
+   * The encoded turns, by sequence number modulo RING_TURNS.
+   */
+  private byte[][] myRing = new byte[RING_TURNS][];
+
+  /**
+   * The sequence number the next turn will have.
+   */
+  private long myHead;
+
+  /**
+   * The board as of myHead, for the snapshots.
+   */
+  private Position myBoard = new Position();
+
+  /**
+   * The player (1 or 2) whose turn it is.
+   */
+  private int myCurrentPlayer = 1;
+
+  /**
+   * The snapshot as of myHead, or null if nobody has
+   * needed one since the last turn.
+   */
+  private byte[] mySnapshot;
+
+  /**
+   * Whether the game is over.  The last frame in the
+   * ring is then the end game flag.
+   */
+  private boolean myEnded;
+
+  /**
+   * Looks for stuck writes while there are spectators.
+   */
+  private Sweeper mySweeper = new Sweeper();
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets the table number.
+   */
+  Broadcast(int number) {
+    myNumber = number;
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get the table number.
+   */
+  int getNumber() {
+    return(myNumber);
+  }
+
+  /**
+   * get the number of spectators.
+   */
+  int getSpectatorCount() {
+    return(mySpectators.size());
+  }
+
+  /**
+   * Find a game to watch.
+   * @param number the table number, or zero for the
+   *        most recent game.
+   * @return null if there is no such game (any more).
+   */
+  static Broadcast find(int number) {
+    if(number == 0) {
+      return(myLatest);
+    }
+    return(myTables.get(Integer.valueOf(number)));
+  }
+
+  /**
+   * A summary for the log.
+   */
+  static String summary() {
+    return("spectators: joined=" + myJoined.get() + " caughtUp="
+           + myCatchUps.get() + " dropped=" + myDropped.get()
+           + " turnsDelivered=" + myDelivered.get()
+           + " tables=" + myTables.size());
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Let spectators find the game.
+   */
+  void open() {
+    myTables.put(Integer.valueOf(myNumber), this);
+    myLatest = this;
+  }
+
+  /**
+   * Add a spectator, who will be sent a snapshot first.
+   */
+  void watch(PlayerConnection player) {
+    Spectator spectator = new Spectator(this, player);
+    synchronized(this) {
+      if(myEnded) {
+        player.drop();
+        return;
+      }
+      mySpectators.add(spectator);
+      if(! mySweeper.isScheduled()) {
+        ServerGame.TIMERS.schedule(mySweeper, myWriteTimeout);
+      }
+    }
+    myJoined.incrementAndGet();
+    Log.debug("Broadcast.watch-->spectator joined table {}", myNumber);
+    spectator.wake();
+  }
+
+  /**
+   * Add the frames of a turn (or part of a long turn) to
+   * the ring and wake the spectators.  This is called on
+   * the game thread.
+   * @param player the player (1 or 2) who sent the frames;
+   *        the second player's moves are turned around.
+   */
+  void publish(int player, byte[] frames, int length) {
+    byte[] turn = new byte[length];
+    synchronized(this) {
+      if(myEnded) {
+        return;
+      }
+      for(int i = 0; i < length; i += 4) {
+        if(frames[i] == ServerGame.END_TURN_FLAG) {
+          turn[i] = ServerGame.END_TURN_FLAG;
+          myBoard.endTurn();
+          myCurrentPlayer = 3 - player;
+          continue;
+        }
+        myBoard.play(frames[i], frames[i + 1], frames[i + 2], frames[i + 3]);
+        for(int j = 0; j < 4; j++) {
+          turn[i + j] = frames[i + j];
+          if(player == 2) {
+            int size = (j % 2 == 0) ? Position.X_LENGTH : Position.Y_LENGTH;
+            turn[i + j] = (byte)(size - 1 - frames[i + j]);
+          }
+        }
+      }
+      add(turn);
+    }
+    wakeAll();
+  }
+
+  /**
+   * Send the end game flag to the spectators, who are
+   * then closed, and stop taking new ones.
+   */
+  void end() {
+    myTables.remove(Integer.valueOf(myNumber));
+    if(myLatest == this) {
+      myLatest = null;
+    }
+    synchronized(this) {
+      if(myEnded) {
+        return;
+      }
+      byte[] data = { ServerGame.END_GAME_FLAG, 0, 0, 0 };
+      add(data);
+      myEnded = true;
+    }
+    wakeAll();
+  }
+
+  /**
+   * Called by a spectator's writer: get the next array
+   * the spectator should be sent.
+   * @param next the sequence number the spectator wants,
+   *        or -1 for a snapshot.
+   * @return null if the spectator is up to date.
+   */
+  synchronized byte[] next(Spectator spectator, long next) {
+    if(next >= myHead) {
+      return(null);
+    }
+    if((next >= 0) && (next >= myHead - RING_TURNS)) {
+      spectator.setNext(next + 1);
+      return(myRing[(int)(next % RING_TURNS)]);
+    }
+    if(next >= 0) {
+      myCatchUps.incrementAndGet();
+    }
+    if(myEnded) {
+      // nothing more to see but the end:
+      spectator.setNext(myHead);
+      return(myRing[(int)((myHead - 1) % RING_TURNS)]);
+    }
+    spectator.setNext(myHead);
+    return(snapshot());
+  }
+
+  /**
+   * Whether there is anything for a spectator who wants
+   * the given sequence number.
+   */
+  synchronized boolean hasNext(long next) {
+    return(next < myHead);
+  }
+
+  /**
+   * Called by a spectator's writer when a turn has been
+   * written.
+   */
+  static void delivered() {
+    myDelivered.incrementAndGet();
+  }
+
+  /**
+   * Forget a spectator who has gone or was dropped.
+   */
+  void leave(Spectator spectator, boolean dropped) {
+    if(mySpectators.remove(spectator) && dropped) {
+      myDropped.incrementAndGet();
+      Log.info("Broadcast.leave-->dropped a slow spectator of table {}",
+               myNumber);
+    }
+  }
+
+  /**
+   * Run a spectator's writes on the writing threads.
+   */
+  static void execute(Runnable writer) {
+    myWriters.execute(writer);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Put an encoded turn in the ring.  The caller holds
+   * the lock.
+   */
+  private void add(byte[] turn) {
+    myRing[(int)(myHead % RING_TURNS)] = turn;
+    myHead++;
+    mySnapshot = null;
+  }
+
+  /**
+   * Get the snapshot as of myHead, making it if nobody
+   * has yet.  The caller holds the lock.
+   */
+  private byte[] snapshot() {
+    if(mySnapshot == null) {
+      byte[] data = new byte[4 + Position.SQUARES];
+      data[0] = SNAPSHOT_FLAG;
+      data[1] = (byte)myCurrentPlayer;
+      for(int y = 0; y < Position.Y_LENGTH; y++) {
+        for(int x = 0; x < Position.X_LENGTH; x++) {
+          byte piece;
+          if(myBoard.isFlipped()) {
+            // it's the second player's turn, so the board
+            // is the way he sees it:
+            piece = (byte)-myBoard.getPiece(Position.X_LENGTH - 1 - x,
+                                            Position.Y_LENGTH - 1 - y);
+          } else {
+            piece = myBoard.getPiece(x, y);
+          }
+          data[4 + Position.square(x, y)] = piece;
+        }
+      }
+      mySnapshot = data;
+    }
+    return(mySnapshot);
+  }
+
+  /**
+   * Tell every spectator that there is something new.
+   */
+  private void wakeAll() {
+    for(Iterator<Spectator> it = mySpectators.iterator(); it.hasNext(); ) {
+      it.next().wake();
+    }
+  }
+
+  /**
+   * This class checks the table's spectators for stuck
+   * writes for as long as there are any.
+   */
+  class Sweeper extends TimerWheel.Timer {
+
+    /**
+     * Called on the timer thread.
+     */
+    protected void expire() {
+      long now = System.currentTimeMillis();
+      for(Iterator<Spectator> it = mySpectators.iterator(); it.hasNext(); ) {
+        Spectator spectator = it.next();
+        long writeStart = spectator.getWriteStart();
+        if((writeStart != 0) && (now - writeStart >= myWriteTimeout)) {
+          // this wakes the writer, which then leaves:
+          spectator.drop();
+        }
+      }
+      synchronized(Broadcast.this) {
+        if(! mySpectators.isEmpty()) {
+          ServerGame.TIMERS.schedule(this, myWriteTimeout / 2 + 1);
+        }
+      }
+    }
+  }
+
+}
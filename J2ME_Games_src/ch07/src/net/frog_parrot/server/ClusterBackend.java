@@ -0,0 +1,229 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * This class is a back end's side of a cluster (see
+ * ClusterFront).  It keeps the back end registered with
+ * the front end over the control channel, connecting
+ * again if the front end restarts, and pairs the two
+ * connections the front end opens for each table, which
+ * may arrive in either order, before starting the game.
+ *
+ * @author Carol Hamer
+ */
+class ClusterBackend {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * How long the first of a table's connections waits for
+   * the second, in milliseconds.
+   */
+  static final long PAIR_TIMEOUT = 10000;
+
+  /**
+   * How long to wait before connecting to the front end
+   * again, in milliseconds.
+   */
+  static final long RETRY_INTERVAL = 1000;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The front end's control channel.
+   */
+  private String myFrontHost;
+  private int myFrontPort;
+
+  /**
+   * The port the front end connects the players to.
+   */
+  private int myRelayPort;
+
+  /**
+   * Where the games are run.
+   */
+  private Lobby myLobby;
+
+  /**
+   * The tables that only one connection has arrived for,
+   * by table number.  Only used while holding the lock.
+   */
+  private HashMap<Integer, Half> myHalves = new HashMap<Integer, Half>();
+
+  /**
+   * The control connection, and whether we have stopped 
+   * registering.
+   */
+  private volatile Socket myControl;
+  private volatile boolean myStopped;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets where the front end is.
+   * @param front the control channel, as host:port.
+   */
+  ClusterBackend(String front, int relayPort, Lobby lobby) {
+    int colon = front.lastIndexOf(':');
+    myFrontHost = (colon > 0) ? front.substring(0, colon) : "localhost";
+    myFrontPort = Integer.parseInt(front.substring(colon + 1));
+    myRelayPort = relayPort;
+    myLobby = lobby;
+  }
+
+  /**
+   * Start the thread that keeps us registered.
+   */
+  void start() {
+    Thread register = new Thread("ClusterControl") {
+        public void run() {
+          while(! myStopped) {
+            register();
+            try {
+              Thread.sleep(RETRY_INTERVAL);
+            } catch(InterruptedException e) {
+              return;
+            }
+          }
+        }
+      };
+    register.setDaemon(true);
+    register.start();
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Stop registering and close the control connection, 
+   * when the server is drained, so that the front end 
+   * sends no more tables here and takes this back end 
+   * for dead: the tables left when the drain ends are 
+   * moved to the other back ends.
+   */
+  void stop() {
+    myStopped = true;
+    Socket socket = myControl;
+    if(socket != null) {
+      try {
+        socket.close();
+      } catch(IOException e) {
+        // nothing more can be done.
+      }
+    }
+  }
+
+  /**
+   * Take one of a table's connections, whose header (up
+   * to the history) has been read, and start the game
+   * if the other one is here.
+   * @param seat 1 or 2.
+   * @param history the frames relayed so far, or null
+   *        for a new game.
+   */
+  void arrive(PlayerConnection player, int seat, int table, byte[] history) {
+    Half other;
+    synchronized(this) {
+      purge();
+      Integer key = Integer.valueOf(table);
+      other = myHalves.remove(key);
+      if((other == null) || (other.mySeat == seat)) {
+        if(other != null) {
+          other.myPlayer.closeNow();
+        }
+        myHalves.put(key, new Half(player, seat, history));
+        return;
+      }
+    }
+    PlayerConnection first = (seat == 1) ? player : other.myPlayer;
+    PlayerConnection second = (seat == 1) ? other.myPlayer : player;
+    if(history == null) {
+      history = other.myHistory;
+    }
+    myLobby.execute(new ServerGame(first, second, table, history));
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Connect to the front end, say which port the players
+   * come in on, and wait until the connection drops.
+   */
+  private void register() {
+    Socket socket = null;
+    try {
+      socket = new Socket(myFrontHost, myFrontPort);
+      myControl = socket;
+      if(myStopped) {
+        return;
+      }
+      DataOutputStream output
+        = new DataOutputStream(socket.getOutputStream());
+      output.writeInt(ClusterFront.CONTROL_MAGIC);
+      output.writeInt(myRelayPort);
+      output.flush();
+      Log.info("ClusterBackend.register-->registered with the front end "
+               + "on port {}", myFrontPort);
+      // the front end never sends anything; this returns
+      // when it goes away:
+      while(socket.getInputStream().read() >= 0) {
+      }
+      if(! myStopped) {
+        Log.warn("ClusterBackend.register-->lost the front end", myFrontHost);
+      }
+    } catch(IOException e) {
+      Log.debug("ClusterBackend.register-->front end not there");
+    } finally {
+      if(socket != null) {
+        try {
+          socket.close();
+        } catch(IOException e) {
+          // nothing more can be done.
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the halves that have waited too long for their
+   * other halves.  The caller holds the lock.
+   */
+  private void purge() {
+    long now = System.currentTimeMillis();
+    for(Iterator<Half> it = myHalves.values().iterator(); it.hasNext(); ) {
+      Half half = it.next();
+      if(now - half.myArrival > PAIR_TIMEOUT) {
+        it.remove();
+        half.myPlayer.drop();
+      }
+    }
+  }
+
+  /**
+   * One of a table's connections, waiting for the other.
+   */
+  static class Half {
+    PlayerConnection myPlayer;
+    int mySeat;
+    byte[] myHistory;
+    long myArrival = System.currentTimeMillis();
+
+    /**
+     * Constructor sets the fields.
+     */
+    Half(PlayerConnection player, int seat, byte[] history) {
+      myPlayer = player;
+      mySeat = seat;
+      myHistory = history;
+    }
+  }
+
+}
@@ -0,0 +1,431 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the front end of a cluster of servers.
+ * The front end takes the players (completing the SSL
+ * handshake and speaking whichever protocol each client
+ * asked for), pairs them in its Lobby, and then hands
+ * each table to one of the back ends, which are ordinary
+ * servers started with the -backend option.  The back
+ * ends register with the front end over a control
+ * channel: each keeps one connection open to it, saying
+ * which port its players come in on, and a back end
+ * whose control connection closes is taken to be dead.
+ * <p>
+ * A table is handed over by proxying (see ProxyTable):
+ * the front end keeps the players' connections and
+ * opens a connection of its own to the back end for
+ * each of them.  (Java has no way to pass a socket to
+ * another process.)  The front end remembers each
+ * table's moves, so when a back end dies in the middle
+ * of a game, the game goes on at another back end from
+ * where it was, and the players only notice a pause.
+ *
+ * @author Carol Hamer
+ */
+public class ClusterFront {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The int a back end sends first on the control channel.
+   */
+  static final int CONTROL_MAGIC = 0x43484b31;
+
+  /**
+   * How long we wait, after losing the connection to a
+   * back end in the middle of a game, to hear whether the
+   * back end is dead, in milliseconds.  If it isn't, it
+   * ended the game itself.
+   */
+  static int myDeathTimeout = 2000;
+
+  /**
+   * The statistics: tables handed to the back ends, tables
+   * moved to another back end, and tables lost because no
+   * back end could take them.
+   */
+  private static AtomicLong myTables = Metrics.counter("cluster.tables");
+  private static AtomicLong myFailovers = Metrics.counter("cluster.failovers");
+  private static AtomicLong myLost = Metrics.counter("cluster.lost");
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The control channel the back ends register on.
+   */
+  private ServerSocket myControl;
+
+  /**
+   * The back ends that have registered, live and dead.
+   */
+  private List<Backend> myBackends = new CopyOnWriteArrayList<Backend>();
+
+  /**
+   * The number of back ends that are live, for the metrics.
+   */
+  private AtomicInteger myLive = new AtomicInteger();
+
+  /**
+   * The threads that pass the bytes along.
+   */
+  private ExecutorService myPumps;
+
+  /**
+   * The tables being played, by number, and the newest.
+   */
+  private ConcurrentHashMap<Integer, ProxyTable> myProxies
+    = new ConcurrentHashMap<Integer, ProxyTable>();
+  private volatile int myLatest;
+
+  /**
+   * The number of tables opened, for the table numbers.
+   */
+  private AtomicInteger myTableCount = new AtomicInteger();
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor opens the control channel.  It only
+   * listens on the loopback interface unless a host is
+   * given with the port.
+   * @param control the port, or host:port.
+   */
+  public ClusterFront(String control) throws IOException {
+    int colon = control.lastIndexOf(':');
+    InetAddress host = (colon > 0)
+      ? InetAddress.getByName(control.substring(0, colon))
+      : InetAddress.getLoopbackAddress();
+    myControl = new ServerSocket(Integer.parseInt(control.substring(colon + 1)),
+                                 50, host);
+    Metrics.register("cluster.backends", myLive);
+    myPumps = Executors.newCachedThreadPool(daemonThreads("Proxy-"));
+  }
+
+  /**
+   * Start the thread that takes the registrations.
+   */
+  public void start() {
+    Thread accept = new Thread("ClusterControl") {
+        public void run() {
+          while(true) {
+            try {
+              register(myControl.accept());
+            } catch(IOException e) {
+              Log.warn("ClusterFront.start-->control channel failed:",
+                       e.getMessage());
+              return;
+            }
+          }
+        }
+      };
+    accept.setDaemon(true);
+    accept.start();
+    Log.info("ClusterFront.start-->back ends register on port {}",
+             myControl.getLocalPort());
+  }
+
+  //-------------------------------------------------------------
+  //          get data
+
+  /**
+   * get the number of live back ends.
+   */
+  public int getLiveBackends() {
+    return(myLive.get());
+  }
+
+  /**
+   * A summary for the log.
+   */
+  public String toString() {
+    return("cluster: backends=" + myLive.get() + " tables=" + myTables.get()
+           + " playing=" + myProxies.size() + " failovers="
+           + myFailovers.get() + " lost=" + myLost.get());
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Make the table for two players the lobby has paired.
+   * The lobby runs it on one of its game threads, which
+   * only sets it up (see ProxyTable).
+   */
+  Runnable newTable(PlayerConnection player1, PlayerConnection player2) {
+    return(new ProxyTable(this, myTableCount.incrementAndGet(),
+                          player1, player2));
+  }
+
+  /**
+   * Find a back end for a spectator and pass the game
+   * along to him.  The spectator has already sent the
+   * table number.
+   * @param table the table number, or zero for the most
+   *        recent game.
+   */
+  void watch(final PlayerConnection player, int table) {
+    if(table == 0) {
+      table = myLatest;
+    }
+    ProxyTable proxy = myProxies.get(Integer.valueOf(table));
+    final Socket upstream = (proxy == null) ? null : proxy.watch();
+    if(upstream == null) {
+      Log.info("ClusterFront.watch-->no table {} to watch", table);
+      player.drop();
+      return;
+    }
+    execute(new Runnable() {
+        public void run() {
+          byte[] data = new byte[1024];
+          try {
+            InputStream input = upstream.getInputStream();
+            OutputStream output = player.getOutput();
+            int numRead;
+            while((numRead = input.read(data)) >= 0) {
+              output.write(data, 0, numRead);
+              if(player.takeLost()) {
+                throw(new IOException("the spectator fell behind"));
+              }
+              RelayStats.wrote(numRead);
+            }
+            player.close();
+          } catch(IOException e) {
+            player.closeNow();
+          } finally {
+            closeQuietly(upstream);
+          }
+        }
+      });
+  }
+
+  //-------------------------------------------------------------
+  //          for the tables
+
+  /**
+   * Run one of a table's pumps.
+   */
+  void execute(Runnable pump) {
+    myPumps.execute(pump);
+  }
+
+  /**
+   * Note a table that has been set up.
+   */
+  void opened(ProxyTable table) {
+    myProxies.put(Integer.valueOf(table.getNumber()), table);
+    myLatest = table.getNumber();
+    myTables.incrementAndGet();
+  }
+
+  /**
+   * Forget a table that is over.
+   */
+  void closed(ProxyTable table) {
+    myProxies.remove(Integer.valueOf(table.getNumber()));
+  }
+
+  /**
+   * Note a table that moved to another back end, or that
+   * was lost because none could take it.
+   */
+  void failedOver(boolean moved) {
+    (moved ? myFailovers : myLost).incrementAndGet();
+  }
+
+  /**
+   * Choose the live back end with the fewest tables.
+   * @return null if there are none.
+   */
+  Backend choose() {
+    Backend retObj = null;
+    for(Backend backend : myBackends) {
+      if(backend.isAlive() && ((retObj == null)
+          || (backend.getTables() < retObj.getTables()))) {
+        retObj = backend;
+      }
+    }
+    return(retObj);
+  }
+
+  /**
+   * Close a socket, ignoring any error.
+   */
+  static void closeQuietly(Socket socket) {
+    if(socket != null) {
+      try {
+        socket.close();
+      } catch(IOException e) {
+        // nothing more can be done.
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Make the factory for a pool's daemon threads, which
+   * are named with the given prefix and a number.  It is
+   * made here rather than in the constructor so that it
+   * doesn't hold on to the object being constructed.
+   */
+  private static ThreadFactory daemonThreads(final String prefix) {
+    return(new ThreadFactory() {
+        private int myCount;
+        public synchronized Thread newThread(Runnable r) {
+          Thread retObj = new Thread(r, prefix + (myCount++));
+          retObj.setDaemon(true);
+          return(retObj);
+        }
+      });
+  }
+
+  /**
+   * Read a back end's registration and watch its control
+   * connection on a thread of its own.
+   */
+  private void register(final Socket socket) {
+    execute(new Runnable() {
+        public void run() {
+          Backend backend = null;
+          try {
+            DataInputStream input
+              = new DataInputStream(socket.getInputStream());
+            socket.setSoTimeout(5000);
+            if(input.readInt() != CONTROL_MAGIC) {
+              throw(new IOException("not a back end"));
+            }
+            int port = input.readInt();
+            socket.setSoTimeout(0);
+            backend = new Backend(socket.getInetAddress(), port);
+            myBackends.add(backend);
+            myLive.incrementAndGet();
+            Log.info("ClusterFront.register-->back end on port {} is up",
+                     port);
+            // the back end never sends anything more; this
+            // returns when it goes away:
+            while(input.read() >= 0) {
+            }
+          } catch(IOException e) {
+            // it's gone.
+          } finally {
+            closeQuietly(socket);
+            if(backend != null) {
+              myBackends.remove(backend);
+              myLive.decrementAndGet();
+              backend.died();
+              Log.warn("ClusterFront.register-->lost back end:", backend);
+            }
+          }
+        }
+      });
+  }
+
+  /**
+   * This class is a back end that has registered.
+   */
+  static class Backend {
+
+    /**
+     * Where the players are sent.
+     */
+    private InetAddress myHost;
+    private int myPort;
+
+    /**
+     * The number of tables being played there.
+     */
+    private AtomicInteger myTables = new AtomicInteger();
+
+    /**
+     * Whether its control connection is still open.
+     */
+    private boolean myAlive = true;
+
+    /**
+     * Constructor sets where the back end is.
+     */
+    Backend(InetAddress host, int port) {
+      myHost = host;
+      myPort = port;
+    }
+
+    /**
+     * get the number of tables being played there.
+     */
+    int getTables() {
+      return(myTables.get());
+    }
+
+    /**
+     * Whether the back end is live.
+     */
+    synchronized boolean isAlive() {
+      return(myAlive);
+    }
+
+    /**
+     * Open a connection for a player.
+     */
+    Socket connect() throws IOException {
+      Socket retObj = new Socket(myHost, myPort);
+      retObj.setTcpNoDelay(true);
+      return(retObj);
+    }
+
+    /**
+     * Count a table that was sent here, or that is over.
+     */
+    void added(int tables) {
+      myTables.addAndGet(tables);
+    }
+
+    /**
+     * Called when the control connection closes.
+     */
+    synchronized void died() {
+      myAlive = false;
+      notifyAll();
+    }
+
+    /**
+     * Wait a while to find out whether the back end is
+     * dead.
+     * @return true if it is.
+     */
+    synchronized boolean awaitDeath(long timeout) {
+      long deadline = System.currentTimeMillis() + timeout;
+      try {
+        while(myAlive) {
+          long wait = deadline - System.currentTimeMillis();
+          if(wait <= 0) {
+            break;
+          }
+          wait(wait);
+        }
+      } catch(InterruptedException e) {
+        // we'll say what we know.
+      }
+      return(! myAlive);
+    }
+
+    /**
+     * For the log messages.
+     */
+    public String toString() {
+      return(myHost.getHostAddress() + ":" + myPort);
+    }
+  }
+
+}
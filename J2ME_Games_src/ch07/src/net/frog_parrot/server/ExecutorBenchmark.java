@@ -0,0 +1,262 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.Arrays;
+
+/**
+ * This class compares the three GameExecutor modes.  For
+ * each mode it starts a plain-socket SocketListener in a
+ * fresh JVM, opens the given number of idle tables against
+ * it, and reports the memory used per table and the time
+ * it takes to relay a move from one player to the other.
+ * <p>
+ * Usage: java net.frog_parrot.server.ExecutorBenchmark
+ *        [tables] [poolSize]
+ * <p>
+ * Each table uses four sockets in the benchmark process,
+ * so the open file limit (ulimit -n) must be raised
+ * for large runs.
+ *
+ * @author Carol Hamer
+ */
+public class ExecutorBenchmark {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The first port to listen on.  Each mode gets its own.
+   */
+  static final int BASE_PORT = 18007;
+
+  /**
+   * The number of moves relayed to measure latency.
+   */
+  static final int LATENCY_MOVES = 2000;
+
+  /**
+   * The number of tables that the latency is measured on.
+   */
+  static final int LATENCY_TABLES = 4;
+
+  //-------------------------------------------------------------
+  //          main
+
+  /**
+   * With no mode argument this runs each mode in a child
+   * JVM and prints their results together.  The child
+   * is started with "-run mode tables port".
+   */
+  public static void main(String[] args) throws Exception {
+    if((args.length > 0) && (args[0].equals("-run"))) {
+      runMode(args[1], Integer.parseInt(args[2]),
+              Integer.parseInt(args[3]));
+      return;
+    }
+    int tables = 1000;
+    int poolSize = 64;
+    if(args.length > 0) {
+      tables = Integer.parseInt(args[0]);
+    }
+    if(args.length > 1) {
+      poolSize = Integer.parseInt(args[1]);
+    }
+    String[] modes = { "platform", "virtual", "pool:" + poolSize };
+    System.out.println("mode          tables  heap/table  rss/table"
+                       + "     p50 us     p99 us");
+    for(int i = 0; i < modes.length; i++) {
+      String java = System.getProperty("java.home") + File.separator
+        + "bin" + File.separator + "java";
+      ProcessBuilder pb = new ProcessBuilder(new String[] {
+          java, "-cp", System.getProperty("java.class.path"),
+          ExecutorBenchmark.class.getName(), "-run", modes[i],
+          String.valueOf(tables), String.valueOf(BASE_PORT + i) });
+      pb.redirectErrorStream(true);
+      Process child = pb.start();
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(child.getInputStream()));
+      String line;
+      while((line = reader.readLine()) != null) {
+        // the server's own console output is skipped:
+        if(line.startsWith("RESULT ")) {
+          System.out.println(line.substring(7));
+        } else if(line.startsWith("FAILED ")) {
+          System.out.println(modes[i] + ": " + line.substring(7));
+        }
+      }
+      child.waitFor();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          measurement
+
+  /**
+   * Run one mode in this JVM and print a RESULT line.
+   */
+  static void runMode(String mode, int tables, int port) throws Exception {
+    final GameExecutor executor;
+    try {
+      executor = GameExecutor.parse(mode);
+    } catch(IllegalStateException e) {
+      System.out.println("FAILED " + e.getMessage());
+      return;
+    }
+    SocketListener.myPortNum = port;
+    // the players here are the older kind, which begin by
+    // waiting for the start flag:
+    SocketListener.myHelloPort = 0;
+    Thread server = new Thread() {
+        public void run() {
+          // with a single accepting thread the players
+          // are paired strictly in the order they connect:
+          new SocketListener(executor, false, 1, 0).listen();
+        }
+      };
+    server.setDaemon(true);
+    server.start();
+    Thread.sleep(500);
+    long heapBefore = usedHeap();
+    long rssBefore = residentSetSize();
+    Socket[][] players = new Socket[tables][2];
+    byte[] frame = new byte[4];
+    for(int i = 0; i < tables; i++) {
+      // the players are connected one after the other so
+      // that the listener pairs them in this order:
+      for(int j = 0; j < 2; j++) {
+        players[i][j] = new Socket("localhost", port);
+        players[i][j].setTcpNoDelay(true);
+        readFully(players[i][j].getInputStream(), frame);
+      }
+    }
+    // give the executor a moment to start the games:
+    Thread.sleep(1000);
+    long heapPerTable = (usedHeap() - heapBefore) / tables;
+    long rssPerTable = (residentSetSize() - rssBefore) / tables;
+    long[] latencies = measureLatency(players);
+    Arrays.sort(latencies);
+    System.out.println("RESULT " + pad(mode, 12) + pad("" + tables, 8)
+                       + pad("" + heapPerTable, 12)
+                       + pad("" + rssPerTable, 11)
+                       + pad("" + percentile(latencies, 50), 11)
+                       + pad("" + percentile(latencies, 99), 11));
+    System.exit(0);
+  }
+
+  /**
+   * Play moves back and forth on the first few tables and
+   * return the time in microseconds between sending each
+   * move and the opponent receiving it.  In pool mode
+   * only the first tables are sure to be running.
+   */
+  static long[] measureLatency(Socket[][] players) throws IOException {
+    int tables = Math.min(LATENCY_TABLES, players.length);
+    long[] retArray = new long[LATENCY_MOVES];
+    byte[] move = { 0, 5, 1, 4 };
+    byte[] endTurn = { ServerGame.END_TURN_FLAG, 0, 0, 0 };
+    byte[] frame = new byte[4];
+    int[] mover = new int[tables];
+    for(int i = 0; i < tables; i++) {
+      // the first player is told a second time to begin:
+      readFully(players[i][0].getInputStream(), frame);
+    }
+    for(int n = 0; n < LATENCY_MOVES; n++) {
+      int table = n % tables;
+      OutputStream out = players[table][mover[table]].getOutputStream();
+      InputStream in = players[table][1 - mover[table]].getInputStream();
+      long start = System.nanoTime();
+      out.write(move);
+      readFully(in, frame);
+      retArray[n] = (System.nanoTime() - start) / 1000;
+      out.write(endTurn);
+      readFully(in, frame);
+      mover[table] = 1 - mover[table];
+    }
+    return(retArray);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Read exactly frame.length bytes.
+   */
+  static void readFully(InputStream in, byte[] frame) throws IOException {
+    readFully(in, frame, 0, frame.length);
+  }
+
+  /**
+   * Read exactly length bytes into part of an array.
+   */
+  static void readFully(InputStream in, byte[] data, int offset,
+                        int length) throws IOException {
+    int total = 0;
+    while(total < length) {
+      int numRead = in.read(data, offset + total, length - total);
+      if(numRead < 0) {
+        throw(new EOFException("server closed the connection"));
+      }
+      total += numRead;
+    }
+  }
+
+  /**
+   * The heap in use after a garbage collection.
+   */
+  static long usedHeap() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    for(int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return(rt.totalMemory() - rt.freeMemory());
+  }
+
+  /**
+   * The resident set size of this process in bytes, which
+   * includes thread stacks.  Only available on Linux;
+   * elsewhere this returns 0.
+   */
+  static long residentSetSize() {
+    try {
+      BufferedReader reader
+        = new BufferedReader(new FileReader("/proc/self/status"));
+      try {
+        String line;
+        while((line = reader.readLine()) != null) {
+          if(line.startsWith("VmRSS:")) {
+            String kb = line.substring(6).trim();
+            kb = kb.substring(0, kb.indexOf(' '));
+            return(Long.parseLong(kb) * 1024);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch(IOException e) {
+      // not on Linux.
+    }
+    return(0);
+  }
+
+  /**
+   * get the given percentile of a sorted array.
+   */
+  static long percentile(long[] sorted, int percent) {
+    int index = (sorted.length * percent) / 100;
+    return(sorted[Math.min(index, sorted.length - 1)]);
+  }
+
+  /**
+   * Pad a string with spaces to the given width.
+   */
+  static String pad(String str, int width) {
+    StringBuffer buf = new StringBuffer(str);
+    while(buf.length() < width) {
+      buf.append(' ');
+    }
+    return(buf.toString());
+  }
+
+}
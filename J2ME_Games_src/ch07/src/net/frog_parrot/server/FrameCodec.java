@@ -0,0 +1,683 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class translates between the original protocol
+ * (four-byte frames whose first byte is a coordinate or
+ * one of the flags in ServerGame and Broadcast) and
+ * version 2, in which each frame says how long it is and
+ * what it is:
+ * <pre>
+ *   frame   = length type payload
+ *   length  = varint (the length of type and payload)
+ *   type    = one byte
+ * </pre>
+ * A varint is an unsigned number sent seven bits at a
+ * time, low bits first, with the top bit set on every
+ * byte but the last.  A move is two bytes, (x1 &lt;&lt; 4 | y1)
+ * and (x2 &lt;&lt; 4 | y2), so a whole turn, however many
+ * jumps it has, is one TURN frame.  The types are:
+ * <pre>
+ *   START      your move (the game begins)
+ *   MOVES      moves, the turn goes on
+ *   TURN       moves, then the end of the turn
+ *   END_GAME   the game is over
+ *   HEARTBEAT  the sender is still there
+ *   ACK        varint: the number of frames received
+ *   SESSION    the eight-byte session token
+ *   RESUMED    varint: the number of frames received
+ *   GAME       varint: the game (table) number
+ *   HELLO      the client wants a game and can resume
+ *              (then, optionally, 1 to play the computer)
+ *   RESUME     token, varint frames received
+ *   WATCH      varint: the table to watch
+ *   SNAPSHOT   the player to move, then the 32 squares
+ * </pre>
+ * Frames of a type the reader doesn't know are skipped,
+ * so later versions can add types.
+ * <p>
+ * A client asks for version 2 by sending the version flag
+ * (see ServerGame) with the highest version it speaks, and
+ * the server answers the same way with the version it
+ * chose; from then on the connection is wrapped in an
+ * Input and an Output and everything else on the server
+ * goes on reading and writing four-byte frames, so a
+ * version 2 player and an old one can share a table.
+ * The same classes serve a version 2 client, since they
+ * translate the frames going either way.
+ *
+ * @author Carol Hamer
+ */
+public class FrameCodec {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The highest protocol version the server speaks.
+   */
+  public static final int VERSION = 2;
+
+  /**
+   * The frame types.
+   */
+  public static final byte START = 1;
+  public static final byte MOVES = 2;
+  public static final byte TURN = 3;
+  public static final byte END_GAME = 4;
+  public static final byte HEARTBEAT = 5;
+  public static final byte ACK = 6;
+  public static final byte SESSION = 7;
+  public static final byte RESUMED = 8;
+  public static final byte GAME = 9;
+  public static final byte HELLO = 10;
+  public static final byte RESUME = 11;
+  public static final byte WATCH = 12;
+  public static final byte SNAPSHOT = 13;
+
+  /**
+   * The longest frame either side will accept (type and
+   * payload), which is over 500 moves.
+   */
+  static final int MAX_FRAME = 1024;
+
+  //-------------------------------------------------------------
+  //          varints
+
+  /**
+   * Write a varint into an array.
+   * @return the index after it.
+   */
+  static int putVarint(byte[] data, int index, long value) {
+    while((value & ~0x7fL) != 0) {
+      data[index++] = (byte)((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    data[index++] = (byte)value;
+    return(index);
+  }
+
+  /**
+   * Write a four-byte number into an array, as in the
+   * original protocol.
+   */
+  static void putInt(byte[] data, int index, long value) {
+    for(int i = 0; i < 4; i++) {
+      data[index + i] = (byte)(value >> (24 - 8 * i));
+    }
+  }
+
+  /**
+   * Read a four-byte number from an array.
+   */
+  static long getInt(byte[] data, int index) {
+    long retObj = 0;
+    for(int i = 0; i < 4; i++) {
+      retObj = (retObj << 8) | (data[index + i] & 0xff);
+    }
+    return(retObj);
+  }
+
+  //-------------------------------------------------------------
+  //          reading
+
+  /**
+   * This class reads version 2 frames from a stream and
+   * hands them on as four-byte frames.  A read that times
+   * out (or fails) part of the way through a frame loses
+   * nothing: what was read is kept for the next read.
+   */
+  public static class Input extends InputStream {
+
+    /**
+     * The stream the version 2 frames come from.
+     */
+    private InputStream myIn;
+
+    /**
+     * The bytes read from myIn that haven't been decoded.
+     */
+    private byte[] myRaw = new byte[4096];
+    private int myRawStart;
+    private int myRawEnd;
+
+    /**
+     * The decoded four-byte frames waiting to be read.
+     */
+    private byte[] myFrames = new byte[2 * MAX_FRAME + 64];
+    private int myFramesStart;
+    private int myFramesEnd;
+
+    /**
+     * The last count of frames received that the other
+     * side acknowledged.
+     */
+    private volatile long myAcked;
+
+    /**
+     * Constructor sets the stream to read from.
+     */
+    public Input(InputStream in) {
+      myIn = in;
+    }
+
+    /**
+     * get the last acknowledged number of frames.
+     */
+    public long getAcked() {
+      return(myAcked);
+    }
+
+    /**
+     * Read one byte of the four-byte frames.
+     */
+    public int read() throws IOException {
+      if(! fill()) {
+        return(-1);
+      }
+      return(myFrames[myFramesStart++] & 0xff);
+    }
+
+    /**
+     * Read the four-byte frames.
+     */
+    public int read(byte[] data, int offset, int length) throws IOException {
+      if(length == 0) {
+        return(0);
+      }
+      if(! fill()) {
+        return(-1);
+      }
+      int retObj = Math.min(length, myFramesEnd - myFramesStart);
+      System.arraycopy(myFrames, myFramesStart, data, offset, retObj);
+      myFramesStart += retObj;
+      return(retObj);
+    }
+
+    /**
+     * The number of bytes that can be read without
+     * waiting, decoding whatever whole frames have arrived.
+     */
+    public int available() throws IOException {
+      while(myFramesStart == myFramesEnd) {
+        if(! decode()) {
+          int waiting = myIn.available();
+          if((waiting <= 0) || (! readRaw(waiting))) {
+            break;
+          }
+        }
+      }
+      return(myFramesEnd - myFramesStart);
+    }
+
+    /**
+     * Close the underlying stream.
+     */
+    public void close() throws IOException {
+      myIn.close();
+    }
+
+    /**
+     * Make sure there is something to read, waiting for
+     * the next frame if need be.
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+      while(myFramesStart == myFramesEnd) {
+        if((! decode()) && (! readRaw(myRaw.length))) {
+          if(myRawStart != myRawEnd) {
+            throw(new EOFException("stream ended within a frame"));
+          }
+          return(false);
+        }
+      }
+      return(true);
+    }
+
+    /**
+     * Read more raw bytes, up to the given number.
+     * @return false at the end of the stream.
+     */
+    private boolean readRaw(int most) throws IOException {
+      if(myRawStart > 0) {
+        System.arraycopy(myRaw, myRawStart, myRaw, 0, myRawEnd - myRawStart);
+        myRawEnd -= myRawStart;
+        myRawStart = 0;
+      }
+      int numRead = myIn.read(myRaw, myRawEnd,
+                              Math.min(most, myRaw.length - myRawEnd));
+      if(numRead < 0) {
+        return(false);
+      }
+      myRawEnd += numRead;
+      return(true);
+    }
+
+    /**
+     * Decode the next frame if all of it has been read.
+     * @return false if it hasn't.
+     */
+    private boolean decode() throws IOException {
+      int index = myRawStart;
+      long length = 0;
+      for(int shift = 0; ; shift += 7) {
+        if(index == myRawEnd) {
+          return(false);
+        }
+        int b = myRaw[index++];
+        length |= (long)(b & 0x7f) << shift;
+        if((b & 0x80) == 0) {
+          break;
+        }
+        if(shift > 28) {
+          throw(new IOException("bad frame length"));
+        }
+      }
+      if((length < 1) || (length > MAX_FRAME)) {
+        throw(new IOException("bad frame length: " + length));
+      }
+      if(myRawEnd - index < length) {
+        return(false);
+      }
+      myRawStart = index + (int)length;
+      myFramesStart = 0;
+      myFramesEnd = 0;
+      translate(myRaw[index], index + 1, myRawStart);
+      return(true);
+    }
+
+    /**
+     * Turn one version 2 frame into four-byte frames.
+     * @param start the index of the payload in myRaw.
+     * @param end the index after it.
+     */
+    private void translate(byte type, int start, int end) throws IOException {
+      switch(type) {
+      case MOVES:
+      case TURN:
+        if((end - start) % 2 != 0) {
+          throw(new IOException("odd move bytes"));
+        }
+        for(int i = start; i < end; i++) {
+          int b = myRaw[i] & 0xff;
+          myFrames[myFramesEnd++] = (byte)(b >> 4);
+          myFrames[myFramesEnd++] = (byte)(b & 0xf);
+        }
+        if(type == TURN) {
+          flag(ServerGame.END_TURN_FLAG);
+        }
+        break;
+      case START:
+        flag(ServerGame.START_GAME_FLAG);
+        break;
+      case END_GAME:
+        flag(ServerGame.END_GAME_FLAG);
+        break;
+      case HEARTBEAT:
+        flag(ServerGame.HEARTBEAT_FLAG);
+        break;
+      case HELLO:
+        flag(ServerGame.HELLO_FLAG);
+        if(end > start) {
+          myFrames[myFramesEnd - 3] = myRaw[start];
+        }
+        break;
+      case ACK:
+        myAcked = varint(start, end);
+        break;
+      case SESSION:
+        token(ServerGame.SESSION_FLAG, start, end);
+        break;
+      case RESUME:
+        token(ServerGame.RESUME_FLAG, start, end);
+        number(varint(start + 8, end));
+        break;
+      case RESUMED:
+        numbered(ServerGame.RESUMED_FLAG, varint(start, end));
+        break;
+      case GAME:
+        numbered(ServerGame.GAME_FLAG, varint(start, end));
+        break;
+      case WATCH:
+        numbered(Broadcast.WATCH_FLAG, varint(start, end));
+        break;
+      case SNAPSHOT:
+        if(end - start != 1 + Position.SQUARES) {
+          throw(new IOException("bad snapshot"));
+        }
+        flag(Broadcast.SNAPSHOT_FLAG);
+        myFrames[myFramesEnd - 3] = myRaw[start];
+        System.arraycopy(myRaw, start + 1, myFrames, myFramesEnd,
+                         Position.SQUARES);
+        myFramesEnd += Position.SQUARES;
+        break;
+      default:
+        // a later version's frame, which we skip.
+      }
+    }
+
+    /**
+     * Add a four-byte frame that is just a flag.
+     */
+    private void flag(byte flag) {
+      myFrames[myFramesEnd] = flag;
+      myFrames[myFramesEnd + 1] = 0;
+      myFrames[myFramesEnd + 2] = 0;
+      myFrames[myFramesEnd + 3] = 0;
+      myFramesEnd += 4;
+    }
+
+    /**
+     * Add a flag followed by a four-byte number.
+     */
+    private void numbered(byte flag, long value) {
+      flag(flag);
+      number(value);
+    }
+
+    /**
+     * Add a four-byte number.
+     */
+    private void number(long value) {
+      putInt(myFrames, myFramesEnd, value);
+      myFramesEnd += 4;
+    }
+
+    /**
+     * Add a flag followed by the eight-byte session token.
+     */
+    private void token(byte flag, int start, int end) throws IOException {
+      if(end - start < 8) {
+        throw(new IOException("short session token"));
+      }
+      flag(flag);
+      System.arraycopy(myRaw, start, myFrames, myFramesEnd, 8);
+      myFramesEnd += 8;
+    }
+
+    /**
+     * Read a varint from the payload.
+     */
+    private long varint(int index, int end) throws IOException {
+      long retObj = 0;
+      for(int shift = 0; shift < 64; shift += 7) {
+        if(index == end) {
+          break;
+        }
+        int b = myRaw[index++];
+        retObj |= (long)(b & 0x7f) << shift;
+        if((b & 0x80) == 0) {
+          return(retObj);
+        }
+      }
+      throw(new IOException("bad varint"));
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          writing
+
+  /**
+   * This class takes four-byte frames and writes them to
+   * a stream as version 2 frames.  The moves written in
+   * one call go out together, as a TURN frame if the end
+   * of turn flag comes with them and as a MOVES frame
+   * otherwise, and everything from one call is written
+   * to the stream with one write.
+   */
+  public static class Output extends OutputStream {
+
+    /**
+     * The stream the version 2 frames go to.
+     */
+    private OutputStream myOut;
+
+    /**
+     * The four-byte frame (or the flag and what follows
+     * it) being collected.
+     */
+    private byte[] myUnit = new byte[4 + Position.SQUARES];
+    private int myUnitLength;
+
+    /**
+     * The number of bytes left of an end game flag that
+     * was sent on its own.
+     */
+    private int mySkip;
+
+    /**
+     * The moves collected, two bytes each.
+     */
+    private byte[] myMoves = new byte[MAX_FRAME - 2];
+    private int myMovesLength;
+
+    /**
+     * The version 2 frames to write.
+     */
+    private byte[] myFrames = new byte[2 * MAX_FRAME];
+    private int myFramesLength;
+
+    /**
+     * Used by write(int).
+     */
+    private byte[] myByte = new byte[1];
+
+    /**
+     * Constructor sets the stream to write to.
+     */
+    public Output(OutputStream out) {
+      myOut = out;
+    }
+
+    /**
+     * Write one byte of the four-byte frames.
+     */
+    public synchronized void write(int b) throws IOException {
+      myByte[0] = (byte)b;
+      write(myByte, 0, 1);
+    }
+
+    /**
+     * Write four-byte frames.
+     */
+    public synchronized void write(byte[] data, int offset, int length)
+        throws IOException {
+      for(int i = offset; i < offset + length; i++) {
+        if(mySkip > 0) {
+          mySkip--;
+          continue;
+        }
+        myUnit[myUnitLength++] = data[i];
+        if(myUnitLength == 1 && myUnit[0] == ServerGame.END_GAME_FLAG) {
+          // the clients send just the one byte:
+          endMoves(MOVES);
+          frame(END_GAME, 0);
+          myUnitLength = 0;
+          mySkip = 3;
+        } else if(myUnitLength == unitLength(myUnit[0])) {
+          encode();
+          myUnitLength = 0;
+        }
+      }
+      endMoves(MOVES);
+      if(myFramesLength > 0) {
+        myOut.write(myFrames, 0, myFramesLength);
+        myFramesLength = 0;
+      }
+    }
+
+    /**
+     * Flush the underlying stream.
+     */
+    public void flush() throws IOException {
+      myOut.flush();
+    }
+
+    /**
+     * Close the underlying stream.
+     */
+    public void close() throws IOException {
+      myOut.close();
+    }
+
+    /**
+     * The length of the four-byte frame (with whatever
+     * follows it) that begins with the given byte.
+     */
+    private int unitLength(byte first) throws IOException {
+      if(first >= 0) {
+        return(4);
+      }
+      switch(first) {
+      case ServerGame.SESSION_FLAG:
+        return(12);
+      case ServerGame.RESUME_FLAG:
+        return(16);
+      case ServerGame.RESUMED_FLAG:
+      case ServerGame.GAME_FLAG:
+      case Broadcast.WATCH_FLAG:
+        return(8);
+      case Broadcast.SNAPSHOT_FLAG:
+        return(4 + Position.SQUARES);
+      case ServerGame.START_GAME_FLAG:
+      case ServerGame.END_TURN_FLAG:
+      case ServerGame.HEARTBEAT_FLAG:
+      case ServerGame.HELLO_FLAG:
+        return(4);
+      default:
+        throw(new IOException("no version 2 frame for flag " + first));
+      }
+    }
+
+    /**
+     * Encode the whole unit in myUnit.
+     */
+    private void encode() throws IOException {
+      byte first = myUnit[0];
+      if(first >= 0) {
+        if(myMovesLength == myMoves.length) {
+          endMoves(MOVES);
+        }
+        myMoves[myMovesLength++] = pack(myUnit[0], myUnit[1]);
+        myMoves[myMovesLength++] = pack(myUnit[2], myUnit[3]);
+        return;
+      }
+      if(first == ServerGame.END_TURN_FLAG) {
+        endMoves(TURN);
+        return;
+      }
+      endMoves(MOVES);
+      switch(first) {
+      case ServerGame.START_GAME_FLAG:
+        frame(START, 0);
+        break;
+      case ServerGame.HEARTBEAT_FLAG:
+        frame(HEARTBEAT, 0);
+        break;
+      case ServerGame.HELLO_FLAG:
+        if(myUnit[1] == 0) {
+          frame(HELLO, 0);
+        } else {
+          frame(HELLO, 1);
+          myFrames[myFramesLength++] = myUnit[1];
+        }
+        break;
+      case ServerGame.SESSION_FLAG:
+        frame(SESSION, 8);
+        append(myUnit, 4, 8);
+        break;
+      case ServerGame.RESUME_FLAG:
+        long received = getInt(myUnit, 12);
+        frame(RESUME, 8 + varintLength(received));
+        append(myUnit, 4, 8);
+        myFramesLength = putVarint(myFrames, myFramesLength, received);
+        break;
+      case ServerGame.RESUMED_FLAG:
+        numbered(RESUMED);
+        break;
+      case ServerGame.GAME_FLAG:
+        numbered(GAME);
+        break;
+      case Broadcast.WATCH_FLAG:
+        numbered(WATCH);
+        break;
+      case Broadcast.SNAPSHOT_FLAG:
+        frame(SNAPSHOT, 1 + Position.SQUARES);
+        myFrames[myFramesLength++] = myUnit[1];
+        append(myUnit, 4, Position.SQUARES);
+        break;
+      }
+    }
+
+    /**
+     * Pack two coordinates into one byte.
+     */
+    private byte pack(byte x, byte y) throws IOException {
+      if((x & ~0xf) != 0 || (y & ~0xf) != 0) {
+        throw(new IOException("move off the board: " + x + ", " + y));
+      }
+      return((byte)((x << 4) | y));
+    }
+
+    /**
+     * Write the moves collected, if any (or if the turn
+     * ends, even none), as a frame of the given type.
+     */
+    private void endMoves(byte type) {
+      if((myMovesLength == 0) && (type != TURN)) {
+        return;
+      }
+      frame(type, myMovesLength);
+      append(myMoves, 0, myMovesLength);
+      myMovesLength = 0;
+    }
+
+    /**
+     * Begin a frame, making room for it.
+     * @param length the length of the payload.
+     */
+    private void frame(byte type, int length) {
+      if(myFramesLength + length + 6 > myFrames.length) {
+        byte[] frames = new byte[2 * (myFramesLength + length + 6)];
+        System.arraycopy(myFrames, 0, frames, 0, myFramesLength);
+        myFrames = frames;
+      }
+      myFramesLength = putVarint(myFrames, myFramesLength, length + 1);
+      myFrames[myFramesLength++] = type;
+    }
+
+    /**
+     * Write a frame whose payload is the four-byte number
+     * after the flag, as a varint.
+     */
+    private void numbered(byte type) {
+      long value = getInt(myUnit, 4);
+      frame(type, varintLength(value));
+      myFramesLength = putVarint(myFrames, myFramesLength, value);
+    }
+
+    /**
+     * Add bytes to the frame begun last.
+     */
+    private void append(byte[] data, int offset, int length) {
+      System.arraycopy(data, offset, myFrames, myFramesLength, length);
+      myFramesLength += length;
+    }
+
+    /**
+     * The number of bytes a varint takes.
+     */
+    private static int varintLength(long value) {
+      int retObj = 1;
+      while((value & ~0x7fL) != 0) {
+        value >>>= 7;
+        retObj++;
+      }
+      return(retObj);
+    }
+  }
+
+}
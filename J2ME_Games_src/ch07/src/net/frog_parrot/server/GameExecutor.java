@@ -0,0 +1,130 @@
+package net.frog_parrot.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * This class decides what kind of thread each ServerGame
+ * runs on.  The game logic blocks while reading from the
+ * players, so the choice is a trade-off: a platform
+ * thread per game is simple but costs a full stack per
+ * table, a virtual thread per game costs only a few
+ * hundred bytes while the game is waiting, and a bounded
+ * pool caps the number of threads but makes extra games
+ * wait in line until a running game ends.
+ *
+ * @author Carol Hamer
+ */
+public class GameExecutor {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * Each game gets a new platform thread.
+   */
+  public static final int PLATFORM = 0;
+
+  /**
+   * Each game gets a new virtual thread (Java 21 or later).
+   */
+  public static final int VIRTUAL = 1;
+
+  /**
+   * The games share a fixed number of platform threads.
+   */
+  public static final int POOL = 2;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * Which of the three modes this executor uses.
+   */
+  private int myMode;
+
+  /**
+   * The executor service for the virtual and pool modes.
+   */
+  private ExecutorService myService;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor creates the underlying executor.
+   * @param poolSize the number of threads in POOL mode
+   *        (ignored in the other modes).
+   * @throws IllegalStateException if virtual threads are
+   *         requested on a Java version that doesn't have them.
+   */
+  public GameExecutor(int mode, int poolSize) {
+    myMode = mode;
+    if(mode == VIRTUAL) {
+      myService = createVirtualExecutor();
+    } else if(mode == POOL) {
+      myService = Executors.newFixedThreadPool(poolSize);
+    }
+  }
+
+  /**
+   * Create an executor from a command-line argument:
+   * "platform", "virtual" or "pool:N".
+   */
+  public static GameExecutor parse(String spec) {
+    if(spec.equals("platform")) {
+      return(new GameExecutor(PLATFORM, 0));
+    } else if(spec.equals("virtual")) {
+      return(new GameExecutor(VIRTUAL, 0));
+    } else if(spec.startsWith("pool:")) {
+      return(new GameExecutor(POOL, Integer.parseInt(spec.substring(5))));
+    }
+    throw(new IllegalArgumentException("unknown executor: " + spec));
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Start running a game.
+   */
+  public void execute(Runnable game) {
+    if(myMode == PLATFORM) {
+      new Thread(game, "ServerGame").start();
+    } else {
+      myService.execute(game);
+    }
+  }
+
+  /**
+   * A short description for log messages.
+   */
+  public String toString() {
+    if(myMode == PLATFORM) {
+      return("platform");
+    } else if(myMode == VIRTUAL) {
+      return("virtual");
+    }
+    return("pool:" + ((ThreadPoolExecutor)myService).getCorePoolSize());
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Virtual threads are only available from Java 21 on,
+   * and this class must still compile on older versions,
+   * so we look up the factory method by reflection.
+   */
+  private static ExecutorService createVirtualExecutor() {
+    try {
+      Method factory
+        = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return((ExecutorService)factory.invoke(null));
+    } catch(Exception e) {
+      throw(new IllegalStateException("virtual threads require Java 21: "
+                                      + e));
+    }
+  }
+
+}
@@ -0,0 +1,1046 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps a record of every game the server
+ * relays, so that any game can be looked up by its
+ * number after the table has closed.
+ * <p>
+ * The game threads only copy each frame into a slot of
+ * a ring buffer, the same way Log does, and a writer
+ * thread of the store's own appends the frames to an
+ * append-only log cut into fixed-size segment files,
+ * each mapped into memory.  Every record points back to
+ * the game's previous record, and an index file holds
+ * one fixed-size entry per game with its last record, so
+ * a game is read by following its chain without
+ * scanning the log.
+ * <p>
+ * Once every game with records in an old segment is over,
+ * the writer copies each of those games into compacted
+ * segments, where a game's records lie side by side and
+ * are read in one pass, and deletes the old segment.
+ * <p>
+ * Records are 24 bytes: the game number (4 bytes), the
+ * kind (the player who sent the frame, or START or END),
+ * three unused bytes, the frame as the player sent it
+ * (4 bytes), the milliseconds since the game began
+ * (4 bytes) and the previous record of the game (8 bytes,
+ * -1 for none).  Game numbers begin at one, so a record
+ * of zeros is free space.
+ * <p>
+ * If the ring is full and a frame has to be dropped, the
+ * game's index entry is marked INCOMPLETE, and the game
+ * read back says so, so a gap in a game is never taken
+ * for the whole game.
+ *
+ * @author Carol Hamer
+ */
+public class GameStore {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The kind of the record made when a game begins.
+   */
+  public static final byte START = 0x10;
+
+  /**
+   * The kind of the record made when a game ends.
+   */
+  public static final byte END = 0x11;
+
+  /**
+   * The index entry states: the game is being played,
+   * it is over, or it has been compacted.
+   */
+  static final int OPEN = 1;
+  static final int FINISHED = 2;
+  static final int COMPACTED = 3;
+
+  /**
+   * Added to the state in the index entry of a game that
+   * lost frames because the ring was full.
+   */
+  static final int INCOMPLETE = 0x100;
+
+  /**
+   * The length of a record in the log.
+   */
+  static final int RECORD_BYTES = 24;
+
+  /**
+   * The length of an index entry: the last record (or the
+   * first, once compacted), the number of records, the
+   * state, and the times the game began and ended.
+   */
+  static final int INDEX_BYTES = 32;
+
+  /**
+   * The number of slots in the ring (a power of two).
+   */
+  static final int CAPACITY = 1 << 16;
+
+  /**
+   * The slots only the start and end records may use, so
+   * that a burst of moves can't lose a game's beginning
+   * or end.
+   */
+  static final int RESERVED = 4096;
+
+  /**
+   * How often the writer forces the current segment to
+   * disk, and at most how often it looks for a segment
+   * to compact, in milliseconds.
+   */
+  static final long FORCE_INTERVAL = 1000;
+
+  /**
+   * The number of records in a segment file.
+   */
+  static int mySegmentRecords = 1 << 20;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The directory holding the files.
+   */
+  private File myDirectory;
+
+  /**
+   * The index file.
+   */
+  private FileChannel myIndex;
+
+  /**
+   * The writer's buffer for index entries.
+   */
+  private ByteBuffer myIndexEntry = ByteBuffer.allocate(INDEX_BYTES);
+
+  /**
+   * The highest game number handed out.
+   */
+  private AtomicInteger myLastGame = new AtomicInteger();
+
+  /**
+   * The segments still being written to or waiting to be
+   * compacted, and the compacted segments, by segment
+   * number.  Record n is in segment n / mySegmentRecords.
+   */
+  private ConcurrentHashMap<Long, MappedByteBuffer> myLiveSegments
+    = new ConcurrentHashMap<Long, MappedByteBuffer>();
+  private ConcurrentHashMap<Long, MappedByteBuffer> myCompactedSegments
+    = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+  /**
+   * The number of the next record of the live log and of
+   * the compacted log.  Only the writer uses these.
+   */
+  private long myLiveHead;
+  private long myCompactedHead;
+
+  /**
+   * The live segment being written to, and its count.
+   */
+  private MappedByteBuffer myCurrentSegment;
+  private int[] myCurrentCount;
+
+  /**
+   * For each live segment, the number of its records that
+   * belong to games that have not been compacted.  Only
+   * the writer uses this.
+   */
+  private HashMap<Long, int[]> myLiveCounts = new HashMap<Long, int[]>();
+
+  /**
+   * The games being played.
+   */
+  private ConcurrentHashMap<Integer, OpenGame> myOpenGames
+    = new ConcurrentHashMap<Integer, OpenGame>();
+
+  /**
+   * Held by readers, and taken for writing to delete a
+   * compacted segment.
+   */
+  private ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+
+  /**
+   * Whether a game has ended (or a segment filled up)
+   * since the writer last tried compacting.
+   */
+  private boolean myShouldCompact = true;
+
+  /**
+   * When the writer last tried compacting.
+   */
+  private long myLastCompact;
+
+  /**
+   * Whether or not the writer should stop.
+   */
+  private volatile boolean myShouldStop;
+
+  /**
+   * The writer thread.
+   */
+  private Thread myWriter;
+
+  /**
+   * The ring: the next sequence number to hand out, the
+   * next one to write, and the number each slot holds.
+   */
+  private AtomicLong myNext = new AtomicLong();
+  private AtomicLong myConsumed = new AtomicLong();
+  private AtomicLongArray myPublished = new AtomicLongArray(CAPACITY);
+
+  /**
+   * The ring's entry fields, one array per field.
+   */
+  private int[] myGames = new int[CAPACITY];
+  private byte[] myKinds = new byte[CAPACITY];
+  private int[] myFrames = new int[CAPACITY];
+  private long[] myTimes = new long[CAPACITY];
+
+  /**
+   * The number of records lost because the ring was full,
+   * and the number written.
+   */
+  private AtomicLong myDropped = new AtomicLong();
+  private AtomicLong myWritten = new AtomicLong();
+
+  /**
+   * The games that have lost frames and whose index
+   * entries haven't yet been closed with the mark.
+   */
+  private Set<Integer> myIncomplete = ConcurrentHashMap.newKeySet();
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor opens (or creates) the store in the given
+   * directory and starts the writer.  Games that were
+   * being played when the server stopped are closed.
+   */
+  public GameStore(String directory) throws IOException {
+    myDirectory = new File(directory);
+    myDirectory.mkdirs();
+    myIndex = new RandomAccessFile(new File(myDirectory, "games.idx"),
+                                   "rw").getChannel();
+    for(int i = 0; i < CAPACITY; i++) {
+      myPublished.set(i, -1);
+    }
+    recover();
+    Metrics.register("store.records", myWritten);
+    Metrics.register("store.dropped", myDropped);
+    Metrics.register("store.games", myLastGame);
+    myWriter = new Thread("GameStore") {
+        public void run() {
+          drain();
+        }
+      };
+    myWriter.setDaemon(true);
+    myWriter.start();
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * A summary for the log.
+   */
+  public String toString() {
+    return("game store: games=" + myLastGame.get() + " records="
+           + myWritten.get() + " dropped=" + myDropped.get()
+           + " liveSegments=" + myLiveSegments.size()
+           + " compactedSegments=" + myCompactedSegments.size());
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Hand out the number of a new game.
+   */
+  public int newGame() {
+    return(myLastGame.incrementAndGet());
+  }
+
+  /**
+   * Record a frame.  This never waits: if the writer has
+   * fallen too far behind, the frame is dropped, counted,
+   * and the game is marked incomplete.
+   * @param kind the player (1 or 2) who sent the frame,
+   *        or START or END, which need no frame.
+   */
+  public void record(int game, byte kind, byte[] frame) {
+    int packed = 0;
+    if(frame != null) {
+      packed = ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16)
+        | ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+    }
+    int limit = ((kind == START) || (kind == END))
+      ? CAPACITY : CAPACITY - RESERVED;
+    long seq;
+    while(true) {
+      seq = myNext.get();
+      if(seq - myConsumed.get() >= limit) {
+        myDropped.incrementAndGet();
+        myIncomplete.add(Integer.valueOf(game));
+        return;
+      }
+      if(myNext.compareAndSet(seq, seq + 1)) {
+        break;
+      }
+    }
+    int slot = (int)(seq & (CAPACITY - 1));
+    myGames[slot] = game;
+    myKinds[slot] = kind;
+    myFrames[slot] = packed;
+    myTimes[slot] = System.currentTimeMillis();
+    myPublished.set(slot, seq);
+  }
+
+  /**
+   * Read a game.  A game being played is read as far as
+   * it has been written.  If frames of the game were
+   * dropped, the game's isIncomplete() says so.
+   * @return null if there is no such game.
+   */
+  public Game read(int game) throws IOException {
+    myLock.readLock().lock();
+    try {
+      Integer key = Integer.valueOf(game);
+      OpenGame open = myOpenGames.get(key);
+      if(open != null) {
+        return(readChain(game, open.myLast, open.myStart, 0,
+                         myIncomplete.contains(key)));
+      }
+      long[] entry = new long[6];
+      if(! readIndex(game, entry, ByteBuffer.allocate(INDEX_BYTES))) {
+        return(null);
+      }
+      boolean incomplete = (entry[5] != 0) || myIncomplete.contains(key);
+      if((int)entry[2] == COMPACTED) {
+        Game retObj = new Game(game, entry[3], entry[4], (int)entry[1],
+                               incomplete);
+        for(int i = 0; i < (int)entry[1]; i++) {
+          retObj.add(myCompactedSegments, entry[0] + i);
+        }
+        return(retObj);
+      }
+      return(readChain(game, entry[0], entry[3], entry[4], incomplete));
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Write out what is in the ring and stop the writer.
+   */
+  public void close() throws InterruptedException {
+    myShouldStop = true;
+    myWriter.join();
+  }
+
+  //-------------------------------------------------------------
+  //          games
+
+  /**
+   * This class is the writer's note of a game being played.
+   */
+  static class OpenGame {
+
+    /**
+     * When the game began.
+     */
+    long myStart;
+
+    /**
+     * The game's last record.  This is written after the
+     * record itself, so a reader who sees it can read it.
+     */
+    volatile long myLast = -1;
+
+    /**
+     * The number of records.
+     */
+    int myCount;
+  }
+
+  /**
+   * This class is a game read back from the store.
+   */
+  public static class Game {
+
+    /**
+     * The game number.
+     */
+    private int myId;
+
+    /**
+     * When the game began and ended (zero if it hasn't,
+     * or if the server stopped in the middle of it).
+     */
+    private long myStart;
+    private long myEnd;
+
+    /**
+     * The player who sent each frame.
+     */
+    private byte[] myPlayers;
+
+    /**
+     * The frames, four bytes each.
+     */
+    private byte[] myFrames;
+
+    /**
+     * The milliseconds from the start to each frame.
+     */
+    private int[] myTimes;
+
+    /**
+     * The number of frames.
+     */
+    private int myLength;
+
+    /**
+     * Whether frames of the game were dropped.
+     */
+    private boolean myIncomplete;
+
+    /**
+     * Constructor makes room for the given number of records.
+     */
+    Game(int id, long start, long end, int records, boolean incomplete) {
+      myId = id;
+      myStart = start;
+      myEnd = end;
+      myIncomplete = incomplete;
+      myPlayers = new byte[records];
+      myFrames = new byte[records * 4];
+      myTimes = new int[records];
+    }
+
+    /**
+     * get the game number.
+     */
+    public int getId() {
+      return(myId);
+    }
+
+    /**
+     * get when the game began (System.currentTimeMillis()).
+     */
+    public long getStartTime() {
+      return(myStart);
+    }
+
+    /**
+     * get when the game ended, or zero.
+     */
+    public long getEndTime() {
+      return(myEnd);
+    }
+
+    /**
+     * Whether some of the game's frames were lost because
+     * the store fell behind, so that the frames here are
+     * not the whole game.
+     */
+    public boolean isIncomplete() {
+      return(myIncomplete);
+    }
+
+    /**
+     * get the number of frames (moves and end of turn flags).
+     */
+    public int getLength() {
+      return(myLength);
+    }
+
+    /**
+     * get the player (1 or 2) who sent a frame.
+     */
+    public int getPlayer(int i) {
+      return(myPlayers[i]);
+    }
+
+    /**
+     * get the milliseconds from the start of the game to
+     * a frame.
+     */
+    public int getTime(int i) {
+      return(myTimes[i]);
+    }
+
+    /**
+     * Copy a frame, as the player sent it.
+     */
+    public void getFrame(int i, byte[] frame) {
+      System.arraycopy(myFrames, i * 4, frame, 0, 4);
+    }
+
+    /**
+     * Add a record, unless it is the start or the end.
+     */
+    void add(Map<Long, MappedByteBuffer> segments, long record) {
+      MappedByteBuffer segment = segments.get(
+          Long.valueOf(record / mySegmentRecords));
+      int offset = (int)(record % mySegmentRecords) * RECORD_BYTES;
+      byte kind = segment.get(offset + 4);
+      if((kind == START) || (kind == END)) {
+        return;
+      }
+      myPlayers[myLength] = kind;
+      for(int i = 0; i < 4; i++) {
+        myFrames[myLength * 4 + i] = segment.get(offset + 8 + i);
+      }
+      myTimes[myLength] = segment.getInt(offset + 12);
+      myLength++;
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          the writer
+
+  /**
+   * The writer's loop: append each record in order, and
+   * when there is nothing to do, force the segment to
+   * disk now and then and compact what can be compacted.
+   */
+  private void drain() {
+    long seq = 0;
+    long lastForce = System.currentTimeMillis();
+    boolean dirty = false;
+    while(true) {
+      int slot = (int)(seq & (CAPACITY - 1));
+      if(myPublished.get(slot) == seq) {
+        try {
+          append(myGames[slot], myKinds[slot], myFrames[slot], myTimes[slot]);
+        } catch(IOException e) {
+          Log.error("GameStore.drain-->caught Exception:", e);
+        }
+        seq++;
+        myConsumed.set(seq);
+        dirty = true;
+        continue;
+      }
+      // nothing new yet (or a game thread is half done):
+      long now = System.currentTimeMillis();
+      if(dirty && ((now - lastForce >= FORCE_INTERVAL) || myShouldStop)) {
+        force();
+        lastForce = now;
+        dirty = false;
+      }
+      if(myShouldStop && (myNext.get() == seq)) {
+        return;
+      }
+      if(myShouldCompact && (now - myLastCompact >= FORCE_INTERVAL)) {
+        myShouldCompact = false;
+        myLastCompact = now;
+        try {
+          compact();
+        } catch(IOException e) {
+          Log.error("GameStore.compact-->caught Exception:", e);
+        }
+        continue;
+      }
+      try {
+        Thread.sleep(1);
+      } catch(InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Add a record to the live log.
+   */
+  private void append(int game, byte kind, int frame, long time)
+      throws IOException {
+    Integer key = Integer.valueOf(game);
+    OpenGame open = myOpenGames.get(key);
+    if(kind == START) {
+      open = new OpenGame();
+      open.myStart = time;
+      myOpenGames.put(key, open);
+    } else if(open == null) {
+      if(! myIncomplete.contains(key)) {
+        return;
+      }
+      // the start was dropped, so the game begins here:
+      open = new OpenGame();
+      open.myStart = time;
+      myOpenGames.put(key, open);
+    }
+    long number = myLiveHead;
+    if((myCurrentSegment == null) || (number % mySegmentRecords == 0)) {
+      long segmentNumber = number / mySegmentRecords;
+      if(number % mySegmentRecords == 0) {
+        roll(segmentNumber);
+      }
+      myCurrentSegment = myLiveSegments.get(
+          Long.valueOf(segmentNumber));
+      myCurrentCount = liveCount(segmentNumber);
+    }
+    MappedByteBuffer segment = myCurrentSegment;
+    int offset = (int)(number % mySegmentRecords) * RECORD_BYTES;
+    segment.putInt(offset, game);
+    segment.put(offset + 4, kind);
+    segment.putInt(offset + 8, frame);
+    segment.putInt(offset + 12, (int)(time - open.myStart));
+    segment.putLong(offset + 16, open.myLast);
+    myLiveHead++;
+    myCurrentCount[0]++;
+    myWritten.incrementAndGet();
+    open.myCount++;
+    open.myLast = number;
+    if(open.myCount == 1) {
+      writeIndex(game, number, 1, OPEN | lost(key), open.myStart, 0);
+    }
+    if(kind == END) {
+      // the mark is written before it is taken out of the
+      // set, so a reader always sees one or the other:
+      writeIndex(game, number, open.myCount, FINISHED | lost(key),
+                 open.myStart, time);
+      myOpenGames.remove(key);
+      myIncomplete.remove(key);
+      myShouldCompact = true;
+    }
+  }
+
+  /**
+   * Start a new live segment.  The index entries of the
+   * games being played are brought up to date first, so
+   * that after a crash only the last segment needs to be
+   * read to find their ends.
+   */
+  private void roll(long segmentNumber) throws IOException {
+    for(Iterator<Map.Entry<Integer, OpenGame>> it
+          = myOpenGames.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Integer, OpenGame> entry = it.next();
+      OpenGame open = entry.getValue();
+      writeIndex(entry.getKey().intValue(), open.myLast, open.myCount,
+                 OPEN | lost(entry.getKey()), open.myStart, 0);
+    }
+    force();
+    myLiveSegments.put(Long.valueOf(segmentNumber),
+                       map("live-", segmentNumber));
+    myShouldCompact = true;
+  }
+
+  /**
+   * Copy the games whose records are in the oldest live
+   * segment into the compacted log, and delete the segment
+   * once none of its records are needed.
+   */
+  private void compact() throws IOException {
+    long current = myLiveHead / mySegmentRecords;
+    Long oldest = null;
+    for(Iterator<Long> it = myLiveSegments.keySet().iterator();
+        it.hasNext(); ) {
+      Long number = it.next();
+      if((oldest == null) || (number.longValue() < oldest.longValue())) {
+        oldest = number;
+      }
+    }
+    if((oldest == null) || (oldest.longValue() >= current)) {
+      return;
+    }
+    MappedByteBuffer segment = myLiveSegments.get(oldest);
+    // the finished games with records here, in order:
+    LinkedHashSet<Integer> games = new LinkedHashSet<Integer>();
+    for(int i = 0; i < mySegmentRecords; i++) {
+      Integer game = Integer.valueOf(segment.getInt(i * RECORD_BYTES));
+      if((game.intValue() != 0) && (! myOpenGames.containsKey(game))) {
+        games.add(game);
+      }
+    }
+    ArrayList<long[]> entries = new ArrayList<long[]>();
+    long[] chain = new long[256];
+    for(Iterator<Integer> it = games.iterator(); it.hasNext(); ) {
+      int game = it.next().intValue();
+      long[] entry = new long[7];
+      if((! readIndex(game, entry, myIndexEntry))
+         || ((int)entry[2] != FINISHED)) {
+        continue;
+      }
+      // follow the chain back, then copy it forward:
+      int count = 0;
+      for(long record = entry[0]; record >= 0;
+          record = prevRecord(myLiveSegments, record)) {
+        if(count == chain.length) {
+          chain = Arrays.copyOf(chain, count * 2);
+        }
+        chain[count++] = record;
+      }
+      entry[6] = game;
+      entry[0] = myCompactedHead;
+      entry[1] = count;
+      for(int i = count - 1; i >= 0; i--) {
+        copyRecord(chain[i]);
+        liveCount(chain[i] / mySegmentRecords)[0]--;
+      }
+      entries.add(entry);
+    }
+    if(entries.isEmpty()) {
+      return;
+    }
+    // the copies must be on disk before the index points
+    // at them:
+    force();
+    myLock.writeLock().lock();
+    try {
+      for(int i = 0; i < entries.size(); i++) {
+        long[] entry = entries.get(i);
+        writeIndex((int)entry[6], entry[0], (int)entry[1],
+                   COMPACTED | (int)entry[5], entry[3], entry[4]);
+      }
+      myIndex.force(false);
+      if(liveCount(oldest.longValue())[0] == 0) {
+        myLiveSegments.remove(oldest);
+        myLiveCounts.remove(oldest);
+        segmentFile("live-", oldest.longValue()).delete();
+        Log.info("GameStore.compact-->compacted segment {}, {} games",
+                 oldest.longValue(), entries.size());
+        // try the next one:
+        myShouldCompact = true;
+        myLastCompact = 0;
+      }
+    } finally {
+      myLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Copy a live record to the end of the compacted log.
+   */
+  private void copyRecord(long record) throws IOException {
+    long number = myCompactedHead;
+    if(number % mySegmentRecords == 0) {
+      myCompactedSegments.put(Long.valueOf(number / mySegmentRecords),
+                              map("compact-", number / mySegmentRecords));
+    }
+    MappedByteBuffer from = myLiveSegments.get(
+        Long.valueOf(record / mySegmentRecords));
+    MappedByteBuffer to = myCompactedSegments.get(
+        Long.valueOf(number / mySegmentRecords));
+    int fromOffset = (int)(record % mySegmentRecords) * RECORD_BYTES;
+    int toOffset = (int)(number % mySegmentRecords) * RECORD_BYTES;
+    for(int i = 0; i < 16; i += 4) {
+      to.putInt(toOffset + i, from.getInt(fromOffset + i));
+    }
+    to.putLong(toOffset + 16, -1);
+    myCompactedHead++;
+  }
+
+  /**
+   * Force the newest segments and the index to disk.
+   */
+  private void force() {
+    try {
+      forceNewest(myLiveSegments, myLiveHead);
+      forceNewest(myCompactedSegments, myCompactedHead);
+      myIndex.force(false);
+    } catch(IOException e) {
+      Log.error("GameStore.force-->caught Exception:", e);
+    }
+  }
+
+  /**
+   * Force the segment that is being written to, and the
+   * one before it, which may have been written since.
+   */
+  private static void forceNewest(Map<Long, MappedByteBuffer> segments,
+                                  long head) {
+    for(long i = 0; i < 2; i++) {
+      MappedByteBuffer segment = segments.get(
+          Long.valueOf((head - 1) / mySegmentRecords - i));
+      if(segment != null) {
+        segment.force();
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          recovery
+
+  /**
+   * Map the existing segments, find where each log ends,
+   * close the games the server was playing when it
+   * stopped, and count the live records.
+   */
+  private void recover() throws IOException {
+    long newestLive = -1;
+    long newestCompacted = -1;
+    String[] names = myDirectory.list();
+    for(int i = 0; i < names.length; i++) {
+      String name = names[i];
+      if(! name.endsWith(".log")) {
+        continue;
+      }
+      boolean live = name.startsWith("live-");
+      String prefix = live ? "live-" : "compact-";
+      long number = Long.parseLong(
+          name.substring(prefix.length(), name.length() - 4));
+      if(live) {
+        myLiveSegments.put(Long.valueOf(number), map(prefix, number));
+        newestLive = Math.max(newestLive, number);
+      } else {
+        myCompactedSegments.put(Long.valueOf(number), map(prefix, number));
+        newestCompacted = Math.max(newestCompacted, number);
+      }
+    }
+    myCompactedHead = findEnd(myCompactedSegments, newestCompacted);
+    myLiveHead = findEnd(myLiveSegments, newestLive);
+    int games = (int)(myIndex.size() / INDEX_BYTES);
+    myLastGame.set(Math.max(games - 1, 0));
+    // the records of the games being played that were
+    // written after their index entries:
+    HashMap<Integer, long[]> ends = new HashMap<Integer, long[]>();
+    if(newestLive >= 0) {
+      MappedByteBuffer segment
+        = myLiveSegments.get(Long.valueOf(newestLive));
+      long first = newestLive * mySegmentRecords;
+      for(long record = first; record < myLiveHead; record++) {
+        Integer game = Integer.valueOf(
+            segment.getInt((int)(record - first) * RECORD_BYTES));
+        long[] end = ends.get(game);
+        if(end == null) {
+          end = new long[2];
+          ends.put(game, end);
+        }
+        end[0] = record;
+        end[1]++;
+      }
+    }
+    long[] entry = new long[6];
+    int closed = 0;
+    for(int game = 1; game < games; game++) {
+      if((! readIndex(game, entry, myIndexEntry))
+         || ((int)entry[2] == COMPACTED)) {
+        continue;
+      }
+      if((int)entry[2] == OPEN) {
+        long[] end = ends.get(Integer.valueOf(game));
+        if((end != null) && (end[0] > entry[0])) {
+          // count only the records after the index entry:
+          int after = 0;
+          for(long record = end[0]; record > entry[0];
+              record = prevRecord(myLiveSegments, record)) {
+            after++;
+          }
+          entry[0] = end[0];
+          entry[1] += after;
+        }
+        writeIndex(game, entry[0], (int)entry[1], FINISHED | (int)entry[5],
+                   entry[3], 0);
+        closed++;
+      }
+      for(long record = entry[0]; record >= 0;
+          record = prevRecord(myLiveSegments, record)) {
+        liveCount(record / mySegmentRecords)[0]++;
+      }
+    }
+    if(closed > 0) {
+      Log.info("GameStore.recover-->closed {} unfinished games", closed);
+    }
+  }
+
+  /**
+   * Find the first free record after the newest segment's
+   * records.
+   */
+  private static long findEnd(Map<Long, MappedByteBuffer> segments,
+                              long newest) {
+    if(newest < 0) {
+      return(0);
+    }
+    MappedByteBuffer segment
+      = segments.get(Long.valueOf(newest));
+    int free = mySegmentRecords;
+    while((free > 0) && (segment.getInt((free - 1) * RECORD_BYTES) == 0)) {
+      free--;
+    }
+    return(newest * mySegmentRecords + free);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Read a game by following its chain back from its
+   * last record.
+   */
+  private Game readChain(int game, long last, long start, long end,
+                         boolean incomplete) {
+    int count = 0;
+    for(long record = last; record >= 0;
+        record = prevRecord(myLiveSegments, record)) {
+      count++;
+    }
+    long[] chain = new long[count];
+    for(long record = last; record >= 0;
+        record = prevRecord(myLiveSegments, record)) {
+      chain[--count] = record;
+    }
+    Game retObj = new Game(game, start, end, chain.length, incomplete);
+    for(int i = 0; i < chain.length; i++) {
+      retObj.add(myLiveSegments, chain[i]);
+    }
+    return(retObj);
+  }
+
+  /**
+   * get the record before the given one in its game, or -1.
+   */
+  private static long prevRecord(Map<Long, MappedByteBuffer> segments,
+                                 long record) {
+    MappedByteBuffer segment = segments.get(
+        Long.valueOf(record / mySegmentRecords));
+    return(segment.getLong((int)(record % mySegmentRecords) * RECORD_BYTES
+                           + 16));
+  }
+
+  /**
+   * get INCOMPLETE if the game has lost frames, or zero.
+   */
+  private int lost(Integer game) {
+    return(myIncomplete.contains(game) ? INCOMPLETE : 0);
+  }
+
+  /**
+   * get the writer's count of a live segment's records.
+   */
+  private int[] liveCount(long segmentNumber) {
+    Long key = Long.valueOf(segmentNumber);
+    int[] retObj = myLiveCounts.get(key);
+    if(retObj == null) {
+      retObj = new int[1];
+      myLiveCounts.put(key, retObj);
+    }
+    return(retObj);
+  }
+
+  /**
+   * Write a game's index entry.  Only the writer calls this.
+   */
+  private void writeIndex(int game, long record, int count, int state,
+                          long start, long end) throws IOException {
+    myIndexEntry.clear();
+    myIndexEntry.putLong(record);
+    myIndexEntry.putInt(count);
+    myIndexEntry.putInt(state);
+    myIndexEntry.putLong(start);
+    myIndexEntry.putLong(end);
+    myIndexEntry.flip();
+    myIndex.write(myIndexEntry, (long)game * INDEX_BYTES);
+  }
+
+  /**
+   * Read a game's index entry into the first six places
+   * of the array: the record, the number of records, the
+   * state (without the mark), the times the game began
+   * and ended, and INCOMPLETE if it lost frames or zero.
+   * @return false if there is no entry.
+   */
+  private boolean readIndex(int game, long[] entry, ByteBuffer buffer)
+      throws IOException {
+    buffer.clear();
+    long position = (long)game * INDEX_BYTES;
+    while(buffer.hasRemaining()) {
+      if(myIndex.read(buffer, position + buffer.position()) < 0) {
+        return(false);
+      }
+    }
+    buffer.flip();
+    entry[0] = buffer.getLong();
+    entry[1] = buffer.getInt();
+    int state = buffer.getInt();
+    entry[2] = state & ~INCOMPLETE;
+    entry[3] = buffer.getLong();
+    entry[4] = buffer.getLong();
+    entry[5] = state & INCOMPLETE;
+    return(state != 0);
+  }
+
+  /**
+   * get the file of a segment.
+   */
+  private File segmentFile(String prefix, long number) {
+    String digits = "000000000" + number;
+    return(new File(myDirectory, prefix
+                    + digits.substring(digits.length() - 10) + ".log"));
+  }
+
+  /**
+   * Map a segment file, creating it if need be.  The
+   * mapping stays valid after the file is closed.
+   */
+  private MappedByteBuffer map(String prefix, long number)
+      throws IOException {
+    RandomAccessFile file
+      = new RandomAccessFile(segmentFile(prefix, number), "rw");
+    try {
+      return(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                   (long)mySegmentRecords * RECORD_BYTES));
+    } finally {
+      file.close();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          main
+
+  /**
+   * Print a summary of the store, or the frames of a game.
+   * Usage: java net.frog_parrot.server.GameStore directory [game]
+   */
+  public static void main(String[] args) throws Exception {
+    if(args.length > 2) {
+      mySegmentRecords = Integer.parseInt(args[2]);
+    }
+    GameStore store = new GameStore(args[0]);
+    if(args.length == 1) {
+      System.out.println(store);
+      return;
+    }
+    Game game = store.read(Integer.parseInt(args[1]));
+    if(game == null) {
+      System.out.println("no such game");
+      return;
+    }
+    System.out.println("game " + game.getId() + " began "
+                       + new Date(game.getStartTime()) + ", "
+                       + game.getLength() + " frames"
+                       + ((game.getEndTime() == 0) ? ", not finished" : "")
+                       + (game.isIncomplete() ? ", frames lost" : ""));
+    byte[] frame = new byte[4];
+    for(int i = 0; i < game.getLength(); i++) {
+      game.getFrame(i, frame);
+      if(frame[0] == ServerGame.END_TURN_FLAG) {
+        System.out.println(game.getTime(i) + " ms: player "
+                           + game.getPlayer(i) + " ends his turn");
+      } else {
+        System.out.println(game.getTime(i) + " ms: player "
+                           + game.getPlayer(i) + ": " + frame[0] + ", "
+                           + frame[1] + " to " + frame[2] + ", " + frame[3]);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,291 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * This class moves the games being played from a server
+ * that is being drained to the server that replaces it,
+ * through a directory the two share.  Java has no way to
+ * pass a socket to another process, so the players are
+ * moved the way they move after a dropped connection:
+ * the draining server stops each game at once, saves it
+ * (the moves so far and each seat's session token,
+ * counts and frames for resending) and cuts the players
+ * off, and they resume with their session tokens at
+ * the new server, which is listening on the same port
+ * (see SocketListener).
+ * <p>
+ * The draining server writes all of its games to one
+ * checkpoint file, with a checksum, and renames it into
+ * place once it is on disk.  While it works, a marker
+ * file says that a drain is under way, so a player who
+ * reaches the new server before the checkpoint does
+ * (the player whose connection was closed to stop his
+ * game) is held until it arrives.  The new server starts
+ * the games in a checkpoint as soon as it finds it; each
+ * waits for its players as if both had dropped.
+ *
+ * @author Carol Hamer
+ */
+class Handoff {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The int a checkpoint file begins with.
+   */
+  static final int MAGIC = 0x43484b48;
+
+  /**
+   * How long a returning player waits for a draining
+   * server's checkpoint, in milliseconds.
+   */
+  static final long ADOPT_WAIT = 10000;
+
+  /**
+   * How often we look for the checkpoint while waiting,
+   * in milliseconds.
+   */
+  static final long POLL_INTERVAL = 20;
+
+  /**
+   * How old a drain's marker may be before we take it
+   * that the server died in the middle, in milliseconds.
+   */
+  static final long STALE_DRAIN = 600000;
+
+  /**
+   * The statistics: games saved here for the next server,
+   * and games taken over from the last one.
+   */
+  private static AtomicLong mySaved = Metrics.counter("handoff.saved");
+  private static AtomicLong myAdopted = Metrics.counter("handoff.adopted");
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The directory the servers share.
+   */
+  private File myDir;
+
+  /**
+   * The start of the names of this server's files.
+   */
+  private String myName;
+
+  /**
+   * Where the games we take over are run.
+   */
+  private Lobby myLobby;
+
+  /**
+   * The games saved so far in this drain.
+   */
+  private ByteArrayOutputStream myTables = new ByteArrayOutputStream();
+  private DataOutputStream myTableOutput = new DataOutputStream(myTables);
+  private List<ServerGame> myGames = new ArrayList<ServerGame>();
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets the directory, making it if need be.
+   */
+  Handoff(String dir) throws IOException {
+    myDir = new File(dir);
+    if((! myDir.isDirectory()) && (! myDir.mkdirs())) {
+      throw(new IOException("can't make " + dir));
+    }
+    myName = "handoff." + ProcessHandle.current().pid();
+  }
+
+  /**
+   * Set where the games we take over are run.
+   */
+  void setLobby(Lobby lobby) {
+    myLobby = lobby;
+  }
+
+  //-------------------------------------------------------------
+  //          draining
+
+  /**
+   * Say that this server is draining, so the next one
+   * waits for our checkpoint.
+   */
+  void beginDrain() throws IOException {
+    new File(myDir, myName + ".draining").createNewFile();
+  }
+
+  /**
+   * Keep a stopped game for the checkpoint.  This is
+   * called on the game's thread once it has stopped, so
+   * nothing changes the game while it is saved.  The
+   * players are cut off when the checkpoint is written.
+   */
+  synchronized void save(ServerGame game) {
+    try {
+      game.checkpoint(myTableOutput);
+      myGames.add(game);
+    } catch(IOException e) {
+      // a ByteArrayOutputStream doesn't throw.
+      Log.error("Handoff.save-->failed:", e);
+    }
+  }
+
+  /**
+   * Write the games saved in this drain to the checkpoint,
+   * and then cut their players off so they come back to
+   * the next server.  The drain's marker is removed even
+   * if the checkpoint can't be written.
+   */
+  synchronized void commit() throws IOException {
+    try {
+      if(myGames.size() == 0) {
+        return;
+      }
+      byte[] data = myTables.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      File temp = new File(myDir, myName + ".tmp");
+      FileOutputStream file = new FileOutputStream(temp);
+      try {
+        DataOutputStream output
+          = new DataOutputStream(new BufferedOutputStream(file));
+        output.writeInt(MAGIC);
+        output.writeInt(myGames.size());
+        output.writeInt(data.length);
+        output.write(data);
+        output.writeLong(crc.getValue());
+        output.flush();
+        file.getFD().sync();
+      } finally {
+        file.close();
+      }
+      if(! temp.renameTo(new File(myDir, myName + ".tables"))) {
+        throw(new IOException("couldn't rename " + temp));
+      }
+      mySaved.addAndGet(myGames.size());
+      Log.info("Handoff.commit-->saved {} tables ({} bytes)",
+               myGames.size(), data.length);
+    } finally {
+      new File(myDir, myName + ".draining").delete();
+      for(ServerGame game : myGames) {
+        game.abandon();
+      }
+      myGames.clear();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          taking over
+
+  /**
+   * Find the seat a session token belongs to among the
+   * games other servers have handed over, starting any
+   * new ones.  If another server is draining, we wait
+   * (up to ADOPT_WAIT) for its checkpoint.
+   * @return null if the token isn't there.
+   */
+  Seat adopt(long token) {
+    long deadline = System.currentTimeMillis() + ADOPT_WAIT;
+    while(true) {
+      boolean draining = load();
+      Seat retObj = Seat.find(token);
+      if((retObj != null) || (! draining)
+         || (System.currentTimeMillis() >= deadline)) {
+        return(retObj);
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL);
+      } catch(InterruptedException e) {
+        return(null);
+      }
+    }
+  }
+
+  /**
+   * Start the games in any checkpoints that have appeared.
+   * A checkpoint is claimed by renaming it, so only one
+   * server takes each.
+   * @return whether another server is still draining.
+   */
+  private synchronized boolean load() {
+    boolean retObj = false;
+    String[] names = myDir.list();
+    if(names == null) {
+      return(false);
+    }
+    for(int i = 0; i < names.length; i++) {
+      if(names[i].startsWith(myName + ".")) {
+        continue;
+      }
+      File file = new File(myDir, names[i]);
+      if(names[i].endsWith(".draining")) {
+        if(System.currentTimeMillis() - file.lastModified() < STALE_DRAIN) {
+          retObj = true;
+        }
+      } else if(names[i].endsWith(".tables")) {
+        File claimed = new File(myDir, myName + ".adopting");
+        if(! file.renameTo(claimed)) {
+          continue;
+        }
+        try {
+          read(claimed);
+        } catch(IOException e) {
+          Log.error("Handoff.load-->bad checkpoint " + names[i] + ":", e);
+        }
+        claimed.delete();
+      }
+    }
+    return(retObj);
+  }
+
+  /**
+   * Read a checkpoint and start its games.  Nothing is
+   * started unless the whole file is sound.
+   */
+  private void read(File file) throws IOException {
+    DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if(input.readInt() != MAGIC) {
+        throw(new IOException("not a checkpoint"));
+      }
+      int count = input.readInt();
+      byte[] data = new byte[input.readInt()];
+      input.readFully(data);
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      if(input.readLong() != crc.getValue()) {
+        throw(new IOException("bad checksum"));
+      }
+      DataInputStream tables
+        = new DataInputStream(new ByteArrayInputStream(data));
+      ServerGame[] games = new ServerGame[count];
+      for(int i = 0; i < count; i++) {
+        games[i] = ServerGame.restore(tables);
+      }
+      for(int i = 0; i < count; i++) {
+        myLobby.execute(games[i]);
+      }
+      myAdopted.addAndGet(count);
+      Log.info("Handoff.read-->took over {} tables", count);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * A summary for the log.
+   */
+  public String toString() {
+    return("handoff: saved=" + mySaved.get() + " adopted=" + myAdopted.get());
+  }
+
+}
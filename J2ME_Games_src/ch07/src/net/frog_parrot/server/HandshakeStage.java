@@ -0,0 +1,650 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+
+/**
+ * This class takes newly accepted sockets off the
+ * accepting thread.  A pool of worker threads completes
+ * the SSL handshake (which can take seconds with a slow
+ * mobile client), sends the start game flag, and only
+ * then hands the player to the Lobby.  The time each
+ * handshake takes is recorded separately for full
+ * handshakes and for resumed sessions.
+ * <p>
+ * Only so many sockets may wait for a worker; more are
+ * closed at once.  Everything up to the lobby (the SSL
+ * handshake and the flags the client begins with) must
+ * be over within the timeout, or the socket is closed
+ * from the timer wheel.
+ *
+ * @author Carol Hamer
+ */
+public class HandshakeStage {
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The worker threads.
+   */
+  private ExecutorService myWorkers;
+
+  /**
+   * Where the players go once they are connected.
+   */
+  private Lobby myLobby;
+
+  /**
+   * Decides which clients we take on.
+   */
+  private AdmissionControl myAdmission = new AdmissionControl();
+
+  /**
+   * If this is a cluster's front end, where the tables 
+   * are played, or if it is a back end, what pairs the 
+   * front end's connections; otherwise null.
+   */
+  private ClusterFront myFront;
+  private ClusterBackend myBackend;
+
+  /**
+   * How long a client may take over the handshake, in
+   * milliseconds, before we give up on it.
+   */
+  private int myTimeout;
+
+  /**
+   * The time taken by full handshakes, in microseconds.
+   */
+  private Histogram myFullHistogram
+    = new Histogram("full handshake (us)");
+
+  /**
+   * The time taken by handshakes that resumed a cached
+   * session, in microseconds.
+   */
+  private Histogram myResumedHistogram
+    = new Histogram("resumed handshake (us)");
+
+  /**
+   * The number of handshakes that failed or timed out.
+   */
+  private AtomicLong myFailures = new AtomicLong();
+
+  /**
+   * The number of sockets closed because too many were
+   * waiting for a worker.
+   */
+  private AtomicLong myRejected = new AtomicLong();
+
+  /**
+   * The SSL sessions we have seen, the oldest first, with 
+   * when (System.nanoTime()) the handshake that created 
+   * each one ended, so that a handshake that gets one of 
+   * them back is known to have resumed it.  No more are 
+   * kept than the server's session cache holds.  A session 
+   * is known by when it was created and the client's 
+   * address, since under TLS 1.3 a resumed session is 
+   * given a new id (but keeps its creation time).
+   */
+  private Map<String, Long> mySessions
+    = new LinkedHashMap<String, Long>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return(size() > SocketListener.mySessionCacheSize);
+        }
+      };
+
+  /**
+   * The most sockets that may wait for a worker.
+   */
+  static final int QUEUE_LENGTH = 1024;
+
+  /**
+   * The number of players who took their seats back, 
+   * and the number who tried and couldn't.
+   */
+  private AtomicLong myResumes = new AtomicLong();
+  private AtomicLong myFailedResumes = new AtomicLong();
+
+  /**
+   * The number of clients that asked for version 2 of 
+   * the protocol.
+   */
+  private AtomicLong myFramed = new AtomicLong();
+
+  /**
+   * How long we wait for a hello from a client on the 
+   * game port, in milliseconds, or zero not to look for 
+   * one.  Clients that begin with a flag connect to the 
+   * hello port (see SocketListener), where we know one 
+   * is coming, so the older clients, which send nothing, 
+   * are only held up here if this is turned on.
+   */
+  static int myProbeTimeout = 0;
+
+  /**
+   * The most places of the leaderboard sent in answer to 
+   * one question.
+   */
+  static final int MAX_PLACES = 100;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor creates the worker pool.
+   * @param threads the number of handshakes that can be
+   *        in progress at once.
+   * @param timeout the handshake timeout in milliseconds.
+   */
+  public HandshakeStage(Lobby lobby, int threads, int timeout) {
+    myLobby = lobby;
+    myTimeout = timeout;
+    Metrics.register("handshake.full_us", myFullHistogram);
+    Metrics.register("handshake.resumed_us", myResumedHistogram);
+    Metrics.register("handshake.failures", myFailures);
+    Metrics.register("handshake.rejected", myRejected);
+    Metrics.register("resume.accepted", myResumes);
+    Metrics.register("resume.refused", myFailedResumes);
+    Metrics.register("protocol.v2", myFramed);
+    myWorkers = new ThreadPoolExecutor(threads, threads, 0,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_LENGTH),
+        daemonThreads("Handshake-"));
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get the histogram of full handshake times.
+   */
+  public Histogram getFullHistogram() {
+    return(myFullHistogram);
+  }
+
+  /**
+   * get the histogram of resumed handshake times.
+   */
+  public Histogram getResumedHistogram() {
+    return(myResumedHistogram);
+  }
+
+  /**
+   * get the number of failed handshakes.
+   */
+  public long getFailures() {
+    return(myFailures.get());
+  }
+
+  /**
+   * get the number of sockets closed because the queue
+   * was full.
+   */
+  public long getRejected() {
+    return(myRejected.get());
+  }
+
+  /**
+   * get the admission control.
+   */
+  public AdmissionControl getAdmission() {
+    return(myAdmission);
+  }
+
+  /**
+   * Make this a cluster's front end.
+   */
+  public void setFront(ClusterFront front) {
+    myFront = front;
+  }
+
+  /**
+   * Make this a cluster's back end.
+   */
+  void setBackend(ClusterBackend backend) {
+    myBackend = backend;
+  }
+
+  /**
+   * A summary for the log.
+   */
+  public String toString() {
+    return(myFullHistogram + "; " + myResumedHistogram
+           + "; failed=" + myFailures.get() + " rejected="
+           + myRejected.get() + "; games resumed="
+           + myResumes.get() + " refused=" + myFailedResumes.get());
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Queue a newly accepted socket, unless the admission
+   * control turns it away or the queue is full.  This 
+   * returns at once so the accepting thread can go 
+   * straight back to accept().
+   * @param greets whether the client came in on the hello 
+   *        port, so that it begins with a flag.
+   */
+  public void submit(final Socket client, final boolean greets) {
+    if(! myAdmission.admit(client)) {
+      return;
+    }
+    try {
+      myWorkers.execute(new Runnable() {
+          public void run() {
+            try {
+              connect(client, greets);
+            } finally {
+              myAdmission.handshakeDone();
+            }
+          }
+        });
+    } catch(RejectedExecutionException e) {
+      // the queue is full, or we're draining:
+      myAdmission.handshakeDone();
+      myRejected.incrementAndGet();
+      try {
+        client.close();
+      } catch(IOException ie) {
+        // nothing more can be done.
+      }
+    }
+  }
+
+  /**
+   * Finish the handshakes under way and take no more, 
+   * when the server is drained.
+   * @return false if they didn't finish in time.
+   */
+  boolean shutdown(long timeout) throws InterruptedException {
+    myWorkers.shutdown();
+    return(myWorkers.awaitTermination(timeout, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Complete the handshake and seat the player in the lobby.
+   * This runs on a worker thread.
+   * @param greets whether the client must begin with a flag.
+   */
+  void connect(Socket client, boolean greets) {
+    Deadline deadline = new Deadline(client);
+    ServerGame.TIMERS.schedule(deadline, myTimeout);
+    try {
+      if(client instanceof SSLSocket) {
+        handshake((SSLSocket)client);
+      }
+      PlayerConnection player = new PlayerConnection(client);
+      byte[] data = new byte[4];
+      int wait = greets ? myTimeout : myProbeTimeout;
+      int hello = probe(player, data, wait);
+      if(hello == ServerGame.PLAYER_FLAG) {
+        identify(player, data);
+        hello = probe(player, data, wait);
+      }
+      if(hello == ServerGame.VERSION_FLAG) {
+        negotiate(player, data);
+        hello = probe(player, data, wait);
+      }
+      if(greets && (hello == 0)) {
+        throw(new IOException("no hello on the hello port"));
+      }
+      if(hello == ServerGame.RATINGS_FLAG) {
+        ratings(player, data);
+        return;
+      }
+      player.startQueue();
+      if(hello == ServerGame.RESUME_FLAG) {
+        resume(player, data, deadline);
+        return;
+      }
+      if(hello == Broadcast.WATCH_FLAG) {
+        watch(player, deadline);
+        return;
+      }
+      if(hello == ServerGame.CLUSTER_FLAG) {
+        cluster(player, data, deadline);
+        return;
+      }
+      player.setResumable(hello == ServerGame.HELLO_FLAG);
+      player.setWantsBot((hello == ServerGame.HELLO_FLAG) 
+                         && (data[1] == ServerGame.BOT_OPPONENT));
+      if(! myAdmission.hasRoom(myLobby.getDepth())) {
+        Log.debug("HandshakeStage.connect-->no room for another table");
+        player.drop();
+        return;
+      }
+      // test the communications by sending an initial
+      // set of four bytes:
+      data[0] = ServerGame.START_GAME_FLAG;
+      player.write(data);
+      deadline.stop();
+      myLobby.arrive(player);
+    } catch(Exception e) {
+      myFailures.incrementAndGet();
+      Log.info("HandshakeStage.connect-->dropped client:", e.getMessage());
+      try {
+        client.close();
+      } catch(IOException ie) {
+        // nothing more can be done.
+      }
+    } finally {
+      ServerGame.TIMERS.cancel(deadline);
+    }
+  }
+
+  /**
+   * This class closes the socket of a client that is 
+   * taking too long over the handshake.  Each read has a 
+   * timeout too, but a client that sends a byte at a time 
+   * could go on for ever without one.
+   */
+  static class Deadline extends TimerWheel.Timer {
+
+    /**
+     * The client's socket.
+     */
+    private Socket mySocket;
+
+    /**
+     * Constructor sets the socket.
+     */
+    Deadline(Socket socket) {
+      mySocket = socket;
+    }
+
+    /**
+     * Called on the timer thread: time is up.
+     */
+    protected void expire() {
+      try {
+        mySocket.close();
+      } catch(IOException e) {
+        // nothing more can be done.
+      }
+    }
+
+    /**
+     * Call off the deadline before the socket is handed 
+     * on to a game, a spectator's broadcast or a back end.
+     * @throws IOException if it has already closed the socket.
+     */
+    void stop() throws IOException {
+      if(! ServerGame.TIMERS.cancel(this)) {
+        throw(new IOException("the handshake timed out"));
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Make the factory for the worker threads: daemons
+   * named with the prefix and a number.  A static method
+   * makes it, so it has no outer instance for the
+   * constructor to leak.
+   */
+  private static ThreadFactory daemonThreads(final String prefix) {
+    return(new ThreadFactory() {
+        private int myCount;
+        public synchronized Thread newThread(Runnable r) {
+          Thread retObj = new Thread(r, prefix + (myCount++));
+          retObj.setDaemon(true);
+          return(retObj);
+        }
+      });
+  }
+
+  /**
+   * See whether the client starts by sending the hello, 
+   * resume or watch flag.  Anything else is pushed back for the 
+   * game to read.
+   * @param wait how long to wait for the flag, in 
+   *        milliseconds, or zero not to look.
+   * @return the flag, or zero for an older client.
+   */
+  private int probe(PlayerConnection player, byte[] data, int wait) 
+      throws IOException {
+    if(wait <= 0) {
+      return(0);
+    }
+    Socket socket = player.getSocket();
+    PushbackInputStream input = (PushbackInputStream)player.getInput();
+    int total = 0;
+    socket.setSoTimeout(wait);
+    try {
+      while(total < 4) {
+        int numRead = input.read(data, total, 4 - total);
+        if(numRead < 0) {
+          break;
+        }
+        total += numRead;
+      }
+    } catch(SocketTimeoutException e) {
+      // an older client, which waits for us.
+    } finally {
+      socket.setSoTimeout(0);
+    }
+    if((total == 4) && ((data[0] == ServerGame.HELLO_FLAG)
+                        || (data[0] == ServerGame.RESUME_FLAG)
+                        || (data[0] == ServerGame.VERSION_FLAG)
+                        || (data[0] == Broadcast.WATCH_FLAG)
+                        || (data[0] == ServerGame.CLUSTER_FLAG)
+                        || (data[0] == ServerGame.PLAYER_FLAG)
+                        || (data[0] == ServerGame.RATINGS_FLAG))) {
+      return(data[0]);
+    }
+    input.unread(data, 0, total);
+    return(0);
+  }
+
+  /**
+   * Answer a client that asked for a newer protocol with 
+   * the version we will speak (the lower of the one it 
+   * asked for and ours), and switch to it.
+   */
+  private void negotiate(PlayerConnection player, byte[] data) 
+      throws IOException {
+    int version = Math.min(data[1], FrameCodec.VERSION);
+    data[1] = (byte)Math.max(version, 1);
+    player.write(data);
+    if(version >= 2) {
+      player.useFrames();
+      myFramed.incrementAndGet();
+    }
+  }
+
+  /**
+   * Read the player's id and tag, which follow the player 
+   * flag, and answer with the id and tag he is to use 
+   * (see ServerGame.PLAYER_FLAG): a new one if he sent 
+   * zeros.  His games are only rated under an id that 
+   * goes with its tag.
+   * @throws IOException if the tag is wrong.
+   */
+  private void identify(PlayerConnection player, byte[] data) 
+      throws IOException {
+    DataInputStream input = new DataInputStream(player.getInput());
+    player.getSocket().setSoTimeout(myTimeout);
+    long id = input.readLong();
+    long tag = input.readLong();
+    player.getSocket().setSoTimeout(0);
+    RatingService ratings = ServerGame.myRatings;
+    if(ratings == null) {
+      id = 0;
+      tag = 0;
+    } else if(id == 0) {
+      id = ratings.newPlayer();
+      tag = ratings.sign(id);
+    } else if(! ratings.verify(id, tag)) {
+      throw(new IOException("player " + id + " sent the wrong tag"));
+    }
+    player.setPlayerId(id);
+    byte[] answer = new byte[20];
+    System.arraycopy(data, 0, answer, 0, 4);
+    for(int i = 0; i < 8; i++) {
+      answer[4 + i] = (byte)(id >> (56 - 8 * i));
+      answer[12 + i] = (byte)(tag >> (56 - 8 * i));
+    }
+    player.write(answer);
+  }
+
+  /**
+   * Answer a question about the ratings (see 
+   * ServerGame.RATINGS_FLAG) and close the connection.  
+   * The answer is written straight to the socket, since 
+   * it isn't made of four-byte frames.
+   */
+  private void ratings(PlayerConnection player, byte[] data) 
+      throws IOException {
+    DataInputStream input = new DataInputStream(player.getInput());
+    player.getSocket().setSoTimeout(myTimeout);
+    long id = input.readLong();
+    int first = Math.max(input.readInt(), 1);
+    int count = Math.max(Math.min(input.readInt(), MAX_PLACES), 0);
+    RatingService ratings = ServerGame.myRatings;
+    long[] ids = new long[count];
+    int[] values = new int[count];
+    int rank = 0;
+    int rating = 0;
+    if(ratings != null) {
+      rank = ratings.getRank(id);
+      rating = ratings.getRating(id);
+      count = ratings.list(first, ids, values);
+    } else {
+      count = 0;
+    }
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+        player.getSocket().getOutputStream()));
+    output.write(data, 0, 4);
+    output.writeInt(rank);
+    output.writeInt(rating);
+    output.writeInt(count);
+    for(int i = 0; i < count; i++) {
+      output.writeLong(ids[i]);
+      output.writeInt(values[i]);
+    }
+    output.flush();
+    player.getSocket().close();
+  }
+
+  /**
+   * Read the rest of a resume request (the session token 
+   * and the number of frames the client received) and 
+   * give the client its seat back, or tell it the game 
+   * is over if that isn't possible.
+   */
+  private void resume(PlayerConnection player, byte[] data, 
+                      Deadline deadline) throws IOException {
+    DataInputStream input = new DataInputStream(player.getInput());
+    player.getSocket().setSoTimeout(myTimeout);
+    long token = input.readLong();
+    long received = input.readInt() & 0xffffffffL;
+    player.getSocket().setSoTimeout(0);
+    deadline.stop();
+    Seat seat = Seat.find(token);
+    if((seat == null) && (ServerGame.myHandoff != null)) {
+      // it may be a game the last server handed over:
+      seat = ServerGame.myHandoff.adopt(token);
+    }
+    if((seat != null) && seat.resume(player, received)) {
+      myResumes.incrementAndGet();
+    } else {
+      myFailedResumes.incrementAndGet();
+      Log.info("HandshakeStage.resume-->no game to resume");
+      player.drop();
+    }
+  }
+
+  /**
+   * Read the number of the table a spectator wants to 
+   * watch and add him to its broadcast, or tell him the 
+   * game is over if there is no such game.
+   */
+  private void watch(PlayerConnection player, Deadline deadline) 
+      throws IOException {
+    DataInputStream input = new DataInputStream(player.getInput());
+    player.getSocket().setSoTimeout(myTimeout);
+    int table = input.readInt();
+    player.getSocket().setSoTimeout(0);
+    deadline.stop();
+    Broadcast broadcast = Broadcast.find(table);
+    if((broadcast == null) && (myFront != null)) {
+      // the table is at one of the back ends:
+      myFront.watch(player, table);
+    } else if(broadcast == null) {
+      Log.info("HandshakeStage.watch-->no table {} to watch", table);
+      player.drop();
+    } else {
+      broadcast.watch(player);
+    }
+  }
+
+  /**
+   * Read the rest of the header a cluster's front end 
+   * sends when it seats a player here (the table number 
+   * and the game so far), and hand the connection to 
+   * the ClusterBackend to be paired with the other 
+   * player's.  It isn't sent the start game flag: the 
+   * front end has done that.
+   */
+  private void cluster(PlayerConnection player, byte[] data, 
+                       Deadline deadline) throws IOException {
+    if(myBackend == null) {
+      throw(new IOException("not a cluster back end"));
+    }
+    DataInputStream input = new DataInputStream(player.getInput());
+    player.getSocket().setSoTimeout(myTimeout);
+    int table = input.readInt();
+    int length = input.readInt();
+    byte[] history = null;
+    if(length >= 0) {
+      history = new byte[length];
+      input.readFully(history);
+    }
+    player.getSocket().setSoTimeout(0);
+    deadline.stop();
+    myBackend.arrive(player, data[1], table, history);
+  }
+
+  /**
+   * Run the SSL handshake with a time limit.  A handshake 
+   * that ends with a session that an earlier handshake 
+   * (one that was over before this one began) created 
+   * has resumed that session from the cache.  Handshakes 
+   * that overlap can't resume each other's sessions, so 
+   * two sessions made in the same millisecond for the 
+   * same address aren't mistaken for one.
+   */
+  private void handshake(SSLSocket client) throws IOException {
+    long start = System.nanoTime();
+    client.setSoTimeout(myTimeout);
+    client.startHandshake();
+    client.setSoTimeout(0);
+    long end = System.nanoTime();
+    long micros = (end - start) / 1000;
+    String session = client.getSession().getCreationTime() + " "
+      + client.getInetAddress().getHostAddress();
+    boolean resumed;
+    synchronized(mySessions) {
+      Long created = mySessions.get(session);
+      resumed = (created != null) && (created.longValue() < start);
+      if(! resumed) {
+        mySessions.put(session, Long.valueOf(end));
+      }
+    }
+    if(resumed) {
+      myResumedHistogram.record(micros);
+    } else {
+      myFullHistogram.record(micros);
+    }
+  }
+
+}
@@ -0,0 +1,169 @@
+package net.frog_parrot.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts how often values in each range
+ * were recorded so that percentiles can be read off
+ * later.  The ranges grow with the size of the value
+ * (sixteen ranges per power of two) so every value is
+ * counted with about six percent precision, in the same
+ * spirit as an HDR histogram.  Recording is lock-free
+ * and allocates nothing, so it is safe to call from
+ * any number of threads.
+ *
+ * @author Carol Hamer
+ */
+public class Histogram {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The number of ranges per power of two, as a number of bits.
+   */
+  static final int SUB_BITS = 4;
+
+  /**
+   * The number of ranges per power of two.
+   */
+  static final int SUB_COUNT = 1 << SUB_BITS;
+
+  /**
+   * Enough ranges to count any positive long.
+   */
+  static final int BUCKET_COUNT = SUB_COUNT + (64 - SUB_BITS) * SUB_COUNT;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * A name for reports, including the unit.
+   */
+  private String myName;
+
+  /**
+   * The number of values recorded in each range.
+   */
+  private AtomicLongArray myCounts = new AtomicLongArray(BUCKET_COUNT);
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets the name used in reports.
+   */
+  public Histogram(String name) {
+    myName = name;
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Count one value.  Negative values are counted as zero.
+   */
+  public void record(long value) {
+    myCounts.incrementAndGet(bucketOf(Math.max(value, 0)));
+  }
+
+  /**
+   * get the total number of values recorded.
+   */
+  public long getCount() {
+    long retVal = 0;
+    for(int i = 0; i < BUCKET_COUNT; i++) {
+      retVal += myCounts.get(i);
+    }
+    return(retVal);
+  }
+
+  /**
+   * get the value below which the given percentage of
+   * the recorded values fall (to within the precision
+   * of the ranges).
+   */
+  public long getPercentile(double percent) {
+    long[] counts = snapshot();
+    long total = 0;
+    for(int i = 0; i < counts.length; i++) {
+      total += counts[i];
+    }
+    if(total == 0) {
+      return(0);
+    }
+    long target = (long)Math.ceil(total * percent / 100.0);
+    if(target < 1) {
+      target = 1;
+    }
+    long seen = 0;
+    for(int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if(seen >= target) {
+        return(highestValueIn(i));
+      }
+    }
+    return(highestValueIn(counts.length - 1));
+  }
+
+  /**
+   * get the name given in the constructor.
+   */
+  public String getName() {
+    return(myName);
+  }
+
+  /**
+   * A one-line summary for the log.
+   */
+  public String toString() {
+    return(myName + ": count=" + getCount()
+           + " p50=" + getPercentile(50)
+           + " p99=" + getPercentile(99)
+           + " p99.9=" + getPercentile(99.9)
+           + " max=" + getPercentile(100));
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Copy the counts so that a percentile is computed
+   * from one consistent set of numbers.
+   */
+  private long[] snapshot() {
+    long[] retArray = new long[BUCKET_COUNT];
+    for(int i = 0; i < BUCKET_COUNT; i++) {
+      retArray[i] = myCounts.get(i);
+    }
+    return(retArray);
+  }
+
+  /**
+   * Find the range that a value belongs in.  Small values
+   * get a range each; larger ones are placed by their
+   * highest bit and the SUB_BITS bits that follow it.
+   */
+  static int bucketOf(long value) {
+    if(value < SUB_COUNT) {
+      return((int)value);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BITS;
+    int mantissa = (int)(value >>> shift) & (SUB_COUNT - 1);
+    return(SUB_COUNT + shift * SUB_COUNT + mantissa);
+  }
+
+  /**
+   * The largest value that is counted in the given range.
+   */
+  static long highestValueIn(int bucket) {
+    if(bucket < SUB_COUNT) {
+      return(bucket);
+    }
+    int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+    long mantissa = (bucket - SUB_COUNT) % SUB_COUNT;
+    return(((SUB_COUNT + mantissa + 1) << shift) - 1);
+  }
+
+}
@@ -0,0 +1,353 @@
+package net.frog_parrot.server;
+
+/**
+ * This class keeps the rated players in order, best
+ * first, in a skip list whose links each know how many
+ * places they skip.  So a player's rank, like finding a
+ * player, takes O(log n) steps, and so does finding the
+ * player at a given rank; the players after him are
+ * then one step each.  Players are found by id in an
+ * open-addressing table, so a million players cost two
+ * arrays and a million small nodes.
+ * <p>
+ * Players are ordered by rating, and by id among players
+ * with the same rating.  A player's node is unlinked and
+ * linked in again when his rating changes, so an update
+ * allocates nothing.  This class isn't thread-safe: see
+ * RatingService for the locking.
+ *
+ * @author Carol Hamer
+ */
+class Leaderboard {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The most levels of links.  With a quarter of the
+   * nodes going up each level, this is plenty for any
+   * number of players that fits in memory.
+   */
+  static final int MAX_LEVEL = 16;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The node before the best player, with links on every
+   * level.
+   */
+  private Node myHead = new Node(0, 0, MAX_LEVEL);
+
+  /**
+   * The number of players.
+   */
+  private int mySize;
+
+  /**
+   * The players' nodes by id, with linear probing.  Ids
+   * are never zero, so zero marks a free slot.
+   */
+  private long[] myIds = new long[1024];
+  private Node[] myNodes = new Node[1024];
+
+  /**
+   * The state of the random number generator that picks
+   * each node's number of levels.
+   */
+  private long mySeed = 0x2545f4914f6cdd1dL;
+
+  /**
+   * The nodes before the place being changed on each
+   * level, and their ranks.  Used by every change, so
+   * they are made once.
+   */
+  private Node[] myUpdate = new Node[MAX_LEVEL];
+  private int[] myUpdateRanks = new int[MAX_LEVEL];
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets up the empty list.
+   */
+  Leaderboard() {
+    for(int i = 0; i < MAX_LEVEL; i++) {
+      // the end of the list is rank mySize + 1:
+      myHead.myWidths[i] = 1;
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          get data
+
+  /**
+   * get the number of players.
+   */
+  int size() {
+    return(mySize);
+  }
+
+  /**
+   * Find a player.
+   * @return null if he has no rating.
+   */
+  Node find(long id) {
+    int mask = myIds.length - 1;
+    for(int i = hash(id) & mask; myIds[i] != 0; i = (i + 1) & mask) {
+      if(myIds[i] == id) {
+        return(myNodes[i]);
+      }
+    }
+    return(null);
+  }
+
+  /**
+   * get a player's rank: 1 for the best.
+   * @return 0 if he has no rating.
+   */
+  int rank(long id) {
+    Node node = find(id);
+    if(node == null) {
+      return(0);
+    }
+    return(findBefore(node.myRating, node.myId) + 1);
+  }
+
+  /**
+   * Copy part of the leaderboard.
+   * @param first the rank to start at (1 for the best).
+   * @param ids the players' ids are written here.
+   * @param ratings and their ratings here.
+   * @return the number of players copied, which is less
+   *         than the length of the arrays at the end of
+   *         the list.
+   */
+  int list(int first, long[] ids, int[] ratings) {
+    Node node = myHead;
+    int rank = 0;
+    for(int i = MAX_LEVEL - 1; i >= 0; i--) {
+      while((node.myNext[i] != null) && (rank + node.myWidths[i] < first)) {
+        rank += node.myWidths[i];
+        node = node.myNext[i];
+      }
+    }
+    int retObj = 0;
+    for(node = node.myNext[0]; (node != null) && (retObj < ids.length);
+        node = node.myNext[0]) {
+      ids[retObj] = node.myId;
+      ratings[retObj] = node.myRating;
+      retObj++;
+    }
+    return(retObj);
+  }
+
+  /**
+   * get the size of the table of ids.  It only changes
+   * (growing) when a new player is added.
+   */
+  int getSlots() {
+    return(myIds.length);
+  }
+
+  /**
+   * Copy the players in some slots of the table of ids,
+   * in no particular order.
+   * @param slot the first slot to look at.
+   * @param ids the players' ids are written here.
+   * @param ratings their ratings here.
+   * @param games and their numbers of games here.
+   * @return the number of players copied (the arrays 
+   *         are filled unless the end of the table comes 
+   *         first), and the slot to go on from in the 
+   *         first element of next.
+   */
+  int copy(int slot, long[] ids, int[] ratings, int[] games, int[] next) {
+    int retObj = 0;
+    for(; (slot < myIds.length) && (retObj < ids.length); slot++) {
+      if(myIds[slot] != 0) {
+        Node node = myNodes[slot];
+        ids[retObj] = node.myId;
+        ratings[retObj] = node.myRating;
+        games[retObj] = node.myGames;
+        retObj++;
+      }
+    }
+    next[0] = slot;
+    return(retObj);
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Set a player's rating and number of games, adding him
+   * if he is new.
+   */
+  void set(long id, int rating, int games) {
+    Node node = find(id);
+    if(node == null) {
+      node = new Node(id, rating, randomLevel());
+      put(node);
+    } else {
+      unlink(node);
+      node.myRating = rating;
+    }
+    node.myGames = games;
+    link(node);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Find the last node on each level that comes before
+   * the given rating and id, filling in myUpdate and
+   * myUpdateRanks.
+   * @return the rank of the last one (0 for the head).
+   */
+  private int findBefore(int rating, long id) {
+    Node node = myHead;
+    int rank = 0;
+    for(int i = MAX_LEVEL - 1; i >= 0; i--) {
+      Node next = node.myNext[i];
+      while((next != null) && ((next.myRating > rating)
+          || ((next.myRating == rating) && (next.myId < id)))) {
+        rank += node.myWidths[i];
+        node = next;
+        next = node.myNext[i];
+      }
+      myUpdate[i] = node;
+      myUpdateRanks[i] = rank;
+    }
+    return(rank);
+  }
+
+  /**
+   * Put a node in its place.
+   */
+  private void link(Node node) {
+    int rank = findBefore(node.myRating, node.myId) + 1;
+    int levels = node.myNext.length;
+    for(int i = 0; i < MAX_LEVEL; i++) {
+      Node before = myUpdate[i];
+      if(i < levels) {
+        // the link from before is split in two:
+        int end = myUpdateRanks[i] + before.myWidths[i] + 1;
+        node.myNext[i] = before.myNext[i];
+        node.myWidths[i] = end - rank;
+        before.myNext[i] = node;
+        before.myWidths[i] = rank - myUpdateRanks[i];
+      } else {
+        before.myWidths[i]++;
+      }
+    }
+    mySize++;
+  }
+
+  /**
+   * Take a node out of the list (but not out of the
+   * table of ids).
+   */
+  private void unlink(Node node) {
+    findBefore(node.myRating, node.myId);
+    for(int i = 0; i < MAX_LEVEL; i++) {
+      Node before = myUpdate[i];
+      if(before.myNext[i] == node) {
+        before.myWidths[i] += node.myWidths[i] - 1;
+        before.myNext[i] = node.myNext[i];
+      } else {
+        before.myWidths[i]--;
+      }
+    }
+    mySize--;
+  }
+
+  /**
+   * Add a node to the table of ids, making the table
+   * bigger if it is half full.
+   */
+  private void put(Node node) {
+    if(2 * (mySize + 1) > myIds.length) {
+      long[] ids = myIds;
+      Node[] nodes = myNodes;
+      myIds = new long[2 * ids.length];
+      myNodes = new Node[2 * ids.length];
+      for(int i = 0; i < ids.length; i++) {
+        if(ids[i] != 0) {
+          insert(nodes[i]);
+        }
+      }
+    }
+    insert(node);
+  }
+
+  /**
+   * Put a node in the first free slot of the table.
+   */
+  private void insert(Node node) {
+    int mask = myIds.length - 1;
+    int i = hash(node.myId) & mask;
+    while(myIds[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    myIds[i] = node.myId;
+    myNodes[i] = node;
+  }
+
+  /**
+   * Spread the bits of an id.
+   */
+  private static int hash(long id) {
+    id *= 0x9e3779b97f4a7c15L;
+    return((int)(id ^ (id >>> 32)));
+  }
+
+  /**
+   * Pick the number of levels for a new node: one, and
+   * each level after that with a chance of one in four.
+   */
+  private int randomLevel() {
+    mySeed ^= mySeed << 13;
+    mySeed ^= mySeed >>> 7;
+    mySeed ^= mySeed << 17;
+    int retObj = 1 + Long.numberOfTrailingZeros(mySeed | (1L << 62)) / 2;
+    return(Math.min(retObj, MAX_LEVEL));
+  }
+
+  /**
+   * This class is a player's place in the list.
+   */
+  static class Node {
+
+    /**
+     * The player's id.
+     */
+    long myId;
+
+    /**
+     * The player's rating and number of rated games.
+     */
+    int myRating;
+    int myGames;
+
+    /**
+     * The next node on each level, and how many places
+     * on it is.  (The end of the list is one place after
+     * the last player.)
+     */
+    Node[] myNext;
+    int[] myWidths;
+
+    /**
+     * Constructor sets the player and the levels.
+     */
+    Node(long id, int rating, int levels) {
+      myId = id;
+      myRating = rating;
+      myNext = new Node[levels];
+      myWidths = new int[levels];
+    }
+  }
+
+}
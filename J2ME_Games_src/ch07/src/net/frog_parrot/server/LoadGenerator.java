@@ -0,0 +1,1328 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.net.SocketFactory;
+import javax.net.ssl.*;
+
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class measures how much load the checkers server
+ * can take.  It starts a SocketListener in this JVM and
+ * plays random (legal) games of checkers against it from
+ * simulated clients that speak the same four-byte protocol
+ * as Communicator, all on localhost.  When a game ends,
+ * the table's two clients reconnect and start another
+ * until the time is up.  It reports the turns relayed per
+ * second, the relay latency of each frame, the time to
+ * set up a connection, and the memory used per table.
+ * <p>
+ * Usage: java net.frog_parrot.server.LoadGenerator
+ *        [-tables N] [-seconds S] [-think ms] [-tls]
+ *        [-maxturns N] [-port P] [-helloport P] [-coalesce ms]
+ *        [-novalidate]
+ *        [-drop percent] [-spectators N] [-slowspectators N]
+ *        [-store dir] [-jmx] [-metrics file] [-v2 percent]
+ *        [-bots N] [-botthreads N] [-botsearchthreads N]
+ *        [-botmovetime ms] [-tablebase dir]
+ *        [-outqueue bytes] [-overflow policy] [-writethrough]
+ *        [-cluster N] [-killbackend S] [-ratings dir] [-players N]
+ *        [-restart S] [-draintime S] [-loglevel level]
+ * <p>
+ * The clients all begin with a flag, so they connect to
+ * the hello port (see SocketListener).
+ * The clients ask for sessions, so with -drop each client
+ * closes its connection after that percentage of the
+ * frames it sends, then reconnects and resumes the game.
+ * Spectators watch the most recent game, and start
+ * watching the newest one again when it ends; slow
+ * spectators never read, to show that they are dropped
+ * without holding anyone up.  With -v2 that percentage
+ * of the clients and spectators ask for version 2 of the
+ * protocol (see FrameCodec), so both kinds of player
+ * meet at the same tables.  With -bots there are that
+ * many more tables where a single client asks to play
+ * the computer (see Bot), to show what the bots cost
+ * the human tables.
+ * With -tablebase the bots look up positions with few
+ * pieces in the tablebase in the given directory (see
+ * Tablebase).
+ * <p>
+ * With -cluster the server is the front end of a cluster
+ * (see ClusterFront) with N back ends, each a separate
+ * JVM started here on the following ports, and with
+ * -killbackend the first back end is killed after S
+ * seconds, so its tables move to the others.
+ * <p>
+ * With -ratings the games are rated (see RatingService),
+ * and each client says it is one of the given number of
+ * players (1000 by default), picked at random.
+ * <p>
+ * With -restart the server is restarted after S seconds
+ * the way it is in production: a new server is started
+ * as a separate JVM on the same port, sharing a handoff
+ * directory (see Handoff), and once it is listening this
+ * one is drained (see SocketListener.drain), giving the
+ * games -draintime seconds (30 by default) to finish
+ * before they are handed over.  The report says how
+ * many clients couldn't resume their games and how many
+ * turns those games had, and the longest any client
+ * waited for a turn.
+ * <p>
+ * With -tls a throwaway keystore is made
+ * with keytool.  Each table uses three threads and four
+ * sockets, so the thread and open file limits matter
+ * for large runs.
+ *
+ * @author Carol Hamer
+ */
+public class LoadGenerator {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * Held while a table connects its two clients, so that
+   * they are paired with each other.
+   */
+  static final Object SETUP_LOCK = new Object();
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The server under test.
+   */
+  private SocketListener myListener;
+
+  /**
+   * Whether to connect over SSL.
+   */
+  private boolean mySecure;
+
+  /**
+   * Makes the client sockets.
+   */
+  private SocketFactory myFactory;
+
+  /**
+   * When the run ends (System.currentTimeMillis()).
+   */
+  private long myDeadline;
+
+  /**
+   * How long a client thinks before each move, in milliseconds.
+   */
+  private int myThinkTime;
+
+  /**
+   * After this many turns a client gives up the game.
+   */
+  private int myMaxTurns;
+
+  /**
+   * The time from sending a frame to its arrival, in microseconds.
+   */
+  private Histogram myLatency = new Histogram("relay latency (us)");
+
+  /**
+   * The time from connecting to receiving the start flag,
+   * in microseconds.
+   */
+  private Histogram mySetup = new Histogram("connection setup (us)");
+
+  /**
+   * The number of turns relayed.
+   */
+  private AtomicLong myTurns = new AtomicLong();
+
+  /**
+   * The number of games finished.
+   */
+  private AtomicLong myGames = new AtomicLong();
+
+  /**
+   * The number of tables that failed to connect or
+   * lost their connection unexpectedly.
+   */
+  private AtomicLong myErrors = new AtomicLong();
+
+  /**
+   * The percentage of sent frames after which a client
+   * drops its connection.
+   */
+  private double myDropRate;
+
+  /**
+   * The number of times a client resumed its game.
+   */
+  private AtomicLong myResumes = new AtomicLong();
+
+  /**
+   * The number of turns and snapshots the spectators saw.
+   */
+  private AtomicLong myWatchedTurns = new AtomicLong();
+  private AtomicLong mySnapshots = new AtomicLong();
+
+  /**
+   * The percentage of clients that speak version 2 of
+   * the protocol.
+   */
+  private double myFramedRate;
+
+  /**
+   * The number of tables where a client plays a bot.
+   */
+  private int myBotTables;
+
+  /**
+   * The number of players the clients say they are, or 
+   * zero if they don't say.
+   */
+  private int myPlayers;
+
+  /**
+   * Each player's id and tag, once the server has given 
+   * him them (see ServerGame.PLAYER_FLAG).
+   */
+  private long[][] myCredentials;
+
+  /**
+   * The back end processes, if the server is a cluster.
+   */
+  private Process[] myBackends = new Process[0];
+
+  /**
+   * The server started by a restart, or null.
+   */
+  private Process myNextServer;
+
+  /**
+   * The number of clients that couldn't resume their 
+   * games, and the number of turns those games had had.
+   */
+  private AtomicLong myFailedResumes = new AtomicLong();
+  private AtomicLong myLostTurns = new AtomicLong();
+
+  /**
+   * The longest any client waited for the opponent's 
+   * turn, in milliseconds.
+   */
+  private AtomicLong myLongestWait = new AtomicLong();
+
+  /**
+   * How long the drain took in a restart, in 
+   * milliseconds, or -1 if there wasn't one.
+   */
+  private volatile long myDrainMillis = -1;
+
+  //-------------------------------------------------------------
+  //          main
+
+  /**
+   * Parse the arguments, run the load and print the report.
+   */
+  public static void main(String[] args) throws Exception {
+    int tables = 100;
+    int seconds = 30;
+    int thinkTime = 0;
+    int maxTurns = 200;
+    boolean secure = false;
+    double dropRate = 0;
+    int spectators = 0;
+    int slowSpectators = 0;
+    double framedRate = 0;
+    int bots = 0;
+    int cluster = 0;
+    int killAfter = 0;
+    int players = 1000;
+    int restartAfter = 0;
+    // a line for every game would drown out the report:
+    Log.setLevel(Log.WARN);
+    SocketListener.myPortNum = 18007;
+    SocketListener.myHelloPort = 19007;
+    for(int i = 0; i < args.length; i++) {
+      if(args[i].equals("-tables")) {
+        tables = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-seconds")) {
+        seconds = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-think")) {
+        thinkTime = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-maxturns")) {
+        maxTurns = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-tls")) {
+        secure = true;
+      } else if(args[i].equals("-port")) {
+        SocketListener.myPortNum = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-helloport")) {
+        SocketListener.myHelloPort = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-loglevel")) {
+        Log.setLevel(Log.parseLevel(args[++i]));
+      } else if(args[i].equals("-novalidate")) {
+        ServerGame.myValidate = false;
+      } else if(args[i].equals("-drop")) {
+        dropRate = Double.parseDouble(args[++i]);
+      } else if(args[i].equals("-spectators")) {
+        spectators = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-slowspectators")) {
+        slowSpectators = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-bots")) {
+        bots = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-botthreads")) {
+        Bot.myThreads = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-botsearchthreads")) {
+        Bot.mySearchThreads = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-botmovetime")) {
+        Bot.myMoveTime = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-tablebase")) {
+        Bot.myTablebase = new Tablebase(args[++i]);
+      } else if(args[i].equals("-v2")) {
+        framedRate = Double.parseDouble(args[++i]);
+      } else if(args[i].equals("-jmx")) {
+        Metrics.startJmx();
+      } else if(args[i].equals("-metrics")) {
+        Metrics.startFile(args[++i], 1000);
+      } else if(args[i].equals("-store")) {
+        ServerGame.myStore = new GameStore(args[++i]);
+      } else if(args[i].equals("-outqueue")) {
+        OutboundQueue.myCapacity = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-writethrough")) {
+        OutboundQueue.myWriteThrough = true;
+      } else if(args[i].equals("-overflow")) {
+        OutboundQueue.parsePolicy(args[++i]);
+      } else if(args[i].equals("-watchtimeout")) {
+        Broadcast.myWriteTimeout = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-coalesce")) {
+        ServerGame.myCoalesceTimeout = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-cluster")) {
+        cluster = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-killbackend")) {
+        killAfter = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-ratings")) {
+        ServerGame.myRatings = new RatingService(args[++i]);
+      } else if(args[i].equals("-players")) {
+        players = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-restart")) {
+        restartAfter = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-draintime")) {
+        SocketListener.myDrainTime = Long.parseLong(args[++i]) * 1000;
+      } else {
+        System.out.println("LoadGenerator-->ignoring argument: " + args[i]);
+      }
+    }
+    File handoff = null;
+    if(restartAfter > 0) {
+      handoff = File.createTempFile("handoff", "");
+      handoff.delete();
+      ServerGame.myHandoff = new Handoff(handoff.getPath());
+    }
+    LoadGenerator generator 
+      = new LoadGenerator(secure, thinkTime, maxTurns, cluster);
+    generator.myDropRate = dropRate;
+    generator.myFramedRate = framedRate;
+    generator.myBotTables = bots;
+    if(ServerGame.myRatings != null) {
+      generator.myPlayers = players;
+      generator.myCredentials = new long[players][];
+    }
+    if(bots > 0) {
+      // only the clients who ask get a bot:
+      Lobby.myBotWait = 3600000;
+    }
+    if(killAfter > 0) {
+      generator.killBackend(killAfter);
+    }
+    if(restartAfter > 0) {
+      generator.restart(restartAfter, handoff);
+    }
+    try {
+      generator.run(tables, seconds, spectators, slowSpectators);
+    } finally {
+      generator.stopBackends();
+    }
+    System.exit(0);
+  }
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor starts the server.
+   */
+  LoadGenerator(boolean secure, int thinkTime, int maxTurns)
+      throws Exception {
+    this(secure, thinkTime, maxTurns, 0);
+  }
+
+  /**
+   * Constructor starts the server, as the front end of a
+   * cluster with the given number of back ends if that
+   * isn't zero.
+   */
+  LoadGenerator(boolean secure, int thinkTime, int maxTurns, int backends)
+      throws Exception {
+    mySecure = secure;
+    myThinkTime = thinkTime;
+    myMaxTurns = maxTurns;
+    if(secure) {
+      makeKeystore();
+      myFactory = trustingContext().getSocketFactory();
+    } else {
+      myFactory = SocketFactory.getDefault();
+    }
+    // with one accepting thread, the lobby sees the
+    // players in the order they connect:
+    myListener = new SocketListener(
+        new GameExecutor(GameExecutor.PLATFORM, 0), secure, 1, 0);
+    if(backends > 0) {
+      startBackends(backends);
+    }
+    Thread server = new Thread("Server") {
+        public void run() {
+          myListener.listen();
+        }
+      };
+    server.setDaemon(true);
+    server.start();
+    Thread.sleep(1000);
+    // wait for the back ends to register:
+    long limit = System.currentTimeMillis() + 20000;
+    while((backends > 0) 
+          && (myListener.getFront().getLiveBackends() < backends)
+          && (System.currentTimeMillis() < limit)) {
+      Thread.sleep(100);
+    }
+  }
+
+  /**
+   * Make the server a cluster's front end, and start the 
+   * back ends as separate JVMs with our class path, on 
+   * the ports after the front end's (and the hello ports 
+   * after its hello port).  The control channel is on the 
+   * port after theirs.
+   */
+  private void startBackends(int count) throws IOException {
+    int control = SocketListener.myPortNum + count + 1;
+    myListener.setFront(Integer.toString(control));
+    String java = System.getProperty("java.home") + File.separator + "bin"
+      + File.separator + "java";
+    myBackends = new Process[count];
+    for(int i = 0; i < count; i++) {
+      ProcessBuilder builder = new ProcessBuilder(java, "-cp", 
+          System.getProperty("java.class.path"), 
+          SocketListener.class.getName(), "-backend", "localhost:" + control, 
+          "-port", Integer.toString(SocketListener.myPortNum + 1 + i), 
+          "-helloport", Integer.toString(SocketListener.myHelloPort + 1 + i), 
+          "-coalesce", Integer.toString(ServerGame.myCoalesceTimeout), 
+          "-loglevel", "warn");
+      if(! ServerGame.myValidate) {
+        builder.command().add("-novalidate");
+      }
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+      myBackends[i] = builder.start();
+    }
+  }
+
+  /**
+   * Kill the first back end after the given number of 
+   * seconds.
+   */
+  void killBackend(final int seconds) {
+    Thread killer = new Thread("Killer") {
+        public void run() {
+          try {
+            Thread.sleep(seconds * 1000L);
+          } catch(InterruptedException e) {
+            return;
+          }
+          if(myBackends.length > 0) {
+            System.out.println("LoadGenerator-->killing back end 1");
+            myBackends[0].destroyForcibly();
+          }
+        }
+      };
+    killer.setDaemon(true);
+    killer.start();
+  }
+
+  /**
+   * Restart the server after the given number of seconds: 
+   * start the next server, wait until it is listening, 
+   * and drain this one.
+   * @param handoff the directory the servers share.
+   */
+  void restart(final int seconds, final File handoff) {
+    Thread restarter = new Thread("Restarter") {
+        public void run() {
+          try {
+            Thread.sleep(seconds * 1000L);
+            CountDownLatch listening = startNextServer(handoff);
+            if(! listening.await(20, TimeUnit.SECONDS)) {
+              System.out.println("LoadGenerator-->the next server didn't start");
+              return;
+            }
+            System.out.println("LoadGenerator-->draining the server");
+            long start = System.currentTimeMillis();
+            myListener.drain(SocketListener.myDrainTime);
+            myDrainMillis = System.currentTimeMillis() - start;
+          } catch(Exception e) {
+            Log.error("LoadGenerator.restart-->failed:", e);
+          }
+        }
+      };
+    restarter.setDaemon(true);
+    restarter.start();
+  }
+
+  /**
+   * Start the next server as a separate JVM with our 
+   * class path, on our port and with the same handoff 
+   * directory.  Its warnings and what it says about the 
+   * games it takes over are passed along.  A player left 
+   * waiting there (whose opponent was paired here just 
+   * before the drain) is sent away after five seconds.
+   * @return a latch released when it is listening.
+   */
+  private CountDownLatch startNextServer(File handoff) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin"
+      + File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", 
+        System.getProperty("java.class.path"), 
+        SocketListener.class.getName(), "-handoff", handoff.getPath(), 
+        "-port", Integer.toString(SocketListener.myPortNum), 
+        "-helloport", Integer.toString(SocketListener.myHelloPort), 
+        "-coalesce", Integer.toString(ServerGame.myCoalesceTimeout), 
+        "-acceptors", "1", "-maxwait", "5", "-loglevel", "info");
+    if(mySecure) {
+      builder.command().add("-keystore");
+      builder.command().add(SocketListener.myKeystore);
+      builder.command().add(SocketListener.myPassphrase);
+    } else {
+      builder.command().add("-plain");
+    }
+    if(! ServerGame.myValidate) {
+      builder.command().add("-novalidate");
+    }
+    builder.redirectErrorStream(true);
+    myNextServer = builder.start();
+    final BufferedReader output = new BufferedReader(
+        new InputStreamReader(myNextServer.getInputStream()));
+    final CountDownLatch retObj = new CountDownLatch(1);
+    Thread reader = new Thread("NextServer") {
+        public void run() {
+          try {
+            String line;
+            while((line = output.readLine()) != null) {
+              if(line.indexOf("listening on port") >= 0) {
+                retObj.countDown();
+              } else if((line.indexOf(" WARN ") >= 0) 
+                        || (line.indexOf(" ERROR ") >= 0)
+                        || (line.indexOf("Handoff.") >= 0)) {
+                System.out.println("next server: " + line);
+              }
+            }
+          } catch(IOException e) {
+            // it has stopped.
+          }
+        }
+      };
+    reader.setDaemon(true);
+    reader.start();
+    return(retObj);
+  }
+
+  /**
+   * Stop the back end processes, and the next server.
+   */
+  void stopBackends() {
+    for(int i = 0; i < myBackends.length; i++) {
+      myBackends[i].destroyForcibly();
+    }
+    if(myNextServer != null) {
+      myNextServer.destroyForcibly();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Run the tables (and the spectators) for the given
+   * number of seconds and print the results.
+   */
+  void run(int tables, int seconds, int spectators, int slowSpectators)
+      throws Exception {
+    long heapBefore = ExecutorBenchmark.usedHeap();
+    long start = System.currentTimeMillis();
+    myDeadline = start + seconds * 1000L;
+    Thread[] threads = new Thread[tables + myBotTables];
+    for(int i = 0; i < threads.length; i++) {
+      threads[i] = new SimTable(i, i >= tables);
+      threads[i].start();
+    }
+    Thread[] watchers = new Thread[spectators + slowSpectators];
+    for(int i = 0; i < watchers.length; i++) {
+      watchers[i] = new SimSpectator(i, i >= spectators);
+      watchers[i].start();
+    }
+    // wait until all the tables are playing before
+    // measuring the memory they use:
+    long heapPerTable = 0;
+    while(System.currentTimeMillis() < myDeadline) {
+      if(mySetup.getCount() >= 2L * tables) {
+        heapPerTable = (ExecutorBenchmark.usedHeap() - heapBefore) / tables;
+        break;
+      }
+      Thread.sleep(100);
+    }
+    for(int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+    for(int i = 0; i < watchers.length; i++) {
+      watchers[i].join();
+    }
+    double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+    System.out.println("tables: " + tables + (mySecure ? " (TLS)" : "")
+                       + ", seconds: " + elapsed + ", games: " + myGames
+                       + ", errors: " + myErrors + ", resumed: " + myResumes
+                       + ", version 2 connections: "
+                       + Metrics.snapshot().get("protocol.v2"));
+    System.out.println("turns/second: " + (long)(myTurns.get() / elapsed));
+    System.out.println(myLatency);
+    System.out.println(mySetup);
+    if(heapPerTable > 0) {
+      System.out.println("memory per table (server and clients, bytes): "
+                         + heapPerTable);
+    } else {
+      System.out.println("memory per table not measured: "
+                         + "the tables were still connecting");
+    }
+    System.out.println("server: " + RelayStats.summary());
+    Map<String, Long> metrics = Metrics.snapshot();
+    if(myBotTables > 0) {
+      System.out.println("bots: " + myBotTables + " tables, games: "
+                         + metrics.get("bot.games") + ", turns: "
+                         + metrics.get("bot.turns") + ", quick turns: "
+                         + metrics.get("bot.quick_turns")
+                         + ", turn time (ms) p50=" + metrics.get("bot.turn_ms.p50")
+                         + " p99=" + metrics.get("bot.turn_ms.p99")
+                         + ", depth p50=" + metrics.get("bot.depth.p50"));
+    }
+    System.out.println("outbound: overflows=" + metrics.get("outbound.overflows")
+                       + " dropped bytes=" + metrics.get("outbound.dropped_bytes")
+                       + " disconnects=" + metrics.get("outbound.disconnects")
+                       + " stuck=" + metrics.get("outbound.stuck")
+                       + ", depth p99=" + metrics.get("outbound.depth.p99")
+                       + " max=" + metrics.get("outbound.depth.max"));
+    if(myBackends.length > 0) {
+      System.out.println("front end " + myListener.getFront());
+    }
+    if(myDrainMillis >= 0) {
+      System.out.println("restart: drain took " + myDrainMillis 
+                         + " ms, tables handed over: " 
+                         + metrics.get("handoff.saved") + ", ended: " 
+                         + metrics.get("game_end.drained") 
+                         + ", clients that couldn't resume: " 
+                         + myFailedResumes + " (turns lost: " + myLostTurns
+                         + "), longest wait for a turn (ms): " 
+                         + myLongestWait);
+    }
+    if(ServerGame.myRatings != null) {
+      long[] ids = new long[3];
+      int[] ratings = new int[3];
+      int count = ServerGame.myRatings.list(1, ids, ratings);
+      StringBuffer top = new StringBuffer();
+      for(int i = 0; i < count; i++) {
+        top.append(" " + ids[i] + "=" + ratings[i]);
+      }
+      System.out.println(ServerGame.myRatings + ", top:" + top);
+      ServerGame.myRatings.close();
+    }
+    if(ServerGame.myStore != null) {
+      ServerGame.myStore.close();
+      System.out.println(ServerGame.myStore);
+    }
+    if(watchers.length > 0) {
+      System.out.println("spectators: " + spectators + " (+" + slowSpectators
+                         + " slow), turns seen: " + myWatchedTurns
+                         + ", snapshots: " + mySnapshots);
+      System.out.println("server " + Broadcast.summary());
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          simulated tables
+
+  /**
+   * This thread connects a pair of clients, lets them play
+   * a game against each other, and starts over until the
+   * time is up.
+   */
+  class SimTable extends Thread {
+
+    /**
+     * The times at which the frames that are on their way
+     * were sent, in order.  Only one client sends at a
+     * time, and the other reads them in the same order.
+     */
+    private AtomicLongArray mySendTimes = new AtomicLongArray(64);
+
+    /**
+     * The number of send times written.
+     */
+    private volatile long mySent;
+
+    /**
+     * The number of send times read.
+     */
+    private long myReceived;
+
+    /**
+     * Picks which clients speak version 2.
+     */
+    private Random myRandom = new Random();
+
+    /**
+     * Whether this table's one client plays a bot.
+     */
+    private boolean myBot;
+
+    /**
+     * Constructor names the thread.
+     */
+    SimTable(int number, boolean bot) {
+      super("SimTable-" + number);
+      myBot = bot;
+    }
+
+    /**
+     * Play games until the time is up.
+     */
+    public void run() {
+      while(System.currentTimeMillis() < myDeadline) {
+        SimClient[] clients = new SimClient[myBot ? 1 : 2];
+        try {
+          if(myBot) {
+            clients[0] = connect();
+            clients[0].start();
+            clients[0].join();
+            myGames.incrementAndGet();
+            continue;
+          }
+          synchronized(SETUP_LOCK) {
+            clients[0] = connect();
+            // wait until the first player is in the lobby
+            // so that the second one is paired with him:
+            // (after a restart the lobby is in the next 
+            // server, where we can't see it):
+            long limit = System.currentTimeMillis() + 5000;
+            while((! myListener.isDraining())
+                  && (myListener.getLobby().getDepth() < 1)
+                  && (System.currentTimeMillis() < limit)) {
+              Thread.yield();
+            }
+            clients[1] = connect();
+          }
+          clients[0].start();
+          clients[1].start();
+          clients[0].join();
+          clients[1].join();
+          myGames.incrementAndGet();
+        } catch(Exception e) {
+          myErrors.incrementAndGet();
+          Log.warn("SimTable.run-->", e);
+          for(int i = 0; i < clients.length; i++) {
+            if(clients[i] != null) {
+              clients[i].close();
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Open a connection, ask for a game and wait for the
+     * start flag.
+     */
+    private SimClient connect() throws IOException {
+      long start = System.nanoTime();
+      SimClient retObj = new SimClient(this,
+          myRandom.nextDouble() * 100 < myFramedRate);
+      try {
+        retObj.hello(myBot);
+      } catch(IOException e) {
+        retObj.close();
+        throw(e);
+      }
+      mySetup.record((System.nanoTime() - start) / 1000);
+      return(retObj);
+    }
+
+    /**
+     * Called by the sending client just before it sends a frame.
+     */
+    void sending() {
+      long sent = mySent;
+      mySendTimes.set((int)(sent % mySendTimes.length()), System.nanoTime());
+      mySent = sent + 1;
+    }
+
+    /**
+     * Called by the other client when the frame arrives.
+     */
+    void received() {
+      // a bot's turns aren't relayed from another client:
+      if((! myBot) && (myReceived < mySent)) {
+        long sentAt = mySendTimes.get((int)(myReceived % mySendTimes.length()));
+        myLatency.record((System.nanoTime() - sentAt) / 1000);
+        myReceived++;
+      }
+    }
+  }
+
+  /**
+   * This thread plays one side of a game the way
+   * Communicator does, picking a random legal move
+   * each turn.
+   */
+  class SimClient extends Thread {
+
+    /**
+     * The table this client plays at.
+     */
+    private SimTable myTable;
+
+    /**
+     * The connection to the server.
+     */
+    private Socket mySocket;
+    private InputStream myInput;
+    private OutputStream myOutput;
+
+    /**
+     * Whether this client speaks version 2.
+     */
+    private boolean myFramed;
+
+    /**
+     * The board, which checks the opponent's moves (the
+     * player to move is always the local player, so his
+     * frames need no turning).
+     */
+    private Position myBoard = new Position();
+
+    /**
+     * Picks the moves.
+     */
+    private Random myRandom = new Random();
+
+    /**
+     * The moves available, filled in by the board.
+     */
+    private int[] myMoves = new int[Position.MAX_MOVES];
+
+    /**
+     * The session token (and the frame it is sent in
+     * to resume), or null before the game begins.
+     */
+    private byte[] myResume;
+
+    /**
+     * The number of moves and end of turn flags received
+     * and sent, and the last ones sent.
+     */
+    private long myReceived;
+    private long mySent;
+    private byte[] mySentLog = new byte[Seat.LOG_FRAMES * 4];
+
+    /**
+     * The number of the player this client plays as 
+     * (counting from one), or zero if its games aren't 
+     * rated.
+     */
+    private int myPlayerNumber;
+
+    /**
+     * The number of the opponent's turns received this 
+     * game, and when the last one arrived.
+     */
+    private long myGameTurns;
+    private long myLastTurn;
+
+    /**
+     * Constructor opens the connection.
+     */
+    SimClient(SimTable table, boolean framed) throws IOException {
+      myTable = table;
+      myFramed = framed;
+      if(myPlayers > 0) {
+        myPlayerNumber = 1 + myRandom.nextInt(myPlayers);
+      }
+      open();
+    }
+
+    /**
+     * Ask for a game (against the computer, if bot is
+     * true) and wait for the start flag.
+     */
+    void hello(boolean bot) throws IOException {
+      byte[] frame = new byte[4];
+      frame[0] = ServerGame.HELLO_FLAG;
+      if(bot) {
+        frame[1] = ServerGame.BOT_OPPONENT;
+      }
+      myOutput.write(frame);
+      ExecutorBenchmark.readFully(myInput, frame);
+      if(frame[0] != ServerGame.START_GAME_FLAG) {
+        throw(new IOException("server-side error"));
+      }
+    }
+
+    /**
+     * Play the game.
+     */
+    public void run() {
+      try {
+        byte[] frame = new byte[4];
+        // either the start flag again (our turn) or the
+        // opponent's first move:
+        readFrame(frame);
+        if(frame[0] != ServerGame.START_GAME_FLAG) {
+          if(! readOpponentTurn(frame)) {
+            return;
+          }
+        }
+        myLastTurn = System.currentTimeMillis();
+        int turns = 0;
+        while(true) {
+          if((turns++ >= myMaxTurns)
+             || (System.currentTimeMillis() >= myDeadline)
+             || (! playTurn(frame))) {
+            // leave the game the way Communicator does:
+            myOutput.write(ServerGame.END_GAME_FLAG);
+            return;
+          }
+          readFrame(frame);
+          if(! readOpponentTurn(frame)) {
+            return;
+          }
+        }
+      } catch(IOException e) {
+        // the other client quit first and the server
+        // closed our connection, which is normal.
+      } finally {
+        close();
+      }
+    }
+
+    /**
+     * Make one or more (jumping) moves and end the turn.
+     * @return false if there is no legal move.
+     */
+    private boolean playTurn(byte[] frame) throws IOException {
+      int count = myBoard.getAllMoves(myMoves);
+      if(count == 0) {
+        return(false);
+      }
+      while(count > 0) {
+        think();
+        int move = myMoves[myRandom.nextInt(count)];
+        if(move == Position.END_TURN) {
+          // we'd rather stop jumping here:
+          break;
+        }
+        frame[0] = (byte)Position.getX(Position.getFrom(move));
+        frame[1] = (byte)Position.getY(Position.getFrom(move));
+        frame[2] = (byte)Position.getX(Position.getTo(move));
+        frame[3] = (byte)Position.getY(Position.getTo(move));
+        myBoard.play(move);
+        writeFrame(frame);
+        count = 0;
+        if(myBoard.getJumping() >= 0) {
+          // the piece may jump again:
+          count = myBoard.getAllMoves(myMoves);
+        }
+      }
+      myBoard.endTurn();
+      frame[0] = ServerGame.END_TURN_FLAG;
+      writeFrame(frame);
+      return(true);
+    }
+
+    /**
+     * Apply the opponent's moves, starting with the one
+     * already in the frame, until the end of his turn.
+     * @return false if the game ended.
+     */
+    private boolean readOpponentTurn(byte[] frame) throws IOException {
+      while(true) {
+        if(frame[0] == ServerGame.END_GAME_FLAG) {
+          return(false);
+        }
+        myTable.received();
+        if(frame[0] == ServerGame.END_TURN_FLAG) {
+          if(! myBoard.endTurn()) {
+            throw(new IOException("opponent ended a turn without moving"));
+          }
+          myTurns.incrementAndGet();
+          myGameTurns++;
+          long now = System.currentTimeMillis();
+          long longest = myLongestWait.get();
+          while((myLastTurn > 0) && (now - myLastTurn > longest)
+                && (! myLongestWait.compareAndSet(longest, now - myLastTurn))) {
+            longest = myLongestWait.get();
+          }
+          myLastTurn = now;
+          return(true);
+        }
+        if(! myBoard.play(frame[0], frame[1], frame[2], frame[3])) {
+          throw(new IOException("opponent made an illegal move"));
+        }
+        readFrame(frame);
+      }
+    }
+
+    /**
+     * Read the next frame, skipping heartbeats and the
+     * game number, keeping the session token and resuming if the connection drops.
+     */
+    private void readFrame(byte[] frame) throws IOException {
+      while(true) {
+        try {
+          ExecutorBenchmark.readFully(myInput, frame);
+          if(frame[0] == ServerGame.SESSION_FLAG) {
+            myResume = new byte[16];
+            myResume[0] = ServerGame.RESUME_FLAG;
+            ExecutorBenchmark.readFully(myInput, myResume, 4, 8);
+            continue;
+          }
+          if(frame[0] == ServerGame.GAME_FLAG) {
+            // the game's number, which we don't need:
+            ExecutorBenchmark.readFully(myInput, frame);
+            continue;
+          }
+        } catch(IOException e) {
+          reconnect(e);
+          continue;
+        }
+        if(frame[0] == ServerGame.HEARTBEAT_FLAG) {
+          continue;
+        }
+        if((frame[0] >= 0) || (frame[0] == ServerGame.END_TURN_FLAG)) {
+          myReceived++;
+        }
+        return;
+      }
+    }
+
+    /**
+     * Send a move or the end of turn flag, keeping a copy
+     * to send again if the connection drops first.  Now
+     * and then we drop the connection on purpose.
+     */
+    private void writeFrame(byte[] frame) throws IOException {
+      System.arraycopy(frame, 0, mySentLog,
+                       (int)(mySent % Seat.LOG_FRAMES) * 4, 4);
+      mySent++;
+      myTable.sending();
+      try {
+        myOutput.write(frame);
+      } catch(IOException e) {
+        reconnect(e);
+      }
+      if((myDropRate > 0) && (myResume != null)
+         && (myRandom.nextDouble() * 100 < myDropRate)) {
+        close();
+      }
+    }
+
+    /**
+     * Connect again and take our seat back, trying a few 
+     * times if the new connection fails too (as it may 
+     * while the server restarts).
+     * @throws IOException the original one if we can't.
+     */
+    private void reconnect(IOException cause) throws IOException {
+      if(myResume == null) {
+        throw(cause);
+      }
+      for(int tries = 1; ; tries++) {
+        try {
+          resume(cause);
+          return;
+        } catch(IOException e) {
+          if((e == cause) || (tries == 3)) {
+            myFailedResumes.incrementAndGet();
+            myLostTurns.addAndGet(myGameTurns);
+            throw(cause);
+          }
+        }
+      }
+    }
+
+    /**
+     * Connect again and ask for our seat back.
+     * @throws IOException the cause if the game is over, 
+     *         or whatever went wrong with the connection.
+     */
+    private void resume(IOException cause) throws IOException {
+      close();
+      open();
+      for(int i = 0; i < 4; i++) {
+        myResume[12 + i] = (byte)(myReceived >> (24 - 8 * i));
+      }
+      myOutput.write(myResume);
+      byte[] reply = new byte[8];
+      ExecutorBenchmark.readFully(myInput, reply, 0, 4);
+      if(reply[0] != ServerGame.RESUMED_FLAG) {
+        // the game is over.
+        throw(cause);
+      }
+      ExecutorBenchmark.readFully(myInput, reply, 4, 4);
+      long serverReceived = ((reply[4] & 0xffL) << 24)
+        | ((reply[5] & 0xff) << 16) | ((reply[6] & 0xff) << 8)
+        | (reply[7] & 0xff);
+      for(long i = serverReceived; i < mySent; i++) {
+        myOutput.write(mySentLog, (int)(i % Seat.LOG_FRAMES) * 4, 4);
+      }
+      myResumes.incrementAndGet();
+    }
+
+    /**
+     * Open a new connection.
+     */
+    private void open() throws IOException {
+      mySocket = openSocket();
+      myInput = mySocket.getInputStream();
+      myOutput = mySocket.getOutputStream();
+      if(myPlayerNumber != 0) {
+        identify();
+      }
+      if(myFramed) {
+        askForFrames(myInput, myOutput);
+        myInput = new FrameCodec.Input(myInput);
+        myOutput = new FrameCodec.Output(myOutput);
+      }
+    }
+
+    /**
+     * Say which player we are, with the id and tag the 
+     * server gave him, or ask for them the first time.  
+     * (Two clients may ask for the same player at once; 
+     * the last answer is kept.)
+     */
+    private void identify() throws IOException {
+      long[] credentials;
+      synchronized(myCredentials) {
+        credentials = myCredentials[myPlayerNumber - 1];
+      }
+      DataOutputStream output = new DataOutputStream(myOutput);
+      output.write(ServerGame.PLAYER_FLAG);
+      output.write(new byte[3]);
+      output.writeLong((credentials == null) ? 0 : credentials[0]);
+      output.writeLong((credentials == null) ? 0 : credentials[1]);
+      DataInputStream input = new DataInputStream(myInput);
+      byte[] frame = new byte[4];
+      input.readFully(frame);
+      if(frame[0] != ServerGame.PLAYER_FLAG) {
+        throw(new IOException("the server didn't answer the player flag"));
+      }
+      credentials = new long[] { input.readLong(), input.readLong() };
+      synchronized(myCredentials) {
+        myCredentials[myPlayerNumber - 1] = credentials;
+      }
+    }
+
+    /**
+     * Wait the think time, if any.
+     */
+    private void think() {
+      if(myThinkTime > 0) {
+        try {
+          Thread.sleep(myThinkTime);
+        } catch(InterruptedException e) {
+          // just move sooner.
+        }
+      }
+    }
+
+    /**
+     * Close the connection, ignoring errors.
+     */
+    void close() {
+      try {
+        mySocket.close();
+      } catch(IOException e) {
+        // nothing more can be done.
+      }
+    }
+  }
+
+  /**
+   * This thread watches the most recent game until the
+   * time is up, checking that what it is sent makes sense.
+   */
+  class SimSpectator extends Thread {
+
+    /**
+     * Whether this spectator never reads.
+     */
+    private boolean mySlow;
+
+    /**
+     * Constructor names the thread.
+     */
+    SimSpectator(int number, boolean slow) {
+      super("SimSpectator-" + number);
+      setDaemon(true);
+      mySlow = slow;
+    }
+
+    /**
+     * Watch games until the time is up.
+     */
+    public void run() {
+      byte[] frame = new byte[4];
+      byte[] squares = new byte[Position.SQUARES];
+      Random random = new Random();
+      while(System.currentTimeMillis() < myDeadline) {
+        Socket socket = null;
+        try {
+          socket = openSocket();
+          if(mySlow) {
+            socket.setReceiveBufferSize(1024);
+          }
+          InputStream input = socket.getInputStream();
+          OutputStream output = socket.getOutputStream();
+          if(random.nextDouble() * 100 < myFramedRate) {
+            askForFrames(input, output);
+            input = new FrameCodec.Input(input);
+            output = new FrameCodec.Output(output);
+          }
+          // the watch flag and table zero, the latest game:
+          byte[] watch = { Broadcast.WATCH_FLAG, 0, 0, 0, 0, 0, 0, 0 };
+          output.write(watch);
+          if(mySlow) {
+            // never read, so the server's writes fill up:
+            Thread.sleep(Math.max(myDeadline - System.currentTimeMillis(), 0));
+            return;
+          }
+          while(true) {
+            ExecutorBenchmark.readFully(input, frame);
+            if(frame[0] == ServerGame.END_GAME_FLAG) {
+              break;
+            } else if(frame[0] == Broadcast.SNAPSHOT_FLAG) {
+              ExecutorBenchmark.readFully(input, squares);
+              mySnapshots.incrementAndGet();
+            } else if(frame[0] == ServerGame.END_TURN_FLAG) {
+              myWatchedTurns.incrementAndGet();
+            } else if((frame[0] < 0) || (frame[0] >= Position.X_LENGTH)
+                      || (frame[1] < 0) || (frame[1] >= Position.Y_LENGTH)) {
+              throw(new IOException("bad frame from server: " + frame[0]));
+            }
+          }
+        } catch(Exception e) {
+          if(System.currentTimeMillis() < myDeadline) {
+            myErrors.incrementAndGet();
+            Log.warn("SimSpectator.run-->", e);
+          }
+        } finally {
+          try {
+            if(socket != null) {
+              socket.close();
+            }
+          } catch(IOException e) {
+            // nothing more can be done.
+          }
+        }
+        // no game to watch yet, or the game ended:
+        try {
+          Thread.sleep(10);
+        } catch(InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Open a connection to the server.  Every simulated 
+   * client begins with a flag, so it uses the hello port.
+   */
+  private Socket openSocket() throws IOException {
+    Socket retObj = myFactory.createSocket("localhost",
+                                           SocketListener.myHelloPort);
+    retObj.setTcpNoDelay(true);
+    return(retObj);
+  }
+
+  /**
+   * Ask the server to speak version 2 of the protocol.
+   * @throws IOException if it won't.
+   */
+  private static void askForFrames(InputStream input, OutputStream output)
+      throws IOException {
+    byte[] frame = { ServerGame.VERSION_FLAG, FrameCodec.VERSION, 0, 0 };
+    output.write(frame);
+    ExecutorBenchmark.readFully(input, frame);
+    if((frame[0] != ServerGame.VERSION_FLAG)
+       || (frame[1] != FrameCodec.VERSION)) {
+      throw(new IOException("the server doesn't speak version 2"));
+    }
+  }
+
+  /**
+   * Make a throwaway keystore with a self-signed key for
+   * the server, using the JDK's keytool.
+   */
+  private static void makeKeystore() throws Exception {
+    File file = File.createTempFile("loadgen", ".jceks");
+    file.delete();
+    file.deleteOnExit();
+    String keytool = System.getProperty("java.home") + File.separator
+      + "bin" + File.separator + "keytool";
+    Process process = new ProcessBuilder(new String[] {
+        keytool, "-genkeypair", "-alias", "server", "-keyalg", "RSA",
+        "-keysize", "2048", "-dname", "CN=localhost", "-validity", "2",
+        "-storetype", "JCEKS", "-keystore", file.getPath(),
+        "-storepass", "changeit", "-keypass", "changeit" })
+      .redirectErrorStream(true).start();
+    if(process.waitFor() != 0) {
+      throw(new IOException("keytool failed"));
+    }
+    SocketListener.myKeystore = file.getPath();
+    SocketListener.myPassphrase = "changeit";
+  }
+
+  /**
+   * An SSL context that accepts the throwaway certificate.
+   * This is only suitable for testing against localhost.
+   */
+  private static SSLContext trustingContext() throws Exception {
+    TrustManager[] trustAll = { new X509TrustManager() {
+        public void checkClientTrusted(X509Certificate[] chain, String type) {
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String type) {
+        }
+        public X509Certificate[] getAcceptedIssuers() {
+          return(new X509Certificate[0]);
+        }
+      } };
+    SSLContext retObj = SSLContext.getInstance("TLS");
+    retObj.init(null, trustAll, null);
+    return(retObj);
+  }
+
+}
@@ -0,0 +1,354 @@
+package net.frog_parrot.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class pairs up players who are waiting for an
+ * opponent.  Any number of accepting threads may hand
+ * players to it at once: the waiting players are kept in
+ * a lock-free queue and each arriving thread does its own
+ * matching, so pairing never has to wait for one thread.
+ * Players are paired in the order they arrived.  A sweeper
+ * thread drops players who have disconnected while waiting
+ * and players who have waited too long, and (if bots are
+ * allowed) gives a player who has waited long enough a
+ * Bot to play against.  Checking a player means reading
+ * from his socket, which can take a moment, but a
+ * matching thread never waits for that: a player being
+ * checked is left to the sweeper, who puts him back.
+ *
+ * @author Carol Hamer
+ */
+public class Lobby {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * How often the sweeper checks the waiting players.
+   */
+  static final long SWEEP_INTERVAL = 1000;
+
+  /**
+   * How long a player waits for a human opponent before 
+   * being given a Bot, in milliseconds (negative means 
+   * never).
+   */
+  static long myBotWait = -1;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The players who are waiting, oldest first.
+   */
+  private ConcurrentLinkedDeque<PlayerConnection> myWaiting
+    = new ConcurrentLinkedDeque<PlayerConnection>();
+
+  /**
+   * The number of players in the queue.  Kept separately
+   * because counting the queue means walking it.
+   */
+  private AtomicInteger myDepth = new AtomicInteger();
+
+  /**
+   * What kind of thread the games are started on.
+   */
+  private GameExecutor myExecutor;
+
+  /**
+   * How long a player may wait for an opponent before
+   * being sent away, in milliseconds (0 = forever).
+   */
+  private long myMaxWait;
+
+  /**
+   * If this is a cluster's front end, where the tables
+   * are played; otherwise null.
+   */
+  private ClusterFront myCluster;
+
+  /**
+   * Whether the server is being drained, so that the 
+   * players are sent away instead of waiting.
+   */
+  private volatile boolean myClosed;
+
+  /**
+   * The number of players waiting each time one arrives.
+   */
+  private Histogram myDepthHistogram = new Histogram("lobby depth");
+
+  /**
+   * How long the players waited for an opponent, in microseconds.
+   */
+  private Histogram myMatchHistogram
+    = new Histogram("time to match (us)");
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets the game executor and the
+   * maximum waiting time in milliseconds.
+   */
+  public Lobby(GameExecutor executor, long maxWait) {
+    myExecutor = executor;
+    myMaxWait = maxWait;
+    Metrics.register("lobby.depth", myDepth);
+    Metrics.register("lobby.depth_seen", myDepthHistogram);
+    Metrics.register("lobby.match_us", myMatchHistogram);
+  }
+
+  /**
+   * Start the sweeper thread.
+   */
+  public void start() {
+    Thread sweeper = new Thread("LobbySweeper") {
+        public void run() {
+          while(true) {
+            try {
+              Thread.sleep(SWEEP_INTERVAL);
+              sweep();
+            } catch(InterruptedException e) {
+              return;
+            }
+          }
+        }
+      };
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * Send the tables of human players to a cluster's back
+   * ends instead of playing them here.
+   */
+  void setCluster(ClusterFront cluster) {
+    myCluster = cluster;
+  }
+
+  /**
+   * get the number of players waiting.
+   */
+  public int getDepth() {
+    return(myDepth.get());
+  }
+
+  /**
+   * get the histogram of lobby depths seen by arriving players.
+   */
+  public Histogram getDepthHistogram() {
+    return(myDepthHistogram);
+  }
+
+  /**
+   * get the histogram of waiting times in microseconds.
+   */
+  public Histogram getMatchHistogram() {
+    return(myMatchHistogram);
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Add a player who has already been sent the start
+   * game flag, and start a game if an opponent is waiting
+   * (or at once against a bot, if that is what the player
+   * asked for and bots are allowed).
+   * This is called on the accepting thread.
+   */
+  public void arrive(PlayerConnection player) {
+    if(myClosed) {
+      player.drop();
+      return;
+    }
+    if(player.wantsBot() && (myBotWait >= 0)) {
+      player.changeState(PlayerConnection.WAITING, PlayerConnection.CLAIMED);
+      myExecutor.execute(new ServerGame(player, new Bot()));
+      return;
+    }
+    myWaiting.offerLast(player);
+    myDepthHistogram.record(myDepth.incrementAndGet());
+    match();
+  }
+
+  /**
+   * Start games for as long as two live players are
+   * waiting.  If only one can be found, it goes back to
+   * the front of the queue.  Whichever thread puts a
+   * player back last is sure to see any other player
+   * that was put back, so no pair is left waiting.
+   */
+  void match() {
+    while(true) {
+      PlayerConnection first = takeLive();
+      if(first == null) {
+        return;
+      }
+      PlayerConnection second = takeLive();
+      if(second == null) {
+        first.release();
+        myWaiting.offerFirst(first);
+        if(myDepth.incrementAndGet() < 2) {
+          return;
+        }
+        continue;
+      }
+      // if another thread had put the older player back
+      // while we were looking, we may have taken them
+      // out of order, and the older player moves first:
+      if(second.getArrivalTime() < first.getArrivalTime()) {
+        PlayerConnection temp = first;
+        first = second;
+        second = temp;
+      }
+      long now = System.nanoTime();
+      myMatchHistogram.record((now - first.getArrivalTime()) / 1000);
+      myMatchHistogram.record((now - second.getArrivalTime()) / 1000);
+      if(myCluster != null) {
+        myExecutor.execute(myCluster.newTable(first, second));
+      } else {
+        myExecutor.execute(new ServerGame(first, second));
+      }
+    }
+  }
+
+  /**
+   * Send away the players who are waiting, and any who 
+   * arrive from now on, when the server is drained.  A 
+   * waiting player has nothing to hand over: he can 
+   * connect again, to the next server, and wait there.
+   * @return the number of players sent away.
+   */
+  int close() {
+    myClosed = true;
+    int retObj = 0;
+    PlayerConnection player;
+    while((player = takeLive()) != null) {
+      player.drop();
+      retObj++;
+    }
+    return(retObj);
+  }
+
+  /**
+   * Run a game that was put together elsewhere (by a
+   * cluster's back end, or by the server that handed 
+   * its games to this one).
+   */
+  void execute(Runnable game) {
+    myExecutor.execute(game);
+  }
+
+  /**
+   * Drop the players who have left or waited too long, 
+   * and start games against bots for those who have 
+   * waited long enough.
+   */
+  void sweep() {
+    long now = System.nanoTime();
+    Iterator<PlayerConnection> players = myWaiting.iterator();
+    while(players.hasNext()) {
+      PlayerConnection player = players.next();
+      // if a matching thread has the player, leave it alone:
+      if(! player.changeState(PlayerConnection.WAITING,
+                              PlayerConnection.PROBING)) {
+        continue;
+      }
+      // from here on a matching thread that takes the
+      // player out of the queue leaves him to us (see
+      // claim()), so whatever we decide, we first take
+      // him out ourselves if he is still there:
+      long waited = (now - player.getArrivalTime()) / 1000000;
+      boolean tooLong = (myMaxWait > 0) && (waited > myMaxWait);
+      if(tooLong || (! player.isAlive())) {
+        if(myWaiting.remove(player)) {
+          myDepth.decrementAndGet();
+        }
+        player.drop();
+      } else if((myBotWait >= 0) && (waited >= myBotWait)) {
+        if(myWaiting.remove(player)) {
+          myDepth.decrementAndGet();
+        }
+        if(! player.changeState(PlayerConnection.PROBING,
+                                PlayerConnection.CLAIMED)) {
+          player.changeState(PlayerConnection.ORPHANED,
+                             PlayerConnection.CLAIMED);
+        }
+        myMatchHistogram.record(waited * 1000);
+        myExecutor.execute(new ServerGame(player, new Bot()));
+      } else if(! player.changeState(PlayerConnection.PROBING,
+                                     PlayerConnection.WAITING)) {
+        // a matching thread took him out of the queue
+        // while we were checking, so he goes back in
+        // at the front, where he was:
+        player.changeState(PlayerConnection.ORPHANED,
+                           PlayerConnection.WAITING);
+        myWaiting.offerFirst(player);
+        myDepth.incrementAndGet();
+        match();
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Take the oldest player from the queue who is still
+   * connected, dropping any who have quit.  (Players who
+   * vanished without a word are left to the sweeper.)
+   * @return null if nobody is waiting.
+   */
+  private PlayerConnection takeLive() {
+    while(true) {
+      PlayerConnection player = myWaiting.pollFirst();
+      if(player == null) {
+        return(null);
+      }
+      myDepth.decrementAndGet();
+      if(claim(player)) {
+        if(! player.hasQuit()) {
+          return(player);
+        }
+        player.drop();
+      }
+    }
+  }
+
+  /**
+   * Claim a player taken from the queue, without waiting
+   * for the sweeper: a player it is checking is marked
+   * ORPHANED and left to it, and it puts him back in the
+   * queue when it is done.  The loop only goes round
+   * again if the sweeper changed the state in between,
+   * which it does at most twice.
+   * @return whether we have the player.
+   */
+  private static boolean claim(PlayerConnection player) {
+    while(true) {
+      if(player.changeState(PlayerConnection.WAITING,
+                            PlayerConnection.CLAIMED)) {
+        return(true);
+      }
+      if(player.changeState(PlayerConnection.PROBING,
+                            PlayerConnection.ORPHANED)) {
+        return(false);
+      }
+      int state = player.getState();
+      if((state != PlayerConnection.WAITING)
+         && (state != PlayerConnection.PROBING)) {
+        // dropped, or given a bot by the sweeper:
+        return(false);
+      }
+    }
+  }
+
+}
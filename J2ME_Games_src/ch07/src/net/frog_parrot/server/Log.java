@@ -0,0 +1,562 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class replaces System.out.println in the server.
+ * The game threads only copy a constant message and a few
+ * numbers into a preallocated slot of a ring buffer; a
+ * background thread formats the entries and writes them
+ * to the console or to a rolling log file.  Messages use
+ * "{}" where each number goes, so the calling thread
+ * never builds a string, and a message below the current
+ * level costs a single comparison.  If the ring is full
+ * the entry is dropped (and counted) rather than making
+ * a game wait.
+ *
+ * @author Carol Hamer
+ */
+public class Log {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * Messages for finding problems, such as every relayed move.
+   */
+  public static final int DEBUG = 0;
+
+  /**
+   * Normal events, such as games starting and ending.
+   */
+  public static final int INFO = 1;
+
+  /**
+   * Something went wrong but the server carries on.
+   */
+  public static final int WARN = 2;
+
+  /**
+   * Something went wrong that needs looking into.
+   */
+  public static final int ERROR = 3;
+
+  /**
+   * The names printed for the levels.
+   */
+  private static final String[] LEVEL_NAMES
+    = { "DEBUG", "INFO ", "WARN ", "ERROR" };
+
+  /**
+   * The number of slots in the ring (a power of two).
+   */
+  static final int CAPACITY = 1 << 14;
+
+  /**
+   * The most numbers one entry can hold.
+   */
+  static final int MAX_ARGS = 5;
+
+  /**
+   * Messages below this level are ignored.
+   */
+  private static volatile int myLevel = INFO;
+
+  /**
+   * The next sequence number to hand out.
+   */
+  private static AtomicLong myNext = new AtomicLong();
+
+  /**
+   * The sequence number of the next entry to write out.
+   */
+  private static AtomicLong myConsumed = new AtomicLong();
+
+  /**
+   * For each slot, the sequence number of the entry that
+   * has been completely written into it.
+   */
+  private static AtomicLongArray myPublished = new AtomicLongArray(CAPACITY);
+
+  /**
+   * The entry fields, one array per field so that nothing
+   * is allocated per entry.
+   */
+  private static long[] myTimes = new long[CAPACITY];
+  private static int[] myLevels = new int[CAPACITY];
+  private static String[] myMessages = new String[CAPACITY];
+  private static int[] myArgCounts = new int[CAPACITY];
+  private static long[] myArgs = new long[CAPACITY * MAX_ARGS];
+  private static Object[] myDetails = new Object[CAPACITY];
+
+  /**
+   * The number of entries dropped because the ring was full.
+   */
+  private static AtomicLong myDropped = new AtomicLong();
+
+  /**
+   * The sequence number of the first entry that hasn't
+   * been written out and flushed.  Only the drainer sets
+   * it, when it has caught up.
+   */
+  private static volatile long myFlushed;
+
+  /**
+   * Where the entries are written.  Only the drainer 
+   * touches it.
+   */
+  private static Sink mySink = new Sink(null, 0, 0);
+
+  /**
+   * A new place to write the entries, waiting for the
+   * drainer to take it up (see toFile()).
+   */
+  private static AtomicReference<Sink> myNextSink
+    = new AtomicReference<Sink>();
+
+  static {
+    for(int i = 0; i < CAPACITY; i++) {
+      myPublished.set(i, -1);
+    }
+    Thread drainer = new Thread("LogDrainer") {
+        public void run() {
+          drain();
+        }
+      };
+    drainer.setDaemon(true);
+    drainer.start();
+    // give the drainer a moment to write out and flush
+    // the last entries when the server exits:
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          long deadline = System.currentTimeMillis() + 1000;
+          while((myFlushed < myNext.get()) 
+                && (System.currentTimeMillis() < deadline)) {
+            try {
+              Thread.sleep(5);
+            } catch(InterruptedException e) {
+              return;
+            }
+          }
+        }
+      });
+  }
+
+  //-------------------------------------------------------------
+  //          configuration
+
+  /**
+   * Set the lowest level that is logged.
+   */
+  public static void setLevel(int level) {
+    myLevel = level;
+  }
+
+  /**
+   * Parse a level name such as "debug".
+   */
+  public static int parseLevel(String name) {
+    for(int i = 0; i < LEVEL_NAMES.length; i++) {
+      if(LEVEL_NAMES[i].trim().equalsIgnoreCase(name)) {
+        return(i);
+      }
+    }
+    throw(new IllegalArgumentException("unknown log level: " + name));
+  }
+
+  /**
+   * Whether debug messages are being logged.
+   */
+  public static boolean isDebug() {
+    return(myLevel <= DEBUG);
+  }
+
+  /**
+   * Write to the given file instead of the console.  When
+   * the file reaches maxBytes it is renamed with a ".1"
+   * suffix (the older ones moving up to keepFiles).  The
+   * file is opened here, but the drainer is the one that 
+   * switches to it and closes the old output.
+   */
+  public static void toFile(String fileName, long maxBytes, int keepFiles) {
+    Sink unused = myNextSink.getAndSet(new Sink(fileName, maxBytes,
+                                                keepFiles));
+    if(unused != null) {
+      // the drainer never took it up, so it's ours to close:
+      unused.close();
+    }
+  }
+
+  /**
+   * get the number of entries dropped because the
+   * drainer couldn't keep up.
+   */
+  public static long getDropped() {
+    return(myDropped.get());
+  }
+
+  //-------------------------------------------------------------
+  //          logging methods
+
+  /**
+   * Log a debug message.
+   */
+  public static void debug(String msg) {
+    if(myLevel <= DEBUG) {
+      record(DEBUG, msg, 0, 0, 0, 0, 0, 0, null);
+    }
+  }
+
+  /**
+   * Log a debug message with one number.
+   */
+  public static void debug(String msg, long a) {
+    if(myLevel <= DEBUG) {
+      record(DEBUG, msg, 1, a, 0, 0, 0, 0, null);
+    }
+  }
+
+  /**
+   * Log a debug message with two numbers.
+   */
+  public static void debug(String msg, long a, long b) {
+    if(myLevel <= DEBUG) {
+      record(DEBUG, msg, 2, a, b, 0, 0, 0, null);
+    }
+  }
+
+  /**
+   * Log a debug message with five numbers (a relayed move).
+   */
+  public static void debug(String msg, long a, long b, long c, long d,
+                           long e) {
+    if(myLevel <= DEBUG) {
+      record(DEBUG, msg, 5, a, b, c, d, e, null);
+    }
+  }
+
+  /**
+   * Log an info message.
+   */
+  public static void info(String msg) {
+    if(myLevel <= INFO) {
+      record(INFO, msg, 0, 0, 0, 0, 0, 0, null);
+    }
+  }
+
+  /**
+   * Log an info message with one number.
+   */
+  public static void info(String msg, long a) {
+    if(myLevel <= INFO) {
+      record(INFO, msg, 1, a, 0, 0, 0, 0, null);
+    }
+  }
+
+  /**
+   * Log an info message with two numbers.
+   */
+  public static void info(String msg, long a, long b) {
+    if(myLevel <= INFO) {
+      record(INFO, msg, 2, a, b, 0, 0, 0, null);
+    }
+  }
+
+  /**
+   * Log an info message with three numbers.
+   */
+  public static void info(String msg, long a, long b, long c) {
+    if(myLevel <= INFO) {
+      record(INFO, msg, 3, a, b, c, 0, 0, null);
+    }
+  }
+
+  /**
+   * Log an info message with five numbers (a rejected move).
+   */
+  public static void info(String msg, long a, long b, long c, long d,
+                          long e) {
+    if(myLevel <= INFO) {
+      record(INFO, msg, 5, a, b, c, d, e, null);
+    }
+  }
+
+  /**
+   * Log a message followed by a description of some object
+   * (such as an exception's message or a statistics summary).
+   */
+  public static void info(String msg, Object detail) {
+    if(myLevel <= INFO) {
+      record(INFO, msg, 0, 0, 0, 0, 0, 0, detail);
+    }
+  }
+
+  /**
+   * Log a warning followed by a description of some object.
+   */
+  public static void warn(String msg, Object detail) {
+    if(myLevel <= WARN) {
+      record(WARN, msg, 0, 0, 0, 0, 0, 0, detail);
+    }
+  }
+
+  /**
+   * Log an error.  If the detail is an exception its
+   * stack trace is written too.
+   */
+  public static void error(String msg, Object detail) {
+    record(ERROR, msg, 0, 0, 0, 0, 0, 0, detail);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Claim a slot and fill it in.
+   */
+  private static void record(int level, String msg, int count, long a,
+                             long b, long c, long d, long e, Object detail) {
+    long seq;
+    while(true) {
+      seq = myNext.get();
+      if(seq - myConsumed.get() >= CAPACITY) {
+        myDropped.incrementAndGet();
+        return;
+      }
+      if(myNext.compareAndSet(seq, seq + 1)) {
+        break;
+      }
+    }
+    int slot = (int)(seq & (CAPACITY - 1));
+    myTimes[slot] = System.currentTimeMillis();
+    myLevels[slot] = level;
+    myMessages[slot] = msg;
+    myArgCounts[slot] = count;
+    int base = slot * MAX_ARGS;
+    myArgs[base] = a;
+    myArgs[base + 1] = b;
+    myArgs[base + 2] = c;
+    myArgs[base + 3] = d;
+    myArgs[base + 4] = e;
+    myDetails[slot] = detail;
+    // the volatile write makes the fields above visible
+    // to the drainer:
+    myPublished.set(slot, seq);
+  }
+
+  /**
+   * The drainer's loop: format each entry in order and
+   * write it out.
+   */
+  private static void drain() {
+    StringBuffer line = new StringBuffer(256);
+    char[] chars = new char[256];
+    long seq = 0;
+    while(true) {
+      Sink next = myNextSink.getAndSet(null);
+      if(next != null) {
+        mySink.close();
+        mySink = next;
+      }
+      int slot = (int)(seq & (CAPACITY - 1));
+      if(myPublished.get(slot) != seq) {
+        // nothing new yet (or a writer is half done):
+        mySink.flush();
+        myFlushed = seq;
+        try {
+          Thread.sleep(1);
+        } catch(InterruptedException e) {
+          return;
+        }
+        continue;
+      }
+      line.setLength(0);
+      format(slot, line);
+      Object detail = myDetails[slot];
+      myDetails[slot] = null;
+      myMessages[slot] = null;
+      int level = myLevels[slot];
+      seq++;
+      myConsumed.set(seq);
+      if(line.length() > chars.length) {
+        chars = new char[line.length() * 2];
+      }
+      line.getChars(0, line.length(), chars, 0);
+      mySink.write(chars, line.length());
+      if((detail instanceof Throwable) && (level >= WARN)) {
+        mySink.writeStackTrace((Throwable)detail);
+      }
+    }
+  }
+
+  /**
+   * Build the text of one entry, replacing each "{}"
+   * with the next number.
+   */
+  private static void format(int slot, StringBuffer line) {
+    line.append(myTimes[slot]);
+    line.append(' ');
+    line.append(LEVEL_NAMES[myLevels[slot]]);
+    line.append(' ');
+    String msg = myMessages[slot];
+    int count = myArgCounts[slot];
+    int base = slot * MAX_ARGS;
+    int arg = 0;
+    for(int i = 0; i < msg.length(); i++) {
+      char ch = msg.charAt(i);
+      if((ch == '{') && (i + 1 < msg.length())
+         && (msg.charAt(i + 1) == '}') && (arg < count)) {
+        line.append(myArgs[base + arg]);
+        arg++;
+        i++;
+      } else {
+        line.append(ch);
+      }
+    }
+    Object detail = myDetails[slot];
+    if(detail != null) {
+      line.append(' ');
+      line.append(detail);
+    }
+    line.append('\n');
+  }
+
+  //-------------------------------------------------------------
+  //          output
+
+  /**
+   * This class is where the drainer writes: the console,
+   * or a file that is rolled over when it gets too big.
+   * It is only used on the drainer thread, except that 
+   * toFile() opens it (and closes it again if it is 
+   * replaced before the drainer takes it up).
+   */
+  static class Sink {
+
+    /**
+     * The file name, or null for the console.
+     */
+    private String myFileName;
+
+    /**
+     * The size at which the file is rolled over.
+     */
+    private long myMaxBytes;
+
+    /**
+     * The number of old files kept.
+     */
+    private int myKeepFiles;
+
+    /**
+     * The number of bytes written to the current file.
+     */
+    private long myWritten;
+
+    /**
+     * The current output.
+     */
+    private Writer myWriter;
+
+    /**
+     * Constructor opens the output.
+     */
+    Sink(String fileName, long maxBytes, int keepFiles) {
+      myFileName = fileName;
+      myMaxBytes = maxBytes;
+      myKeepFiles = keepFiles;
+      open();
+    }
+
+    /**
+     * Write one formatted line.
+     */
+    void write(char[] chars, int length) {
+      try {
+        myWriter.write(chars, 0, length);
+        myWritten += length;
+        if((myFileName != null) && (myWritten >= myMaxBytes)) {
+          roll();
+        }
+      } catch(IOException e) {
+        // nowhere left to complain to.
+      }
+    }
+
+    /**
+     * Write a stack trace after an error message.
+     */
+    void writeStackTrace(Throwable t) {
+      PrintWriter pw = new PrintWriter(myWriter);
+      t.printStackTrace(pw);
+      pw.flush();
+    }
+
+    /**
+     * Flush whatever has been written so far.
+     */
+    void flush() {
+      try {
+        myWriter.flush();
+      } catch(IOException e) {
+        // nowhere left to complain to.
+      }
+    }
+
+    /**
+     * Flush the output and close it, unless it is the
+     * console.
+     */
+    void close() {
+      try {
+        if(myFileName == null) {
+          myWriter.flush();
+        } else {
+          myWriter.close();
+        }
+      } catch(IOException e) {
+        // nowhere left to complain to.
+      }
+    }
+
+    /**
+     * Open the file (appending) or the console.
+     */
+    private void open() {
+      try {
+        if(myFileName == null) {
+          myWriter = new BufferedWriter(new OutputStreamWriter(System.out));
+        } else {
+          File file = new File(myFileName);
+          myWritten = file.length();
+          myWriter = new BufferedWriter(new FileWriter(file, true), 8192);
+        }
+      } catch(IOException e) {
+        e.printStackTrace();
+        myFileName = null;
+        myWriter = new BufferedWriter(new OutputStreamWriter(System.out));
+      }
+    }
+
+    /**
+     * Close the full file and shift the old ones along.
+     */
+    private void roll() throws IOException {
+      myWriter.close();
+      for(int i = myKeepFiles - 1; i >= 1; i--) {
+        File older = new File(myFileName + "." + i);
+        if(older.exists()) {
+          older.renameTo(new File(myFileName + "." + (i + 1)));
+        }
+      }
+      new File(myFileName).renameTo(new File(myFileName + ".1"));
+      myWritten = 0;
+      open();
+    }
+
+  }
+
+}
@@ -0,0 +1,323 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.*;
+
+/**
+ * This class is the server's registry of counters, gauges
+ * and latency histograms.  A metric is an AtomicLong or
+ * AtomicInteger (anything that extends Number) or a
+ * Histogram, registered once under a name and then
+ * updated by whoever holds it, so recording a value is
+ * a single lock-free operation that allocates nothing
+ * and never touches the registry.  Only the readers
+ * (JMX and the metrics file) look the metrics up.
+ * <p>
+ * Each histogram appears as six values: name.count,
+ * name.p50, name.p90, name.p99, name.p999 and name.max.
+ * <p>
+ * A setting is a counter that can also be changed over
+ * JMX, so a threshold can be tuned while the server runs:
+ * the code that uses it reads it each time.
+ *
+ * @author Carol Hamer
+ */
+public class Metrics {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The name the metrics are registered under with JMX.
+   */
+  public static final String OBJECT_NAME
+    = "net.frog_parrot.server:type=Metrics";
+
+  /**
+   * The percentiles reported for each histogram, and the
+   * suffixes they are reported under.
+   */
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+  private static final String[] SUFFIXES
+    = { ".p50", ".p90", ".p99", ".p999", ".max" };
+
+  /**
+   * The metrics, by name.  Only used while holding the
+   * class lock.
+   */
+  private static TreeMap<String, Object> myMetrics
+    = new TreeMap<String, Object>();
+
+  /**
+   * The names of the settings.  Only used while holding
+   * the class lock.
+   */
+  private static TreeSet<String> mySettings = new TreeSet<String>();
+
+  //-------------------------------------------------------------
+  //          registration
+
+  /**
+   * Make and register a new counter.
+   */
+  public static AtomicLong counter(String name) {
+    AtomicLong retObj = new AtomicLong();
+    register(name, retObj);
+    return(retObj);
+  }
+
+  /**
+   * Make and register a new setting with the given
+   * starting value.
+   */
+  public static AtomicLong setting(String name, long value) {
+    AtomicLong retObj = new AtomicLong(value);
+    synchronized(Metrics.class) {
+      register(name, retObj);
+      mySettings.add(name);
+    }
+    return(retObj);
+  }
+
+  /**
+   * Make and register a new histogram.
+   */
+  public static Histogram histogram(String name) {
+    Histogram retObj = new Histogram(name);
+    register(name, retObj);
+    return(retObj);
+  }
+
+  /**
+   * Register a counter or gauge that already exists.  A
+   * metric registered under the same name before is
+   * replaced.
+   */
+  public static synchronized void register(String name, Number value) {
+    myMetrics.put(name, value);
+  }
+
+  /**
+   * Register a histogram that already exists.
+   */
+  public static synchronized void register(String name,
+                                           Histogram histogram) {
+    myMetrics.put(name, histogram);
+  }
+
+  //-------------------------------------------------------------
+  //          reading
+
+  /**
+   * get the current value of every metric, with each
+   * histogram spread over its six values.
+   */
+  public static synchronized Map<String, Long> snapshot() {
+    TreeMap<String, Long> retObj = new TreeMap<String, Long>();
+    for(Iterator<Map.Entry<String, Object>> it
+          = myMetrics.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Object> entry = it.next();
+      String name = entry.getKey();
+      Object metric = entry.getValue();
+      if(metric instanceof Histogram) {
+        Histogram histogram = (Histogram)metric;
+        retObj.put(name + ".count", Long.valueOf(histogram.getCount()));
+        for(int i = 0; i < PERCENTILES.length; i++) {
+          retObj.put(name + SUFFIXES[i],
+                     Long.valueOf(histogram.getPercentile(PERCENTILES[i])));
+        }
+      } else {
+        retObj.put(name, Long.valueOf(((Number)metric).longValue()));
+      }
+    }
+    return(retObj);
+  }
+
+  /**
+   * Change a setting.
+   * @return false if there is no setting by that name.
+   */
+  public static synchronized boolean set(String name, long value) {
+    if(! mySettings.contains(name)) {
+      return(false);
+    }
+    ((AtomicLong)myMetrics.get(name)).set(value);
+    Log.info("Metrics.set-->" + name + " is now {}", value);
+    return(true);
+  }
+
+  /**
+   * Whether the given metric is a setting.
+   */
+  static synchronized boolean isSetting(String name) {
+    return(mySettings.contains(name));
+  }
+
+  /**
+   * The metrics as "name value" lines.
+   */
+  public static String dump() {
+    StringBuffer retObj = new StringBuffer();
+    Map<String, Long> values = snapshot();
+    for(Iterator<Map.Entry<String, Long>> it = values.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<String, Long> entry = it.next();
+      retObj.append(entry.getKey());
+      retObj.append(' ');
+      retObj.append(entry.getValue());
+      retObj.append('\n');
+    }
+    return(retObj.toString());
+  }
+
+  //-------------------------------------------------------------
+  //          publishing
+
+  /**
+   * Make the metrics readable over JMX (with jconsole, for
+   * example) as the attributes of one MBean.
+   */
+  public static void startJmx() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    if(! server.isRegistered(name)) {
+      server.registerMBean(new Bean(), name);
+    }
+  }
+
+  /**
+   * Start a thread that writes the metrics to the given
+   * file every so often.  The file is written under
+   * another name and then renamed, so a reader never
+   * sees half of it.
+   * @param interval the time between writes in milliseconds.
+   */
+  public static void startFile(final String fileName, final long interval) {
+    Thread writer = new Thread("MetricsWriter") {
+        public void run() {
+          File file = new File(fileName);
+          File temp = new File(fileName + ".tmp");
+          while(true) {
+            try {
+              Thread.sleep(interval);
+              Writer out = new BufferedWriter(new FileWriter(temp));
+              try {
+                out.write("# " + System.currentTimeMillis() + "\n");
+                out.write(dump());
+              } finally {
+                out.close();
+              }
+              if(! temp.renameTo(file)) {
+                Log.warn("Metrics.startFile-->could not rename", temp);
+              }
+            } catch(InterruptedException e) {
+              return;
+            } catch(IOException e) {
+              Log.warn("Metrics.startFile-->caught Exception:", e);
+            }
+          }
+        }
+      };
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * This class shows the metrics to JMX.  The attributes
+   * are longs, read-only except for the settings, and the
+   * list of them is made again each time it is asked for,
+   * since metrics can be registered at any time.
+   */
+  static class Bean implements DynamicMBean {
+
+    /**
+     * get one metric.
+     */
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException {
+      Object retObj = snapshot().get(attribute);
+      if(retObj == null) {
+        throw(new AttributeNotFoundException(attribute));
+      }
+      return(retObj);
+    }
+
+    /**
+     * get several metrics, all from the same snapshot.
+     */
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Long> values = snapshot();
+      AttributeList retObj = new AttributeList();
+      for(int i = 0; i < attributes.length; i++) {
+        Long value = values.get(attributes[i]);
+        if(value != null) {
+          retObj.add(new Attribute(attributes[i], value));
+        }
+      }
+      return(retObj);
+    }
+
+    /**
+     * Change a setting.
+     */
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException, InvalidAttributeValueException {
+      if(! (attribute.getValue() instanceof Number)) {
+        throw(new InvalidAttributeValueException(attribute.getName()
+                                                 + " must be a number"));
+      }
+      if(! set(attribute.getName(),
+               ((Number)attribute.getValue()).longValue())) {
+        throw(new AttributeNotFoundException(attribute.getName()
+                                             + " is read-only"));
+      }
+    }
+
+    /**
+     * Change several settings.
+     * @return the ones that were changed.
+     */
+    public AttributeList setAttributes(AttributeList attributes) {
+      AttributeList retObj = new AttributeList();
+      for(Iterator<Object> it = attributes.iterator(); it.hasNext(); ) {
+        Attribute attribute = (Attribute)it.next();
+        try {
+          setAttribute(attribute);
+          retObj.add(attribute);
+        } catch(JMException e) {
+          // leave it out of the list.
+        }
+      }
+      return(retObj);
+    }
+
+    /**
+     * There are no operations.
+     */
+    public Object invoke(String actionName, Object[] params,
+                         String[] signature) throws ReflectionException {
+      throw(new ReflectionException(new NoSuchMethodException(actionName)));
+    }
+
+    /**
+     * Describe the metrics there are now.
+     */
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Long> values = snapshot();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+      int i = 0;
+      for(Iterator<String> it = values.keySet().iterator(); it.hasNext(); ) {
+        String name = it.next();
+        attributes[i++] = new MBeanAttributeInfo(name, "long", name,
+                                                 true, isSetting(name), false);
+      }
+      return(new MBeanInfo(getClass().getName(),
+                           "checkers server metrics", attributes,
+                           null, null, null));
+    }
+  }
+
+}
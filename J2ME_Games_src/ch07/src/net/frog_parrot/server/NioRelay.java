@@ -0,0 +1,159 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * This class is an alternative to the thread-per-game
+ * server in SocketListener.  It accepts the players'
+ * connections and seats them in pairs at tables that
+ * are spread over a small number of Reactor threads
+ * (one per processor by default), so that thousands of
+ * tables can be served without thousands of threads.
+ * It speaks exactly the same four-byte protocol as
+ * ServerGame.  Note that this mode uses plain sockets,
+ * so the clients must connect with a socket:// URL.
+ *
+ * @author Carol Hamer
+ */
+public class NioRelay {
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The port number to listen on.
+   */
+  private int myPortNum;
+
+  /**
+   * The selector threads that the tables are spread over.
+   */
+  private Reactor[] myReactors;
+
+  /**
+   * The index of the reactor that gets the next table.
+   */
+  private int myNextReactor;
+
+  /**
+   * If another player is currently waiting, this is
+   * the table he is seated at.
+   */
+  private NioTable myWaitingTable;
+
+  /**
+   * Variable to tell the relay to stop.
+   */
+  private volatile boolean myShouldStop;
+
+  /**
+   * The listening channel.
+   */
+  private ServerSocketChannel myServerChannel;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor creates the reactors.
+   * @param numReactors the number of selector threads,
+   *        or zero for one per processor.
+   */
+  public NioRelay(int portNum, int numReactors) throws IOException {
+    myPortNum = portNum;
+    if(numReactors <= 0) {
+      numReactors = Runtime.getRuntime().availableProcessors();
+    }
+    myReactors = new Reactor[numReactors];
+    for(int i = 0; i < myReactors.length; i++) {
+      myReactors[i] = new Reactor("Reactor-" + i);
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Start the reactors and accept players until told
+   * to stop.
+   */
+  public void listen() {
+    try {
+      myServerChannel = ServerSocketChannel.open();
+      myServerChannel.socket().setReuseAddress(true);
+      myServerChannel.socket().bind(new InetSocketAddress(myPortNum), 1024);
+      for(int i = 0; i < myReactors.length; i++) {
+        myReactors[i].start();
+      }
+      Log.info("NioRelay.listen-->listening on port {} with {} reactors",
+               myPortNum, myReactors.length);
+      while(! myShouldStop) {
+        SocketChannel client = myServerChannel.accept();
+        client.configureBlocking(false);
+        client.socket().setKeepAlive(true);
+        client.socket().setTcpNoDelay(true);
+        seat(client);
+      }
+    } catch(Exception e) {
+      if(! myShouldStop) {
+        Log.error("NioRelay.listen-->caught Exception:", e);
+      }
+    } finally {
+      for(int i = 0; i < myReactors.length; i++) {
+        myReactors[i].requestStop();
+      }
+    }
+  }
+
+  /**
+   * Seat a player at the waiting table, or at a new one
+   * if there is none.  A table that was waiting may end
+   * (the player there leaves) before the second player
+   * is seated at it on its reactor, so the reactor sends
+   * that player back here to be seated again, which is
+   * why this is synchronized.
+   */
+  synchronized void seat(SocketChannel client) {
+    if((myWaitingTable == null) || (myWaitingTable.isEnded())) {
+      // both players at a table share a reactor
+      // so that the table is only touched by
+      // one thread:
+      Reactor reactor = myReactors[myNextReactor];
+      myNextReactor = (myNextReactor + 1) % myReactors.length;
+      myWaitingTable = new NioTable(this, reactor);
+      reactor.addPlayer(myWaitingTable, client, 0);
+    } else {
+      myWaitingTable.getReactor().addPlayer(myWaitingTable, client, 1);
+      myWaitingTable = null;
+    }
+  }
+
+  /**
+   * Stop accepting and shut down the reactors.
+   * Games in progress are abandoned.
+   */
+  public void stop() {
+    myShouldStop = true;
+    try {
+      if(myServerChannel != null) {
+        myServerChannel.close();
+      }
+    } catch(IOException e) {
+      // we're stopping anyway.
+    }
+  }
+
+  /**
+   * get the total number of tables being served.
+   */
+  public int getTableCount() {
+    int retVal = 0;
+    for(int i = 0; i < myReactors.length; i++) {
+      retVal += myReactors[i].getTableCount();
+    }
+    return(retVal);
+  }
+
+}
@@ -0,0 +1,282 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class is the non-blocking counterpart of ServerGame.
+ * It keeps track of whose turn it is at one table and
+ * passes the four-byte move frames from one player
+ * to the other.  All of its methods are called on
+ * the thread of the Reactor that owns the table,
+ * so no synchronization is needed.
+ *
+ * @author Carol Hamer
+ */
+public class NioTable {
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The reactor whose selector watches both players.
+   */
+  private Reactor myReactor;
+
+  /**
+   * The relay that seated the players here, which pairs
+   * a second player again if this table is already over
+   * when he arrives.
+   */
+  private NioRelay myRelay;
+
+  /**
+   * The two players.  The player in seat 0 arrived
+   * first and moves first.
+   */
+  private PlayerChannel[] myPlayers = new PlayerChannel[2];
+
+  /**
+   * The seat of the player whose turn it is.
+   */
+  private int myCurrentSeat;
+
+  /**
+   * Whether both players have arrived.
+   */
+  private boolean myStarted;
+
+  /**
+   * Whether the game has been ended and the sockets closed.
+   */
+  private volatile boolean myEnded;
+
+  /**
+   * Messages are sent and received in sets of four bytes.
+   */
+  private byte[] myData = new byte[4];
+
+  /**
+   * The board as the server sees it, so that moves can be
+   * checked before they are passed along (see
+   * ServerGame.myBoard).
+   */
+  private Position myBoard = new Position();
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets the reactor that will handle this table.
+   */
+  NioTable(NioRelay relay, Reactor reactor) {
+    myRelay = relay;
+    myReactor = reactor;
+  }
+
+  /**
+   * get the reactor that handles this table.
+   */
+  Reactor getReactor() {
+    return(myReactor);
+  }
+
+  /**
+   * Whether the game at this table is over.  This may
+   * be called from the accepting thread.
+   */
+  boolean isEnded() {
+    return(myEnded);
+  }
+
+  /**
+   * Seat a player.  This is called on the reactor thread.
+   * The first player gets the start flag to test the
+   * communications, and when the second player arrives
+   * the first player gets the start flag again to
+   * signal that it's his turn, just like in ServerGame.
+   */
+  void seat(SocketChannel channel, int seat) {
+    if(myEnded) {
+      // the first player left after the relay paired
+      // this one with him, so this one goes back to be
+      // paired again:
+      myRelay.seat(channel);
+      return;
+    }
+    PlayerChannel player = new PlayerChannel(channel, this, seat);
+    myPlayers[seat] = player;
+    try {
+      player.register(myReactor.getSelector());
+      myData[0] = ServerGame.START_GAME_FLAG;
+      send(seat);
+      if(seat == 1) {
+        myStarted = true;
+        RelayStats.tableStarted();
+        myCurrentSeat = 0;
+        myData[0] = ServerGame.START_GAME_FLAG;
+        send(0);
+        // the first player may have sent data
+        // while waiting:
+        relay();
+      }
+    } catch(IOException e) {
+      end(RelayStats.CONNECTION_LOST);
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Called by the reactor when there is data to read
+   * from the given player.
+   */
+  void readable(PlayerChannel player) {
+    if(myEnded) {
+      return;
+    }
+    try {
+      if(! player.read()) {
+        end(RelayStats.CONNECTION_LOST);
+        return;
+      }
+      relay();
+    } catch(IOException e) {
+      end(RelayStats.CONNECTION_LOST);
+    }
+  }
+
+  /**
+   * Called by the reactor when the given player's socket
+   * can accept more data.
+   */
+  void writable(PlayerChannel player) {
+    try {
+      player.flush();
+    } catch(IOException e) {
+      end(RelayStats.CONNECTION_LOST);
+    }
+  }
+
+  /**
+   * Pass along all of the complete frames that the current
+   * player has sent.  Frames from the other player are
+   * left in the buffer until it is that player's turn,
+   * except that a player can always quit.
+   */
+  private void relay() throws IOException {
+    for(int i = 0; i < myPlayers.length; i++) {
+      // the client signals that it is leaving with
+      // a single byte, so we check for it before
+      // a complete frame has arrived:
+      ByteBuffer input = (myPlayers[i] == null) ? null
+        : myPlayers[i].getInput();
+      if((input != null) && (input.position() > 0)
+         && (input.get(0) == ServerGame.END_GAME_FLAG)) {
+        end(RelayStats.QUIT);
+        return;
+      }
+    }
+    if(! myStarted) {
+      return;
+    }
+    ByteBuffer input = myPlayers[myCurrentSeat].getInput();
+    while(input.position() >= 4) {
+      myPlayers[myCurrentSeat].take(myData);
+      if(myData[0] == ServerGame.END_GAME_FLAG) {
+        end(RelayStats.QUIT);
+        return;
+      }
+      if((myData[0] == ServerGame.HEARTBEAT_FLAG)
+         || (myData[0] == ServerGame.HELLO_FLAG)) {
+        // only there to keep the connection alive, or to
+        // ask for a session, which this relay doesn't
+        // offer.
+        continue;
+      }
+      if(! isLegal()) {
+        end(RelayStats.ILLEGAL_MOVE);
+        return;
+      }
+      int other = 1 - myCurrentSeat;
+      if(! send(other)) {
+        return;
+      }
+      if(myData[0] == ServerGame.END_TURN_FLAG) {
+        // now it's the other player's turn, and he
+        // may have data waiting already:
+        myCurrentSeat = other;
+        input = myPlayers[myCurrentSeat].getInput();
+      }
+    }
+  }
+
+  /**
+   * Tell both players that the game is over and
+   * close their connections.
+   * @param reason why the game ended (see RelayStats).
+   */
+  void end(int reason) {
+    if(myEnded) {
+      return;
+    }
+    myEnded = true;
+    if(myStarted) {
+      RelayStats.tableEnded(reason);
+    }
+    myData[0] = ServerGame.END_GAME_FLAG;
+    for(int i = 0; i < myPlayers.length; i++) {
+      if(myPlayers[i] != null) {
+        try {
+          myPlayers[i].write(myData);
+        } catch(IOException e) {
+          // this player has left the game, which is
+          // not an error.
+        }
+        myPlayers[i].close();
+      }
+    }
+    myReactor.tableEnded();
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Check the frame in myData from the current player
+   * against the rules, and make the move on our board.
+   */
+  private boolean isLegal() {
+    if(! ServerGame.myValidate) {
+      return(true);
+    }
+    if(myData[0] == ServerGame.END_TURN_FLAG) {
+      return(myBoard.endTurn());
+    }
+    if(! myBoard.play(myData[0], myData[1], myData[2], myData[3])) {
+      Log.info("NioTable.relay-->illegal move from seat {}: {}, {} to {}, {}",
+               myCurrentSeat, myData[0], myData[1], myData[2], myData[3]);
+      return(false);
+    }
+    return(true);
+  }
+
+  /**
+   * Send the current contents of myData to the player
+   * in the given seat.  A player who has let the
+   * outgoing buffer fill up ends the game.
+   * @return false if the game ended.
+   */
+  private boolean send(int seat) throws IOException {
+    if(! myPlayers[seat].write(myData)) {
+      end(RelayStats.SLOW_READER);
+      return(false);
+    }
+    return(true);
+  }
+
+}
@@ -0,0 +1,489 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the data waiting to be written to one
+ * player, so that the threads sending it (a game, the
+ * timer or a broadcast writer) don't wait for a slow
+ * player's connection.  The data goes into a ring of
+ * myCapacity bytes, and a thread from a shared pool of
+ * writers sends it, as much as is waiting with each
+ * write, until the ring is empty again: a connection
+ * only holds a writer while it is taking data.
+ * <p>
+ * Handing each write to another thread costs some
+ * throughput, so with myWriteThrough a sender that finds
+ * nothing waiting writes its data itself, and only what
+ * comes in during that write is queued.  That sender can
+ * then be held up by the player (until the write timeout)
+ * as before.
+ * <p>
+ * What happens when a player falls so far behind that the
+ * ring fills up is set by myPolicy:
+ * <ul>
+ * <li>DISCONNECT closes the connection at once (a player
+ *     who can resume gets the frames he missed when he
+ *     comes back),</li>
+ * <li>DROP throws the data away and notes it, so that a
+ *     spectator is sent a fresh snapshot and a player
+ *     (whose moves can't be lost) is disconnected, and</li>
+ * <li>BLOCK makes the sender wait up to myBlockTimeout
+ *     for room, then disconnects.</li>
+ * </ul>
+ * Heartbeats are offered rather than written, and simply
+ * skipped if there is no room.  A write that makes no
+ * progress for myWriteTimeout closes the connection, so
+ * a player who stops reading can hold a writer thread
+ * for only so long.
+ *
+ * @author Carol Hamer
+ */
+class OutboundQueue extends OutputStream implements Runnable {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The overflow policies.
+   */
+  static final int DISCONNECT = 0;
+  static final int DROP = 1;
+  static final int BLOCK = 2;
+
+  /**
+   * What to do when the ring is full.
+   */
+  static int myPolicy = DISCONNECT;
+
+  /**
+   * The size of each connection's ring, in bytes.
+   */
+  static int myCapacity = 4096;
+
+  /**
+   * How long a sender waits for room under the BLOCK
+   * policy, in milliseconds.
+   */
+  static int myBlockTimeout = 1000;
+
+  /**
+   * How long one write may take, in milliseconds, before
+   * the connection is closed.
+   */
+  static int myWriteTimeout = 30000;
+
+  /**
+   * Whether a sender writes its data itself when nothing
+   * is waiting.
+   */
+  static boolean myWriteThrough;
+
+  /**
+   * The number of writing threads.
+   */
+  static int myWriterCount
+    = Math.max(4, 4 * Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The writing threads, made when the first queue is.
+   */
+  private static ExecutorService myWriters;
+
+  /**
+   * The queues whose writes are in progress, for the
+   * sweeper.
+   */
+  private static Set<OutboundQueue> myWriting
+    = Collections.newSetFromMap(new ConcurrentHashMap<OutboundQueue, Boolean>());
+
+  /**
+   * The bytes waiting in all of the queues.
+   */
+  private static AtomicLong myQueued = Metrics.counter("outbound.queued_bytes");
+
+  /**
+   * The number of bytes waiting in a queue just after
+   * each write to it.
+   */
+  static Histogram myDepths = Metrics.histogram("outbound.depth");
+
+  /**
+   * The statistics: writes that found the ring full,
+   * bytes dropped, connections closed because they were
+   * too far behind or their writes were stuck, and the
+   * time senders waited for room, in microseconds.
+   */
+  static AtomicLong myOverflows = Metrics.counter("outbound.overflows");
+  private static AtomicLong myDropped = Metrics.counter("outbound.dropped_bytes");
+  private static AtomicLong myDisconnects = Metrics.counter("outbound.disconnects");
+  private static AtomicLong myStuck = Metrics.counter("outbound.stuck");
+  private static Histogram myBlocked = Metrics.histogram("outbound.blocked_us");
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The connection the data is for.
+   */
+  private PlayerConnection myPlayer;
+
+  /**
+   * The stream the data is written to.
+   */
+  private OutputStream mySink;
+
+  /**
+   * The ring of waiting data: myLength bytes starting at
+   * myHead.  The writer writes from the ring without the
+   * lock, which is safe since senders only ever fill the
+   * free part.
+   */
+  private byte[] myRing;
+  private int myHead;
+  private int myLength;
+
+  /**
+   * Whether a writer is queued or running.
+   */
+  private boolean myScheduled;
+
+  /**
+   * When the write in progress began, or zero.
+   */
+  private volatile long myWriteStart;
+
+  /**
+   * Whether the connection is to be closed once the
+   * waiting data is written, and whether it is closed.
+   */
+  private boolean myClosing;
+  private volatile boolean myClosed;
+
+  /**
+   * Whether data has been dropped since the owner last
+   * asked.
+   */
+  private boolean myLost;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets the connection and the stream the
+   * data goes to, and starts the writers if they haven't
+   * been started yet.
+   */
+  OutboundQueue(PlayerConnection player, OutputStream sink) {
+    myPlayer = player;
+    mySink = sink;
+    myRing = new byte[myCapacity];
+    synchronized(OutboundQueue.class) {
+      if(myWriters == null) {
+        myWriters = Executors.newFixedThreadPool(myWriterCount,
+            new ThreadFactory() {
+              private int myCount;
+              public synchronized Thread newThread(Runnable r) {
+                Thread retObj = new Thread(r, "Writer-" + (myCount++));
+                retObj.setDaemon(true);
+                return(retObj);
+              }
+            });
+        ServerGame.TIMERS.schedule(new Sweeper(), myWriteTimeout / 2 + 1);
+      }
+    }
+  }
+
+  /**
+   * Parse the overflow policy: disconnect, drop, block or
+   * block:ms.
+   */
+  static void parsePolicy(String policy) {
+    if(policy.equals("disconnect")) {
+      myPolicy = DISCONNECT;
+    } else if(policy.equals("drop")) {
+      myPolicy = DROP;
+    } else if(policy.startsWith("block")) {
+      myPolicy = BLOCK;
+      if(policy.startsWith("block:")) {
+        myBlockTimeout = Integer.parseInt(policy.substring(6));
+      }
+    } else {
+      throw(new IllegalArgumentException("unknown overflow policy: "
+                                         + policy));
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get when the write in progress began, or zero.
+   */
+  long getWriteStart() {
+    return(myWriteStart);
+  }
+
+  /**
+   * Whether data was dropped since the last time this
+   * was called.
+   */
+  synchronized boolean takeLost() {
+    boolean retObj = myLost;
+    myLost = false;
+    return(retObj);
+  }
+
+  //-------------------------------------------------------------
+  //          OutputStream
+
+  /**
+   * Queue one byte.
+   */
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte)b }, 0, 1);
+  }
+
+  /**
+   * Queue data, doing what the policy says if there is
+   * no room (or with myWriteThrough, write it straight
+   * away if nothing is waiting).
+   * @throws IOException if the connection is (or is now)
+   *         closed.
+   */
+  public void write(byte[] data, int offset, int length) throws IOException {
+    boolean disconnect = false;
+    synchronized(this) {
+      if(myClosed || myClosing) {
+        throw(new IOException("connection closed"));
+      }
+      if((! myScheduled) && myWriteThrough) {
+        // nothing is waiting, so we can be the writer:
+        myScheduled = true;
+      } else if(length > myRing.length - myLength) {
+        myOverflows.incrementAndGet();
+        if(myPolicy == DROP) {
+          myLost = true;
+          myDropped.addAndGet(length);
+          return;
+        }
+        if((myPolicy == BLOCK) && waitForRoom(length)) {
+          add(data, offset, length);
+          return;
+        }
+        disconnect = true;
+      } else {
+        add(data, offset, length);
+        return;
+      }
+    }
+    if(disconnect) {
+      myDisconnects.incrementAndGet();
+      Log.info("OutboundQueue.write-->dropping a player who is {} bytes behind",
+               myRing.length);
+      myPlayer.closeNow();
+      throw(new IOException("too far behind"));
+    }
+    send(data, offset, length);
+    synchronized(this) {
+      if((myLength == 0) && (! myClosing)) {
+        myScheduled = false;
+        return;
+      }
+    }
+    // more came in while we were writing (or the
+    // connection is to be closed): a writer takes over.
+    myWriters.execute(this);
+  }
+
+  /**
+   * Queue data if there is room for it, and never wait.
+   * @return false if there wasn't room.
+   */
+  synchronized boolean offer(byte[] data, int offset, int length) {
+    if(myClosed || myClosing || (length > myRing.length - myLength)) {
+      return(false);
+    }
+    add(data, offset, length);
+    return(true);
+  }
+
+  /**
+   * Close the connection once the waiting data has been
+   * written (or the write timeout has passed).
+   */
+  public void close() {
+    synchronized(this) {
+      myClosing = true;
+      if(myScheduled || myClosed) {
+        // the writer closes it when it's done.
+        return;
+      }
+    }
+    closeSink();
+  }
+
+  /**
+   * Throw away the waiting data; the connection is being
+   * closed at once.
+   */
+  synchronized void abort() {
+    myClosed = true;
+    myQueued.addAndGet(-myLength);
+    myLength = 0;
+    notifyAll();
+  }
+
+  //-------------------------------------------------------------
+  //          the writer
+
+  /**
+   * Write the waiting data until there is none.  This
+   * runs on one of the writing threads.
+   */
+  public void run() {
+    while(true) {
+      int start;
+      int count;
+      synchronized(this) {
+        if((myLength == 0) || myClosed) {
+          myScheduled = false;
+          if((! myClosing) || myClosed) {
+            return;
+          }
+          break;
+        }
+        start = myHead;
+        count = Math.min(myLength, myRing.length - myHead);
+      }
+      try {
+        send(myRing, start, count);
+      } catch(IOException e) {
+        return;
+      }
+      synchronized(this) {
+        if(! myClosed) {
+          myHead = (myHead + count) % myRing.length;
+          myLength -= count;
+          myQueued.addAndGet(-count);
+        }
+        notifyAll();
+      }
+    }
+    // the queue was closed gracefully and is now empty:
+    closeSink();
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Copy data into the ring and make sure a writer is
+   * coming.  The caller holds the lock and has checked
+   * that there is room.
+   */
+  private void add(byte[] data, int offset, int length) {
+    int tail = (myHead + myLength) % myRing.length;
+    int first = Math.min(length, myRing.length - tail);
+    System.arraycopy(data, offset, myRing, tail, first);
+    System.arraycopy(data, offset + first, myRing, 0, length - first);
+    myLength += length;
+    myQueued.addAndGet(length);
+    myDepths.record(myLength);
+    if(! myScheduled) {
+      myScheduled = true;
+      myWriters.execute(this);
+    }
+  }
+
+  /**
+   * Wait (holding the lock) until there is room for the
+   * given number of bytes or the block timeout passes.
+   * @return false if there still isn't room.
+   */
+  private boolean waitForRoom(int length) throws IOException {
+    long start = System.nanoTime();
+    long deadline = System.currentTimeMillis() + myBlockTimeout;
+    try {
+      while((length > myRing.length - myLength) && (! myClosed)) {
+        long wait = deadline - System.currentTimeMillis();
+        if(wait <= 0) {
+          return(false);
+        }
+        wait(wait);
+      }
+    } catch(InterruptedException e) {
+      throw(new InterruptedIOException());
+    } finally {
+      myBlocked.record((System.nanoTime() - start) / 1000);
+    }
+    if(myClosed) {
+      throw(new IOException("connection closed"));
+    }
+    return(true);
+  }
+
+  /**
+   * Write to the stream the data goes to, noting when
+   * the write began so the sweeper can see one that is
+   * stuck.  If the write fails, the connection is closed.
+   */
+  private void send(byte[] data, int offset, int length) throws IOException {
+    myWriteStart = System.currentTimeMillis();
+    myWriting.add(this);
+    try {
+      mySink.write(data, offset, length);
+    } catch(IOException e) {
+      synchronized(this) {
+        myScheduled = false;
+      }
+      myPlayer.closeNow();
+      throw(e);
+    } finally {
+      myWriteStart = 0;
+      myWriting.remove(this);
+    }
+  }
+
+  /**
+   * Close the stream the data goes to, which closes the
+   * connection.
+   */
+  private void closeSink() {
+    synchronized(this) {
+      myClosed = true;
+      notifyAll();
+    }
+    myPlayer.closeNow();
+  }
+
+  /**
+   * This class closes the connections whose writes have
+   * been stuck for longer than myWriteTimeout.
+   */
+  static class Sweeper extends TimerWheel.Timer {
+
+    /**
+     * Called on the timer thread.
+     */
+    protected void expire() {
+      long now = System.currentTimeMillis();
+      for(Iterator<OutboundQueue> it = myWriting.iterator(); it.hasNext(); ) {
+        OutboundQueue queue = it.next();
+        long writeStart = queue.getWriteStart();
+        if((writeStart != 0) && (now - writeStart >= myWriteTimeout)) {
+          myStuck.incrementAndGet();
+          Log.info("OutboundQueue.Sweeper-->closing a connection whose "
+                   + "write was stuck for {} ms", now - writeStart);
+          // this makes the write fail, which frees the writer:
+          queue.myPlayer.closeNow();
+        }
+      }
+      ServerGame.TIMERS.schedule(this, myWriteTimeout / 2 + 1);
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+package net.frog_parrot.server;
+
+import java.util.concurrent.*;
+
+import net.frog_parrot.checkers.EndgameTable;
+import net.frog_parrot.checkers.Engine;
+import net.frog_parrot.checkers.Position;
+import net.frog_parrot.checkers.TranspositionTable;
+
+/**
+ * This class works out a whole turn for a Bot with the
+ * client's Engine, searching each move with several
+ * engines at once, one per thread, all sharing a
+ * lock-free TranspositionTable ("lazy SMP").  The engines
+ * don't divide the work between them: each searches the
+ * whole tree on its own copy of the Position, and what
+ * one finds is in the table for the others, so together
+ * they get deeper sooner.  Half of the helpers begin a
+ * pass deeper than the main engine, so they are usually
+ * a pass ahead and fill the table with the deeper
+ * results the main engine needs next.  The move chosen
+ * is always the main engine's, which searches on the
+ * caller's thread; the helpers are halted as soon as it
+ * is done.
+ * <p>
+ * The helper threads are made the first time they are
+ * needed, and a search only one turn deep doesn't use
+ * them.  A ParallelSearch must only be used by one
+ * thread at a time.
+ *
+ * @author Carol Hamer
+ */
+class ParallelSearch {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The most moves in one turn (a run of jumps can take
+   * at most the opponent's twelve pieces).
+   */
+  static final int MAX_TURN = 16;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The engine that searches on the caller's thread.
+   */
+  private Engine myMain;
+
+  /**
+   * The engines that search on the helper threads, and
+   * the copies of the position they search.
+   */
+  private Engine[] myHelpers;
+  private Position[] myHelperPositions;
+
+  /**
+   * The helper threads, made when they are first needed.
+   */
+  private ExecutorService myPool;
+
+  /**
+   * What makeMove returned for each move of the turn,
+   * so the moves can be taken back.
+   */
+  private int[] myUndo = new int[MAX_TURN];
+
+  /**
+   * The number of positions all of the engines looked at
+   * in the last search, and the depth the main engine
+   * reached for the turn's first move.
+   */
+  private long myNodes;
+  private int myDepth;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor makes the engines.
+   * @param threads the number of engines, counting the
+   *        main one.
+   * @param table the table they share (it may also be
+   *        shared with other searches).
+   * @param endgames the tablebase to look positions up
+   *        in, or null.
+   */
+  ParallelSearch(int threads, TranspositionTable table,
+                 EndgameTable endgames) {
+    myMain = new Engine(table);
+    myMain.setEndgameTable(endgames);
+    myHelpers = new Engine[Math.max(0, threads - 1)];
+    myHelperPositions = new Position[myHelpers.length];
+    for(int i = 0; i < myHelpers.length; i++) {
+      myHelpers[i] = new Engine(table);
+      myHelpers[i].setEndgameTable(endgames);
+      myHelperPositions[i] = new Position();
+    }
+  }
+
+  /**
+   * Stop the helper threads.
+   */
+  void shutdown() {
+    if(myPool != null) {
+      myPool.shutdownNow();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          get data
+
+  /**
+   * get the depth (in turns) the main engine searched
+   * the first move of the last turn to.
+   */
+  int getDepth() {
+    return(myDepth);
+  }
+
+  /**
+   * get the number of positions all of the engines
+   * looked at in the last search.
+   */
+  long getNodes() {
+    return(myNodes);
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Find the best turn for the player to move: a move,
+   * and then, as long as the same piece may jump again
+   * and the engine would rather go on than stop, the next
+   * jump.  The first pass of each move's search (one turn
+   * deep) always finishes, however late it is.
+   * @param position the position at the start of the
+   *        turn, which is left as it was.
+   * @param deadline when to stop (System.currentTimeMillis()).
+   * @param maxDepth the deepest pass, in turns.
+   * @param turn the moves of the turn are written here,
+   *        packed by Position.pack().
+   * @return the number of moves, or zero if the player
+   *         can't move.
+   */
+  int search(Position position, long deadline, int maxDepth, int[] turn) {
+    myNodes = 0;
+    myDepth = 0;
+    int retObj = 0;
+    while(retObj < MAX_TURN) {
+      int move = searchMove(position, deadline, maxDepth);
+      if(retObj == 0) {
+        myDepth = myMain.getDepth();
+      }
+      if((move < 0) || (move == Position.END_TURN)) {
+        break;
+      }
+      turn[retObj] = move;
+      myUndo[retObj++] = position.makeMove(move);
+      if(position.getJumping() < 0) {
+        // the turn is over:
+        break;
+      }
+    }
+    for(int i = retObj - 1; i >= 0; i--) {
+      position.unmakeMove(turn[i], myUndo[i]);
+    }
+    return(retObj);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Search for one move, with the helpers if there are
+   * any.
+   * @return the move, as Engine.search() returns it.
+   */
+  private int searchMove(Position position, long deadline, int maxDepth) {
+    if((myHelpers.length == 0) || (maxDepth <= 1)) {
+      int retObj = myMain.search(position, deadline, maxDepth, 1);
+      myNodes += myMain.getNodes();
+      return(retObj);
+    }
+    if(myPool == null) {
+      myPool = Executors.newFixedThreadPool(myHelpers.length,
+          new ThreadFactory() {
+            private int myCount;
+            public synchronized Thread newThread(Runnable r) {
+              Thread retObj = new Thread(r, Thread.currentThread().getName()
+                                         + "-helper-" + (myCount++));
+              retObj.setDaemon(true);
+              retObj.setPriority(Thread.currentThread().getPriority());
+              return(retObj);
+            }
+          });
+    }
+    Future<?>[] futures = new Future<?>[myHelpers.length];
+    for(int i = 0; i < myHelpers.length; i++) {
+      final Engine helper = myHelpers[i];
+      final Position copy = myHelperPositions[i];
+      final long helperDeadline = deadline;
+      final int helperDepth = maxDepth;
+      final int firstDepth = 1 + (i + 1) % 2;
+      copy.set(position);
+      helper.setHalted(false);
+      futures[i] = myPool.submit(new Runnable() {
+          public void run() {
+            helper.search(copy, helperDeadline, helperDepth, firstDepth);
+          }
+        });
+    }
+    int retObj;
+    try {
+      retObj = myMain.search(position, deadline, maxDepth, 1);
+    } finally {
+      for(int i = 0; i < myHelpers.length; i++) {
+        myHelpers[i].setHalted(true);
+      }
+    }
+    myNodes += myMain.getNodes();
+    for(int i = 0; i < futures.length; i++) {
+      try {
+        futures[i].get();
+      } catch(ExecutionException e) {
+        Log.error("ParallelSearch.search-->helper failed:", e.getCause());
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      myNodes += myHelpers[i].getNodes();
+    }
+    return(retObj);
+  }
+
+}
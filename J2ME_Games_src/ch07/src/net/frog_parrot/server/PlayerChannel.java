@@ -0,0 +1,222 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * This class holds the non-blocking connection to one
+ * player along with the buffers of data that have been
+ * read from the player but not yet relayed and data that
+ * is waiting to be written to the player.
+ *
+ * @author Carol Hamer
+ */
+public class PlayerChannel {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The size of the incoming buffer.  The player who
+   * is not currently moving may send data before
+   * it is his turn, so we leave room for a few frames.
+   */
+  static final int INPUT_SIZE = 64;
+
+  /**
+   * The size of the outgoing buffer.  If this fills up,
+   * the player is not reading, so we drop the game.
+   */
+  static final int OUTPUT_SIZE = 256;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The channel that connects to the player.
+   */
+  private SocketChannel myChannel;
+
+  /**
+   * The key from the reactor's selector.
+   */
+  private SelectionKey myKey;
+
+  /**
+   * The game table that this player is seated at.
+   */
+  private NioTable myTable;
+
+  /**
+   * Which seat (0 or 1) at the table this player holds.
+   */
+  private int mySeat;
+
+  /**
+   * Bytes read from the player that have not yet been
+   * relayed.
+   */
+  private ByteBuffer myInput = ByteBuffer.allocate(INPUT_SIZE);
+
+  /**
+   * Bytes waiting to be written to the player.  This
+   * buffer is kept in "write mode" between calls.
+   */
+  private ByteBuffer myOutput = ByteBuffer.allocate(OUTPUT_SIZE);
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor just sets the data.
+   */
+  PlayerChannel(SocketChannel channel, NioTable table, int seat) {
+    myChannel = channel;
+    myTable = table;
+    mySeat = seat;
+  }
+
+  /**
+   * Register the channel with the given selector.  This
+   * must be called on the thread that owns the selector.
+   */
+  void register(Selector selector) throws IOException {
+    myKey = myChannel.register(selector, SelectionKey.OP_READ, this);
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get the table this player is seated at.
+   */
+  NioTable getTable() {
+    return(myTable);
+  }
+
+  /**
+   * get the seat number of this player.
+   */
+  int getSeat() {
+    return(mySeat);
+  }
+
+  /**
+   * get the buffer of unrelayed input.  The buffer
+   * is in "write mode": position is the number of
+   * bytes available.
+   */
+  ByteBuffer getInput() {
+    return(myInput);
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Read whatever is available from the socket.
+   * @return false if the player has closed the connection.
+   */
+  boolean read() throws IOException {
+    if(myInput.hasRemaining()) {
+      int numRead = myChannel.read(myInput);
+      if(numRead < 0) {
+        return(false);
+      }
+      if(numRead > 0) {
+        RelayStats.read(numRead);
+      }
+    }
+    if(! myInput.hasRemaining()) {
+      // the buffer is full of frames that aren't
+      // needed yet, so we leave the rest in the socket
+      // and stop listening for it until take() makes
+      // room (otherwise the selector would wake us for
+      // it over and over):
+      setInterest();
+    }
+    return(true);
+  }
+
+  /**
+   * Take the first four bytes of the unrelayed input,
+   * which must be there, and listen for more input if
+   * the buffer was full.
+   */
+  void take(byte[] frame) {
+    boolean wasFull = ! myInput.hasRemaining();
+    myInput.flip();
+    myInput.get(frame);
+    myInput.compact();
+    if(wasFull) {
+      setInterest();
+    }
+  }
+
+  /**
+   * Queue four bytes to be sent to the player and try
+   * to send them right away.
+   * @return false if the player is too far behind
+   * in reading.
+   */
+  boolean write(byte[] frame) throws IOException {
+    if(myOutput.remaining() < frame.length) {
+      OutboundQueue.myOverflows.incrementAndGet();
+      return(false);
+    }
+    myOutput.put(frame);
+    flush();
+    OutboundQueue.myDepths.record(myOutput.position());
+    return(true);
+  }
+
+  /**
+   * Write as much of the pending output as the socket
+   * will take, and ask the selector to tell us when
+   * more can be written.
+   */
+  void flush() throws IOException {
+    myOutput.flip();
+    int written = myChannel.write(myOutput);
+    myOutput.compact();
+    if(written > 0) {
+      RelayStats.wrote(written);
+    }
+    setInterest();
+  }
+
+  /**
+   * Tell the selector what we are waiting for: input
+   * while there is room for it, and a chance to write
+   * while there is output left to send.
+   */
+  private void setInterest() {
+    if((myKey != null) && myKey.isValid()) {
+      int ops = 0;
+      if(myInput.hasRemaining()) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if(myOutput.position() > 0) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      myKey.interestOps(ops);
+    }
+  }
+
+  /**
+   * Close the connection.  Exceptions are ignored since
+   * the player may already be gone.
+   */
+  void close() {
+    try {
+      if(myKey != null) {
+        myKey.cancel();
+      }
+      myChannel.close();
+    } catch(IOException e) {
+      // the player has probably left already.
+    }
+  }
+
+}
@@ -0,0 +1,431 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class holds the connection to one player from
+ * the time the player is accepted until the end of
+ * the game.  While the player is in the Lobby, the
+ * state field decides which thread (a matching thread
+ * or the lobby's sweeper) gets to use the socket.
+ *
+ * @author Carol Hamer
+ */
+public class PlayerConnection {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The player is in the lobby and may be taken.
+   */
+  static final int WAITING = 0;
+
+  /**
+   * The sweeper is checking whether the player is still there.
+   */
+  static final int PROBING = 1;
+
+  /**
+   * A matching thread has taken the player.
+   */
+  static final int CLAIMED = 2;
+
+  /**
+   * The player has left (or was dropped) and the
+   * socket is closed.
+   */
+  static final int DEAD = 3;
+
+  /**
+   * A matching thread took the player out of the lobby's
+   * queue while the sweeper was checking him, and left
+   * him for the sweeper to put back.
+   */
+  static final int ORPHANED = 4;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The socket connected to the player.
+   */
+  private Socket mySocket;
+
+  /**
+   * The stream we read from.  A byte read while checking
+   * whether the player is still there can be pushed back.
+   */
+  private PushbackInputStream myInput;
+
+  /**
+   * The stream we write to.
+   */
+  private OutputStream myOutput;
+
+  /**
+   * The queue that myOutput writes to once the handshake
+   * is over, or null before then.
+   */
+  private OutboundQueue myQueue;
+
+  /**
+   * When the player entered the lobby (System.nanoTime()).
+   */
+  private long myArrivalTime;
+
+  /**
+   * Whether the client sent the hello flag, meaning that
+   * it can take its seat back if its connection drops.
+   */
+  private boolean myResumable;
+
+  /**
+   * Whether the client speaks version 2 of the protocol.
+   */
+  private boolean myFramed;
+
+  /**
+   * Whether the client asked to play the computer.
+   */
+  private boolean myWantsBot;
+
+  /**
+   * The id the client gave with the player flag, or zero 
+   * if it didn't (see RatingService).
+   */
+  private long myPlayerId;
+
+  /**
+   * WAITING, PROBING, CLAIMED, DEAD or ORPHANED.
+   */
+  private AtomicInteger myState = new AtomicInteger(WAITING);
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor gets the streams from the socket.
+   */
+  PlayerConnection(Socket socket) throws IOException {
+    mySocket = socket;
+    myInput = new PushbackInputStream(socket.getInputStream(), 4);
+    myOutput = socket.getOutputStream();
+    myArrivalTime = System.nanoTime();
+  }
+
+  /**
+   * Constructor for a player who isn't at the other end 
+   * of a socket (see Bot), which must supply the streams 
+   * and its own closing and timeouts.
+   */
+  PlayerConnection() {
+    myArrivalTime = System.nanoTime();
+  }
+
+  /**
+   * Make a connection that is already closed, for a 
+   * player who is away (see Handoff).  Reading from it 
+   * finds the end of the stream and writing to it fails.
+   */
+  static PlayerConnection closed() {
+    PlayerConnection retObj = new PlayerConnection();
+    retObj.myState.set(DEAD);
+    retObj.myInput = new PushbackInputStream(
+        new ByteArrayInputStream(new byte[0]), 4);
+    retObj.myOutput = new OutputStream() {
+        public void write(int b) throws IOException {
+          throw(new IOException("the player is away"));
+        }
+      };
+    return(retObj);
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get the socket.
+   */
+  Socket getSocket() {
+    return(mySocket);
+  }
+
+  /**
+   * get the stream to read the player's data from.
+   */
+  InputStream getInput() {
+    return(myInput);
+  }
+
+  /**
+   * get the stream to write to the player.
+   */
+  OutputStream getOutput() {
+    return(myOutput);
+  }
+
+  /**
+   * get the time the player arrived, in System.nanoTime() units.
+   */
+  long getArrivalTime() {
+    return(myArrivalTime);
+  }
+
+  /**
+   * Whether the client can resume a game.
+   */
+  boolean isResumable() {
+    return(myResumable);
+  }
+
+  /**
+   * Note that the client can resume a game.
+   */
+  void setResumable(boolean resumable) {
+    myResumable = resumable;
+  }
+
+  /**
+   * Whether the client asked to play the computer.
+   */
+  boolean wantsBot() {
+    return(myWantsBot);
+  }
+
+  /**
+   * Note whether the client asked to play the computer.
+   */
+  void setWantsBot(boolean wantsBot) {
+    myWantsBot = wantsBot;
+  }
+
+  /**
+   * get the id the client gave, or zero.
+   */
+  long getPlayerId() {
+    return(myPlayerId);
+  }
+
+  /**
+   * Note the id the client gave.
+   */
+  void setPlayerId(long id) {
+    myPlayerId = id;
+  }
+
+  /**
+   * Whether the client speaks version 2 of the protocol.
+   */
+  boolean isFramed() {
+    return(myFramed);
+  }
+
+  /**
+   * Speak version 2 of the protocol from now on: the 
+   * streams are wrapped so that everyone else still 
+   * reads and writes four-byte frames.
+   */
+  void useFrames() {
+    myFramed = true;
+    myInput = new PushbackInputStream(new FrameCodec.Input(myInput), 4);
+    myOutput = new FrameCodec.Output(myOutput);
+  }
+
+  /**
+   * Send everything written from now on through a
+   * bounded queue, so the threads writing to the player
+   * don't wait for him.  This is called once the
+   * protocol is settled, since the queue sits above the
+   * version 2 encoder.
+   */
+  void startQueue() {
+    myQueue = new OutboundQueue(this, myOutput);
+    myOutput = myQueue;
+  }
+
+  /**
+   * get when the write to the player in progress began,
+   * or zero.
+   */
+  long getWriteStart() {
+    return((myQueue == null) ? 0 : myQueue.getWriteStart());
+  }
+
+  /**
+   * Whether output to the player has been thrown away
+   * since the last time this was called (see
+   * OutboundQueue.DROP).
+   */
+  boolean takeLost() {
+    return((myQueue != null) && myQueue.takeLost());
+  }
+
+  /**
+   * Whether the connection has been closed.
+   */
+  boolean isClosed() {
+    return((mySocket == null) || mySocket.isClosed());
+  }
+
+  /**
+   * Set how long a read may wait before it throws a 
+   * SocketTimeoutException, in milliseconds (zero means 
+   * forever).
+   */
+  void setReadTimeout(int timeout) throws IOException {
+    if(mySocket != null) {
+      mySocket.setSoTimeout(timeout);
+    }
+  }
+
+  /**
+   * Attempt to move from one state to another.
+   */
+  boolean changeState(int from, int to) {
+    return(myState.compareAndSet(from, to));
+  }
+
+  /**
+   * get the current state.
+   */
+  int getState() {
+    return(myState.get());
+  }
+
+  /**
+   * Put a claimed player back into the waiting state.
+   */
+  void release() {
+    myState.set(WAITING);
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Check whether a waiting player is still connected.
+   * A waiting player sends nothing until the game begins,
+   * except the end game flag if he gives up, so we can
+   * take a quick look at the stream.  Any other data
+   * is pushed back so that the game will read it.
+   */
+  boolean isAlive() {
+    try {
+      if(mySocket.isClosed()) {
+        return(false);
+      }
+      mySocket.setSoTimeout(1);
+      int data = myInput.read();
+      if((data < 0) || ((byte)data == ServerGame.END_GAME_FLAG)) {
+        return(false);
+      }
+      myInput.unread(data);
+      return(true);
+    } catch(SocketTimeoutException e) {
+      // nothing to read, but still connected:
+      return(true);
+    } catch(IOException e) {
+      return(false);
+    } finally {
+      try {
+        mySocket.setSoTimeout(0);
+      } catch(IOException e) {
+        // the socket is gone, which the caller will find out.
+      }
+    }
+  }
+
+  /**
+   * A quicker check than isAlive() that never waits: it 
+   * only sees a player who has sent the end game flag 
+   * or whose socket we have closed.  This is used while 
+   * pairing, where a player held out of the lobby for 
+   * long would let later arrivals be paired first.
+   */
+  boolean hasQuit() {
+    try {
+      if(mySocket.isClosed()) {
+        return(true);
+      }
+      if(myInput.available() > 0) {
+        int data = myInput.read();
+        if((data < 0) || ((byte)data == ServerGame.END_GAME_FLAG)) {
+          return(true);
+        }
+        myInput.unread(data);
+      }
+      return(false);
+    } catch(IOException e) {
+      return(true);
+    }
+  }
+
+  /**
+   * Send four bytes.
+   */
+  void write(byte[] data) throws IOException {
+    getOutput().write(data);
+  }
+
+  /**
+   * Send the data if it can go without waiting (there is
+   * room in the queue), otherwise skip it.  This is for
+   * heartbeats, which needn't be sent to a player who
+   * has data waiting already.
+   * @return whether the data was sent.
+   */
+  boolean offer(byte[] data, int length) {
+    if(myQueue == null) {
+      return(false);
+    }
+    return(myQueue.offer(data, 0, length));
+  }
+
+  /**
+   * Tell the player the game is over (if possible) and
+   * close the connection.
+   */
+  void drop() {
+    myState.set(DEAD);
+    try {
+      byte[] data = { ServerGame.END_GAME_FLAG, 0, 0, 0 };
+      getOutput().write(data);
+    } catch(IOException e) {
+      // the player has probably left already.
+    }
+    close();
+  }
+
+  /**
+   * Close the connection once the data waiting for the
+   * player has been sent.
+   */
+  void close() {
+    if(myQueue == null) {
+      closeNow();
+    } else {
+      myQueue.close();
+    }
+  }
+
+  /**
+   * Close the socket at once, throwing away any data
+   * still waiting, and ignoring errors.
+   */
+  void closeNow() {
+    if(myQueue != null) {
+      myQueue.abort();
+    }
+    try {
+      if(mySocket != null) {
+        mySocket.close();
+      }
+    } catch(IOException e) {
+      // nothing more can be done.
+    }
+  }
+
+}
@@ -0,0 +1,611 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * This class is a table that a cluster's front end (see
+ * ClusterFront) has handed to a back end.  The front end
+ * keeps the players' connections and their seats, so
+ * the players resume their games with the front end as
+ * usual, and it opens a connection to the back end for
+ * each player.  Four pumps pass the frames along: one
+ * from each player to his connection to the back end,
+ * and one from each of those to the player.  The back
+ * end runs the game (checking the moves, timing the
+ * players and sending to the spectators) as if the
+ * front end's connections were the players.
+ * <p>
+ * Each frame that the back end relays to a player is
+ * added to the table's history, and the frames each
+ * player sent are kept in a ring until the back end has
+ * relayed them.  If the back end dies, the table is
+ * sent to another back end with the history, and the
+ * frames it hadn't relayed yet are sent again.
+ * <p>
+ * Locks are taken in order: the table's, then the lock
+ * of the connection to the back end for either player.
+ *
+ * @author Carol Hamer
+ */
+class ProxyTable implements Runnable {
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The front end.
+   */
+  private ClusterFront myFront;
+
+  /**
+   * The table number, which the back end uses too.
+   */
+  private int myNumber;
+
+  /**
+   * The two players' places at the table.  The player
+   * in mySeats[0] moves first.
+   */
+  private Seat[] mySeats = new Seat[2];
+
+  /**
+   * The back end the table is at, or null.
+   */
+  private ClusterFront.Backend myBackend;
+
+  /**
+   * The connections to the back end, one for each player.
+   * Writing to one holds its lock (in myLocks).
+   */
+  private Socket[] myUpstreams = new Socket[2];
+  private OutputStream[] myOutputs = new OutputStream[2];
+  private Object[] myLocks = { new Object(), new Object() };
+
+  /**
+   * Counts the back ends the table has been at, so the
+   * pumps reading from an old one know to stop.
+   */
+  private int myGeneration;
+
+  /**
+   * The frames the back end has relayed, in order.
+   */
+  private byte[] myHistory = new byte[256];
+  private int myHistoryLength;
+
+  /**
+   * Whether the back end has told the first player to go.
+   */
+  private boolean myStarted;
+
+  /**
+   * The number of game frames forwarded from each player,
+   * and the number of those the back end has relayed.
+   * Each forwarded count is only used while holding that
+   * player's lock, and the relayed counts while holding
+   * the table's.
+   */
+  private long[] myForwarded = new long[2];
+  private long[] myRelayed = new long[2];
+
+  /**
+   * The last frames forwarded from each player, as rings.
+   */
+  private byte[][] myPending = new byte[2][Seat.LOG_FRAMES * 4];
+
+  /**
+   * The ids the players gave, for the ratings.
+   */
+  private long[] myPlayerIds = new long[2];
+
+  /**
+   * Whether a player has ended the game (and lost it).
+   */
+  private boolean myResigned;
+
+  /**
+   * Whether the game is over.
+   */
+  private volatile boolean myEnded;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor seats the players.  Both have already
+   * been sent the start game flag.
+   */
+  ProxyTable(ClusterFront front, int number, PlayerConnection player1,
+             PlayerConnection player2) {
+    myFront = front;
+    myNumber = number;
+    mySeats[0] = new Seat(1, player1);
+    mySeats[1] = new Seat(2, player2);
+    myPlayerIds[0] = player1.getPlayerId();
+    myPlayerIds[1] = player2.getPlayerId();
+  }
+
+  //-------------------------------------------------------------
+  //          get data
+
+  /**
+   * get the table number.
+   */
+  int getNumber() {
+    return(myNumber);
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Send the players their sessions, then hand the table
+   * to a back end and start the pumps.  This runs on a
+   * lobby thread and returns at once.
+   */
+  public void run() {
+    RelayStats.tableStarted();
+    myFront.opened(this);
+    try {
+      mySeats[0].openSession();
+      mySeats[1].openSession();
+      mySeats[0].sendGame(myNumber);
+      mySeats[1].sendGame(myNumber);
+    } catch(IOException e) {
+      Log.info("ProxyTable.run-->game ended:", e.getMessage());
+      endGame(RelayStats.CONNECTION_LOST);
+      return;
+    }
+    synchronized(this) {
+      if(! connect()) {
+        Log.warn("ProxyTable.run-->no back end for table", myNumber);
+        myFront.failedOver(false);
+        endGame(RelayStats.ERROR);
+        return;
+      }
+    }
+    for(int i = 0; i < 2; i++) {
+      final int seat = i;
+      myFront.execute(new Runnable() {
+          public void run() {
+            pumpPlayer(seat);
+          }
+        });
+    }
+  }
+
+  /**
+   * Open a connection for a spectator to the back end
+   * the table is at, and ask it for the game.
+   * @return null if that isn't possible.
+   */
+  Socket watch() {
+    ClusterFront.Backend backend;
+    synchronized(this) {
+      backend = myBackend;
+    }
+    if((backend == null) || myEnded) {
+      return(null);
+    }
+    Socket retObj = null;
+    try {
+      retObj = backend.connect();
+      DataOutputStream output
+        = new DataOutputStream(retObj.getOutputStream());
+      output.write(Broadcast.WATCH_FLAG);
+      output.write(0);
+      output.write(0);
+      output.write(0);
+      output.writeInt(myNumber);
+      output.flush();
+      return(retObj);
+    } catch(IOException e) {
+      ClusterFront.closeQuietly(retObj);
+      return(null);
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Seat both players at a back end, with the game so far,
+   * and start reading from it.  The caller holds the
+   * table's lock, and both players' locks if the pumps
+   * from the players are running.
+   * @return false if no back end could be reached.
+   */
+  private boolean connect() {
+    ClusterFront.Backend backend = myFront.choose();
+    if(backend == null) {
+      return(false);
+    }
+    Socket[] sockets = new Socket[2];
+    try {
+      for(int i = 0; i < 2; i++) {
+        sockets[i] = backend.connect();
+        DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(sockets[i].getOutputStream()));
+        output.write(ServerGame.CLUSTER_FLAG);
+        output.write(i + 1);
+        output.write(0);
+        output.write(0);
+        output.writeInt(myNumber);
+        // a game that hasn't started has no history:
+        output.writeInt(myStarted ? myHistoryLength : -1);
+        output.write(myHistory, 0, myStarted ? myHistoryLength : 0);
+        output.flush();
+      }
+    } catch(IOException e) {
+      Log.warn("ProxyTable.connect-->back end failed:", backend);
+      ClusterFront.closeQuietly(sockets[0]);
+      ClusterFront.closeQuietly(sockets[1]);
+      return(false);
+    }
+    myBackend = backend;
+    backend.added(1);
+    myGeneration++;
+    for(int i = 0; i < 2; i++) {
+      myUpstreams[i] = sockets[i];
+      try {
+        myOutputs[i] = sockets[i].getOutputStream();
+      } catch(IOException e) {
+        // the pump will find it closed.
+        myOutputs[i] = new ByteArrayOutputStream();
+      }
+      final int seat = i;
+      final int generation = myGeneration;
+      final Socket socket = sockets[i];
+      myFront.execute(new Runnable() {
+          public void run() {
+            pumpBackend(seat, generation, socket);
+          }
+        });
+    }
+    return(true);
+  }
+
+  /**
+   * Pass what the back end sends for one player along to
+   * him, noting the game frames in the history.  This
+   * runs on a pump thread until the game ends or the
+   * connection is lost.
+   */
+  private void pumpBackend(int seat, int generation, Socket socket) {
+    Seat player = mySeats[seat];
+    byte[] data = new byte[1024];
+    byte[] turn = new byte[1024];
+    int length = 0;
+    try {
+      InputStream input = socket.getInputStream();
+      int numRead;
+      while((numRead = input.read(data, length, data.length - length)) >= 0) {
+        length += numRead;
+        int turnLength = 0;
+        int i = 0;
+        for(; i + 4 <= length; i += 4) {
+          byte flag = data[i];
+          if((flag >= 0) || (flag == ServerGame.END_TURN_FLAG)) {
+            if(! relayed(seat, generation, data, i)) {
+              // the table has moved on, but the frames
+              // already in the history are still ours:
+              if(turnLength > 0) {
+                player.send(turn, turnLength);
+              }
+              return;
+            }
+            System.arraycopy(data, i, turn, turnLength, 4);
+            turnLength += 4;
+            continue;
+          }
+          // the frames before a control frame go first:
+          if(turnLength > 0) {
+            player.send(turn, turnLength);
+            turnLength = 0;
+          }
+          if(flag == ServerGame.END_GAME_FLAG) {
+            endGame(RelayStats.QUIT);
+            return;
+          } else if(flag == ServerGame.START_GAME_FLAG) {
+            synchronized(this) {
+              if(generation != myGeneration) {
+                return;
+              }
+              myStarted = true;
+            }
+            player.sendControl(data, 4);
+          } else if(flag == ServerGame.HEARTBEAT_FLAG) {
+            player.sendHeartbeat(data, 4);
+          }
+        }
+        if(turnLength > 0) {
+          player.send(turn, turnLength);
+        }
+        length -= i;
+        System.arraycopy(data, i, data, 0, length);
+      }
+    } catch(IOException e) {
+      // a player who can't resume has gone, or the back end has:
+      if(player.getPlayer().isClosed() && (! player.isResumable())) {
+        resigned(seat);
+        endGame(RelayStats.CONNECTION_LOST);
+        return;
+      }
+    }
+    failover(generation);
+  }
+
+  /**
+   * Note a game frame the back end relayed to a player.
+   * @return false if the frame came from a back end the
+   *         table has left, and must be thrown away.
+   */
+  private synchronized boolean relayed(int seat, int generation,
+                                       byte[] data, int offset) {
+    if((generation != myGeneration) || myEnded) {
+      return(false);
+    }
+    if(myHistoryLength + 4 > myHistory.length) {
+      byte[] history = new byte[2 * myHistory.length];
+      System.arraycopy(myHistory, 0, history, 0, myHistoryLength);
+      myHistory = history;
+    }
+    System.arraycopy(data, offset, myHistory, myHistoryLength, 4);
+    myHistoryLength += 4;
+    // the frame came from the other player:
+    myRelayed[1 - seat]++;
+    return(true);
+  }
+
+  /**
+   * Pass one player's frames along to the back end.  This
+   * runs on a pump thread until the game ends.  If the
+   * player's connection drops and he can resume, we wait
+   * for him to come back (keeping his connection to the
+   * back end alive meanwhile) and go on.
+   */
+  private void pumpPlayer(int seat) {
+    Seat player = mySeats[seat];
+    byte[] data = new byte[4];
+    while(! myEnded) {
+      PlayerConnection connection = player.getPlayer();
+      try {
+        if(! readFour(connection, data)
+           || (data[0] == ServerGame.END_GAME_FLAG)) {
+          if(data[0] == ServerGame.END_GAME_FLAG) {
+            resigned(seat);
+          }
+          data[0] = ServerGame.END_GAME_FLAG;
+          data[1] = data[2] = data[3] = 0;
+          synchronized(myLocks[seat]) {
+            forward(seat, data);
+          }
+          return;
+        }
+        synchronized(myLocks[seat]) {
+          if(data[0] == ServerGame.HEARTBEAT_FLAG) {
+            player.setHeartbeats();
+          } else if(player.received(connection)) {
+            int slot = (int)(myForwarded[seat] % Seat.LOG_FRAMES) * 4;
+            System.arraycopy(data, 0, myPending[seat], slot, 4);
+            myForwarded[seat]++;
+          } else {
+            // read from a connection the player has
+            // replaced; he will send the frame again.
+            continue;
+          }
+          forward(seat, data);
+        }
+      } catch(IOException e) {
+        if(myEnded) {
+          return;
+        }
+        if((! player.isResumable())
+           || (awaitReturn(seat, connection) == null)) {
+          // he has left and isn't coming back:
+          resigned(seat);
+          data[0] = ServerGame.END_GAME_FLAG;
+          data[1] = data[2] = data[3] = 0;
+          synchronized(myLocks[seat]) {
+            forward(seat, data);
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * A player has ended the game before it was over (or 
+   * left it without coming back), so he has lost it.  
+   * The ratings are kept here, where the players' ids 
+   * are, rather than by the back end.
+   */
+  private void resigned(int seat) {
+    synchronized(this) {
+      if(myEnded || myResigned) {
+        return;
+      }
+      myResigned = true;
+    }
+    if(ServerGame.myRatings != null) {
+      ServerGame.myRatings.recordResult(myPlayerIds[1 - seat], 
+                                        myPlayerIds[seat]);
+    }
+  }
+
+  /**
+   * Wait for a dropped player to come back.  If he sends
+   * heartbeats, the back end is sent them for him while
+   * we wait, so it doesn't drop his connection.
+   * @return the new connection, or null if the player
+   *         didn't come back in time (or the game ended).
+   */
+  private PlayerConnection awaitReturn(int seat, PlayerConnection failed) {
+    Seat player = mySeats[seat];
+    byte[] heartbeat = { ServerGame.HEARTBEAT_FLAG, 0, 0, 0 };
+    long deadline = System.currentTimeMillis() + ServerGame.myResumeGrace;
+    long interval = ServerGame.myHeartbeatInterval;
+    Log.info("ProxyTable.awaitReturn-->waiting for player {} to return",
+             seat + 1);
+    try {
+      while(! myEnded) {
+        long wait = deadline - System.currentTimeMillis();
+        if(wait <= 0) {
+          return(null);
+        }
+        if(interval > 0) {
+          wait = Math.min(wait, interval);
+        }
+        PlayerConnection retObj = player.awaitReturn(failed, wait);
+        if(retObj != null) {
+          return(retObj);
+        }
+        if(player.sendsHeartbeats()) {
+          synchronized(myLocks[seat]) {
+            forward(seat, heartbeat);
+          }
+        }
+      }
+    } catch(InterruptedException e) {
+      // give up.
+    }
+    return(null);
+  }
+
+  /**
+   * Read one frame from a player.  The client leaves the
+   * game by sending the end game flag on its own, so
+   * that is accepted as a frame.
+   * @return false if the player closed the connection.
+   */
+  private boolean readFour(PlayerConnection connection, byte[] data)
+      throws IOException {
+    InputStream input = connection.getInput();
+    int total = 0;
+    while(total < 4) {
+      int numRead = input.read(data, total, 4 - total);
+      if(numRead < 0) {
+        if((total > 0) && (data[0] == ServerGame.END_GAME_FLAG)) {
+          return(true);
+        }
+        if(connection.isResumable()) {
+          throw(new EOFException("player left"));
+        }
+        return(false);
+      }
+      total += numRead;
+    }
+    RelayStats.read(4);
+    return(true);
+  }
+
+  /**
+   * Write a frame to a player's connection to the back
+   * end.  The caller holds the player's lock.  If the
+   * write fails, the back end has gone, and the frame
+   * will be sent to the next one.
+   */
+  private void forward(int seat, byte[] data) {
+    try {
+      myOutputs[seat].write(data, 0, 4);
+    } catch(IOException e) {
+      // see failover().
+    }
+  }
+
+  /**
+   * Called when a connection to the back end fails: if
+   * the back end has died, send the table to another
+   * one with the game so far, and send it the frames the
+   * dead one hadn't relayed.  If it is still there, it
+   * dropped the player, and the game is over.
+   */
+  private void failover(int generation) {
+    boolean moved = false;
+    synchronized(this) {
+      if((generation != myGeneration) || myEnded) {
+        return;
+      }
+      ClusterFront.Backend dead = myBackend;
+      if(! dead.awaitDeath(ClusterFront.myDeathTimeout)) {
+        Log.debug("ProxyTable.failover-->the back end ended table",
+                  myNumber);
+      } else {
+        Log.info("ProxyTable.failover-->moving table {} after {} frames",
+                 myNumber, myHistoryLength / 4);
+        synchronized(myLocks[0]) {
+          synchronized(myLocks[1]) {
+            closeUpstreams();
+            dead.added(-1);
+            myBackend = null;
+            if((myForwarded[0] - myRelayed[0] <= Seat.LOG_FRAMES)
+               && (myForwarded[1] - myRelayed[1] <= Seat.LOG_FRAMES)
+               && connect()) {
+              moved = true;
+              for(int i = 0; i < 2; i++) {
+                for(long j = myRelayed[i]; j < myForwarded[i]; j++) {
+                  int slot = (int)(j % Seat.LOG_FRAMES) * 4;
+                  try {
+                    myOutputs[i].write(myPending[i], slot, 4);
+                  } catch(IOException e) {
+                    // the pump will find it closed.
+                  }
+                }
+              }
+            }
+          }
+        }
+        myFront.failedOver(moved);
+      }
+    }
+    if(! moved) {
+      endGame(RelayStats.CONNECTION_LOST);
+    }
+  }
+
+  /**
+   * The game is over: tell the back end and the players,
+   * and close everything.  Only the first call does
+   * anything.
+   */
+  private void endGame(int reason) {
+    synchronized(this) {
+      if(myEnded) {
+        return;
+      }
+      myEnded = true;
+      byte[] data = { ServerGame.END_GAME_FLAG, 0, 0, 0 };
+      for(int i = 0; i < 2; i++) {
+        if(myOutputs[i] != null) {
+          synchronized(myLocks[i]) {
+            forward(i, data);
+          }
+        }
+      }
+      closeUpstreams();
+      if(myBackend != null) {
+        myBackend.added(-1);
+        myBackend = null;
+      }
+    }
+    myFront.closed(this);
+    RelayStats.tableEnded(reason);
+    mySeats[0].end();
+    mySeats[1].end();
+    Log.debug("ProxyTable.endGame-->table {} ended", myNumber);
+  }
+
+  /**
+   * Close the connections to the back end.  The caller
+   * holds the table's lock.
+   */
+  private void closeUpstreams() {
+    for(int i = 0; i < 2; i++) {
+      ClusterFront.closeQuietly(myUpstreams[i]);
+      myUpstreams[i] = null;
+    }
+  }
+
+}
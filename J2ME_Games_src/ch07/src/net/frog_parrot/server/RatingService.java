@@ -0,0 +1,773 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class keeps the players' Elo ratings and the
+ * leaderboard.  Only players who said who they are (with
+ * the player flag) are rated.  There are no accounts:
+ * instead a new player is given an id made up here and
+ * a tag, a MAC of the id under a key kept in the
+ * directory, and a player who comes back must show the
+ * tag with his id, so no one can play under an id that
+ * wasn't given to him.  When a player ends a game by
+ * sending the end game flag in the middle of it (having
+ * no move left, or giving up), or leaves it and doesn't
+ * come back, he has lost and his opponent has won.
+ * <p>
+ * The ratings are in a Leaderboard, so a player's rank
+ * or any stretch of the leaderboard is found in O(log n)
+ * steps.  Any number of queries run at once, holding the
+ * read lock, and each result holds the write lock for the
+ * few microseconds it takes to update the two players.
+ * <p>
+ * Each result is written to a write-ahead log with the
+ * players' new ratings (not just who won), so replaying
+ * it twice does no harm.  A writer thread of the
+ * service's own writes the log out and forces it to disk
+ * every FLUSH_INTERVAL, so a crash loses at most that
+ * much.  Now and then the writer starts a new log file
+ * and writes a snapshot of all the ratings, a slice at a
+ * time so the results never wait long; a result made
+ * during the snapshot is in the new log as well.  On
+ * start-up the service reads the newest snapshot and
+ * replays the logs from the one that was started with it,
+ * and older files are deleted.
+ * <p>
+ * Log records are RECORD_BYTES long: the winner's id,
+ * new rating and number of games (8, 4 and 4 bytes), the
+ * same for the loser, and a CRC32 of the rest, so a
+ * record cut off by a crash is recognized.
+ *
+ * @author Carol Hamer
+ */
+public class RatingService {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The rating of a new player.
+   */
+  static final int INITIAL_RATING = 1500;
+
+  /**
+   * A player's rating changes faster until he has played
+   * this many rated games.
+   */
+  static final int PROVISIONAL_GAMES = 30;
+
+  /**
+   * The most a rating can change in one game, during and
+   * after the provisional games.
+   */
+  static final int PROVISIONAL_K = 40;
+  static final int K = 20;
+
+  /**
+   * The length of a log record.
+   */
+  static final int RECORD_BYTES = 36;
+
+  /**
+   * The first int of a snapshot, and of its last entry.
+   */
+  static final int SNAPSHOT_MAGIC = 0x524b4e47;
+
+  /**
+   * How often the log is written out and forced to disk,
+   * in milliseconds.
+   */
+  static final long FLUSH_INTERVAL = 200;
+
+  /**
+   * The number of players copied to a snapshot at a time.
+   */
+  static final int SLICE = 4096;
+
+  /**
+   * How often a snapshot is written, in milliseconds.
+   */
+  static long mySnapshotInterval = 300000;
+
+  /**
+   * The MAC the players' tags are made with, and the 
+   * length of its key.
+   */
+  static final String MAC = "HmacSHA256";
+  static final int KEY_BYTES = 32;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The directory holding the files.
+   */
+  private File myDirectory;
+
+  /**
+   * The ratings.
+   */
+  private Leaderboard myBoard = new Leaderboard();
+
+  /**
+   * Held by queries, and taken for writing to change a
+   * rating.
+   */
+  private ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+
+  /**
+   * The log records not written out yet.  Only used
+   * while holding the service's monitor.
+   */
+  private ByteBuffer myPending = ByteBuffer.allocate(64 * RECORD_BYTES);
+
+  /**
+   * The buffer the writer is writing out.  Only the
+   * writer uses this.
+   */
+  private ByteBuffer myWriting = ByteBuffer.allocate(64 * RECORD_BYTES);
+
+  /**
+   * The log file being written to, and its number.
+   */
+  private FileChannel myLog;
+  private long myLogNumber;
+
+  /**
+   * Computes the record checksums.  Only used while
+   * holding the write lock, or during start-up.
+   */
+  private CRC32 myCrc = new CRC32();
+
+  /**
+   * The key the players' tags are made with.
+   */
+  private SecretKeySpec myKey;
+
+  /**
+   * Makes up the new players' ids.
+   */
+  private SecureRandom myRandom = new SecureRandom();
+
+  /**
+   * The statistics: results recorded, and rated players.
+   */
+  private AtomicLong myResults = new AtomicLong();
+  private AtomicLong myPlayers = new AtomicLong();
+
+  /**
+   * Whether or not the writer should stop.
+   */
+  private volatile boolean myShouldStop;
+
+  /**
+   * The writer thread.
+   */
+  private Thread myWriter;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor reads the ratings in the given directory
+   * (or starts with none) and starts the writer.
+   */
+  public RatingService(String directory) throws IOException {
+    myDirectory = new File(directory);
+    myDirectory.mkdirs();
+    myKey = new SecretKeySpec(readKey(), MAC);
+    recover();
+    myPlayers.set(myBoard.size());
+    Metrics.register("ratings.results", myResults);
+    Metrics.register("ratings.players", myPlayers);
+    myWriter = new Thread("Ratings") {
+        public void run() {
+          drain();
+        }
+      };
+    myWriter.setDaemon(true);
+    myWriter.start();
+  }
+
+  //-------------------------------------------------------------
+  //          get data
+
+  /**
+   * A summary for the log.
+   */
+  public String toString() {
+    return("ratings: players=" + myPlayers.get() + " results="
+           + myResults.get() + " log=" + myLogNumber);
+  }
+
+  /**
+   * get the number of rated players.
+   */
+  public int getPlayerCount() {
+    return((int)myPlayers.get());
+  }
+
+  /**
+   * get a player's rating.
+   * @return 0 if he has none.
+   */
+  public int getRating(long player) {
+    myLock.readLock().lock();
+    try {
+      Leaderboard.Node node = myBoard.find(player);
+      return((node == null) ? 0 : node.myRating);
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * get a player's place on the leaderboard: 1 for the best.
+   * @return 0 if he has no rating.
+   */
+  public int getRank(long player) {
+    myLock.readLock().lock();
+    try {
+      return(myBoard.rank(player));
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Copy part of the leaderboard, best first.
+   * @param first the rank to start at (1 for the best).
+   * @param ids the players' ids are written here.
+   * @param ratings and their ratings here.
+   * @return the number of players copied.
+   */
+  public int list(int first, long[] ids, int[] ratings) {
+    myLock.readLock().lock();
+    try {
+      return(myBoard.list(first, ids, ratings));
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Make up an id for a new player.
+   */
+  public long newPlayer() {
+    long retObj;
+    do {
+      retObj = myRandom.nextLong() & Long.MAX_VALUE;
+    } while(retObj == 0);
+    return(retObj);
+  }
+
+  /**
+   * get the tag that goes with a player's id: the first 
+   * eight bytes of the id's MAC.
+   */
+  public long sign(long player) {
+    byte[] mac = mac(player);
+    long retObj = 0;
+    for(int i = 0; i < 8; i++) {
+      retObj = (retObj << 8) | (mac[i] & 0xff);
+    }
+    return(retObj);
+  }
+
+  /**
+   * Whether a tag is the one that goes with the id, so 
+   * that the id was given out here.  The tags are 
+   * compared in constant time.
+   */
+  public boolean verify(long player, long tag) {
+    byte[] expected = new byte[8];
+    byte[] given = new byte[8];
+    long mine = sign(player);
+    for(int i = 0; i < 8; i++) {
+      expected[i] = (byte)(mine >> (56 - 8 * i));
+      given[i] = (byte)(tag >> (56 - 8 * i));
+    }
+    return(MessageDigest.isEqual(expected, given));
+  }
+
+  /**
+   * Record that one player beat another, and update both
+   * of their ratings.  This is called on a game thread,
+   * and never waits for the disk.
+   */
+  public void recordResult(long winner, long loser) {
+    if((winner == loser) || (winner == 0) || (loser == 0)) {
+      return;
+    }
+    myLock.writeLock().lock();
+    try {
+      Leaderboard.Node w = myBoard.find(winner);
+      Leaderboard.Node l = myBoard.find(loser);
+      int wRating = (w == null) ? INITIAL_RATING : w.myRating;
+      int lRating = (l == null) ? INITIAL_RATING : l.myRating;
+      int wGames = (w == null) ? 1 : w.myGames + 1;
+      int lGames = (l == null) ? 1 : l.myGames + 1;
+      // the winner's expected score, and how far short he
+      // was expected to fall of the win:
+      double surprise
+        = 1.0 - 1.0 / (1.0 + Math.pow(10, (lRating - wRating) / 400.0));
+      wRating += (int)Math.round(kFactor(wGames) * surprise);
+      lRating -= (int)Math.round(kFactor(lGames) * surprise);
+      myBoard.set(winner, wRating, wGames);
+      myBoard.set(loser, lRating, lGames);
+      myPlayers.set(myBoard.size());
+      log(winner, wRating, wGames, loser, lRating, lGames);
+    } finally {
+      myLock.writeLock().unlock();
+    }
+    myResults.incrementAndGet();
+  }
+
+  /**
+   * Write out what is in the log and stop the writer.
+   */
+  public void close() throws InterruptedException {
+    myShouldStop = true;
+    myWriter.join();
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * get the MAC of a player's id.
+   */
+  private byte[] mac(long player) {
+    try {
+      Mac mac = Mac.getInstance(MAC);
+      mac.init(myKey);
+      for(int i = 0; i < 8; i++) {
+        mac.update((byte)(player >> (56 - 8 * i)));
+      }
+      return(mac.doFinal());
+    } catch(GeneralSecurityException e) {
+      // every JVM has HmacSHA256:
+      throw(new IllegalStateException(e.getMessage()));
+    }
+  }
+
+  /**
+   * Read the key the tags are made with, making a new one 
+   * the first time.  It is written to a temporary file 
+   * and renamed, so a crash can't leave half a key.
+   */
+  private byte[] readKey() throws IOException {
+    File file = new File(myDirectory, "players.key");
+    byte[] retObj = new byte[KEY_BYTES];
+    if(file.exists()) {
+      DataInputStream input = new DataInputStream(new FileInputStream(file));
+      try {
+        input.readFully(retObj);
+      } finally {
+        input.close();
+      }
+      return(retObj);
+    }
+    myRandom.nextBytes(retObj);
+    File temp = new File(myDirectory, "players.key.tmp");
+    FileOutputStream output = new FileOutputStream(temp);
+    try {
+      output.write(retObj);
+      output.getFD().sync();
+    } finally {
+      output.close();
+    }
+    if(! temp.renameTo(file)) {
+      throw(new IOException("can't create " + file));
+    }
+    return(retObj);
+  }
+
+  /**
+   * How much a player's rating may change in one game.
+   */
+  private static int kFactor(int games) {
+    return((games <= PROVISIONAL_GAMES) ? PROVISIONAL_K : K);
+  }
+
+  /**
+   * Add a result to the log records waiting to be written.
+   * The caller holds the write lock.
+   */
+  private void log(long winner, int wRating, int wGames, long loser,
+                   int lRating, int lGames) {
+    byte[] record = new byte[RECORD_BYTES];
+    ByteBuffer buffer = ByteBuffer.wrap(record);
+    buffer.putLong(winner).putInt(wRating).putInt(wGames);
+    buffer.putLong(loser).putInt(lRating).putInt(lGames);
+    myCrc.reset();
+    myCrc.update(record, 0, RECORD_BYTES - 4);
+    buffer.putInt((int)myCrc.getValue());
+    synchronized(this) {
+      if(myPending.remaining() < RECORD_BYTES) {
+        ByteBuffer bigger = ByteBuffer.allocate(2 * myPending.capacity());
+        myPending.flip();
+        bigger.put(myPending);
+        myPending = bigger;
+      }
+      myPending.put(record);
+    }
+  }
+
+  /**
+   * The writer's loop: write out the log now and then,
+   * and write a snapshot less often.
+   */
+  private void drain() {
+    long lastSnapshot = System.currentTimeMillis();
+    while(true) {
+      try {
+        Thread.sleep(FLUSH_INTERVAL);
+      } catch(InterruptedException e) {
+        myShouldStop = true;
+      }
+      try {
+        flush(false);
+        if(myShouldStop) {
+          myLog.close();
+          return;
+        }
+        if(System.currentTimeMillis() - lastSnapshot >= mySnapshotInterval) {
+          lastSnapshot = System.currentTimeMillis();
+          snapshot();
+        }
+      } catch(IOException e) {
+        Log.error("RatingService.drain-->failed:", e);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Write the waiting records to the log and force them
+   * to disk.  With roll set, a new log file is started
+   * after them, in step with the callers adding records.
+   */
+  private void flush(boolean roll) throws IOException {
+    synchronized(this) {
+      ByteBuffer swap = myPending;
+      myPending = myWriting;
+      myWriting = swap;
+      if(roll) {
+        // records from now on go to the new file once
+        // this batch is in the old one:
+        myWriting.flip();
+        while(myWriting.hasRemaining()) {
+          myLog.write(myWriting);
+        }
+        myWriting.clear();
+        myLog.force(false);
+        myLog.close();
+        myLogNumber++;
+        myLog = openLog(myLogNumber);
+        return;
+      }
+    }
+    myWriting.flip();
+    if(! myWriting.hasRemaining()) {
+      myWriting.clear();
+      return;
+    }
+    while(myWriting.hasRemaining()) {
+      myLog.write(myWriting);
+    }
+    myWriting.clear();
+    myLog.force(false);
+  }
+
+  /**
+   * Start a new log and write every rating to a snapshot
+   * that goes with it.  The players are copied a slice at
+   * a time under the read lock, in the order of the table
+   * of ids, so a player may be copied after a later
+   * result; the new log has that result too.  (If a new
+   * player makes the table grow, the copying starts over.)
+   * The snapshot takes the place of the old one (and the
+   * old logs) only once it is complete and on disk.
+   */
+  private void snapshot() throws IOException {
+    flush(true);
+    long logNumber = myLogNumber;
+    File temp = new File(myDirectory, "ratings.snap.tmp");
+    long[] ids = new long[SLICE];
+    int[] ratings = new int[SLICE];
+    int[] games = new int[SLICE];
+    int[] next = new int[1];
+    int count;
+    boolean complete;
+    do {
+      FileOutputStream file = new FileOutputStream(temp);
+      DataOutputStream output 
+        = new DataOutputStream(new BufferedOutputStream(file, 65536));
+      count = 0;
+      complete = true;
+      try {
+        output.writeInt(SNAPSHOT_MAGIC);
+        output.writeLong(logNumber);
+        int slots = -1;
+        next[0] = 0;
+        while(true) {
+          int length;
+          myLock.readLock().lock();
+          try {
+            if((slots >= 0) && (slots != myBoard.getSlots())) {
+              complete = false;
+              break;
+            }
+            slots = myBoard.getSlots();
+            if(next[0] >= slots) {
+              break;
+            }
+            length = myBoard.copy(next[0], ids, ratings, games, next);
+          } finally {
+            myLock.readLock().unlock();
+          }
+          for(int i = 0; i < length; i++) {
+            output.writeLong(ids[i]);
+            output.writeInt(ratings[i]);
+            output.writeInt(games[i]);
+          }
+          count += length;
+        }
+        // an id of zero ends the list:
+        output.writeLong(0);
+        output.writeInt(count);
+        output.writeInt(SNAPSHOT_MAGIC);
+        output.flush();
+        file.getFD().sync();
+      } finally {
+        output.close();
+      }
+    } while(! complete);
+    File snapshot = new File(myDirectory, "ratings.snap");
+    if((! temp.renameTo(snapshot)) 
+       && ((! snapshot.delete()) || (! temp.renameTo(snapshot)))) {
+      throw(new IOException("can't replace " + snapshot));
+    }
+    deleteLogs(logNumber);
+    Log.info("RatingService.snapshot-->wrote {} players, log {}", count, 
+             logNumber);
+  }
+
+  /**
+   * Read the newest snapshot (if there is one) and the
+   * logs after it, and start a new log.
+   */
+  private void recover() throws IOException {
+    long first = readSnapshot(new File(myDirectory, "ratings.snap"));
+    long[] numbers = logNumbers();
+    myLogNumber = first;
+    byte[] record = new byte[RECORD_BYTES];
+    for(int i = 0; i < numbers.length; i++) {
+      if(numbers[i] < first) {
+        continue;
+      }
+      myLogNumber = numbers[i] + 1;
+      DataInputStream input = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(logFile(numbers[i])), 65536));
+      try {
+        while(true) {
+          try {
+            input.readFully(record);
+          } catch(EOFException e) {
+            break;
+          }
+          ByteBuffer buffer = ByteBuffer.wrap(record);
+          myCrc.reset();
+          myCrc.update(record, 0, RECORD_BYTES - 4);
+          if(buffer.getInt(RECORD_BYTES - 4) != (int)myCrc.getValue()) {
+            Log.warn("RatingService.recover-->log ends with a bad record:", 
+                     logFile(numbers[i]));
+            break;
+          }
+          myBoard.set(buffer.getLong(), buffer.getInt(), buffer.getInt());
+          myBoard.set(buffer.getLong(), buffer.getInt(), buffer.getInt());
+          myResults.incrementAndGet();
+        }
+      } finally {
+        input.close();
+      }
+    }
+    // the old logs are kept until a snapshot replaces them:
+    myLog = openLog(myLogNumber);
+    Log.info("RatingService.recover-->{} players, {} results replayed", 
+             myBoard.size(), myResults.get());
+  }
+
+  /**
+   * Read a snapshot into the leaderboard.
+   * @return the number of the first log to replay after 
+   *         it (zero if there is no good snapshot).
+   */
+  private long readSnapshot(File file) throws IOException {
+    if(! file.exists()) {
+      return(0);
+    }
+    DataInputStream input = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 65536));
+    try {
+      if(input.readInt() != SNAPSHOT_MAGIC) {
+        throw(new IOException("not a snapshot"));
+      }
+      long retObj = input.readLong();
+      int count = 0;
+      long id;
+      while((id = input.readLong()) != 0) {
+        myBoard.set(id, input.readInt(), input.readInt());
+        count++;
+      }
+      if((input.readInt() != count) 
+         || (input.readInt() != SNAPSHOT_MAGIC)) {
+        throw(new IOException("snapshot is incomplete"));
+      }
+      return(retObj);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * get the numbers of the log files, in order.
+   */
+  private long[] logNumbers() {
+    String[] names = myDirectory.list();
+    long[] retObj = new long[names.length];
+    int count = 0;
+    for(int i = 0; i < names.length; i++) {
+      if(names[i].startsWith("ratings.") && names[i].endsWith(".log")) {
+        try {
+          retObj[count++] = Long.parseLong(
+              names[i].substring(8, names[i].length() - 4));
+        } catch(NumberFormatException e) {
+          count--;
+        }
+      }
+    }
+    retObj = Arrays.copyOf(retObj, count);
+    Arrays.sort(retObj);
+    return(retObj);
+  }
+
+  /**
+   * Delete the log files a snapshot has replaced.
+   */
+  private void deleteLogs(long before) {
+    long[] numbers = logNumbers();
+    for(int i = 0; i < numbers.length; i++) {
+      if(numbers[i] < before) {
+        logFile(numbers[i]).delete();
+      }
+    }
+  }
+
+  /**
+   * get the file of a log.
+   */
+  private File logFile(long number) {
+    return(new File(myDirectory, "ratings." + number + ".log"));
+  }
+
+  /**
+   * Create a log file to append to.
+   */
+  private FileChannel openLog(long number) throws IOException {
+    return(new FileOutputStream(logFile(number), true).getChannel());
+  }
+
+  //-------------------------------------------------------------
+  //          main
+
+  /**
+   * Print the top of the leaderboard, or a player's rank, 
+   * or measure the service with made-up players.
+   * Usage: java net.frog_parrot.server.RatingService directory 
+   *        [player id | -bench players results]
+   */
+  public static void main(String[] args) throws Exception {
+    RatingService service = new RatingService(args[0]);
+    if((args.length > 1) && args[1].equals("-bench")) {
+      bench(service, Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+    } else if(args.length > 2) {
+      long id = Long.parseLong(args[2]);
+      System.out.println("player " + id + ": rating " + service.getRating(id)
+                         + ", rank " + service.getRank(id) + " of " 
+                         + service.getPlayerCount());
+    } else {
+      System.out.println(service);
+      long[] ids = new long[10];
+      int[] ratings = new int[10];
+      int count = service.list(1, ids, ratings);
+      for(int i = 0; i < count; i++) {
+        System.out.println((i + 1) + ". player " + ids[i] + ": " 
+                           + ratings[i]);
+      }
+    }
+    service.close();
+  }
+
+  /**
+   * Play random results between the given number of 
+   * players, then time more results, queries and a 
+   * snapshot, and print the rates.
+   */
+  private static void bench(RatingService service, int players, 
+                            int results) throws Exception {
+    Random random = new Random(1);
+    long start = System.nanoTime();
+    // everyone plays once, to be on the leaderboard:
+    for(int i = 1; i < players; i += 2) {
+      service.recordResult(i, i + 1);
+    }
+    long seeded = System.nanoTime();
+    for(int i = 0; i < results; i++) {
+      long winner = 1 + random.nextInt(players);
+      long loser = 1 + random.nextInt(players);
+      service.recordResult(winner, loser);
+    }
+    long played = System.nanoTime();
+    long sum = 0;
+    for(int i = 0; i < results; i++) {
+      sum += service.getRank(1 + random.nextInt(players));
+    }
+    long ranked = System.nanoTime();
+    long[] ids = new long[100];
+    int[] ratings = new int[100];
+    for(int i = 0; i < results; i++) {
+      sum += service.list(1 + random.nextInt(players), ids, ratings);
+    }
+    long listed = System.nanoTime();
+    service.snapshot();
+    long snapped = System.nanoTime();
+    System.out.println(service.getPlayerCount() + " players seeded in " 
+                       + (seeded - start) / 1000000 + " ms");
+    System.out.println("results/second: " 
+                       + (long)(results * 1e9 / (played - seeded)));
+    System.out.println("rank queries/second: " 
+                       + (long)(results * 1e9 / (ranked - played)));
+    System.out.println("100-player pages/second: " 
+                       + (long)(results * 1e9 / (listed - ranked)) 
+                       + " (checksum " + sum + ")");
+    System.out.println("snapshot: " + (snapped - listed) / 1000000 + " ms");
+  }
+
+}
@@ -0,0 +1,205 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * This class runs a selector loop that watches the
+ * sockets of many game tables at once, so that a table
+ * doesn't need a thread of its own.  NioRelay creates
+ * one Reactor per processor.
+ *
+ * @author Carol Hamer
+ */
+public class Reactor extends Thread {
+
+  //-------------------------------------------------------------
+  //          the players waiting to be seated
+
+  /**
+   * A player that the listening thread has accepted and
+   * that this thread has yet to register with the
+   * selector.
+   */
+  static class Pending {
+
+    /**
+     * The table, the player's channel and his seat.
+     */
+    NioTable myTable;
+    SocketChannel myChannel;
+    int mySeat;
+
+    /**
+     * The player handed over after this one.
+     */
+    Pending myNext;
+
+    /**
+     * Constructor sets the player.
+     */
+    Pending(NioTable table, SocketChannel channel, int seat) {
+      myTable = table;
+      myChannel = channel;
+      mySeat = seat;
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The selector that tells us which sockets are ready.
+   */
+  private Selector mySelector;
+
+  /**
+   * Players that have been accepted by the listening
+   * thread and are waiting to be registered with
+   * the selector, the first and the last.  Registration
+   * has to happen on this thread, so the listening
+   * thread leaves them here.
+   */
+  private Pending myFirstPending;
+  private Pending myLastPending;
+
+  /**
+   * The lock on the pending players.
+   */
+  private Object myPendingLock = new Object();
+
+  /**
+   * The number of tables on this reactor that have not
+   * ended yet.
+   */
+  private int myTableCount;
+
+  /**
+   * Whether or not this reactor should stop.
+   */
+  private volatile boolean myShouldStop;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor opens the selector.
+   */
+  Reactor(String name) throws IOException {
+    super(name);
+    mySelector = Selector.open();
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get the selector, only to be used on this thread.
+   */
+  Selector getSelector() {
+    return(mySelector);
+  }
+
+  /**
+   * get the number of tables this reactor is handling.
+   * This is only approximate when called from another
+   * thread.
+   */
+  int getTableCount() {
+    return(myTableCount);
+  }
+
+  /**
+   * Called by a table on this thread when its game ends.
+   */
+  void tableEnded() {
+    myTableCount--;
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Hand a newly accepted player to this reactor.
+   * This is called from the listening thread.
+   */
+  void addPlayer(NioTable table, SocketChannel channel, int seat) {
+    Pending entry = new Pending(table, channel, seat);
+    synchronized(myPendingLock) {
+      if(myLastPending == null) {
+        myFirstPending = entry;
+      } else {
+        myLastPending.myNext = entry;
+      }
+      myLastPending = entry;
+    }
+    mySelector.wakeup();
+  }
+
+  /**
+   * Stop the selector loop.
+   */
+  void requestStop() {
+    myShouldStop = true;
+    mySelector.wakeup();
+  }
+
+  /**
+   * The selector loop.
+   */
+  public void run() {
+    try {
+      while(! myShouldStop) {
+        mySelector.select();
+        registerPending();
+        Object[] keys = mySelector.selectedKeys().toArray();
+        mySelector.selectedKeys().clear();
+        for(int i = 0; i < keys.length; i++) {
+          SelectionKey key = (SelectionKey)keys[i];
+          PlayerChannel player = (PlayerChannel)key.attachment();
+          if(! key.isValid()) {
+            continue;
+          }
+          if(key.isWritable()) {
+            player.getTable().writable(player);
+          }
+          if(key.isValid() && key.isReadable()) {
+            player.getTable().readable(player);
+          }
+        }
+      }
+    } catch(Exception e) {
+      Log.error("Reactor.run-->caught Exception:", e);
+    } finally {
+      try {
+        mySelector.close();
+      } catch(IOException e) {
+        // we're done anyway.
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Seat the players that the listening thread has
+   * handed over since the last pass.
+   */
+  private void registerPending() {
+    Pending entry;
+    synchronized(myPendingLock) {
+      entry = myFirstPending;
+      myFirstPending = null;
+      myLastPending = null;
+    }
+    while(entry != null) {
+      if(entry.mySeat == 0) {
+        myTableCount++;
+      }
+      entry.myTable.seat(entry.myChannel, entry.mySeat);
+      entry = entry.myNext;
+    }
+  }
+
+}
@@ -0,0 +1,215 @@
+package net.frog_parrot.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class counts the writes that the game threads
+ * make to the players, so that the effect of sending
+ * a whole turn at once (see ServerGame.myCoalesceTimeout)
+ * can be seen.  Each write on a socket stream is one
+ * system call (and with SSL one record).  It also
+ * keeps the other relay metrics: the tables in play,
+ * the bytes read, how long turns take, how long a frame
+ * waits in the server, and why games end.  All of them
+ * are in the Metrics registry.
+ *
+ * @author Carol Hamer
+ */
+public class RelayStats {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The reasons a game ends: a player quit, a connection 
+   * was lost, a player broke the rules, a dropped player 
+   * didn't come back in time, a player went quiet, a 
+   * player stopped reading, something else went wrong, 
+   * the game was handed to the next server when this one 
+   * was drained, or it was cut off by the drain.
+   */
+  static final int QUIT = 0;
+  static final int CONNECTION_LOST = 1;
+  static final int ILLEGAL_MOVE = 2;
+  static final int NO_RETURN = 3;
+  static final int REAPED = 4;
+  static final int SLOW_READER = 5;
+  static final int ERROR = 6;
+  static final int HANDED_OFF = 7;
+  static final int DRAINED = 8;
+
+  /**
+   * The metric names of the reasons.
+   */
+  private static final String[] REASON_NAMES = { "quit", "connection_lost",
+    "illegal_move", "no_return", "reaped", "slow_reader", "error",
+    "handed_off", "drained" };
+
+  /**
+   * The number of writes to the players.
+   */
+  private static AtomicLong myWrites = Metrics.counter("relay.writes");
+
+  /**
+   * The number of bytes written to the players.
+   */
+  private static AtomicLong myBytes = Metrics.counter("relay.bytes_out");
+
+  /**
+   * The number of bytes read from the players.
+   */
+  private static AtomicLong myBytesIn = Metrics.counter("relay.bytes_in");
+
+  /**
+   * The number of turns relayed.
+   */
+  private static AtomicLong myTurns = Metrics.counter("relay.turns");
+
+  /**
+   * The number of bytes of move data relayed as part
+   * of the turns.
+   */
+  private static AtomicLong myTurnBytes = Metrics.counter("relay.turn_bytes");
+
+  /**
+   * The number of players dropped for going quiet.
+   */
+  private static AtomicLong myReaped = Metrics.counter("relay.reaped");
+
+  /**
+   * The number of games being played.
+   */
+  private static AtomicInteger myActiveTables = new AtomicInteger();
+
+  /**
+   * The number of games that ended for each reason.
+   */
+  private static AtomicLong[] myEndReasons 
+    = new AtomicLong[REASON_NAMES.length];
+
+  /**
+   * How long the players take over their turns, in 
+   * milliseconds.
+   */
+  private static Histogram myTurnTimes = Metrics.histogram("relay.turn_ms");
+
+  /**
+   * The time from reading a frame to having written it 
+   * to the opponent, in microseconds.
+   */
+  private static Histogram myLatency 
+    = Metrics.histogram("relay.latency_us");
+
+  static {
+    Metrics.register("tables.active", myActiveTables);
+    for(int i = 0; i < REASON_NAMES.length; i++) {
+      myEndReasons[i] = Metrics.counter("game_end." + REASON_NAMES[i]);
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Count one write of the given length.
+   */
+  static void wrote(int length) {
+    myWrites.incrementAndGet();
+    myBytes.addAndGet(length);
+  }
+
+  /**
+   * Count bytes read from a player.
+   */
+  static void read(int length) {
+    myBytesIn.addAndGet(length);
+  }
+
+  /**
+   * Note how long a frame took to get through the 
+   * server, in microseconds.
+   */
+  static void relayed(long micros) {
+    myLatency.record(micros);
+  }
+
+  /**
+   * Note how long a player took over a turn, in 
+   * milliseconds.
+   */
+  static void turnTook(long millis) {
+    myTurnTimes.record(millis);
+  }
+
+  /**
+   * Count a game that has begun.
+   */
+  static void tableStarted() {
+    myActiveTables.incrementAndGet();
+  }
+
+  /**
+   * Count a game that has ended, and why.
+   */
+  static void tableEnded(int reason) {
+    myActiveTables.decrementAndGet();
+    myEndReasons[(reason < 0) ? ERROR : reason].incrementAndGet();
+  }
+
+  /**
+   * Count one relayed turn of the given length.
+   */
+  static void turnRelayed(int length) {
+    myTurns.incrementAndGet();
+    myTurnBytes.addAndGet(length);
+  }
+
+  /**
+   * Count one player dropped for going quiet.
+   */
+  static void reaped() {
+    myReaped.incrementAndGet();
+  }
+
+  /**
+   * get the number of games being played.
+   */
+  public static int getActiveTables() {
+    return(myActiveTables.get());
+  }
+
+  /**
+   * get the number of writes.
+   */
+  public static long getWrites() {
+    return(myWrites.get());
+  }
+
+  /**
+   * get the number of bytes written.
+   */
+  public static long getBytes() {
+    return(myBytes.get());
+  }
+
+  /**
+   * get the number of turns relayed.
+   */
+  public static long getTurns() {
+    return(myTurns.get());
+  }
+
+  /**
+   * A summary for the log.
+   */
+  public static String summary() {
+    long turns = Math.max(myTurns.get(), 1);
+    return("turns=" + myTurns.get() + " writes=" + myWrites.get()
+           + " bytes=" + myBytes.get()
+           + " writes/turn=" + (myWrites.get() * 100 / turns) / 100.0
+           + " bytes/turn=" + (myTurnBytes.get() * 100 / turns) / 100.0
+           + " reaped=" + myReaped.get());
+  }
+
+}
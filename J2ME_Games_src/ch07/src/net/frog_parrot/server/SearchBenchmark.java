@@ -0,0 +1,169 @@
+package net.frog_parrot.server;
+
+import java.util.Random;
+
+import net.frog_parrot.checkers.Position;
+import net.frog_parrot.checkers.TranspositionTable;
+
+/**
+ * This class measures how ParallelSearch scales with the
+ * number of threads.  For each number of threads it
+ * works out a turn in every position of a fixed suite,
+ * searching to a fixed depth with a fresh table each
+ * time, and reports the time it took to reach that depth
+ * and the positions searched per second, each against
+ * one thread.  Each number of threads is run several
+ * times and the fastest run is reported, since the
+ * others mostly measure whatever else the machine was
+ * doing.  A speedup is only meaningful up to the number
+ * of processors, which is printed first.
+ * <p>
+ * The suite is made by playing random turns (from a
+ * fixed seed) from the starting position, stopping
+ * after a different number of turns for each position,
+ * so the same positions are searched on every run.
+ * <p>
+ * Usage: java net.frog_parrot.server.SearchBenchmark
+ *        [-depth D] [-threads 1,2,4,8,16] [-table bits]
+ *        [-positions N] [-repeat N]
+ *
+ * @author Carol Hamer
+ */
+public class SearchBenchmark {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The seed the suite is made from.
+   */
+  static final long SEED = 20070101L;
+
+  /**
+   * How many turns are played to make the first position
+   * of the suite, and how many more for each one after.
+   */
+  static final int FIRST_TURNS = 4;
+  static final int MORE_TURNS = 4;
+
+  //-------------------------------------------------------------
+  //          main
+
+  /**
+   * Run the benchmark and print a line for each number of
+   * threads.
+   */
+  public static void main(String[] args) throws Exception {
+    int depth = 9;
+    String threadList = "1,2,4,8,16";
+    int tableBits = 20;
+    int positions = 8;
+    int repeat = 3;
+    for(int i = 0; i < args.length; i++) {
+      if(args[i].equals("-depth")) {
+        depth = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-threads")) {
+        threadList = args[++i];
+      } else if(args[i].equals("-table")) {
+        tableBits = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-positions")) {
+        positions = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-repeat")) {
+        repeat = Integer.parseInt(args[++i]);
+      } else {
+        throw(new IllegalArgumentException("unknown option " + args[i]));
+      }
+    }
+    Position[] suite = makeSuite(positions);
+    String[] counts = threadList.split(",");
+    System.out.println(positions + " positions, depth " + depth + ", "
+                       + Runtime.getRuntime().availableProcessors()
+                       + " processors");
+    // passes that aren't counted, so the JIT has done its
+    // work before anything is timed:
+    for(int i = 0; i < repeat; i++) {
+      run(suite, 1, depth, tableBits);
+    }
+    System.out.println("threads  time-to-depth ms  speedup"
+                       + "       nodes  knodes/s  speedup");
+    double baseTime = 0;
+    double baseRate = 0;
+    for(int i = 0; i < counts.length; i++) {
+      int threads = Integer.parseInt(counts[i].trim());
+      long[] result = run(suite, threads, depth, tableBits);
+      for(int j = 1; j < repeat; j++) {
+        long[] again = run(suite, threads, depth, tableBits);
+        if(again[0] < result[0]) {
+          result = again;
+        }
+      }
+      double rate = (double)result[1] / Math.max(1, result[0]);
+      if(i == 0) {
+        baseTime = result[0];
+        baseRate = rate;
+      }
+      System.out.println(String.format("%7d  %16d  %7.2f  %10d  %8.0f  %7.2f",
+          threads, result[0], baseTime / Math.max(1, result[0]), result[1],
+          rate, rate / baseRate));
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          measurement
+
+  /**
+   * Search each position of the suite to the given depth
+   * with the given number of threads.
+   * @return the total time in milliseconds and the total
+   *         number of positions searched.
+   */
+  static long[] run(Position[] suite, int threads, int depth,
+                    int tableBits) {
+    long[] retObj = new long[2];
+    int[] turn = new int[ParallelSearch.MAX_TURN];
+    for(int i = 0; i < suite.length; i++) {
+      ParallelSearch search = new ParallelSearch(threads,
+          new TranspositionTable(tableBits), null);
+      long start = System.nanoTime();
+      search.search(suite[i], Long.MAX_VALUE, depth, turn);
+      retObj[0] += (System.nanoTime() - start) / 1000000;
+      retObj[1] += search.getNodes();
+      search.shutdown();
+    }
+    return(retObj);
+  }
+
+  /**
+   * Make the positions of the suite by playing random
+   * turns.  A game that ends before the position is
+   * reached is started again (with the random numbers
+   * going on from where they were).
+   */
+  static Position[] makeSuite(int positions) {
+    Position[] retObj = new Position[positions];
+    Random random = new Random(SEED);
+    int[] moves = new int[Position.MAX_MOVES];
+    for(int i = 0; i < retObj.length; i++) {
+      int turns = FIRST_TURNS + i * MORE_TURNS;
+      Position position = new Position();
+      int turn = 0;
+      while(turn < turns) {
+        int count = position.getAllMoves(moves);
+        if(count == 0) {
+          // the game is over, so start again:
+          position = new Position();
+          turn = 0;
+          continue;
+        }
+        // a turn ends when the board is turned around:
+        position.makeMove(moves[random.nextInt(count)]);
+        if(position.getJumping() < 0) {
+          turn++;
+        }
+      }
+      retObj[i] = position;
+    }
+    return(retObj);
+  }
+
+}
@@ -0,0 +1,434 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is one player's place at a ServerGame table.
+ * It outlives the player's connection: a client that
+ * sent the hello flag is given a session token, and if
+ * its connection drops it can connect again with the
+ * token and take its seat back (see HandshakeStage).
+ * <p>
+ * The seat keeps the last LOG_FRAMES frames sent to the
+ * player in a ring, and counts the frames sent to and
+ * received from him.  A returning client says how many
+ * frames it received, and is sent only the ones after
+ * that, so resuming never copies more than the ring.
+ * Sending, counting and changing the connection all
+ * hold the seat's lock.
+ *
+ * @author Carol Hamer
+ */
+class Seat {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The number of frames kept for resending.  A player
+   * who missed more than this can't resume.
+   */
+  static final int LOG_FRAMES = 64;
+
+  /**
+   * The seats that can be resumed, by session token.
+   */
+  private static ConcurrentHashMap<Long, Seat> mySessions
+    = new ConcurrentHashMap<Long, Seat>();
+
+  /**
+   * Makes the session tokens.
+   */
+  private static SecureRandom myRandom = new SecureRandom();
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * 1 or 2, for the log messages.
+   */
+  private int myNumber;
+
+  /**
+   * The current connection to the player.
+   */
+  private volatile PlayerConnection myPlayer;
+
+  /**
+   * The session token, or zero if the player can't resume.
+   */
+  private long myToken;
+
+  /**
+   * The frames sent to the player, as a ring.
+   */
+  private byte[] myLog = new byte[LOG_FRAMES * 4];
+
+  /**
+   * The number of frames sent to the player this game.
+   * It is only changed under the lock, but a resume reads
+   * it first without the lock.
+   */
+  private volatile long mySent;
+
+  /**
+   * The number of frames received from the player this game.
+   */
+  private long myReceived;
+
+  /**
+   * Whether the player has sent a heartbeat.
+   */
+  private volatile boolean myHeartbeats;
+
+  /**
+   * The frame that tells a returning client how many
+   * frames we received from him.
+   */
+  private byte[] myResumeFrame = new byte[8];
+
+  /**
+   * Whether the game is over.
+   */
+  private volatile boolean myEnded;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor seats the player.
+   */
+  Seat(int number, PlayerConnection player) {
+    myNumber = number;
+    myPlayer = player;
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get the player's number (1 or 2).
+   */
+  int getNumber() {
+    return(myNumber);
+  }
+
+  /**
+   * get the current connection.
+   */
+  PlayerConnection getPlayer() {
+    return(myPlayer);
+  }
+
+  /**
+   * Whether the player may reconnect and resume.
+   */
+  boolean isResumable() {
+    return(myToken != 0);
+  }
+
+  /**
+   * Whether the player sends heartbeats.
+   */
+  boolean sendsHeartbeats() {
+    return(myHeartbeats);
+  }
+
+  /**
+   * Note that the player sends heartbeats.
+   */
+  void setHeartbeats() {
+    myHeartbeats = true;
+  }
+
+  /**
+   * get when the write in progress began, or zero.
+   */
+  long getWriteStart() {
+    return(myPlayer.getWriteStart());
+  }
+
+  /**
+   * Find the seat that a session token belongs to.
+   * @return null if there is no such game (any more).
+   */
+  static Seat find(long token) {
+    return(mySessions.get(Long.valueOf(token)));
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * If the player understands sessions, give him a token
+   * and send it to him with the session flag.
+   */
+  void openSession() throws IOException {
+    if(! myPlayer.isResumable()) {
+      return;
+    }
+    long token;
+    do {
+      token = myRandom.nextLong();
+    } while((token == 0)
+            || (mySessions.putIfAbsent(Long.valueOf(token), this) != null));
+    myToken = token;
+    byte[] data = new byte[12];
+    data[0] = ServerGame.SESSION_FLAG;
+    for(int i = 0; i < 8; i++) {
+      data[4 + i] = (byte)(token >> (56 - 8 * i));
+    }
+    sendControl(data, data.length);
+  }
+
+  /**
+   * Tell a version 2 player the number of the game.
+   */
+  void sendGame(int number) throws IOException {
+    if(! myPlayer.isFramed()) {
+      return;
+    }
+    byte[] data = new byte[8];
+    data[0] = ServerGame.GAME_FLAG;
+    FrameCodec.putInt(data, 4, number);
+    sendControl(data, data.length);
+  }
+
+  /**
+   * Send game frames (moves and end of turn flags) to the
+   * player, keeping a copy in the log.  If the player is
+   * resumable, a failed write isn't an error: he'll get
+   * the frames when he comes back.
+   */
+  synchronized void send(byte[] data, int length) throws IOException {
+    for(int i = 0; i < length; i += 4) {
+      System.arraycopy(data, i, myLog, (int)(mySent % LOG_FRAMES) * 4, 4);
+      mySent++;
+    }
+    try {
+      write(myPlayer, data, length);
+    } catch(IOException e) {
+      if(! isResumable()) {
+        throw(e);
+      }
+      myPlayer.closeNow();
+    }
+  }
+
+  /**
+   * Send something other than a game frame (the start,
+   * end game or heartbeat flag), which isn't logged.
+   */
+  synchronized void sendControl(byte[] data, int length)
+      throws IOException {
+    write(myPlayer, data, length);
+  }
+
+  /**
+   * Send a heartbeat if the player's queue has room for
+   * it.  A player with that much waiting has no need of
+   * one, and the timer thread must not wait for him.
+   */
+  synchronized void sendHeartbeat(byte[] data, int length) {
+    if(myPlayer.offer(data, length)) {
+      RelayStats.wrote(length);
+    }
+  }
+
+  /**
+   * Called by the game thread when it has read a whole
+   * game frame from the given connection.
+   * @return false if the player has reconnected since,
+   *         in which case the frame must be thrown away
+   *         (the client will send it again).
+   */
+  synchronized boolean received(PlayerConnection from) {
+    if(from != myPlayer) {
+      return(false);
+    }
+    myReceived++;
+    return(true);
+  }
+
+  /**
+   * Give the seat to a returning player: tell him how
+   * many of his frames we have, and send him the ones
+   * he missed.  This is called on a handshake thread.
+   * @param clientReceived the number of frames the client
+   *        received before its connection dropped.
+   * @return false if the client missed too much (or
+   *         claims to have received more than we sent).
+   */
+  boolean resume(PlayerConnection player, long clientReceived) {
+    // a client that can't resume mustn't cut off the
+    // connection that is playing, so it is checked before
+    // the old connection is closed (without the lock,
+    // which a stuck write may be holding):
+    if(! mayResume(clientReceived)) {
+      return(false);
+    }
+    // closing the old connection wakes the game thread
+    // if it is waiting on it (and frees our lock if a
+    // write to it is stuck):
+    myPlayer.closeNow();
+    synchronized(this) {
+      // more may have been sent (or the game ended) since:
+      if(! mayResume(clientReceived)) {
+        return(false);
+      }
+      myPlayer = player;
+      myResumeFrame[0] = ServerGame.RESUMED_FLAG;
+      for(int i = 0; i < 4; i++) {
+        myResumeFrame[4 + i] = (byte)(myReceived >> (24 - 8 * i));
+      }
+      try {
+        write(player, myResumeFrame, 8);
+        for(long i = clientReceived; i < mySent; i++) {
+          write(player, myLog, (int)(i % LOG_FRAMES) * 4, 4);
+        }
+      } catch(IOException e) {
+        // gone again; he can try once more.
+        player.closeNow();
+      }
+      Log.info("Seat.resume-->player {} is back, resent {} frames",
+               myNumber, mySent - clientReceived);
+      notifyAll();
+      return(true);
+    }
+  }
+
+  /**
+   * Whether a client that received the given number of
+   * frames can be sent the rest from the log.
+   */
+  private boolean mayResume(long clientReceived) {
+    long sent = mySent;
+    return((! myEnded) && (clientReceived <= sent)
+           && (sent - clientReceived <= LOG_FRAMES));
+  }
+
+  /**
+   * Called by the game thread when reading from the given
+   * connection failed: wait for the player to come back.
+   * @return the new connection, or null if the player
+   *         didn't come back in time (or the game ended).
+   */
+  synchronized PlayerConnection awaitReturn(PlayerConnection failed,
+                                            long grace)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + grace;
+    while((myPlayer == failed) && (! myEnded)) {
+      long wait = deadline - System.currentTimeMillis();
+      if(wait <= 0) {
+        return(null);
+      }
+      wait(wait);
+    }
+    return(myEnded ? null : myPlayer);
+  }
+
+  /**
+   * Stop the seat for a drain: no one may resume it any 
+   * more, and the game thread stops waiting for the 
+   * player to come back.
+   */
+  synchronized void stop() {
+    myEnded = true;
+    notifyAll();
+  }
+
+  /**
+   * Forget the session and close the connection without 
+   * telling the player the game is over, so that he comes 
+   * back to resume it (at the next server, or at another 
+   * back end).
+   */
+  void abandon() {
+    if(myToken != 0) {
+      mySessions.remove(Long.valueOf(myToken));
+    }
+    myPlayer.closeNow();
+  }
+
+  /**
+   * Save what a returning player needs (see Handoff).
+   */
+  synchronized void checkpoint(DataOutputStream output) throws IOException {
+    output.writeLong(myToken);
+    output.writeLong(mySent);
+    output.writeLong(myReceived);
+    output.writeBoolean(myHeartbeats);
+    output.write(myLog);
+  }
+
+  /**
+   * Make a seat from a checkpoint another server wrote.  
+   * The player is away until he resumes.
+   */
+  static Seat restore(int number, DataInputStream input) throws IOException {
+    Seat retObj = new Seat(number, PlayerConnection.closed());
+    retObj.myToken = input.readLong();
+    retObj.mySent = input.readLong();
+    retObj.myReceived = input.readLong();
+    retObj.myHeartbeats = input.readBoolean();
+    input.readFully(retObj.myLog);
+    if((retObj.myToken != 0) && (mySessions.putIfAbsent(
+        Long.valueOf(retObj.myToken), retObj) != null)) {
+      // the same token was given out here, so this 
+      // player can't resume:
+      retObj.myToken = 0;
+    }
+    return(retObj);
+  }
+
+  /**
+   * The game is over: tell the player (if possible),
+   * close the connection and forget the session.
+   */
+  void end() {
+    synchronized(this) {
+      myEnded = true;
+      notifyAll();
+    }
+    if(myToken != 0) {
+      mySessions.remove(Long.valueOf(myToken));
+    }
+    byte[] data = { ServerGame.END_GAME_FLAG, 0, 0, 0 };
+    try {
+      sendControl(data, 4);
+    } catch(IOException e) {
+      // the player has left the game, which is not an error.
+    }
+    myPlayer.close();
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Write to a connection.
+   */
+  private void write(PlayerConnection player, byte[] data, int length)
+      throws IOException {
+    write(player, data, 0, length);
+  }
+
+  /**
+   * Write part of an array to a connection.  If the
+   * player's queue had to throw data away, the player
+   * is cut off: game frames can't be skipped, but one
+   * who can resume will be sent them when he's back.
+   */
+  private void write(PlayerConnection player, byte[] data, int offset,
+                     int length) throws IOException {
+    player.getOutput().write(data, offset, length);
+    if(player.takeLost()) {
+      player.closeNow();
+      throw(new IOException("the player fell too far behind"));
+    }
+    RelayStats.wrote(length);
+  }
+
+}
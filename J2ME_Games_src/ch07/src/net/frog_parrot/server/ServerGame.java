@@ -2,15 +2,22 @@ package net.frog_parrot.server;
 
 import java.io.*;
 import java.net.*;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.frog_parrot.checkers.Position;
 
 /**
  * This class handles the communications between 
  * two players that are playing a game of Checkers 
- * against each other.
+ * against each other.  SocketListener decides what 
+ * kind of thread it runs on (see GameExecutor).
  *
  * @author Carol Hamer
  */
-public class ServerGame extends Thread {
+public class ServerGame implements Runnable {
 
   //--------------------------------------------------------
   //  static fields
@@ -30,92 +37,406 @@ public class ServerGame extends Thread {
    */
   public static final byte END_TURN_FLAG = -2;
 
-  //-------------------------------------------------------------
-  //          instance fields
+  /**
+   * The int to signal that the sender is still there.  
+   * A client that sends one of these frames will be 
+   * sent them too, and both sides skip them.
+   */
+  public static final byte HEARTBEAT_FLAG = -5;
+
+  /**
+   * The int that comes before a player's session token 
+   * (eight bytes) when the game begins.
+   */
+  public static final byte SESSION_FLAG = -6;
+
+  /**
+   * The int a client sends first when it wants its seat 
+   * back, followed by its session token and the number 
+   * of frames it has received (four bytes).
+   */
+  public static final byte RESUME_FLAG = -7;
+
+  /**
+   * The int a client sends first when it wants a new 
+   * game and can resume one.  If the second byte is 
+   * BOT_OPPONENT, the client would rather play the 
+   * computer (see Bot) than wait for a person.
+   */
+  public static final byte HELLO_FLAG = -8;
+
+  /**
+   * The second byte of the hello for a client that wants 
+   * to play the computer.
+   */
+  public static final byte BOT_OPPONENT = 1;
+
+  /**
+   * The int that tells a returning client it has its 
+   * seat back, followed by the number of its frames we 
+   * received (four bytes).
+   */
+  public static final byte RESUMED_FLAG = -9;
+
+  /**
+   * The int a client sends first to ask for a newer 
+   * protocol, with the highest version it speaks in the 
+   * second byte.  The server answers with the same flag 
+   * and the version it chose (see FrameCodec).
+   */
+  public static final byte VERSION_FLAG = -12;
+
+  /**
+   * The int that comes before the game's number (four 
+   * bytes).  It is only sent to version 2 clients.
+   */
+  public static final byte GAME_FLAG = -13;
+
+  /**
+   * The int a cluster's front end sends first when it 
+   * seats a player at a back end (see ClusterFront), 
+   * followed by the seat (in the second byte), the table 
+   * number and the length of the game so far (four bytes 
+   * each) and then the frames of the game so far.
+   */
+  public static final byte CLUSTER_FLAG = -14;
+
+  /**
+   * The int a client may send first, followed by the 
+   * player's id and tag (eight bytes each), to have its 
+   * games rated (see RatingService).  A new player sends 
+   * zeros.  The answer is the same flag and the id and 
+   * tag to use (a new player's, or the ones sent), or 
+   * zeros if the games here aren't rated; an id that 
+   * doesn't go with its tag is refused.  It comes before 
+   * the version flag, so it is always sent as is.
+   */
+  public static final byte PLAYER_FLAG = -15;
+
+  /**
+   * The int a client sends first to ask about the 
+   * ratings, followed by a player's id (eight bytes), the 
+   * first rank of the leaderboard it wants and how many 
+   * places (four bytes each).  The answer is the same 
+   * flag, the player's rank and rating and the number of 
+   * places that follow (four bytes each), and then each 
+   * place's player id and rating (eight and four bytes).  
+   * It is sent as is, whatever protocol was negotiated.
+   */
+  public static final byte RATINGS_FLAG = -16;
 
   /**
-   * The socket that the server uses to communicate 
-   * with the first player.
+   * If this is zero or more, the frames of each turn are 
+   * collected and sent to the opponent with a single 
+   * write when the turn ends.  If the player pauses in 
+   * the middle of a turn for this many milliseconds, 
+   * what we have so far is sent anyway (zero means 
+   * never).  If negative, each frame is sent as it 
+   * arrives.
    */
-  private Socket myPlayerSocket1;
+  static int myCoalesceTimeout = -1;
 
   /**
-   * The stream we write to when communicating with the
-   * first player.
+   * Whether each move is checked against the rules before
+   * it is passed along.
    */
-  private OutputStream myOutput1;
+  static boolean myValidate = true;
 
   /**
-   * The stream we read from when communicating with the
-   * first player.
+   * How often a heartbeat is sent to the players who 
+   * understand them, in milliseconds (zero means never).
    */
-  private InputStream myInput1;
+  static int myHeartbeatInterval = 10000;
 
   /**
-   * The socket that the server uses to communicate 
-   * with the second player.
+   * How long a player who sends heartbeats may go without 
+   * sending anything during his turn, in milliseconds.
    */
-  private Socket myPlayerSocket2;
+  static int myIdleTimeout = 30000;
 
   /**
-   * The stream we write to when communicating with the
-   * second player.
+   * How long a player who doesn't send heartbeats may 
+   * take over a turn, in milliseconds.
    */
-  private OutputStream myOutput2;
+  static int myTurnTimeout = 600000;
 
   /**
-   * The stream we read from when communicating with the
-   * second player.
+   * How long we wait for a player who can resume to come 
+   * back after his connection drops, in milliseconds.
    */
-  private InputStream myInput2;
+  static int myResumeGrace = 60000;
+
+  /**
+   * The deadlines of all the games.
+   */
+  static final TimerWheel TIMERS 
+    = new TimerWheel("GameTimers", 100, 4096);
+  static {
+    TIMERS.start();
+  }
+
+  /**
+   * Where the games are recorded, or null if they aren't.
+   */
+  static GameStore myStore;
+
+  /**
+   * Rates the players who gave their ids, or null if the 
+   * games aren't rated.
+   */
+  static RatingService myRatings;
+
+  /**
+   * Hands the games to the next server when this one is 
+   * drained, or null if they are ended instead.
+   */
+  static Handoff myHandoff;
+
+  /**
+   * The games being played, so that a drain can stop them.
+   */
+  private static Set<ServerGame> myGames 
+    = Collections.newSetFromMap(new ConcurrentHashMap<ServerGame, Boolean>());
+
+  /**
+   * Whether the server is being drained, so that a game 
+   * that starts now stops at once, and whether its 
+   * players are to be left without the end game flag.
+   */
+  private static volatile boolean myStopAll;
+  private static boolean myStopQuietly;
+
+  /**
+   * The number of tables opened, for the table numbers 
+   * when the games aren't recorded (otherwise the store 
+   * numbers them).
+   */
+  private static AtomicInteger myTableCount = new AtomicInteger();
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The two players' places at the table.  The player 
+   * in mySeats[0] moves first.
+   */
+  private Seat[] mySeats = new Seat[2];
 
   /**
    * Messages are sent and received in sets of four bytes.
    */
   private byte[] myData = new byte[4];
 
+  /**
+   * In coalescing mode, the frames of the current turn 
+   * that have not been sent yet.
+   */
+  private byte[] myTurnBuffer = new byte[64];
+
+  /**
+   * The number of bytes waiting in myTurnBuffer.
+   */
+  private int myTurnLength;
+
+  /**
+   * The frames of the current turn (or as much of it as 
+   * fits) for the spectators.
+   */
+  private byte[] myWatchBuffer = new byte[64];
+
+  /**
+   * The number of bytes waiting in myWatchBuffer.
+   */
+  private int myWatchLength;
+
+  /**
+   * Sends the game to the spectators.
+   */
+  private Broadcast myBroadcast;
+
+  /**
+   * The frames of a game that began at another back end 
+   * (each move and end of turn flag relayed so far), or 
+   * null for a new game.
+   */
+  private byte[] myHistory;
+
+  /**
+   * Every frame relayed so far (each move and end of turn 
+   * flag), kept so that the game can be handed to the 
+   * next server, or null if it won't be.
+   */
+  private byte[] myRelayed;
+  private int myRelayedLength;
+
+  /**
+   * Whether a drain has stopped the game, whether it is 
+   * to be handed to the next server, and whether the 
+   * players are to be left without the end game flag 
+   * (so that a cluster's front end moves the game).
+   */
+  private volatile boolean myStopped;
+  private boolean myHandingOff;
+  private boolean myQuiet;
+
+  /**
+   * The number of turns played so far.
+   */
+  private int myTurns;
+
+  /**
+   * The ids the players gave (zero if they didn't), for 
+   * the ratings.
+   */
+  private long[] myPlayerIds = new long[2];
+
+  /**
+   * The player (1 or 2) who lost the game by ending it 
+   * in his turn, breaking the rules or leaving without 
+   * coming back, or zero.
+   */
+  private int myLoser;
+
+  /**
+   * The board as the server sees it, so that a client 
+   * can't get the two players' boards out of step.  It 
+   * is the client's own Position, so the server checks 
+   * moves by the very rules the clients play by, and it 
+   * is always turned to the player whose turn it is, 
+   * whose moves are in his own coordinates.
+   */
+  private Position myBoard = new Position();
+
+  /**
+   * Checks this game's deadlines and sends the heartbeats.
+   */
+  private Watchdog myWatchdog = new Watchdog();
+
+  /**
+   * The heartbeat frame, kept apart from myData since it 
+   * is sent from the timer thread.
+   */
+  private byte[] myHeartbeat = { HEARTBEAT_FLAG, 0, 0, 0 };
+
+  /**
+   * The player (1 or 2) whose turn it is.
+   */
+  private volatile int myCurrentPlayer = 1;
+
+  /**
+   * When we last heard from the player whose turn it is.
+   */
+  private volatile long myLastHeard;
+
+  /**
+   * Whether the game is over.
+   */
+  private volatile boolean myEnded;
+
+  /**
+   * Why the game ended (see RelayStats), or -1 if we 
+   * only know from the exception that ended it.
+   */
+  private int myEndReason = -1;
+
+  /**
+   * Whether the watchdog has dropped a player who went 
+   * quiet (and who hasn't come back since).
+   */
+  private volatile boolean myReaped;
+
+  /**
+   * When the last frame was read (System.nanoTime()).
+   */
+  private long myFrameTime;
+
   //-------------------------------------------------------------
   //          initialization
 
   /**
-   * Constructor sets the first player and waits for 
-   * the second.
+   * Constructor sets the two players.  Both have already 
+   * been sent the start game flag when they arrived, 
+   * to test the communications.  The first player is 
+   * the one who has been waiting longer, and he 
+   * moves first.
    */
-  ServerGame(Socket player1) {
-    System.out.println("ServerGame.ServerGame");
-    try {
-      // start communications with the first player:
-      myPlayerSocket1 = player1;
-      myInput1 = player1.getInputStream();
-      myOutput1 = player1.getOutputStream();
-      // test the communications by sending an initial 
-      // set of four bytes:
-      myData[0] = START_GAME_FLAG;
-      myOutput1.write(myData);
-      System.out.println("ServerGame.ServerGame-->wrote to player 1");
-    } catch(Exception e) {
-      e.printStackTrace();
+  ServerGame(PlayerConnection player1, PlayerConnection player2) {
+    this(player1, player2, 0, null);
+  }
+
+  /**
+   * Constructor for a game seated by a cluster's front 
+   * end, which numbers the tables.  If the game began at 
+   * another back end, it goes on from the given frames, 
+   * and the players are not sent anything to start it.
+   * @param number the table number, or zero to number 
+   *        it here.
+   * @param history the frames relayed so far, or null.
+   */
+  ServerGame(PlayerConnection player1, PlayerConnection player2, 
+	     int number, byte[] history) {
+    this(new Seat(1, player1), new Seat(2, player2), number, history);
+    myPlayerIds[0] = player1.getPlayerId();
+    myPlayerIds[1] = player2.getPlayerId();
+  }
+
+  /**
+   * Constructor sets the seats.
+   */
+  private ServerGame(Seat seat1, Seat seat2, int number, byte[] history) {
+    mySeats[0] = seat1;
+    mySeats[1] = seat2;
+    if(number <= 0) {
+      number = (myStore != null) 
+	? myStore.newGame() : myTableCount.incrementAndGet();
+    }
+    myBroadcast = new Broadcast(number);
+    myHistory = history;
+    if(myHandoff != null) {
+      myRelayed = new byte[(history == null) ? 256 : 2 * history.length + 256];
+      if(history != null) {
+	System.arraycopy(history, 0, myRelayed, 0, history.length);
+	myRelayedLength = history.length;
+      }
     }
   }
 
   /**
-   * Add a second player to the game.
+   * Make a game from a checkpoint another server wrote 
+   * (see Handoff).  Both players are away until they 
+   * resume.  The game keeps its number unless a game 
+   * here has it, and the games started here from now on 
+   * are numbered after it.
    */
-  void setSecondPlayer(Socket player2) {
-    try {
-      // start communications with the second player:
-      myPlayerSocket2 = player2;
-      myInput2 = player2.getInputStream();
-      myOutput2 = player2.getOutputStream();
-      // test the communications by sending an initial 
-      // set of four bytes:
-      myData[0] = START_GAME_FLAG;
-      myOutput2.write(myData);
-      System.out.println("ServerGame.setSecondPlayer-->" 
-			 + "wrote back to player 2");
-    } catch(Exception e) {
-      e.printStackTrace();
+  static ServerGame restore(DataInputStream input) throws IOException {
+    int number = input.readInt();
+    long id1 = input.readLong();
+    long id2 = input.readLong();
+    byte[] history = new byte[input.readInt()];
+    input.readFully(history);
+    Seat seat1 = Seat.restore(1, input);
+    Seat seat2 = Seat.restore(2, input);
+    int count = myTableCount.get();
+    while((count < number) && (! myTableCount.compareAndSet(count, number))) {
+      count = myTableCount.get();
+    }
+    if(Broadcast.find(number) != null) {
+      number = 0;
     }
+    ServerGame retObj = new ServerGame(seat1, seat2, number, history);
+    retObj.myPlayerIds[0] = id1;
+    retObj.myPlayerIds[1] = id2;
+    return(retObj);
+  }
+
+  //-------------------------------------------------------------
+  //          get data
+
+  /**
+   * get the number of games being played here.
+   */
+  static int getGames() {
+    return(myGames.size());
   }
 
   //-------------------------------------------------------------
@@ -125,113 +446,526 @@ public class ServerGame extends Thread {
    * play the game.
    */
   public void run() {
+    RelayStats.tableStarted();
+    myGames.add(this);
+    if(myStopAll) {
+      myQuiet = myStopQuietly;
+      myStopped = true;
+    }
     try {
-      // we write and tell the first player to go:
-      myData[0] = START_GAME_FLAG;
-      myOutput1.write(myData);
+      if(myStopped) {
+	throw(new Exception("the server is draining"));
+      }
+      myBroadcast.open();
+      Log.debug("ServerGame.run-->table {} started", myBroadcast.getNumber());
+      if(myStore != null) {
+	myStore.record(myBroadcast.getNumber(), GameStore.START, null);
+      }
+      if(myHistory != null) {
+	replay();
+      } else {
+	// players who can resume get their session tokens:
+	mySeats[0].openSession();
+	mySeats[1].openSession();
+	mySeats[0].sendGame(myBroadcast.getNumber());
+	mySeats[1].sendGame(myBroadcast.getNumber());
+	// we write and tell the first player to go:
+	myData[0] = START_GAME_FLAG;
+	mySeats[0].sendControl(myData, 4);
+      }
+      myLastHeard = System.currentTimeMillis();
+      TIMERS.schedule(myWatchdog, nextCheck(myLastHeard));
       // the main loop receives move information from 
       // one player and passes it along to the other player,
       // then does the same thing in reverse:
-      while(true) {
-	readFour(myInput1);
-	if(myData[0] == END_GAME_FLAG) {
-	  break;
-	}
-	while(myData[0] != END_TURN_FLAG) {
-	  System.out.println("ServerGame.run-->read from player 1: " 
-			     + myData[0] + ", "  + myData[1] + " to " 
-			     +  myData[2] +", "  + myData[3]);
-	  myOutput2.write(myData);
-	  readFour(myInput1);
-	}
-	// since the turn is over, we write the end turn flag:
-	myOutput2.write(myData);
-	System.out.println("ServerGame.run-->player 1 done, wrote: " 
-			   + myData[0]);
-	// now it's the second player's turn:
-	readFour(myInput2);
-	if(myData[0] == END_GAME_FLAG) {
-	  break;
-	}
-	while(myData[0] != END_TURN_FLAG) {
-	  System.out.println("ServerGame.run-->read from player 2: " 
-			     + myData[0] +", "  + myData[1] + " to " 
-			     +  myData[2] +", "  + myData[3]);
-	  myOutput1.write(myData);
-	  readFour(myInput2);
-	}
-	// since the turn is over, we write the end turn flag:
-	myOutput1.write(myData);
-	System.out.println("ServerGame.run-->player 2 done, wrote: " 
-			   + myData[0]);
+      while(relayTurn(mySeats[myTurns % 2], mySeats[(myTurns + 1) % 2])) {
+	myTurns++;
       }
+      myEndReason = RelayStats.QUIT;
     } catch(Exception e) {
-      // here we print the stack trace for information even 
-      // though often the Exception just indicates that one 
+      // usually the Exception just indicates that one 
       // player has left the game and is not an error...
-      e.printStackTrace();
+      Log.info("ServerGame.run-->game ended:", e.getMessage());
+      if(myEndReason < 0) {
+	if(myStopped) {
+	  myEndReason = myHandingOff ? RelayStats.HANDED_OFF 
+	    : RelayStats.DRAINED;
+	} else if(myReaped) {
+	  myEndReason = RelayStats.REAPED;
+	} else if(e instanceof IOException) {
+	  myEndReason = RelayStats.CONNECTION_LOST;
+	} else {
+	  myEndReason = RelayStats.ERROR;
+	}
+      }
     } finally {
-      // regardless of what knocked us out of the main 
-      // game loop, we need to 
-      // tell everyone that the game is over then close 
-      // up all of the streams and sockets.
-      myData[0] = END_GAME_FLAG;
-      try {
-	myOutput1.write(myData);
-	System.out.println("ServerGame.run-->" 
-			   + "sent end game to player 1, wrote: " + myData[0]);
-      } catch(Exception ie) {
-	// this will throw if player 1 has left the game, 
-	// but it's not an error, so we don't bother with it.
+      RelayStats.tableEnded(myEndReason);
+      myEnded = true;
+      TIMERS.cancel(myWatchdog);
+      myBroadcast.end();
+      if(myStore != null) {
+	myStore.record(myBroadcast.getNumber(), GameStore.END, null);
       }
-      try {
-	myOutput2.write(myData);
-	System.out.println("ServerGame.run-->" 
-			   + "sent end game to player 2, wrote: " + myData[0]);
-      } catch(Exception ie) {
-	// this will throw if player 2 has left the game, 
-	// but it's not an error, so we don't bother with it.
-      }
-      // even if we fail to write to one of 
-      // the players, we want to close the sockets and streams.
-      try {
-	myOutput1.close();
-	myOutput2.close();
-	myInput1.close();
-	myInput2.close();
-	myPlayerSocket1.close();
-	myPlayerSocket2.close();
-      } catch(Exception ie) {
-	ie.printStackTrace();
+      if((myRatings != null) && (myLoser != 0)) {
+	myRatings.recordResult(myPlayerIds[2 - myLoser], 
+			       myPlayerIds[myLoser - 1]);
       }
+      if(myEndReason == RelayStats.HANDED_OFF) {
+	// the players are cut off once the game is saved, 
+	// and take their seats back at the next server:
+	handOff();
+      } else if(myStopped && myQuiet) {
+	abandon();
+      } else {
+	// regardless of what knocked us out of the main 
+	// game loop, we need to tell everyone that the 
+	// game is over then close up all of the sockets 
+	// (even if we fail to write to one of the players).
+	mySeats[0].end();
+	mySeats[1].end();
+	Log.debug("ServerGame.run-->sent end game to both players");
+      }
+      myGames.remove(this);
+    }
+  }
+
+  /**
+   * Stop every game being played here, and any that 
+   * start from now on, for a drain (see 
+   * SocketListener.drain).
+   * @param quietly whether the players of the games 
+   *        that can't be handed over are left without 
+   *        the end game flag.
+   */
+  static void stopAll(boolean quietly) {
+    myStopQuietly = quietly;
+    myStopAll = true;
+    for(ServerGame game : myGames) {
+      game.stop(quietly);
     }
   }
 
+  /**
+   * Stop the game for a drain.  It is handed to the next 
+   * server if there is a Handoff and both players can 
+   * resume; otherwise it ends.  The game thread is woken 
+   * by closing the connection it reads from, or (if it 
+   * is waiting for a player to come back) by stopping 
+   * the seats.
+   */
+  void stop(boolean quietly) {
+    myHandingOff = (myRelayed != null) && mySeats[0].isResumable() 
+      && mySeats[1].isResumable();
+    myQuiet = quietly;
+    myStopped = true;
+    mySeats[0].stop();
+    mySeats[1].stop();
+    PlayerConnection player = mySeats[myCurrentPlayer - 1].getPlayer();
+    if(myHandingOff || quietly) {
+      player.closeNow();
+    } else {
+      player.drop();
+    }
+  }
+
+  /**
+   * Save the game for the next server (see Handoff).
+   */
+  void checkpoint(DataOutputStream output) throws IOException {
+    output.writeInt(myBroadcast.getNumber());
+    output.writeLong(myPlayerIds[0]);
+    output.writeLong(myPlayerIds[1]);
+    output.writeInt(myRelayedLength);
+    output.write(myRelayed, 0, myRelayedLength);
+    mySeats[0].checkpoint(output);
+    mySeats[1].checkpoint(output);
+  }
+
+  /**
+   * Cut the players off without telling them the game 
+   * is over.
+   */
+  void abandon() {
+    mySeats[0].abandon();
+    mySeats[1].abandon();
+  }
+
   //-------------------------------------------------------------
   //          internal utilities
 
   /**
-   * This method reads exactly four bytes off the stream 
+   * Hand a stopped game to the Handoff.  The frames held 
+   * back in coalescing mode go to the opponent's seat 
+   * first, so that they are saved with the rest.
+   */
+  private void handOff() {
+    try {
+      flush(mySeats[myCurrentPlayer % 2]);
+    } catch(IOException e) {
+      // he'll be sent them when he resumes.
+    }
+    myHandoff.save(this);
+  }
+
+  /**
+   * Pass one player's turn along to the opponent: each 
+   * move (more than one if the player makes a multiple 
+   * jump) and then the end of turn flag.
+   * @return false if the player ended the game.
+   * @throws Exception if the player breaks the rules 
+   *         or leaves, which ends the game for both players.
+   */
+  private boolean relayTurn(Seat seat, Seat opponent) throws Exception {
+    int player = seat.getNumber();
+    myCurrentPlayer = player;
+    long start = System.currentTimeMillis();
+    myLastHeard = start;
+    readFour(seat, opponent);
+    if(myData[0] == END_GAME_FLAG) {
+      myLoser = player;
+      return(false);
+    }
+    int bytes = 0;
+    while(myData[0] != END_TURN_FLAG) {
+      if(myData[0] == END_GAME_FLAG) {
+	myLoser = player;
+	return(false);
+      }
+      Log.debug("ServerGame.run-->read from player {}: {}, {} to {}, {}", 
+		player, myData[0], myData[1], myData[2], myData[3]);
+      if(myValidate && (! myBoard.play(myData[0], myData[1], 
+				       myData[2], myData[3]))) {
+	Log.info("ServerGame.relayTurn-->illegal move from player {}: "
+		 + "{}, {} to {}, {}", 
+		 player, myData[0], myData[1], myData[2], myData[3]);
+	myEndReason = RelayStats.ILLEGAL_MOVE;
+	myLoser = player;
+	throw(new Exception("illegal move"));
+      }
+      send(opponent);
+      remember();
+      watch(player);
+      bytes += 4;
+      readFour(seat, opponent);
+    }
+    if(myValidate && (! myBoard.endTurn())) {
+      myEndReason = RelayStats.ILLEGAL_MOVE;
+      myLoser = player;
+      throw(new Exception("turn ended without a move"));
+    }
+    RelayStats.turnTook(System.currentTimeMillis() - start);
+    // since the turn is over, we write the end turn flag:
+    send(opponent);
+    remember();
+    flush(opponent);
+    watch(player);
+    myBroadcast.publish(player, myWatchBuffer, myWatchLength);
+    myWatchLength = 0;
+    RelayStats.turnRelayed(bytes + 4);
+    Log.debug("ServerGame.run-->player {} done, wrote: {}", 
+	      player, myData[0]);
+    return(true);
+  }
+
+  /**
+   * Catch up with a game that began at another back end: 
+   * play the frames relayed so far on the board, and 
+   * give them to the spectators and the store, without 
+   * sending anything to the players (who have them).
+   * @throws Exception if the frames break the rules.
+   */
+  private void replay() throws Exception {
+    for(int i = 0; i + 4 <= myHistory.length; i += 4) {
+      System.arraycopy(myHistory, i, myData, 0, 4);
+      int player = myTurns % 2 + 1;
+      boolean legal;
+      if(myData[0] == END_TURN_FLAG) {
+	legal = myBoard.endTurn();
+      } else {
+	legal = myBoard.play(myData[0], myData[1], myData[2], myData[3]);
+      }
+      if(! legal) {
+	myEndReason = RelayStats.ILLEGAL_MOVE;
+	throw(new Exception("the game's history breaks the rules"));
+      }
+      watch(player);
+      if(myData[0] == END_TURN_FLAG) {
+	myBroadcast.publish(player, myWatchBuffer, myWatchLength);
+	myWatchLength = 0;
+	myTurns++;
+      }
+    }
+    Log.info("ServerGame.replay-->took over table {} after {} turns", 
+	     myBroadcast.getNumber(), myTurns);
+  }
+
+  /**
+   * Send the frame in myData to the opponent, or hold 
+   * it until the end of the turn in coalescing mode.
+   */
+  private void send(Seat opponent) throws IOException {
+    // a version 2 opponent is always sent the whole turn 
+    // in one frame:
+    if((myCoalesceTimeout < 0) && (! opponent.getPlayer().isFramed())) {
+      sendTo(opponent, myData, 4);
+      RelayStats.relayed((System.nanoTime() - myFrameTime) / 1000);
+      return;
+    }
+    if(myTurnLength + 4 > myTurnBuffer.length) {
+      // a long chain of jumps; rather than growing 
+      // the buffer we send what we have:
+      flush(opponent);
+    }
+    System.arraycopy(myData, 0, myTurnBuffer, myTurnLength, 4);
+    myTurnLength += 4;
+  }
+
+  /**
+   * Send all of the held frames with one write.
+   */
+  private void flush(Seat opponent) throws IOException {
+    if(myTurnLength > 0) {
+      sendTo(opponent, myTurnBuffer, myTurnLength);
+      myTurnLength = 0;
+      // the last frame read is the one that waited least:
+      RelayStats.relayed((System.nanoTime() - myFrameTime) / 1000);
+    }
+  }
+
+  /**
+   * Send game frames to a player.  A player who can't be 
+   * written to and can't resume has left the game, and 
+   * lost it.
+   */
+  private void sendTo(Seat seat, byte[] data, int length) 
+      throws IOException {
+    try {
+      seat.send(data, length);
+    } catch(IOException e) {
+      if(! myStopped) {
+	myLoser = seat.getNumber();
+      }
+      throw(e);
+    }
+  }
+
+  /**
+   * Add the frame in myData to the frames relayed, if 
+   * they are kept.
+   */
+  private void remember() {
+    if(myRelayed == null) {
+      return;
+    }
+    if(myRelayedLength + 4 > myRelayed.length) {
+      byte[] relayed = new byte[2 * myRelayed.length];
+      System.arraycopy(myRelayed, 0, relayed, 0, myRelayedLength);
+      myRelayed = relayed;
+    }
+    System.arraycopy(myData, 0, myRelayed, myRelayedLength, 4);
+    myRelayedLength += 4;
+  }
+
+  /**
+   * Keep the frame in myData for the spectators, who are 
+   * sent each turn in one piece, and record it.
+   */
+  private void watch(int player) {
+    if(myStore != null) {
+      myStore.record(myBroadcast.getNumber(), (byte)player, myData);
+    }
+    if(myWatchLength == myWatchBuffer.length) {
+      myBroadcast.publish(player, myWatchBuffer, myWatchLength);
+      myWatchLength = 0;
+    }
+    System.arraycopy(myData, 0, myWatchBuffer, myWatchLength, 4);
+    myWatchLength += 4;
+  }
+
+  /**
+   * How long the watchdog should wait before looking 
+   * at this game again.
+   */
+  private long nextCheck(long now) {
+    long limit = mySeats[myCurrentPlayer - 1].sendsHeartbeats() 
+      ? myIdleTimeout : myTurnTimeout;
+    long wait = myLastHeard + limit - now;
+    if((myHeartbeatInterval > 0) && (myHeartbeatInterval < wait)) {
+      wait = myHeartbeatInterval;
+    }
+    return(Math.max(wait, 1));
+  }
+
+  /**
+   * Close the connection to a player who has stopped 
+   * answering.  The game thread then finds the socket 
+   * closed, and (unless the player comes back to resume 
+   * the game) the finally block of run() sends the end 
+   * game flag to the other player.
+   */
+  private void reap(Seat seat, long idle) {
+    PlayerConnection player = seat.getPlayer();
+    if(player.isClosed()) {
+      // already reaped, and we may be waiting for him.
+      return;
+    }
+    Log.info("ServerGame.reap-->dropping player {} after {} ms", 
+	     seat.getNumber(), idle);
+    RelayStats.reaped();
+    myReaped = true;
+    player.closeNow();
+  }
+
+  /**
+   * This class is the game's entry on the timer wheel.  
+   * It checks that the player whose turn it is hasn't gone 
+   * quiet and that no write is stuck, then sends the 
+   * heartbeats and sets the next check.
+   */
+  class Watchdog extends TimerWheel.Timer {
+
+    /**
+     * Called on the timer thread.
+     */
+    protected void expire() {
+      if(myEnded) {
+	return;
+      }
+      long now = System.currentTimeMillis();
+      for(int i = 0; i < mySeats.length; i++) {
+	long writeStart = mySeats[i].getWriteStart();
+	if((writeStart != 0) && (now - writeStart >= myIdleTimeout)) {
+	  reap(mySeats[i], now - writeStart);
+	}
+      }
+      Seat current = mySeats[myCurrentPlayer - 1];
+      long limit = current.sendsHeartbeats() ? myIdleTimeout : myTurnTimeout;
+      if(now - myLastHeard >= limit) {
+	reap(current, now - myLastHeard);
+      } else if(myHeartbeatInterval > 0) {
+	heartbeat(mySeats[0]);
+	heartbeat(mySeats[1]);
+      }
+      TIMERS.schedule(this, nextCheck(now));
+    }
+
+    /**
+     * Send a heartbeat to a player who understands them, 
+     * unless a write to him is already under way.
+     */
+    private void heartbeat(Seat seat) {
+      if((! seat.sendsHeartbeats()) || (seat.getWriteStart() != 0)) {
+	return;
+      }
+      seat.sendHeartbeat(myHeartbeat, 4);
+    }
+  }
+
+  /**
+   * This method reads exactly four bytes from the player 
    * and puts them in the array myData.  This method is 
    * used because I know that in this game the client 
    * always sends sets of four bytes, but the method 
    * read may return without reading all of them.
-   * @throws Exception when the player corresponding 
-   * to the InputStream disconnects.
+   * Heartbeats are noted and skipped.  If the player's 
+   * connection fails and he can resume, we wait for him 
+   * to come back and go on reading from the new one.
+   * @throws Exception when the player disconnects 
+   * for good.
+   */
+  private void readFour(Seat seat, Seat pending) throws Exception {
+    while(true) {
+      PlayerConnection player = seat.getPlayer();
+      try {
+	readFour(seat, player, pending);
+	if((myData[0] == END_GAME_FLAG) || seat.received(player)) {
+	  return;
+	}
+	// read from a connection the player has replaced; 
+	// he will send the frame again.
+      } catch(IOException e) {
+	if(myStopped) {
+	  throw(e);
+	}
+	if(! seat.isResumable()) {
+	  // he can't come back, so he has left the game:
+	  myLoser = seat.getNumber();
+	  throw(e);
+	}
+	Log.info("ServerGame.readFour-->waiting for player {} to return", 
+		 seat.getNumber());
+	if(seat.awaitReturn(player, myResumeGrace) == null) {
+	  if(myStopped) {
+	    throw(new Exception("stopped for a drain"));
+	  }
+	  myEndReason = RelayStats.NO_RETURN;
+	  myLoser = seat.getNumber();
+	  throw(new Exception("player did not return"));
+	}
+	myReaped = false;
+	myLastHeard = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Read one frame from the given connection.  In 
+   * coalescing mode, the held frames are sent to the 
+   * pending seat if the player takes too long.  The 
+   * client leaves the game by sending the end game flag 
+   * on its own, so that is accepted as a frame.
    */
-  private void readFour(InputStream istream) throws Exception {
+  private void readFour(Seat seat, PlayerConnection player, Seat pending) 
+      throws Exception {
+    InputStream istream = player.getInput();
     int total = 0;
     int numRead = 0;
-    while(total < 4) {
-      numRead = istream.read(myData, total, myData.length - total);
-      if(numRead >= 0) {
-	total += numRead;
-	System.out.println("ServerGame.readFour-->read " + total + " bytes");
-      } else {
-	throw(new Exception("player ended game"));
+    // if frames are being held, we only wait so long 
+    // for the next one before sending them:
+    boolean timed = (myTurnLength > 0) && (myCoalesceTimeout > 0);
+    if(timed) {
+      player.setReadTimeout(myCoalesceTimeout);
+    }
+    try {
+      while(total < 4) {
+	try {
+	  numRead = istream.read(myData, total, myData.length - total);
+	} catch(SocketTimeoutException e) {
+	  try {
+	    flush(pending);
+	  } catch(IOException fe) {
+	    // it's the opponent who has gone, not this player:
+	    myEndReason = myReaped ? RelayStats.REAPED 
+	      : RelayStats.CONNECTION_LOST;
+	    throw(new Exception("opponent left"));
+	  }
+	  player.setReadTimeout(0);
+	  timed = false;
+	  continue;
+	}
+	if(numRead >= 0) {
+	  total += numRead;
+	  Log.debug("ServerGame.readFour-->read {} bytes", total);
+	} else if((total > 0) && (myData[0] == END_GAME_FLAG)) {
+	  return;
+	} else {
+	  throw(new EOFException("player ended game"));
+	}
+	if(total == 4) {
+	  myLastHeard = System.currentTimeMillis();
+	  myFrameTime = System.nanoTime();
+	  RelayStats.read(4);
+	  if(myData[0] == HEARTBEAT_FLAG) {
+	    seat.setHeartbeats();
+	    total = 0;
+	  }
+	}
+      }
+    } finally {
+      if(timed) {
+	player.setReadTimeout(0);
       }
     }
   }
 
-
 }
@@ -5,7 +5,6 @@ import java.security.KeyStore;
 
 import java.io.*;
 import java.net.*;
-import java.util.Vector;
 
 /**
  * This class is a very simple example of a server that 
@@ -24,70 +23,599 @@ public class SocketListener {
    */
   static int myPortNum = 8007;
 
+  /**
+   * The port that clients which begin with a flag (the 
+   * hello, resume or watch flag) connect to, or zero for 
+   * none.  Older clients, which wait for the start game 
+   * flag, connect to myPortNum, where they are taken at 
+   * once instead of being given time to send a flag that 
+   * isn't coming.
+   */
+  static int myHelloPort = 8008;
+
+  /**
+   * The keystore holding the server's SSL key.
+   */
+  static String myKeystore = "/home/carol/.keystore";
+
+  /**
+   * The password of the keystore.
+   */
+  static String myPassphrase = "changeit";
+
+  /**
+   * The number of SSL sessions kept so that clients 
+   * who reconnect can skip the full handshake.
+   */
+  static int mySessionCacheSize = 20000;
+
+  /**
+   * How long (in seconds) a cached SSL session may be resumed.
+   */
+  static int mySessionTimeout = 3600;
+
+  /**
+   * How often (in milliseconds) the statistics are printed.
+   */
+  static final long REPORT_INTERVAL = 60000;
+
+  /**
+   * How long the games being played may take to finish 
+   * when the server is drained, in milliseconds, before 
+   * they are handed to the next server (or ended).
+   */
+  static long myDrainTime = 30000;
+
 //-------------------------------------------------------------
 //          instance fields
 
   /**
    * Variable to tell the web server to stop.
    */
-  private boolean myShouldStop = false;
+  private volatile boolean myShouldStop = false;
+
+  /**
+   * The socket the players connect to, once we are 
+   * listening.
+   */
+  private volatile ServerSocket myServerSocket;
+
+  /**
+   * The socket on the hello port, or null.
+   */
+  private volatile ServerSocket myHelloSocket;
+
+  /**
+   * The players who are waiting for an opponent.
+   */
+  private Lobby myLobby;
+
+  /**
+   * The number of threads accepting connections.
+   */
+  private int myAcceptorCount = 2;
+
+  /**
+   * The worker pool that completes the handshakes.
+   */
+  private HandshakeStage myHandshakeStage;
+
+  /**
+   * What kind of thread each game is run on.
+   */
+  private GameExecutor myExecutor;
+
+  /**
+   * Whether to listen with SSL or plain sockets.
+   */
+  private boolean mySecure;
+
+  /**
+   * If this is a cluster's front end, the back ends; 
+   * otherwise null.
+   */
+  private ClusterFront myFront;
+
+  /**
+   * If this is a cluster's back end, where the front end's 
+   * control channel is (host:port); otherwise null.
+   */
+  private String myFrontAddress;
+
+  /**
+   * If this is a cluster's back end, what keeps it 
+   * registered with the front end; otherwise null.
+   */
+  private ClusterBackend myBackend;
+
+//--------------------------------------------------------------------
+//   initialization
+
+  /**
+   * The default server runs each game on its own 
+   * platform thread over SSL.
+   */
+  public SocketListener() {
+    this(new GameExecutor(GameExecutor.PLATFORM, 0), true);
+  }
+
+  /**
+   * Constructor sets the threading mode and whether 
+   * the connections use SSL.
+   */
+  public SocketListener(GameExecutor executor, boolean secure) {
+    this(executor, secure, 2, 300000);
+  }
+
+  /**
+   * Constructor also sets the number of accepting threads 
+   * and how long (in milliseconds) a player may wait for 
+   * an opponent (0 = forever).
+   */
+  public SocketListener(GameExecutor executor, boolean secure, 
+			int acceptors, long maxWait) {
+    myExecutor = executor;
+    mySecure = secure;
+    myAcceptorCount = acceptors;
+    myLobby = new Lobby(executor, maxWait);
+    myHandshakeStage = new HandshakeStage(myLobby, 
+        4 * Runtime.getRuntime().availableProcessors(), 10000);
+  }
+
+  /**
+   * get the lobby, for statistics.
+   */
+  public Lobby getLobby() {
+    return(myLobby);
+  }
 
   /**
-   * If another player is currently waiting, 
-   * this is a handle to the other player's 
-   * game.
+   * get the handshake stage, for statistics.
    */
-  private ServerGame myCurrentServerGame;
+  public HandshakeStage getHandshakeStage() {
+    return(myHandshakeStage);
+  }
+
+  /**
+   * get the cluster's front end, or null if this isn't one.
+   */
+  public ClusterFront getFront() {
+    return(myFront);
+  }
+
+  /**
+   * Make this server a cluster's front end: the tables 
+   * of human players are sent to the back ends that 
+   * register on the given control port (or host:port).
+   */
+  public void setFront(String control) throws IOException {
+    myFront = new ClusterFront(control);
+    myLobby.setCluster(myFront);
+    myHandshakeStage.setFront(myFront);
+  }
+
+  /**
+   * Make this server a back end of the cluster whose 
+   * front end's control channel is at host:port.
+   */
+  public void setBackend(String front) {
+    myFrontAddress = front;
+  }
 
 //--------------------------------------------------------------------
 //   business methods
 
   /**
-   * Start listening.
+   * Start listening.  Several threads wait in accept() 
+   * on the same server socket, and each of them hands 
+   * its players straight to the lobby, and one more 
+   * accepts on the hello port.  If the games are 
+   * handed over when the server is drained (see Handoff), 
+   * the port is shared with SO_REUSEPORT, so that the 
+   * next server can listen on it before this one stops.
    */
   public void listen() {
     try {
-      ServerSocket ss;
-      //ss = new ServerSocket(myPortNum);
-      ss = getSecureServerSocket();
-      System.out.println("SocketListener.run-->listening on port " 
-			 + myPortNum);
-      while(! myShouldStop) {
-        Socket client = ss.accept();
-	System.out.println("SocketListener.run-->accepted client socket");
+      final ServerSocket ss = bind(myPortNum);
+      myServerSocket = ss;
+      if(myHelloPort > 0) {
+        final ServerSocket hello = bind(myHelloPort);
+        myHelloSocket = hello;
+        Thread acceptor = new Thread("Acceptor-hello") {
+            public void run() {
+              accept(hello, true);
+            }
+          };
+        acceptor.start();
+      }
+      Log.info("SocketListener.run-->listening on port {} (hello port {}), "
+               + "games run on " + myExecutor + " threads", 
+               myPortNum, myHelloPort);
+      myLobby.start();
+      if(ServerGame.myHandoff != null) {
+        ServerGame.myHandoff.setLobby(myLobby);
+      }
+      if(myFront != null) {
+        myFront.start();
+      }
+      if(myFrontAddress != null) {
+        // register once we're listening.  The front end's 
+        // connections begin with the cluster flag, so they 
+        // are sent to the hello port:
+        myBackend = new ClusterBackend(myFrontAddress, myHelloPort, myLobby);
+        myHandshakeStage.setBackend(myBackend);
+        myBackend.start();
+      }
+      startReporter();
+      for(int i = 1; i < myAcceptorCount; i++) {
+        Thread acceptor = new Thread("Acceptor-" + i) {
+            public void run() {
+              accept(ss, false);
+            }
+          };
+        acceptor.start();
+      }
+      accept(ss, false);
+    } catch(Exception ioe) {
+      Log.error("SocketListener.run-->caught Exception:", ioe);
+    }
+  }
+
+  /**
+   * The loop run by each accepting thread.  The 
+   * handshake (which for SSL happens on the first read 
+   * or write) is left to the handshake stage so that 
+   * a slow client can't hold up the others.
+   * @param greets whether this is the hello port.
+   */
+  private void accept(ServerSocket ss, boolean greets) {
+    while(! myShouldStop) {
+      Socket client = null;
+      try {
+        client = ss.accept();
+	Log.debug("SocketListener.run-->accepted client socket");
 	client.setKeepAlive(true);
-	if(myCurrentServerGame == null) {
-	  myCurrentServerGame = new ServerGame(client);
-	} else {
-	  myCurrentServerGame.setSecondPlayer(client);
-	  myCurrentServerGame.start();
-	  // note that even though we're setting the 
-	  // handle to null, it won't be garbage 
-	  // collected because it's a live thread.
-	  myCurrentServerGame = null;
+	myHandshakeStage.submit(client, greets);
+      } catch(Exception ioe) {
+	if(! myShouldStop) {
+	  Log.warn("SocketListener.run-->caught Exception:", ioe);
+	}
+	if(client != null) {
+	  try {
+	    client.close();
+	  } catch(IOException e) {
+	    // nothing more can be done.
+	  }
+	}
+	if(ss.isClosed()) {
+	  return;
 	}
       }
-    } catch(Exception ioe) {
-      ioe.printStackTrace();
-      System.out.println("SocketListener.run-->caught Exception: "
-          + ioe.getMessage());
     }
   }
 
+  /**
+   * Drain the server for a restart: stop taking players 
+   * (the next server takes them, if it is listening on 
+   * the same port), finish the handshakes under way, send 
+   * away the players waiting for an opponent, and give 
+   * the games being played the given time to finish.  
+   * The games still being played then are handed to the 
+   * next server (see Handoff) if both players can resume, 
+   * and ended if not.  A cluster's back end stops 
+   * registering at once, and leaves its last games for 
+   * the front end to move to the other back ends.  (A 
+   * front end lets its games finish, but can't hand them 
+   * over.)
+   * @param timeout how long the games may take to finish, 
+   *        in milliseconds.
+   */
+  public void drain(long timeout) {
+    long start = System.currentTimeMillis();
+    myShouldStop = true;
+    Log.info("SocketListener.drain-->draining");
+    try {
+      if(myServerSocket != null) {
+        myServerSocket.close();
+      }
+      if(myHelloSocket != null) {
+        myHelloSocket.close();
+      }
+      if(myBackend != null) {
+        myBackend.stop();
+      }
+      if(ServerGame.myHandoff != null) {
+        ServerGame.myHandoff.beginDrain();
+      }
+      myHandshakeStage.shutdown(10000);
+      int sentAway = myLobby.close();
+      long deadline = start + timeout;
+      while((RelayStats.getActiveTables() > 0) 
+            && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(50);
+      }
+      int stopped = ServerGame.getGames();
+      ServerGame.stopAll(myBackend != null);
+      // the game threads save the games that are handed 
+      // over as they stop:
+      deadline = System.currentTimeMillis() + 10000;
+      while((ServerGame.getGames() > 0) 
+            && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(10);
+      }
+      if(ServerGame.myHandoff != null) {
+        ServerGame.myHandoff.commit();
+      }
+      Log.info("SocketListener.drain-->drained in {} ms: {} waiting players "
+               + "sent away, {} games stopped", 
+               System.currentTimeMillis() - start, sentAway, stopped);
+    } catch(Exception e) {
+      Log.error("SocketListener.drain-->failed:", e);
+    }
+  }
+
+  /**
+   * Whether the server has been drained.
+   */
+  public boolean isDraining() {
+    return(myShouldStop);
+  }
+
+  /**
+   * Start a thread that prints the lobby and handshake 
+   * statistics now and then.
+   */
+  private void startReporter() {
+    Thread reporter = new Thread("Reporter") {
+        public void run() {
+          while(! myShouldStop) {
+            try {
+              Thread.sleep(REPORT_INTERVAL);
+            } catch(InterruptedException e) {
+              return;
+            }
+            Log.info("SocketListener-->{} waiting;", myLobby.getDepth());
+            Log.info("SocketListener-->", myLobby.getDepthHistogram());
+            Log.info("SocketListener-->", myLobby.getMatchHistogram());
+            Log.info("SocketListener-->", myHandshakeStage);
+            Log.info("SocketListener-->", myHandshakeStage.getAdmission());
+            Log.info("SocketListener-->", RelayStats.summary());
+            Log.info("SocketListener-->", Broadcast.summary());
+            if(myFront != null) {
+              Log.info("SocketListener-->", myFront);
+            }
+            if(ServerGame.myStore != null) {
+              Log.info("SocketListener-->", ServerGame.myStore);
+            }
+            if(ServerGame.myRatings != null) {
+              Log.info("SocketListener-->", ServerGame.myRatings);
+            }
+            if(ServerGame.myHandoff != null) {
+              Log.info("SocketListener-->", ServerGame.myHandoff);
+            }
+          }
+        }
+      };
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+
 //--------------------------------------------------------------------
 //   main
 
   /**
-   * main starts the server.
+   * main starts the server.  With the argument "-nio"
+   * (optionally followed by the number of selector
+   * threads) the games are relayed by a NioRelay
+   * over plain sockets instead of one thread per game.
+   * Otherwise "-executor platform|virtual|pool:N" chooses 
+   * the threads that the games run on, "-plain" 
+   * turns off SSL, "-acceptors N" sets the number of 
+   * accepting threads and "-maxwait S" the number of 
+   * seconds a player may wait for an opponent, and 
+   * "-keystore file password" sets the SSL keystore. 
+   * "-coalesce ms" sends each turn with a single write, 
+   * flushing early if the player pauses for ms. 
+   * "-novalidate" passes moves along without checking 
+   * them against the rules. 
+   * "-heartbeat S" sets how often heartbeats are sent, 
+   * "-idletimeout S" how long a player who sends heartbeats 
+   * may go quiet in his turn and "-turntimeout S" how 
+   * long any other player may take over a turn. 
+   * "-resumegrace S" sets how long a dropped player who 
+   * can resume has to come back. 
+   * "-helloport P" sets the port for clients that begin 
+   * with a flag (8008 by default, 0 for none), and 
+   * "-probe ms" has the game port wait that long for a 
+   * flag too, for newer clients that still connect 
+   * there (older clients are held up that long). 
+   * "-watchtimeout ms" sets how long a write to a 
+   * spectator may take before he is dropped. 
+   * "-store dir" records every game in the given 
+   * directory (see GameStore), and "-ratings dir" keeps 
+   * the players' ratings there (see RatingService). 
+   * "-botwait S" gives a player who has waited S seconds 
+   * for an opponent a computer opponent instead (see Bot), 
+   * "-botthreads N" sets the number of threads the bots 
+   * share, "-botsearchthreads N" how many of them each 
+   * bot's search uses (see ParallelSearch), "-bottable 
+   * bits" the size of the table the searches share, and 
+   * "-botmovetime ms" how long a bot may take over a turn. 
+   * "-tablebase dir" has the bots look up endgames in the 
+   * tablebase in the given directory (see Tablebase). 
+   * "-outqueue bytes" sets how much may wait to be sent 
+   * to each player, "-overflow disconnect|drop|block[:ms]" 
+   * what happens when that fills up and "-writetimeout S" 
+   * how long one write may take (see OutboundQueue), and 
+   * "-writethrough" lets a sender write to an idle player 
+   * itself. 
+   * "-acceptrate N[:burst]" lets in at most N new clients 
+   * a second (with bursts of up to burst), "-maxpending N" 
+   * at most N handshakes at once and "-maxtables N" at 
+   * most N games (see AdmissionControl); these can be 
+   * changed later over JMX. 
+   * "-front port" makes this server the front end of a 
+   * cluster, whose back ends register on the given port 
+   * (see ClusterFront), and "-backend host:port" makes it 
+   * a back end of the cluster whose front end's control 
+   * channel is there.  A back end listens without SSL, 
+   * since only the front end connects to it (on the 
+   * hello port). 
+   * "-jmx" shows the metrics (see Metrics) to JMX, and 
+   * "-metrics file" writes them to the file every ten 
+   * seconds. 
+   * "-log file" writes the log to a rolling file and 
+   * "-loglevel debug|info|warn|error" sets its level. 
+   * <p>
+   * The server is drained (see drain()) when the JVM is 
+   * told to stop (by SIGTERM, for example), and 
+   * "-draintime S" sets how long the games have to finish 
+   * then.  "-handoff dir" hands the rest to the next 
+   * server through the directory (see Handoff).  For a 
+   * restart, start the new server with the same 
+   * "-handoff dir" and port, and once it is listening, 
+   * stop the old one: the players notice no more than a 
+   * dropped connection.  Clients that connect in the 
+   * moment the old server closes its socket may be 
+   * refused, and must connect again.
    */
   public static void main(String[] args) {
     try {
-      SocketListener sl = new SocketListener();
+      GameExecutor executor = null;
+      boolean secure = true;
+      boolean nio = false;
+      int reactors = 0;
+      int acceptors = 2;
+      long maxWait = 300000;
+      String front = null;
+      String backend = null;
+      for(int i = 0; i < args.length; i++) {
+        if(args[i].equals("-nio")) {
+          nio = true;
+          if((i + 1 < args.length) && (! args[i + 1].startsWith("-"))) {
+            reactors = Integer.parseInt(args[++i]);
+          }
+        } else if(args[i].equals("-executor")) {
+          executor = GameExecutor.parse(args[++i]);
+        } else if(args[i].equals("-plain")) {
+          secure = false;
+        } else if(args[i].equals("-port")) {
+          myPortNum = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-acceptors")) {
+          acceptors = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-maxwait")) {
+          maxWait = Long.parseLong(args[++i]) * 1000;
+        } else if(args[i].equals("-log")) {
+          Log.toFile(args[++i], 10 * 1024 * 1024, 5);
+        } else if(args[i].equals("-loglevel")) {
+          Log.setLevel(Log.parseLevel(args[++i]));
+        } else if(args[i].equals("-coalesce")) {
+          ServerGame.myCoalesceTimeout = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-heartbeat")) {
+          ServerGame.myHeartbeatInterval = Integer.parseInt(args[++i]) * 1000;
+        } else if(args[i].equals("-idletimeout")) {
+          ServerGame.myIdleTimeout = Integer.parseInt(args[++i]) * 1000;
+        } else if(args[i].equals("-turntimeout")) {
+          ServerGame.myTurnTimeout = Integer.parseInt(args[++i]) * 1000;
+        } else if(args[i].equals("-resumegrace")) {
+          ServerGame.myResumeGrace = Integer.parseInt(args[++i]) * 1000;
+        } else if(args[i].equals("-helloport")) {
+          myHelloPort = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-probe")) {
+          HandshakeStage.myProbeTimeout = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-novalidate")) {
+          ServerGame.myValidate = false;
+        } else if(args[i].equals("-botwait")) {
+          Lobby.myBotWait = Long.parseLong(args[++i]) * 1000;
+        } else if(args[i].equals("-botthreads")) {
+          Bot.myThreads = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-botsearchthreads")) {
+          Bot.mySearchThreads = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-bottable")) {
+          Bot.myTableBits = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-acceptrate")) {
+          String rate = args[++i];
+          int colon = rate.indexOf(':');
+          if(colon >= 0) {
+            AdmissionControl.myAcceptBurst.set(
+                Long.parseLong(rate.substring(colon + 1)));
+            rate = rate.substring(0, colon);
+          }
+          AdmissionControl.myAcceptRate.set(Long.parseLong(rate));
+        } else if(args[i].equals("-maxpending")) {
+          AdmissionControl.myMaxPending.set(Long.parseLong(args[++i]));
+        } else if(args[i].equals("-maxtables")) {
+          AdmissionControl.myMaxTables.set(Long.parseLong(args[++i]));
+        } else if(args[i].equals("-outqueue")) {
+          OutboundQueue.myCapacity = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-overflow")) {
+          OutboundQueue.parsePolicy(args[++i]);
+        } else if(args[i].equals("-writethrough")) {
+          OutboundQueue.myWriteThrough = true;
+        } else if(args[i].equals("-writetimeout")) {
+          OutboundQueue.myWriteTimeout = Integer.parseInt(args[++i]) * 1000;
+        } else if(args[i].equals("-botmovetime")) {
+          Bot.myMoveTime = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-tablebase")) {
+          Bot.myTablebase = new Tablebase(args[++i]);
+        } else if(args[i].equals("-front")) {
+          front = args[++i];
+        } else if(args[i].equals("-backend")) {
+          backend = args[++i];
+          secure = false;
+        } else if(args[i].equals("-jmx")) {
+          Metrics.startJmx();
+        } else if(args[i].equals("-metrics")) {
+          Metrics.startFile(args[++i], 10000);
+        } else if(args[i].equals("-store")) {
+          ServerGame.myStore = new GameStore(args[++i]);
+        } else if(args[i].equals("-ratings")) {
+          ServerGame.myRatings = new RatingService(args[++i]);
+        } else if(args[i].equals("-handoff")) {
+          ServerGame.myHandoff = new Handoff(args[++i]);
+        } else if(args[i].equals("-draintime")) {
+          myDrainTime = Long.parseLong(args[++i]) * 1000;
+        } else if(args[i].equals("-watchtimeout")) {
+          Broadcast.myWriteTimeout = Integer.parseInt(args[++i]);
+        } else if(args[i].equals("-keystore")) {
+          myKeystore = args[++i];
+          myPassphrase = args[++i];
+        }
+      }
+      if(nio) {
+        NioRelay relay = new NioRelay(myPortNum, reactors);
+        relay.listen();
+        return;
+      }
+      if(executor == null) {
+        executor = new GameExecutor(GameExecutor.PLATFORM, 0);
+      }
+      final SocketListener sl 
+        = new SocketListener(executor, secure, acceptors, maxWait);
+      Runtime.getRuntime().addShutdownHook(new Thread("Drain") {
+          public void run() {
+            sl.drain(myDrainTime);
+            try {
+              if(ServerGame.myRatings != null) {
+                ServerGame.myRatings.close();
+              }
+              if(ServerGame.myStore != null) {
+                ServerGame.myStore.close();
+              }
+            } catch(InterruptedException e) {
+              // we're stopping anyway.
+            }
+          }
+        });
+      if(front != null) {
+        sl.setFront(front);
+      }
+      if(backend != null) {
+        sl.setBackend(backend);
+      }
       sl.listen();
     } catch(Exception e) {
-      e.printStackTrace();
-      System.out.println("SocketListener.main-->"
-          + "caught " + e.getClass() + ": " + e.getMessage());
+      Log.error("SocketListener.main-->caught Exception:", e);
     }
   }
 
@@ -95,7 +623,27 @@ public class SocketListener {
 //   internal methods
 
   /**
-   * get a secure server socket.
+   * Open a server socket on the given port.  If the games 
+   * are handed over when the server is drained (see 
+   * Handoff), the port is shared with SO_REUSEPORT.
+   */
+  private ServerSocket bind(int port) throws IOException {
+    ServerSocket retObj;
+    if(mySecure) {
+      retObj = getSecureServerSocket();
+    } else {
+      retObj = new ServerSocket();
+    }
+    if((ServerGame.myHandoff != null) && retObj.supportedOptions().contains(
+        StandardSocketOptions.SO_REUSEPORT)) {
+      retObj.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+    }
+    retObj.bind(new InetSocketAddress(port), 50);
+    return(retObj);
+  }
+
+  /**
+   * get a secure server socket, not yet bound.
    */
   private static SSLServerSocket getSecureServerSocket() {
     SSLServerSocket retObj = null;
@@ -104,17 +652,22 @@ public class SocketListener {
       KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
       // read the keys into the keystore and initialize the context:
       KeyStore ks = KeyStore.getInstance("JCEKS");
-      char[] passphrase = "changeit".toCharArray();
-      ks.load(new FileInputStream("/home/carol/.keystore"), passphrase);
+      char[] passphrase = myPassphrase.toCharArray();
+      ks.load(new FileInputStream(myKeystore), passphrase);
       //ks.load(new FileInputStream("/home/carol/j2me/book/garbageKeys"), passphrase);
       kmf.init(ks, passphrase);
       SSLContext context = SSLContext.getInstance("TLS");
       context.init(kmf.getKeyManagers(), null, null);
+      // keep the sessions so that returning clients 
+      // can resume them instead of a full handshake:
+      SSLSessionContext sessions = context.getServerSessionContext();
+      sessions.setSessionCacheSize(mySessionCacheSize);
+      sessions.setSessionTimeout(mySessionTimeout);
       // get the factory and use it to create the socket:
       SSLServerSocketFactory ssf = context.getServerSocketFactory();
-      retObj = (SSLServerSocket)(ssf.createServerSocket(myPortNum));
+      retObj = (SSLServerSocket)(ssf.createServerSocket());
     } catch (Exception e) {
-      e.printStackTrace();
+      Log.error("SocketListener.getSecureServerSocket-->failed:", e);
     }
     return(retObj);
   }
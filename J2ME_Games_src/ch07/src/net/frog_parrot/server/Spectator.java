@@ -0,0 +1,190 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is one spectator's connection to a
+ * Broadcast.  When there is something new to send, the
+ * spectator is queued (once) on the broadcast's writing
+ * threads, and the writer sends everything the spectator
+ * is missing before giving the thread back.
+ *
+ * @author Carol Hamer
+ */
+class Spectator implements Runnable {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * How long to give a full queue to drain before
+   * sending the snapshot, in milliseconds.
+   */
+  static final int RETRY_DELAY = 100;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The game being watched.
+   */
+  private Broadcast myBroadcast;
+
+  /**
+   * The connection to the spectator.
+   */
+  private PlayerConnection myPlayer;
+
+  /**
+   * The sequence number of the next turn to send, or -1
+   * if the spectator needs a snapshot.  Only the writer
+   * uses this, and only one writer runs at a time.
+   */
+  private long myNext = -1;
+
+  /**
+   * Whether the spectator is queued or being written to.
+   */
+  private AtomicBoolean myScheduled = new AtomicBoolean();
+
+  /**
+   * Whether the spectator has gone.
+   */
+  private volatile boolean myClosed;
+
+  /**
+   * Wakes the writer again after output was thrown away.
+   */
+  private TimerWheel.Timer myRetry = new TimerWheel.Timer() {
+      protected void expire() {
+        wake();
+      }
+    };
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor sets the game and the connection.
+   */
+  Spectator(Broadcast broadcast, PlayerConnection player) {
+    myBroadcast = broadcast;
+    myPlayer = player;
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get when the write in progress began, or zero.
+   */
+  long getWriteStart() {
+    return(myPlayer.getWriteStart());
+  }
+
+  /**
+   * set the sequence number of the next turn to send.
+   */
+  void setNext(long next) {
+    myNext = next;
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Queue the spectator's writer unless it is queued or
+   * running already.
+   */
+  void wake() {
+    if((! myClosed) && myScheduled.compareAndSet(false, true)) {
+      Broadcast.execute(this);
+    }
+  }
+
+  /**
+   * Write everything the spectator hasn't seen yet.
+   * This runs on one of the broadcast's writing threads.
+   */
+  public void run() {
+    while(true) {
+      byte[] data;
+      while((data = myBroadcast.next(this, myNext)) != null) {
+        if(! write(data)) {
+          return;
+        }
+        if(myNext < 0) {
+          // the queue was full: let it drain, then send
+          // the snapshot.
+          myScheduled.set(false);
+          ServerGame.TIMERS.schedule(myRetry, RETRY_DELAY);
+          return;
+        }
+        if(data[0] == ServerGame.END_GAME_FLAG) {
+          close(false);
+          return;
+        }
+      }
+      myScheduled.set(false);
+      // a turn that came in after we looked but before
+      // we cleared the flag would otherwise wait for the
+      // next one:
+      if((! myBroadcast.hasNext(myNext))
+         || (! myScheduled.compareAndSet(false, true))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drop a spectator whose write is stuck.
+   */
+  void drop() {
+    close(true);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Write a turn or a snapshot.  If the spectator's
+   * queue had to throw some away, he is sent a fresh
+   * snapshot next instead of the turns he missed.
+   * @return false if the spectator has gone.
+   */
+  private boolean write(byte[] data) {
+    if(myClosed) {
+      return(false);
+    }
+    try {
+      myPlayer.getOutput().write(data);
+      if(myPlayer.takeLost()) {
+        myNext = -1;
+      } else if(data[0] != Broadcast.SNAPSHOT_FLAG) {
+        Broadcast.delivered();
+      }
+      return(true);
+    } catch(IOException e) {
+      // gone, or dropped by the sweeper (already counted):
+      close(false);
+      return(false);
+    }
+  }
+
+  /**
+   * Close the connection and leave the broadcast.  The
+   * spectator who is dropped is cut off at once; the
+   * one who watched to the end is sent the rest first.
+   */
+  private void close(boolean dropped) {
+    myClosed = true;
+    if(dropped) {
+      myPlayer.closeNow();
+    } else {
+      myPlayer.close();
+    }
+    myBroadcast.leave(this, dropped);
+  }
+
+}
@@ -0,0 +1,533 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.frog_parrot.checkers.EndgameTable;
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class looks up positions with few pieces in the
+ * endgame tablebase made by TablebaseGenerator, which
+ * knows for every such position whether the player to
+ * move wins, loses or draws with best play, and how many
+ * turns it takes.
+ * <p>
+ * Positions are seen by the player to move, whose men
+ * move up as the local player's do in Position, so one
+ * table serves both players.  They are divided into
+ * slices by the number of men and kings on each side,
+ * and each slice has two files named for those numbers:
+ * "tb_a_b_c_d.dtw" with a byte per position (see
+ * getDistance()) and "tb_a_b_c_d.wld" with two bits per
+ * position (see getResult()), where a and b are the men
+ * and kings of the player to move and c and d his
+ * opponent's.  Each file is a HEADER_BYTES header and
+ * then the positions in the order of index().
+ * <p>
+ * The files are mapped into memory rather than read, so
+ * only the pages that are probed take up memory, and a
+ * tablebase larger than the heap (or than memory) can
+ * still be used.  The mappings are only ever read, so
+ * any number of threads may probe at once.  The bots'
+ * engines probe it as an EndgameTable.
+ *
+ * @author Carol Hamer
+ */
+class Tablebase implements EndgameTable {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * What getResult() says about the player to move.
+   */
+  static final int DRAW = 0;
+  static final int WIN = 1;
+  static final int LOSS = 2;
+
+  /**
+   * The longest win or loss, in turns, that fits in a
+   * distance byte (see toByte()).
+   */
+  static final int MAX_DISTANCE = 252;
+
+  /**
+   * The most pieces one player can have.
+   */
+  static final int MAX_SIDE = 12;
+
+  /**
+   * The number of squares a man can stand on: men are
+   * crowned on the far row, so never stand there.
+   */
+  static final int MAN_SQUARES = Position.SQUARES - Position.X_LENGTH;
+
+  /**
+   * The first four bytes of every file.
+   */
+  static final int MAGIC = 0x43484b54;
+
+  /**
+   * The length of a file's header: MAGIC, the four
+   * numbers of pieces (a byte each), the longest win or
+   * loss in the slice (an int) and the number of
+   * positions (a long).
+   */
+  static final int HEADER_BYTES = 20;
+
+  /**
+   * The binomial coefficients, CHOOSE[n][k] = n! / k!(n-k)!.
+   */
+  static final long[][] CHOOSE
+    = new long[Position.SQUARES + 1][Position.SQUARES + 1];
+
+  static {
+    for(int n = 0; n <= Position.SQUARES; n++) {
+      CHOOSE[n][0] = 1;
+      for(int k = 1; k <= n; k++) {
+        CHOOSE[n][k] = CHOOSE[n - 1][k - 1] + CHOOSE[n - 1][k];
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The distance and result files of each slice, by
+   * slice(), or null where the slice isn't there.
+   */
+  private MappedFile[] myDistances
+    = new MappedFile[slice(MAX_SIDE + 1, 0, 0, 0)];
+  private MappedFile[] myResults = new MappedFile[myDistances.length];
+
+  /**
+   * The directory the files are in.
+   */
+  private File myDirectory;
+
+  /**
+   * The most pieces in any slice there is, and the
+   * longest win or loss in any of them.
+   */
+  private int myMaxPieces;
+  private int myLongest;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor maps every slice found in the given
+   * directory (which is made if it isn't there).
+   */
+  Tablebase(String directory) throws IOException {
+    myDirectory = new File(directory);
+    myDirectory.mkdirs();
+    String[] names = myDirectory.list();
+    for(int i = 0; i < names.length; i++) {
+      if(! (names[i].startsWith("tb_") && names[i].endsWith(".dtw"))) {
+        continue;
+      }
+      String[] counts
+        = names[i].substring(3, names[i].length() - 4).split("_");
+      if(counts.length == 4) {
+        load(Integer.parseInt(counts[0]), Integer.parseInt(counts[1]),
+             Integer.parseInt(counts[2]), Integer.parseInt(counts[3]));
+      }
+    }
+  }
+
+  /**
+   * Map one slice's files, if they are both there.
+   * TablebaseGenerator calls this as it finishes each
+   * slice.
+   * @return whether the slice is now in the tablebase.
+   */
+  synchronized boolean load(int ownMen, int ownKings, int men, int kings)
+      throws IOException {
+    File distances = getFile(ownMen, ownKings, men, kings, ".dtw");
+    File results = getFile(ownMen, ownKings, men, kings, ".wld");
+    if((! distances.exists()) || (! results.exists())) {
+      return(false);
+    }
+    MappedFile distanceFile = new MappedFile(distances);
+    MappedFile resultFile = new MappedFile(results);
+    long size = size(ownMen, ownKings, men, kings);
+    if((! distanceFile.checkHeader(ownMen, ownKings, men, kings, size))
+       || (! resultFile.checkHeader(ownMen, ownKings, men, kings, size))
+       || (distanceFile.getLength() != HEADER_BYTES + size)
+       || (resultFile.getLength() != HEADER_BYTES + (size + 3) / 4)) {
+      throw(new IOException("bad tablebase file " + distances));
+    }
+    int slice = slice(ownMen, ownKings, men, kings);
+    int longest = distanceFile.getInt(8);
+    myDistances[slice] = distanceFile;
+    myResults[slice] = resultFile;
+    myMaxPieces = Math.max(myMaxPieces, ownMen + ownKings + men + kings);
+    myLongest = Math.max(myLongest, longest);
+    return(true);
+  }
+
+  //-------------------------------------------------------------
+  //          get data
+
+  /**
+   * get the most pieces in any slice of the tablebase.
+   */
+  int getMaxPieces() {
+    return(myMaxPieces);
+  }
+
+  /**
+   * get the longest win or loss, in turns, in any slice of
+   * the tablebase.
+   */
+  int getLongest() {
+    return(myLongest);
+  }
+
+  /**
+   * Whether the given slice is in the tablebase.
+   */
+  boolean contains(int ownMen, int ownKings, int men, int kings) {
+    return(myDistances[slice(ownMen, ownKings, men, kings)] != null);
+  }
+
+  /**
+   * get the file a slice is kept in.
+   * @param suffix ".dtw" or ".wld".
+   */
+  File getFile(int ownMen, int ownKings, int men, int kings, String suffix) {
+    return(new File(myDirectory, "tb_" + ownMen + "_" + ownKings + "_"
+                    + men + "_" + kings + suffix));
+  }
+
+  //-------------------------------------------------------------
+  //          probing
+
+  /**
+   * Look up a position at the start of the local
+   * player's turn, as getDistance() below.  Nothing is
+   * looked up if the board has more pieces than any
+   * slice.
+   */
+  public int getDistance(Position position) {
+    int own = position.getOwn();
+    int opponent = position.getOpponent();
+    if(Integer.bitCount(own | opponent) > myMaxPieces) {
+      return(NOT_FOUND);
+    }
+    return(getDistance(own, opponent, position.getKings()));
+  }
+
+  /**
+   * Look up a position, given as bit boards (bit
+   * y * X_LENGTH + x for each square) as seen by the
+   * player to move.
+   * @return n if he wins in n turns (his and his
+   *         opponent's, so n is odd), -(n + 1) if he
+   *         loses in n turns, zero for a draw, or
+   *         NOT_FOUND (see EndgameTable).
+   */
+  int getDistance(int own, int opponent, int kings) {
+    if(own == 0) {
+      // no pieces, so no move, which loses:
+      return(-1);
+    }
+    MappedFile file = myDistances[slice(own, opponent, kings)];
+    if((file == null) || (opponent == 0)) {
+      return(NOT_FOUND);
+    }
+    return(fromByte(file.get(HEADER_BYTES + index(own, opponent, kings))));
+  }
+
+  /**
+   * Look up whether the player to move wins, loses or
+   * draws, as getDistance() but from the smaller file.
+   * @return WIN, LOSS, DRAW or NOT_FOUND.
+   */
+  int getResult(int own, int opponent, int kings) {
+    if(own == 0) {
+      return(LOSS);
+    }
+    MappedFile file = myResults[slice(own, opponent, kings)];
+    if((file == null) || (opponent == 0)) {
+      return(NOT_FOUND);
+    }
+    long index = index(own, opponent, kings);
+    return((file.get(HEADER_BYTES + (index >> 2)) >> ((int)(index & 3) * 2))
+           & 3);
+  }
+
+  /**
+   * Pack a distance (as getDistance() returns it) into
+   * the byte kept in a file.  A win is always an odd
+   * number of turns and a loss an even number, so the
+   * byte counts only the player's own turns: (n + 1) / 2
+   * for a win in n turns and -(n / 2 + 1) for a loss.
+   */
+  static byte toByte(int distance) {
+    if(distance > 0) {
+      return((byte)((distance + 1) / 2));
+    } else if(distance < 0) {
+      return((byte)(-((-distance - 1) / 2) - 1));
+    }
+    return(0);
+  }
+
+  /**
+   * Unpack a distance packed by toByte().
+   */
+  static int fromByte(byte distance) {
+    if(distance > 0) {
+      return(2 * distance - 1);
+    } else if(distance < 0) {
+      return(2 * distance + 1);
+    }
+    return(0);
+  }
+
+  //-------------------------------------------------------------
+  //          indexing
+
+  /**
+   * get the number of a slice, for the arrays of files.
+   */
+  static int slice(int ownMen, int ownKings, int men, int kings) {
+    int side = MAX_SIDE + 1;
+    return(((ownMen * side + ownKings) * side + men) * side + kings);
+  }
+
+  /**
+   * get the number of the slice a position is in.
+   */
+  static int slice(int own, int opponent, int kings) {
+    return(slice(Integer.bitCount(own & ~kings), Integer.bitCount(own & kings),
+                 Integer.bitCount(opponent & ~kings),
+                 Integer.bitCount(opponent & kings)));
+  }
+
+  /**
+   * get the number of positions in a slice, counting the
+   * numbers index() gives that aren't positions.
+   */
+  static long size(int ownMen, int ownKings, int men, int kings) {
+    int free = Position.SQUARES - ownMen - men;
+    return(CHOOSE[MAN_SQUARES][ownMen] * CHOOSE[MAN_SQUARES][men]
+           * CHOOSE[free][ownKings] * CHOOSE[free - ownKings][kings]);
+  }
+
+  /**
+   * Number a position within its slice, without
+   * collisions.  The men of the player to move stand on
+   * the MAN_SQUARES squares below the top row and his
+   * opponent's on those above the bottom row, so each
+   * side's men are numbered as a set of those squares (in
+   * colexicographic order).  The kings are then numbered
+   * as a set of the squares the men leave free, and the
+   * opponent's kings of those the other kings leave free.
+   * Since the two sides' men are numbered separately, the
+   * few numbers where they would share a square aren't
+   * positions (see unindex()).
+   */
+  static long index(int own, int opponent, int kings) {
+    int ownMen = own & ~kings;
+    int men = opponent & ~kings;
+    int ownKings = own & kings;
+    int ownMenCount = Integer.bitCount(ownMen);
+    int menCount = Integer.bitCount(men);
+    int ownKingCount = Integer.bitCount(ownKings);
+    int free = Position.SQUARES - ownMenCount - menCount;
+    long retObj = rank(ownMen >>> Position.X_LENGTH);
+    retObj = retObj * CHOOSE[MAN_SQUARES][menCount] + rank(men);
+    retObj = retObj * CHOOSE[free][ownKingCount]
+      + rank(compress(ownKings, ownMen | men));
+    int kingCount = Integer.bitCount(opponent & kings);
+    retObj = retObj * CHOOSE[free - ownKingCount][kingCount]
+      + rank(compress(opponent & kings, ownMen | men | ownKings));
+    return(retObj);
+  }
+
+  /**
+   * Find the position index() gives the given number in
+   * the given slice.
+   * @param position the bit boards of the player to move,
+   *        his opponent and the kings are written here.
+   * @return false if the number isn't a position.
+   */
+  static boolean unindex(long index, int ownMen, int ownKings, int men,
+                         int kings, int[] position) {
+    int free = Position.SQUARES - ownMen - men;
+    long base = CHOOSE[free - ownKings][kings];
+    int opponentKingSet = unrank(index % base, kings);
+    index /= base;
+    base = CHOOSE[free][ownKings];
+    int ownKingSet = unrank(index % base, ownKings);
+    index /= base;
+    base = CHOOSE[MAN_SQUARES][men];
+    int menSet = unrank(index % base, men);
+    int ownMenSet = unrank(index / base, ownMen) << Position.X_LENGTH;
+    if((ownMenSet & menSet) != 0) {
+      return(false);
+    }
+    ownKingSet = expand(ownKingSet, ownMenSet | menSet);
+    opponentKingSet = expand(opponentKingSet, ownMenSet | menSet | ownKingSet);
+    position[0] = ownMenSet | ownKingSet;
+    position[1] = menSet | opponentKingSet;
+    position[2] = ownKingSet | opponentKingSet;
+    return(true);
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * The colexicographic number of a set of squares: the
+   * sum of CHOOSE[square][i + 1] over its squares in
+   * increasing order.
+   */
+  private static long rank(int set) {
+    long retObj = 0;
+    for(int i = 1; set != 0; i++) {
+      retObj += CHOOSE[Integer.numberOfTrailingZeros(set)][i];
+      set &= set - 1;
+    }
+    return(retObj);
+  }
+
+  /**
+   * The set of the given size with the given number (see
+   * rank()).
+   */
+  private static int unrank(long rank, int size) {
+    int retObj = 0;
+    int square = Position.SQUARES - 1;
+    for(int i = size; i > 0; i--) {
+      while(CHOOSE[square][i] > rank) {
+        square--;
+      }
+      retObj |= 1 << square;
+      rank -= CHOOSE[square][i];
+      square--;
+    }
+    return(retObj);
+  }
+
+  /**
+   * Renumber a set of squares as squares of the board
+   * with the taken ones left out.
+   */
+  private static int compress(int set, int taken) {
+    int retObj = 0;
+    while(set != 0) {
+      int square = Integer.numberOfTrailingZeros(set);
+      retObj |= 1 << (square - Integer.bitCount(taken & ((1 << square) - 1)));
+      set &= set - 1;
+    }
+    return(retObj);
+  }
+
+  /**
+   * Undo compress(): the n-th square of the set becomes
+   * the n-th square that isn't taken.
+   */
+  private static int expand(int set, int taken) {
+    int retObj = 0;
+    int free = ~taken;
+    for(int n = 0; set != 0; n++) {
+      int square = Integer.numberOfTrailingZeros(free);
+      if((set & (1 << n)) != 0) {
+        retObj |= 1 << square;
+        set &= ~(1 << n);
+      }
+      free &= free - 1;
+    }
+    return(retObj);
+  }
+
+  //-------------------------------------------------------------
+  //          mapped files
+
+  /**
+   * A file mapped read-only into memory.  A mapping can't
+   * be longer than Integer.MAX_VALUE, so a larger file is
+   * mapped in chunks.
+   */
+  private static class MappedFile {
+
+    /**
+     * The length of each chunk, as a power of two.
+     */
+    private static final int CHUNK_BITS = 30;
+
+    /**
+     * The chunks, in order.
+     */
+    private MappedByteBuffer[] myChunks;
+
+    /**
+     * The length of the file.
+     */
+    private long myLength;
+
+    /**
+     * Constructor maps the file.  The mapping stays valid
+     * after the file is closed.
+     */
+    MappedFile(File file) throws IOException {
+      RandomAccessFile input = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = input.getChannel();
+        myLength = channel.size();
+        long chunk = 1L << CHUNK_BITS;
+        myChunks
+          = new MappedByteBuffer[(int)((myLength + chunk - 1) >> CHUNK_BITS)];
+        for(int i = 0; i < myChunks.length; i++) {
+          long start = (long)i << CHUNK_BITS;
+          myChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                    Math.min(chunk, myLength - start));
+        }
+      } finally {
+        input.close();
+      }
+    }
+
+    /**
+     * get the length of the file.
+     */
+    long getLength() {
+      return(myLength);
+    }
+
+    /**
+     * get the byte at the given offset in the file.
+     */
+    byte get(long offset) {
+      return(myChunks[(int)(offset >> CHUNK_BITS)]
+             .get((int)(offset & ((1 << CHUNK_BITS) - 1))));
+    }
+
+    /**
+     * get the int at the given offset in the header.
+     */
+    int getInt(int offset) {
+      return(myChunks[0].getInt(offset));
+    }
+
+    /**
+     * Whether the header is the one the given slice should
+     * have.
+     */
+    boolean checkHeader(int ownMen, int ownKings, int men, int kings,
+                        long size) {
+      return((myLength >= HEADER_BYTES) && (getInt(0) == MAGIC)
+             && (get(4) == ownMen) && (get(5) == ownKings)
+             && (get(6) == men) && (get(7) == kings)
+             && (myChunks[0].getLong(12) == size));
+    }
+
+  }
+
+}
@@ -0,0 +1,479 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class makes the endgame tablebase that Tablebase
+ * reads: for every position with up to a given number of
+ * pieces, whether the player to move wins, loses or
+ * draws with best play, and in how many turns.
+ * <p>
+ * The rules are the client's, in Position: jumping
+ * isn't compulsory, a multiple jump may stop after any
+ * jump, a man crowned by a jump may jump on as a king,
+ * and a player who can't move (or has no pieces) loses.
+ * <p>
+ * The slices (see Tablebase) are solved from the fewest
+ * pieces up, and among slices with as many pieces, from
+ * the fewest men up, since a turn either stays in the
+ * mirror image of its slice (with the players' pieces
+ * swapped), or captures or crowns, which leads to a
+ * slice that is already solved.  So each slice is solved
+ * together with its mirror image, by retrograde analysis
+ * in passes: the pass for distance n finds the positions
+ * won in n turns (a turn leads to a position the
+ * opponent loses in n - 1) and lost in n turns (every
+ * turn leads to one the opponent wins, the slowest in
+ * n - 1), so wins are as quick and losses as slow as
+ * they can be.  What is left when the passes stop
+ * finding anything is drawn.
+ * <p>
+ * Each pass is divided among a pool of threads.  A
+ * position found in a pass can only matter to the next
+ * pass, so it makes no difference whether the other
+ * threads see it during this one, and the threads write
+ * to the same arrays without locking.  The slice being
+ * solved is kept in the heap; the slices it leads to are
+ * probed from their mapped files.
+ * <p>
+ * Slices already in the directory are kept, so a larger
+ * tablebase can be made on top of a smaller one.
+ * <p>
+ * Usage: java net.frog_parrot.server.TablebaseGenerator
+ *        [-pieces N] [-dir directory] [-threads N]
+ *
+ * @author Carol Hamer
+ */
+public class TablebaseGenerator {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The distance of a position that isn't known yet.
+   */
+  static final byte UNKNOWN = Byte.MIN_VALUE;
+
+  /**
+   * How many pieces of work each pass is cut into for
+   * each thread.
+   */
+  static final int CHUNKS_PER_THREAD = 8;
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The slices solved so far.
+   */
+  private Tablebase myTablebase;
+
+  /**
+   * The threads that do the passes.
+   */
+  private ExecutorService myPool;
+  private int myThreads;
+
+  /**
+   * The slice being solved and its mirror image: the
+   * numbers of pieces (as in Tablebase.slice()), the
+   * slice numbers and the distances of their positions
+   * (packed by Tablebase.toByte(), or UNKNOWN).  If the
+   * slice is its own mirror image the second is the same
+   * as the first.
+   */
+  private int[][] myCounts = new int[2][];
+  private int[] mySlices = new int[2];
+  private byte[][] myDistances = new byte[2][];
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor opens the tablebase in the given
+   * directory and starts the threads.
+   */
+  TablebaseGenerator(String directory, int threads) throws IOException {
+    myTablebase = new Tablebase(directory);
+    myThreads = threads;
+    myPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int myCount;
+        public synchronized Thread newThread(Runnable r) {
+          Thread retObj = new Thread(r, "TablebaseGenerator-" + (myCount++));
+          retObj.setDaemon(true);
+          return(retObj);
+        }
+      });
+  }
+
+  //-------------------------------------------------------------
+  //          main
+
+  /**
+   * Make the tablebase, printing a line for each slice.
+   */
+  public static void main(String[] args) throws Exception {
+    int pieces = 4;
+    String directory = "tablebase";
+    int threads = Runtime.getRuntime().availableProcessors();
+    for(int i = 0; i < args.length; i++) {
+      if(args[i].equals("-pieces")) {
+        pieces = Integer.parseInt(args[++i]);
+      } else if(args[i].equals("-dir")) {
+        directory = args[++i];
+      } else if(args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        throw(new IllegalArgumentException("unknown option " + args[i]));
+      }
+    }
+    TablebaseGenerator generator = new TablebaseGenerator(directory, threads);
+    System.out.println("slice          positions      wins    losses"
+                       + "     draws  longest      ms");
+    long start = System.currentTimeMillis();
+    generator.generate(pieces);
+    System.out.println("done in " + (System.currentTimeMillis() - start)
+                       + " ms with " + threads + " threads");
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Solve every slice with up to the given number of
+   * pieces that isn't already there.
+   */
+  void generate(int pieces) throws IOException, InterruptedException {
+    for(int total = 2; total <= pieces; total++) {
+      for(int menTotal = 0; menTotal <= total; menTotal++) {
+        for(int ownMen = 0; ownMen <= menTotal; ownMen++) {
+          int men = menTotal - ownMen;
+          for(int ownKings = 0; ownKings <= total - menTotal; ownKings++) {
+            int kings = total - menTotal - ownKings;
+            if((ownMen + ownKings == 0) || (men + kings == 0)
+               || (ownMen + ownKings > Tablebase.MAX_SIDE)
+               || (men + kings > Tablebase.MAX_SIDE)
+               || myTablebase.contains(ownMen, ownKings, men, kings)) {
+              continue;
+            }
+            solve(ownMen, ownKings, men, kings);
+          }
+        }
+      }
+    }
+    myPool.shutdown();
+  }
+
+  /**
+   * Solve a slice and its mirror image, write their files
+   * and add them to the tablebase.
+   */
+  private void solve(int ownMen, int ownKings, int men, int kings)
+      throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    myCounts[0] = new int[] { ownMen, ownKings, men, kings };
+    myCounts[1] = new int[] { men, kings, ownMen, ownKings };
+    int sides = Arrays.equals(myCounts[0], myCounts[1]) ? 1 : 2;
+    for(int side = 0; side < 2; side++) {
+      int[] counts = myCounts[side];
+      mySlices[side] = Tablebase.slice(counts[0], counts[1], counts[2],
+                                       counts[3]);
+      if(side < sides) {
+        long size = Tablebase.size(counts[0], counts[1], counts[2], counts[3]);
+        if(size > Integer.MAX_VALUE - 8) {
+          throw(new IOException("slice too large to solve: " + size));
+        }
+        myDistances[side] = new byte[(int)size];
+        Arrays.fill(myDistances[side], UNKNOWN);
+      } else {
+        myDistances[side] = myDistances[0];
+      }
+    }
+    // a win or loss in the slices already solved can make
+    // one here up to a turn longer:
+    int longest = myTablebase.getLongest() + 1;
+    for(int distance = 0; ; distance++) {
+      if(distance > Tablebase.MAX_DISTANCE) {
+        throw(new IOException("a win is too long for the tablebase"));
+      }
+      long found = pass(sides, distance);
+      if(found > 0) {
+        longest = Math.max(longest, distance + 1);
+      } else if(distance >= longest) {
+        break;
+      }
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    for(int side = 0; side < sides; side++) {
+      write(myCounts[side], myDistances[side], elapsed);
+    }
+    myDistances[0] = null;
+    myDistances[1] = null;
+  }
+
+  /**
+   * Find the positions of the slice and its mirror image
+   * that are won or lost in the given number of turns,
+   * with the work divided among the threads.
+   * @return the number of positions found.
+   */
+  private long pass(int sides, final int distance)
+      throws InterruptedException {
+    List<Callable<Long>> work = new ArrayList<Callable<Long>>();
+    for(int side = 0; side < sides; side++) {
+      final int[] counts = myCounts[side];
+      final byte[] distances = myDistances[side];
+      int chunk = distances.length / (myThreads * CHUNKS_PER_THREAD) + 1;
+      for(int first = 0; first < distances.length; first += chunk) {
+        final int start = first;
+        final int end = Math.min(distances.length, first + chunk);
+        work.add(new Callable<Long>() {
+            public Long call() {
+              return(new Solver().solve(counts, distances, start, end,
+                                        distance));
+            }
+          });
+      }
+    }
+    long retObj = 0;
+    for(Future<Long> future : myPool.invokeAll(work)) {
+      try {
+        retObj += future.get();
+      } catch(ExecutionException e) {
+        throw(new IllegalStateException("a pass failed", e.getCause()));
+      }
+    }
+    return(retObj);
+  }
+
+  /**
+   * Write a solved slice's files (under temporary names
+   * that are renamed once they are complete), add it to
+   * the tablebase and print a line about it.  Positions
+   * still UNKNOWN are draws.
+   */
+  private void write(int[] counts, byte[] distances, long elapsed)
+      throws IOException {
+    long[] totals = new long[3];
+    int longest = 0;
+    byte[] results = new byte[(distances.length + 3) / 4];
+    for(int i = 0; i < distances.length; i++) {
+      int distance = 0;
+      int result = Tablebase.DRAW;
+      if(distances[i] == UNKNOWN) {
+        distances[i] = 0;
+      } else {
+        distance = Tablebase.fromByte(distances[i]);
+      }
+      if(distance > 0) {
+        result = Tablebase.WIN;
+        longest = Math.max(longest, distance);
+      } else if(distance < 0) {
+        result = Tablebase.LOSS;
+        longest = Math.max(longest, -distance - 1);
+      }
+      totals[result]++;
+      results[i >> 2] |= (byte)(result << ((i & 3) * 2));
+    }
+    writeFile(counts, longest, distances.length, distances, ".dtw");
+    writeFile(counts, longest, distances.length, results, ".wld");
+    myTablebase.load(counts[0], counts[1], counts[2], counts[3]);
+    String name = counts[0] + "_" + counts[1] + "_" + counts[2] + "_"
+      + counts[3];
+    System.out.println(String.format("%-9s  %13d  %8d  %8d  %8d  %7d  %6d",
+        name, distances.length, totals[Tablebase.WIN],
+        totals[Tablebase.LOSS], totals[Tablebase.DRAW], longest, elapsed));
+  }
+
+  /**
+   * Write one of a slice's files.
+   */
+  private void writeFile(int[] counts, int longest, long size, byte[] data,
+                         String suffix) throws IOException {
+    File file = myTablebase.getFile(counts[0], counts[1], counts[2], counts[3],
+                                    suffix);
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temp);
+    try {
+      DataOutputStream output
+        = new DataOutputStream(new BufferedOutputStream(stream));
+      output.writeInt(Tablebase.MAGIC);
+      for(int i = 0; i < 4; i++) {
+        output.writeByte(counts[i]);
+      }
+      output.writeInt(longest);
+      output.writeLong(size);
+      output.write(data);
+      output.flush();
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+    if(! temp.renameTo(file)) {
+      throw(new IOException("couldn't rename " + temp));
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          solving
+
+  /**
+   * This class does one piece of a pass: it looks at each
+   * position in a range that isn't known yet, going
+   * through every turn the player to move could take.
+   * Each thread makes its own.
+   */
+  private class Solver {
+
+    /**
+     * A position, as written by Tablebase.unindex().
+     */
+    private int[] myPosition = new int[3];
+
+    /**
+     * The board the turns are made on, and the moves
+     * found at each move of a turn (a turn is at most
+     * one move and a jump for each opposing piece).
+     */
+    private Position myBoard = new Position();
+    private int[][] myMoves = new int[Tablebase.MAX_SIDE + 1][Position.MAX_MOVES];
+
+    /**
+     * The distance of the pass.
+     */
+    private int myDistance;
+
+    /**
+     * The quickest loss (for the opponent) and the slowest
+     * win found among the turns looked at so far, and
+     * whether every one of them is a win for the opponent.
+     */
+    private int myQuickestLoss;
+    private int mySlowestWin;
+    private boolean myAllWins;
+
+    /**
+     * Set when a turn is found that wins in this pass, so
+     * the rest needn't be looked at.
+     */
+    private boolean myWon;
+
+    /**
+     * Look at the unknown positions from start to end in
+     * the given slice.
+     * @return the number found to be won or lost in the
+     *         given number of turns.
+     */
+    long solve(int[] counts, byte[] distances, int start, int end,
+               int distance) {
+      long retObj = 0;
+      myDistance = distance;
+      for(int i = start; i < end; i++) {
+        if(distances[i] != UNKNOWN) {
+          continue;
+        }
+        if(! Tablebase.unindex(i, counts[0], counts[1], counts[2], counts[3],
+                               myPosition)) {
+          // not a position, so it is never looked up:
+          distances[i] = 0;
+          continue;
+        }
+        myQuickestLoss = Integer.MAX_VALUE;
+        mySlowestWin = -1;
+        myAllWins = true;
+        myWon = false;
+        turns(myPosition[0], myPosition[1], myPosition[2]);
+        if(myQuickestLoss < distance) {
+          distances[i] = Tablebase.toByte(myQuickestLoss + 1);
+          retObj++;
+        } else if(myAllWins && (mySlowestWin == distance - 1)) {
+          distances[i] = Tablebase.toByte(-distance - 1);
+          retObj++;
+        }
+      }
+      return(retObj);
+    }
+
+    /**
+     * Go through every turn the player to move could take
+     * (given as bit boards from his side), passing the
+     * position it leads to to reached().
+     */
+    private void turns(int own, int opponent, int kings) {
+      myBoard.set(own, opponent, kings);
+      turns(0);
+    }
+
+    /**
+     * Make each move the player to move has in myBoard
+     * and pass the position to reached() if the turn is
+     * over, or, in a run of jumps, both stop there and go
+     * on with every further jump.
+     * @param level how many moves of the turn have been
+     *        made (which of myMoves to use).
+     */
+    private void turns(int level) {
+      int[] moves = myMoves[level];
+      int count = myBoard.getAllMoves(moves);
+      for(int i = 0; (i < count) && (! myWon); i++) {
+        int undo = myBoard.makeMove(moves[i]);
+        if(myBoard.getJumping() >= 0) {
+          int stop = myBoard.makeMove(Position.END_TURN);
+          reached(myBoard.getOwn(), myBoard.getOpponent(), myBoard.getKings());
+          myBoard.unmakeMove(Position.END_TURN, stop);
+          turns(level + 1);
+        } else {
+          reached(myBoard.getOwn(), myBoard.getOpponent(), myBoard.getKings());
+        }
+        myBoard.unmakeMove(moves[i], undo);
+      }
+    }
+
+    /**
+     * Note what is known of the position a turn leads to,
+     * which is seen from the opponent's side (the board
+     * turned around, as makeMove leaves it) since it is
+     * his turn.
+     */
+    private void reached(int next, int nextOpponent, int nextKings) {
+      if(myWon) {
+        return;
+      }
+      int slice = Tablebase.slice(next, nextOpponent, nextKings);
+      int distance;
+      if(next == 0) {
+        distance = -1;
+      } else if((slice == mySlices[0]) || (slice == mySlices[1])) {
+        byte packed = myDistances[(slice == mySlices[0]) ? 0 : 1]
+          [(int)Tablebase.index(next, nextOpponent, nextKings)];
+        if(packed == UNKNOWN) {
+          myAllWins = false;
+          return;
+        }
+        distance = Tablebase.fromByte(packed);
+      } else {
+        distance = myTablebase.getDistance(next, nextOpponent, nextKings);
+        if(distance == Tablebase.NOT_FOUND) {
+          throw(new IllegalStateException("slice " + slice + " isn't solved"));
+        }
+      }
+      if(distance == 0) {
+        myAllWins = false;
+      } else if(distance > 0) {
+        mySlowestWin = Math.max(mySlowestWin, distance);
+      } else {
+        myAllWins = false;
+        myQuickestLoss = Math.min(myQuickestLoss, -distance - 1);
+        if(myQuickestLoss < myDistance) {
+          myWon = true;
+        }
+      }
+    }
+
+  }
+
+}
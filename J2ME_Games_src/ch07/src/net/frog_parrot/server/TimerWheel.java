@@ -0,0 +1,291 @@
+package net.frog_parrot.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps track of a large number of deadlines
+ * (such as how long a player may go without sending
+ * anything) with a hashed timer wheel.  Time is cut into
+ * ticks, and each tick maps to one of a fixed number of
+ * slots, each slot holding a linked list of the timers
+ * that are due in it.  Scheduling and cancelling a timer
+ * only links it into or out of its slot's list, so both
+ * cost the same with a million timers as with one, and
+ * the timers are the list nodes, so nothing is allocated.
+ * <p>
+ * A thread of its own visits one slot per tick and
+ * expires the timers whose deadline has passed.  The
+ * expire() methods run on that thread, so they must be
+ * quick and must not wait on anything.
+ *
+ * @author Carol Hamer
+ */
+public class TimerWheel extends Thread {
+
+  //-------------------------------------------------------------
+  //          timers
+
+  /**
+   * Something that happens at a deadline.  A timer can be
+   * scheduled again (from expire() or from anywhere else)
+   * as often as needed.
+   */
+  public abstract static class Timer {
+
+    /**
+     * The neighbors in the slot's list.
+     */
+    private Timer myNext;
+    private Timer myPrevious;
+
+    /**
+     * Links the timers that have just expired, which may
+     * be scheduled again before they are all called.
+     */
+    private Timer myExpiredNext;
+
+    /**
+     * The tick the timer is due in.
+     */
+    private long myDeadline;
+
+    /**
+     * The slot the timer is in, or -1 if it isn't scheduled.
+     * It is only changed while holding the slot's lock.
+     */
+    private volatile int mySlot = -1;
+
+    /**
+     * Called by the wheel's thread when the deadline has passed.
+     */
+    protected abstract void expire();
+
+    /**
+     * Whether the timer is waiting to expire.
+     */
+    public boolean isScheduled() {
+      return(mySlot >= 0);
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          instance fields
+
+  /**
+   * The length of a tick, in milliseconds.
+   */
+  private int myTickLength;
+
+  /**
+   * One less than the number of slots (a power of two).
+   */
+  private int myMask;
+
+  /**
+   * The head of each slot's list.  The heads are never
+   * scheduled themselves; they are also the slots' locks.
+   */
+  private Timer[] mySlots;
+
+  /**
+   * The last tick whose slot has been visited.  It is
+   * only changed while holding that slot's lock.
+   */
+  private volatile long myTick;
+
+  /**
+   * When tick zero began (System.currentTimeMillis()).
+   */
+  private long myStartTime;
+
+  /**
+   * The number of timers scheduled.
+   */
+  private AtomicInteger mySize = new AtomicInteger();
+
+  /**
+   * Whether or not the wheel should stop.
+   */
+  private volatile boolean myShouldStop;
+
+  //-------------------------------------------------------------
+  //          initialization
+
+  /**
+   * Constructor creates the slots.  The wheel doesn't turn
+   * until it is started.
+   * @param tickLength the precision of the timers in milliseconds.
+   * @param slots the number of slots, rounded up to a power
+   *        of two.  Timers further away than slots ticks are
+   *        looked at (and skipped) once per turn of the wheel.
+   */
+  public TimerWheel(String name, int tickLength, int slots) {
+    super(name);
+    int size = 1;
+    while(size < slots) {
+      size <<= 1;
+    }
+    myTickLength = tickLength;
+    myMask = size - 1;
+    mySlots = new Timer[size];
+    for(int i = 0; i < size; i++) {
+      mySlots[i] = new Timer() {
+          protected void expire() {
+          }
+        };
+      mySlots[i].myNext = mySlots[i];
+      mySlots[i].myPrevious = mySlots[i];
+    }
+    myStartTime = System.currentTimeMillis();
+    setDaemon(true);
+  }
+
+  //-------------------------------------------------------------
+  //          get/set data
+
+  /**
+   * get the number of timers scheduled.
+   */
+  public int getSize() {
+    return(mySize.get());
+  }
+
+  //-------------------------------------------------------------
+  //          business methods
+
+  /**
+   * Expire the timer after the given delay, replacing any
+   * deadline it had already.
+   */
+  public void schedule(Timer timer, long delay) {
+    cancel(timer);
+    long ticks = (delay + myTickLength - 1) / myTickLength;
+    long deadline = currentTick() + Math.max(ticks, 1);
+    while(true) {
+      // if the wheel has already been past the slot, the
+      // timer goes in the next one the wheel will visit:
+      long tick = Math.max(deadline, myTick + 1);
+      Timer head = mySlots[(int)(tick & myMask)];
+      synchronized(head) {
+        if(tick <= myTick) {
+          // the wheel moved on while we were choosing.
+          continue;
+        }
+        timer.myDeadline = tick;
+        timer.myNext = head;
+        timer.myPrevious = head.myPrevious;
+        head.myPrevious.myNext = timer;
+        head.myPrevious = timer;
+        timer.mySlot = (int)(tick & myMask);
+      }
+      mySize.incrementAndGet();
+      return;
+    }
+  }
+
+  /**
+   * Remove the timer from the wheel.
+   * @return false if the timer wasn't scheduled (perhaps
+   *         because it has just expired).
+   */
+  public boolean cancel(Timer timer) {
+    while(true) {
+      int slot = timer.mySlot;
+      if(slot < 0) {
+        return(false);
+      }
+      synchronized(mySlots[slot]) {
+        if(timer.mySlot == slot) {
+          unlink(timer);
+          mySize.decrementAndGet();
+          return(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop the wheel.  Timers still scheduled never expire.
+   */
+  public void requestStop() {
+    myShouldStop = true;
+    interrupt();
+  }
+
+  /**
+   * The wheel's loop: visit each slot as its tick comes round.
+   */
+  public void run() {
+    while(! myShouldStop) {
+      long now = currentTick();
+      while(myTick < now) {
+        expire(myTick + 1);
+      }
+      long wait = myStartTime + (now + 1) * myTickLength
+        - System.currentTimeMillis();
+      if(wait > 0) {
+        try {
+          Thread.sleep(wait);
+        } catch(InterruptedException e) {
+          // time to stop.
+        }
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Take the timers that are due out of the tick's slot,
+   * then call them without holding the lock.
+   */
+  private void expire(long tick) {
+    Timer head = mySlots[(int)(tick & myMask)];
+    Timer expired = null;
+    synchronized(head) {
+      myTick = tick;
+      Timer timer = head.myNext;
+      while(timer != head) {
+        Timer next = timer.myNext;
+        if(timer.myDeadline <= tick) {
+          unlink(timer);
+          mySize.decrementAndGet();
+          timer.myExpiredNext = expired;
+          expired = timer;
+        }
+        timer = next;
+      }
+    }
+    while(expired != null) {
+      Timer timer = expired;
+      expired = timer.myExpiredNext;
+      timer.myExpiredNext = null;
+      try {
+        timer.expire();
+      } catch(Throwable t) {
+        Log.error("TimerWheel.expire-->caught Exception:", t);
+      }
+    }
+  }
+
+  /**
+   * Take a timer out of its slot's list.  The caller
+   * holds the slot's lock.
+   */
+  private static void unlink(Timer timer) {
+    timer.myPrevious.myNext = timer.myNext;
+    timer.myNext.myPrevious = timer.myPrevious;
+    timer.myNext = null;
+    timer.myPrevious = null;
+    timer.mySlot = -1;
+  }
+
+  /**
+   * The tick we are in now.
+   */
+  private long currentTick() {
+    return((System.currentTimeMillis() - myStartTime) / myTickLength);
+  }
+
+}
@@ -0,0 +1,258 @@
+package net.frog_parrot.checkers;
+
+import java.util.Random;
+
+/**
+ * This class checks the rules in Position: which moves
+ * are legal, playing a turn move by move, and that
+ * makeMove and unmakeMove undo each other exactly and
+ * keep the Zobrist key what it would be if it were
+ * worked out from scratch.  The random games are made
+ * from a fixed seed, so every run checks the same ones.
+ * <p>
+ * Usage: java net.frog_parrot.checkers.PositionTest
+ *
+ * @author Carol Hamer
+ */
+public class PositionTest {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The number of random games played, and the most
+   * moves in each.
+   */
+  static final int GAMES = 200;
+  static final int MAX_PLIES = 300;
+
+  //-------------------------------------------------------------
+  //          the tests
+
+  /**
+   * Run the tests.
+   */
+  public static void main(String[] args) {
+    testOpening();
+    testPlay();
+    testJumps();
+    testMakeUnmake();
+    System.out.println("PositionTest: passed");
+  }
+
+  /**
+   * At the start, each of the four men in the front row
+   * can step forward, so there are seven moves (the man
+   * at the edge has only one), and isLegal agrees with
+   * getAllMoves about every possible packed move.
+   */
+  static void testOpening() {
+    Position position = new Position();
+    int[] moves = new int[Position.MAX_MOVES];
+    int count = position.getAllMoves(moves);
+    check(count == 7, "seven opening moves, not " + count);
+    checkLegality(position, moves, count);
+    check(! position.isLegal(Position.END_TURN),
+          "END_TURN isn't a move at the start of a turn");
+    check(position.getJumps(moves) == 0, "no jumps at the start");
+  }
+
+  /**
+   * Play a turn the way the server checks one.
+   */
+  static void testPlay() {
+    Position position = new Position();
+    check(! position.endTurn(), "a turn can't end before a move");
+    check(! position.play(0, 8, 0, 7), "off the board");
+    check(! position.play(-1, 5, 0, 4), "off the board");
+    check(! position.play(0, 2, 0, 3), "the opponent's man");
+    check(! position.play(0, 6, 0, 5), "onto a piece");
+    check(! position.play(0, 5, 0, 3), "too far");
+    int key = position.getKey();
+    int[] moves = new int[Position.MAX_MOVES];
+    position.getAllMoves(moves);
+    int move = moves[0];
+    check(position.play(Position.getX(Position.getFrom(move)),
+                        Position.getY(Position.getFrom(move)),
+                        Position.getX(Position.getTo(move)),
+                        Position.getY(Position.getTo(move))),
+          "a legal move");
+    check(position.getKey() != key, "the key changes");
+    check(position.isFlipped(), "a step ends the moves of the turn");
+    check(! position.play(moves[1]), "a second move in the turn");
+    check(position.endTurn(), "end the turn");
+    check(! position.endTurn(), "end the next turn before a move");
+    // the man that moved can't go back, as the second
+    // player sees it from the other side:
+    int back = Position.pack(31 - Position.getTo(move),
+                             31 - Position.getFrom(move));
+    check(! position.isLegal(back), "the second player moves the other man");
+    check(! position.play(back), "the second player moves the other man");
+  }
+
+  /**
+   * A man that jumps and can jump again may go on or
+   * stop, and is crowned when he reaches the top row.
+   */
+  static void testJumps() {
+    // a man on the bottom row with two opposing men
+    // ahead of him in a line going up and to the left:
+    int from = Position.square(2, 7);
+    int[] line = new int[5];
+    line[0] = from;
+    for(int i = 1; i < line.length; i++) {
+      int next = Position.step(1 << line[i - 1], Position.UP_LEFT);
+      check(next != 0, "the line stays on the board");
+      line[i] = Position.lowestSquare(next);
+    }
+    Position position = new Position(1 << from,
+                                     (1 << line[1]) | (1 << line[3]), 0);
+    int[] moves = new int[Position.MAX_MOVES];
+    int count = position.getJumps(moves);
+    check(count == 1, "one jump, not " + count);
+    check(moves[0] == Position.pack(from, line[2]), "the jump");
+    checkLegality(position, moves, position.getAllMoves(moves));
+    check(position.play(Position.pack(from, line[2])), "the first jump");
+    check(position.getJumping() == line[2], "the man may jump again");
+    check(! position.isFlipped(), "still the same player's turn");
+    check(Position.count(position.getOpponent()) == 1, "one man taken");
+    check(position.isLegal(Position.END_TURN), "he may stop");
+    int step = Position.step(1 << line[2], Position.UP_RIGHT);
+    if(step != 0) {
+      check(! position.isLegal(Position.pack(line[2],
+                                             Position.lowestSquare(step))),
+            "only jumps in a run of jumps");
+    }
+    Position stopped = new Position();
+    stopped.set(position);
+    check(stopped.endTurn(), "stop after one jump");
+    check(stopped.isFlipped(), "then it's the other player's turn");
+    check(Position.count(stopped.getOwn()) == 1, "the other man is left");
+    check(position.play(Position.pack(line[2], line[4])), "the second jump");
+    check(position.isFlipped(), "nothing left to jump");
+    check(position.getOwn() == 0, "the opponent has nothing left");
+    check(position.getKings() == 0, "a man on the second row isn't crowned");
+    check(position.endTurn(), "end the turn");
+  }
+
+  /**
+   * Play random games, checking the key against one
+   * worked out from scratch after every move, and then
+   * take all of the moves back, checking that each
+   * position comes back exactly.
+   */
+  static void testMakeUnmake() {
+    Random random = new Random(20061017L);
+    int[] moves = new int[Position.MAX_MOVES];
+    int[] played = new int[MAX_PLIES];
+    int[] undo = new int[MAX_PLIES];
+    int[][] seen = new int[MAX_PLIES][];
+    int sideKey = 0;
+    for(int game = 0; game < GAMES; game++) {
+      Position position = new Position();
+      int plies = 0;
+      while(plies < MAX_PLIES) {
+        int count = position.getAllMoves(moves);
+        if(position.getJumping() >= 0) {
+          moves[count++] = Position.END_TURN;
+        }
+        if(count == 0) {
+          break;
+        }
+        seen[plies] = state(position);
+        played[plies] = moves[random.nextInt(count)];
+        undo[plies] = position.makeMove(played[plies]);
+        plies++;
+        check(position.getKey() == fromScratch(position, false),
+              "the key of an unflipped position");
+        if(position.isFlipped()) {
+          int difference = position.getKey() ^ fromScratch(position, true);
+          check(difference != 0, "whose turn it is is in the key");
+          if(sideKey == 0) {
+            sideKey = difference;
+          }
+          check(difference == sideKey, "the side to move changes one key");
+        }
+      }
+      for(int i = plies - 1; i >= 0; i--) {
+        position.unmakeMove(played[i], undo[i]);
+        int[] now = state(position);
+        for(int j = 0; j < now.length; j++) {
+          check(now[j] == seen[i][j],
+                "game " + game + " ply " + i + " is put back");
+        }
+      }
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Check that isLegal allows exactly the given moves
+   * among every move that can be packed.
+   */
+  static void checkLegality(Position position, int[] moves, int count) {
+    for(int from = 0; from < Position.SQUARES; from++) {
+      for(int to = 0; to < Position.SQUARES; to++) {
+        int move = Position.pack(from, to);
+        if(move == Position.END_TURN) {
+          continue;
+        }
+        boolean listed = false;
+        for(int i = 0; i < count; i++) {
+          listed |= (moves[i] == move);
+        }
+        check(position.isLegal(move) == listed,
+              "isLegal(" + from + ", " + to + ") is " + listed);
+      }
+    }
+  }
+
+  /**
+   * The key of the same position built afresh.  An
+   * unflipped board is built as it is; a flipped one is
+   * built from the first player's side (with that player
+   * to move), which should only differ from the position
+   * by whose turn it is.
+   */
+  static int fromScratch(Position position, boolean firstSide) {
+    if(position.isFlipped() != firstSide) {
+      return(position.getKey());
+    }
+    Position retObj;
+    int jumping = position.getJumping();
+    if(firstSide) {
+      retObj = new Position(Position.rotate(position.getOpponent()),
+                            Position.rotate(position.getOwn()),
+                            Position.rotate(position.getKings()));
+      // the same piece, as the first player sees it:
+      retObj.setJumping((jumping < 0) ? -1 : 31 - jumping);
+    } else {
+      retObj = new Position(position.getOwn(), position.getOpponent(),
+                            position.getKings());
+      retObj.setJumping(jumping);
+    }
+    return(retObj.getKey());
+  }
+
+  /**
+   * Everything makeMove changes.
+   */
+  static int[] state(Position position) {
+    int[] retObj = { position.getOwn(), position.getOpponent(),
+                     position.getKings(), position.getJumping(),
+                     position.isFlipped() ? 1 : 0, position.getKey() };
+    return(retObj);
+  }
+
+  /**
+   * Stop the tests if something is wrong.
+   */
+  static void check(boolean ok, String what) {
+    if(! ok) {
+      throw(new AssertionError(what));
+    }
+  }
+
+}
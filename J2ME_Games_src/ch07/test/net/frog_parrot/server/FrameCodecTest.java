@@ -0,0 +1,202 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class checks FrameCodec: that varints are written
+ * the way the protocol says, and that four-byte frames
+ * written through an Output and read back through an
+ * Input come out as they went in, however the version 2
+ * bytes are cut up on the way.
+ * <p>
+ * Usage: java net.frog_parrot.server.FrameCodecTest
+ *
+ * @author Carol Hamer
+ */
+public class FrameCodecTest {
+
+  //-------------------------------------------------------------
+  //          the tests
+
+  /**
+   * Run the tests.
+   */
+  public static void main(String[] args) throws IOException {
+    testVarints();
+    testNumbers();
+    testTurn();
+    testRoundTrip();
+    testUnknownType();
+    System.out.println("FrameCodecTest: passed");
+  }
+
+  /**
+   * Varints are seven bits a byte, low bits first.
+   */
+  static void testVarints() {
+    checkVarint(0, new int[] { 0 });
+    checkVarint(1, new int[] { 1 });
+    checkVarint(127, new int[] { 0x7f });
+    checkVarint(128, new int[] { 0x80, 0x01 });
+    checkVarint(300, new int[] { 0xac, 0x02 });
+    checkVarint(16383, new int[] { 0xff, 0x7f });
+    checkVarint(16384, new int[] { 0x80, 0x80, 0x01 });
+    checkVarint(0xffffffffL, new int[] { 0xff, 0xff, 0xff, 0xff, 0x0f });
+  }
+
+  /**
+   * A four-byte number after a flag goes as a varint in
+   * its version 2 frame and comes back the same, for
+   * numbers of every length.
+   */
+  static void testNumbers() throws IOException {
+    long[] values = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152,
+                      268435455, 268435456, 0x7fffffffL, 0xffffffffL };
+    for(int i = 0; i < values.length; i++) {
+      byte[] frame = new byte[8];
+      frame[0] = ServerGame.GAME_FLAG;
+      FrameCodec.putInt(frame, 4, values[i]);
+      byte[] encoded = encode(frame);
+      byte[] varint = new byte[10];
+      int length = FrameCodec.putVarint(varint, 0, values[i]);
+      check(encoded.length == 2 + length, "one GAME frame for " + values[i]);
+      check(encoded[0] == 1 + length, "the frame's length");
+      check(encoded[1] == FrameCodec.GAME, "the frame's type");
+      for(int j = 0; j < length; j++) {
+        check(encoded[2 + j] == varint[j], "the varint of " + values[i]);
+      }
+      checkSame(frame, decode(encoded, encoded.length));
+      check(FrameCodec.getInt(decode(encoded, 1), 4) == values[i],
+            "the number read back one byte at a time");
+    }
+  }
+
+  /**
+   * The moves of a turn and its end go out as one TURN
+   * frame, two bytes a move.
+   */
+  static void testTurn() throws IOException {
+    byte[] turn = { 1, 5, 0, 4,  0, 4, 1, 3,
+                    ServerGame.END_TURN_FLAG, 0, 0, 0 };
+    byte[] encoded = encode(turn);
+    byte[] expected = { 5, FrameCodec.TURN, 0x15, 0x04, 0x04, 0x13 };
+    checkSame(expected, encoded);
+    checkSame(turn, decode(encoded, encoded.length));
+  }
+
+  /**
+   * Every kind of frame the server or a client sends
+   * survives the trip to version 2 and back, in one
+   * write and read back a byte at a time.
+   */
+  static void testRoundTrip() throws IOException {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frames.write(new byte[] { ServerGame.HELLO_FLAG, 1, 0, 0 });
+    frames.write(new byte[] { ServerGame.SESSION_FLAG, 0, 0, 0,
+                              1, 2, 3, 4, 5, 6, 7, (byte)0xff });
+    frames.write(new byte[] { ServerGame.RESUME_FLAG, 0, 0, 0,
+                              9, 8, 7, 6, 5, 4, 3, 2, 0, 0, 1, 0 });
+    frames.write(new byte[] { ServerGame.RESUMED_FLAG, 0, 0, 0,
+                              0, 0, 0, (byte)200 });
+    frames.write(new byte[] { ServerGame.START_GAME_FLAG, 0, 0, 0 });
+    frames.write(new byte[] { 3, 5, 2, 4 });
+    frames.write(new byte[] { ServerGame.HEARTBEAT_FLAG, 0, 0, 0 });
+    frames.write(new byte[] { 2, 4, 3, 3 });
+    frames.write(new byte[] { ServerGame.END_TURN_FLAG, 0, 0, 0 });
+    frames.write(new byte[] { Broadcast.WATCH_FLAG, 0, 0, 0, 0, 0, 1, 0 });
+    byte[] snapshot = new byte[4 + Position.SQUARES];
+    snapshot[0] = Broadcast.SNAPSHOT_FLAG;
+    snapshot[1] = 2;
+    for(int i = 0; i < Position.SQUARES; i++) {
+      snapshot[4 + i] = (byte)((i % 5) - 2);
+    }
+    frames.write(snapshot);
+    frames.write(new byte[] { ServerGame.HELLO_FLAG, 0, 0, 0 });
+    frames.write(new byte[] { ServerGame.END_GAME_FLAG, 0, 0, 0 });
+    byte[] original = frames.toByteArray();
+    byte[] encoded = encode(original);
+    check(encoded.length < original.length, "version 2 is shorter");
+    checkSame(original, decode(encoded, encoded.length));
+    checkSame(original, decode(encoded, 1));
+  }
+
+  /**
+   * A frame of a type from a later version is skipped.
+   */
+  static void testUnknownType() throws IOException {
+    byte[] encoded = { 3, 99, 1, 2,  1, FrameCodec.HEARTBEAT };
+    byte[] expected = { ServerGame.HEARTBEAT_FLAG, 0, 0, 0 };
+    checkSame(expected, decode(encoded, encoded.length));
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Write four-byte frames through an Output.
+   * @return the version 2 bytes.
+   */
+  static byte[] encode(byte[] frames) throws IOException {
+    ByteArrayOutputStream retObj = new ByteArrayOutputStream();
+    FrameCodec.Output output = new FrameCodec.Output(retObj);
+    output.write(frames);
+    return(retObj.toByteArray());
+  }
+
+  /**
+   * Read four-byte frames back through an Input.
+   * @param chunk the most bytes the stream under the
+   *        Input gives it at once.
+   */
+  static byte[] decode(byte[] encoded, final int chunk) throws IOException {
+    InputStream raw = new ByteArrayInputStream(encoded) {
+        public synchronized int read(byte[] data, int offset, int length) {
+          return(super.read(data, offset, Math.min(length, chunk)));
+        }
+      };
+    FrameCodec.Input input = new FrameCodec.Input(raw);
+    ByteArrayOutputStream retObj = new ByteArrayOutputStream();
+    byte[] buffer = new byte[7];
+    int numRead;
+    while((numRead = input.read(buffer, 0, buffer.length)) >= 0) {
+      retObj.write(buffer, 0, numRead);
+    }
+    return(retObj.toByteArray());
+  }
+
+  /**
+   * Check the bytes putVarint writes for a number.
+   */
+  static void checkVarint(long value, int[] expected) {
+    byte[] data = new byte[10];
+    int length = FrameCodec.putVarint(data, 0, value);
+    check(length == expected.length, "the length of the varint " + value);
+    for(int i = 0; i < length; i++) {
+      check((data[i] & 0xff) == expected[i], "byte " + i + " of " + value);
+    }
+  }
+
+  /**
+   * Check that two arrays hold the same bytes.
+   */
+  static void checkSame(byte[] expected, byte[] actual) {
+    check(expected.length == actual.length,
+          actual.length + " bytes instead of " + expected.length);
+    for(int i = 0; i < expected.length; i++) {
+      check(expected[i] == actual[i], "byte " + i + " is " + actual[i]
+            + " instead of " + expected[i]);
+    }
+  }
+
+  /**
+   * Stop the tests if something is wrong.
+   */
+  static void check(boolean ok, String what) {
+    if(! ok) {
+      throw(new AssertionError(what));
+    }
+  }
+
+}
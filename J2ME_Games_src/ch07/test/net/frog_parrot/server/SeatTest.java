@@ -0,0 +1,155 @@
+package net.frog_parrot.server;
+
+import java.io.*;
+
+/**
+ * This class checks how much a Seat sends a returning
+ * player: exactly the frames he missed, after the frame
+ * that says how many of his it has, and nothing at all
+ * if he missed more than the log holds or claims to have
+ * more than was sent.  The connections are in memory.
+ * <p>
+ * Usage: java net.frog_parrot.server.SeatTest
+ *
+ * @author Carol Hamer
+ */
+public class SeatTest {
+
+  //-------------------------------------------------------------
+  //          the tests
+
+  /**
+   * Run the tests.
+   */
+  public static void main(String[] args) throws IOException {
+    testBounds();
+    testReplay();
+    testStopped();
+    System.out.println("SeatTest: passed");
+  }
+
+  /**
+   * A client may come back from anywhere in the last
+   * LOG_FRAMES frames, and from nowhere else.
+   */
+  static void testBounds() throws IOException {
+    int sent = Seat.LOG_FRAMES + 36;
+    Seat seat = new Seat(1, connection(new ByteArrayOutputStream()));
+    sendFrames(seat, 0, sent);
+    check(! seat.resume(connection(new ByteArrayOutputStream()),
+                        sent - Seat.LOG_FRAMES - 1),
+          "one frame more than the log holds");
+    check(! seat.resume(connection(new ByteArrayOutputStream()), sent + 1),
+          "more frames than were sent");
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    check(seat.resume(connection(output), sent - Seat.LOG_FRAMES),
+          "the whole log");
+    checkResent(output.toByteArray(), 0, sent - Seat.LOG_FRAMES, sent);
+    output = new ByteArrayOutputStream();
+    check(seat.resume(connection(output), sent), "nothing missed");
+    checkResent(output.toByteArray(), 0, sent, sent);
+  }
+
+  /**
+   * The frames sent after a resume are resent to the next
+   * connection, and the count of frames received only
+   * counts those from the current connection.
+   */
+  static void testReplay() throws IOException {
+    PlayerConnection first = connection(new ByteArrayOutputStream());
+    Seat seat = new Seat(2, first);
+    sendFrames(seat, 0, 10);
+    check(seat.received(first) && seat.received(first), "two from the first");
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PlayerConnection second = connection(output);
+    check(seat.resume(second, 7), "missed three");
+    checkResent(output.toByteArray(), 2, 7, 10);
+    check(! seat.received(first), "a late frame from the old connection");
+    check(seat.received(second), "one from the second");
+    sendFrames(seat, 10, 20);
+    output = new ByteArrayOutputStream();
+    check(seat.resume(connection(output), 12), "missed eight");
+    checkResent(output.toByteArray(), 3, 12, 20);
+  }
+
+  /**
+   * Nobody may resume a seat once it has stopped.
+   */
+  static void testStopped() throws IOException {
+    Seat seat = new Seat(1, connection(new ByteArrayOutputStream()));
+    sendFrames(seat, 0, 5);
+    seat.stop();
+    check(! seat.resume(connection(new ByteArrayOutputStream()), 5),
+          "the seat has stopped");
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Make a connection that writes to the given stream.
+   */
+  static PlayerConnection connection(final OutputStream output) {
+    return(new PlayerConnection() {
+        OutputStream getOutput() {
+          return(output);
+        }
+      });
+  }
+
+  /**
+   * Send frames numbered from start to end, one or two at
+   * a time: frame n is the bytes n, n + 1, n + 2, n + 3.
+   */
+  static void sendFrames(Seat seat, int start, int end) throws IOException {
+    int i = start;
+    while(i < end) {
+      int count = Math.min(1 + i % 2, end - i);
+      byte[] data = new byte[4 * count];
+      for(int j = 0; j < count; j++) {
+        fillFrame(data, 4 * j, i + j);
+      }
+      seat.send(data, data.length);
+      i += count;
+    }
+  }
+
+  /**
+   * Write frame n into an array.
+   */
+  static void fillFrame(byte[] data, int offset, int n) {
+    for(int k = 0; k < 4; k++) {
+      data[offset + k] = (byte)(n + k);
+    }
+  }
+
+  /**
+   * Check what a returning client was sent: the resumed
+   * flag with the number of frames the seat received,
+   * then the frames from one number to another.
+   */
+  static void checkResent(byte[] data, int received, int from, int to) {
+    check(data.length == 8 + 4 * (to - from),
+          "resent " + (data.length - 8) / 4 + " frames, not " + (to - from));
+    check(data[0] == ServerGame.RESUMED_FLAG, "the resumed flag");
+    check(FrameCodec.getInt(data, 4) == received,
+          "received " + FrameCodec.getInt(data, 4) + ", not " + received);
+    byte[] frame = new byte[4];
+    for(int n = from; n < to; n++) {
+      fillFrame(frame, 0, n);
+      for(int k = 0; k < 4; k++) {
+        check(data[8 + 4 * (n - from) + k] == frame[k], "frame " + n);
+      }
+    }
+  }
+
+  /**
+   * Stop the tests if something is wrong.
+   */
+  static void check(boolean ok, String what) {
+    if(! ok) {
+      throw(new AssertionError(what));
+    }
+  }
+
+}
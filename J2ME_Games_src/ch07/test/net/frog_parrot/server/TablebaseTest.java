@@ -0,0 +1,147 @@
+package net.frog_parrot.server;
+
+import net.frog_parrot.checkers.Position;
+
+/**
+ * This class checks the numbering of positions in
+ * Tablebase: that every number in a slice either isn't
+ * a position or is one of the slice's positions whose
+ * number it is, that every position with the slice's
+ * pieces has a number, and that distances survive being
+ * packed into a byte.  It reads no files.
+ * <p>
+ * Usage: java net.frog_parrot.server.TablebaseTest
+ *
+ * @author Carol Hamer
+ */
+public class TablebaseTest {
+
+  //-------------------------------------------------------------
+  //          static fields
+
+  /**
+   * The slices checked: the men and kings of the player
+   * to move and of his opponent.
+   */
+  static final int[][] SLICES = {
+    { 1, 0, 0, 0 }, { 0, 1, 0, 1 }, { 1, 0, 1, 0 }, { 1, 1, 1, 0 },
+    { 2, 0, 0, 1 }, { 0, 2, 1, 0 }, { 1, 0, 2, 0 }, { 0, 0, 2, 1 },
+  };
+
+  //-------------------------------------------------------------
+  //          the tests
+
+  /**
+   * Run the tests.
+   */
+  public static void main(String[] args) {
+    for(int i = 0; i < SLICES.length; i++) {
+      testSlice(SLICES[i]);
+    }
+    testDistances();
+    System.out.println("TablebaseTest: passed");
+  }
+
+  /**
+   * Number every position of a slice found by placing
+   * the pieces one at a time, and check the numbers
+   * against unindex() over the whole slice.
+   */
+  static void testSlice(int[] counts) {
+    long size = Tablebase.size(counts[0], counts[1], counts[2], counts[3]);
+    boolean[] numbered = new boolean[(int)size];
+    int positions = place(counts, 0, 0, 0, 0, 0, 0, numbered);
+    int[] position = new int[3];
+    int found = 0;
+    for(long i = 0; i < size; i++) {
+      if(! Tablebase.unindex(i, counts[0], counts[1], counts[2], counts[3],
+                             position)) {
+        check(! numbered[(int)i], "position " + i + " is missing");
+        continue;
+      }
+      found++;
+      check(numbered[(int)i], "number " + i + " isn't a position");
+      check(Tablebase.index(position[0], position[1], position[2]) == i,
+            "number " + i + " comes back");
+      check(Tablebase.slice(position[0], position[1], position[2])
+            == Tablebase.slice(counts[0], counts[1], counts[2], counts[3]),
+            "number " + i + " is in its slice");
+    }
+    check(found == positions, found + " positions instead of " + positions);
+  }
+
+  /**
+   * A win in an odd number of turns and a loss in an even
+   * number (as getDistance() gives them) each have a byte
+   * of their own.
+   */
+  static void testDistances() {
+    for(int n = 0; n <= Tablebase.MAX_DISTANCE; n++) {
+      int distance = (n % 2 == 1) ? n : -(n + 1);
+      byte packed = Tablebase.toByte(distance);
+      check(Tablebase.fromByte(packed) == distance, "distance " + distance);
+      check((packed > 0) == (distance > 0), "the sign of " + distance);
+    }
+    check(Tablebase.toByte(0) == 0 && Tablebase.fromByte((byte)0) == 0,
+          "a draw");
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Place the rest of the pieces, in the order of the
+   * counts (own men, own kings, men, kings), each kind on
+   * squares above the last of its kind so every position
+   * is made once, and mark each position's number.
+   * @param kind the kind being placed.
+   * @param placed how many of that kind are placed.
+   * @param lowest the lowest square the next may go on.
+   * @return the number of positions made.
+   */
+  static int place(int[] counts, int kind, int placed, int lowest,
+                   int own, int opponent, int kings, boolean[] numbered) {
+    if(placed == counts[kind]) {
+      if(kind == counts.length - 1) {
+        long index = Tablebase.index(own, opponent, kings);
+        check((index >= 0) && (index < numbered.length),
+              "number " + index + " is in range");
+        check(! numbered[(int)index], "number " + index + " is taken twice");
+        numbered[(int)index] = true;
+        return(1);
+      }
+      return(place(counts, kind + 1, 0, 0, own, opponent, kings, numbered));
+    }
+    int retObj = 0;
+    for(int square = lowest; square < Position.SQUARES; square++) {
+      int bit = 1 << square;
+      if(((own | opponent) & bit) != 0) {
+        continue;
+      }
+      if((kind == 0) && (square < Position.X_LENGTH)) {
+        // the player to move's men are crowned on the top row:
+        continue;
+      }
+      if((kind == 2) && (square >= Position.SQUARES - Position.X_LENGTH)) {
+        // and his opponent's on the bottom row:
+        continue;
+      }
+      boolean mine = (kind < 2);
+      boolean king = (kind % 2 == 1);
+      retObj += place(counts, kind, placed + 1, square + 1,
+                      mine ? own | bit : own, mine ? opponent : opponent | bit,
+                      king ? kings | bit : kings, numbered);
+    }
+    return(retObj);
+  }
+
+  /**
+   * Stop the tests if something is wrong.
+   */
+  static void check(boolean ok, String what) {
+    if(! ok) {
+      throw(new AssertionError(what));
+    }
+  }
+
+}
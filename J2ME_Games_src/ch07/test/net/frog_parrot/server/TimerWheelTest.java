@@ -0,0 +1,155 @@
+package net.frog_parrot.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class checks that TimerWheel keeps its slots'
+ * lists straight as timers are scheduled, moved and
+ * cancelled, and that a cancelled timer never expires.
+ * The list checks are made before the wheel is started,
+ * so nothing depends on the clock; the last test only
+ * waits for a timer that must expire after the
+ * cancelled ones would have.
+ * <p>
+ * Usage: java net.frog_parrot.server.TimerWheelTest
+ *
+ * @author Carol Hamer
+ */
+public class TimerWheelTest {
+
+  //-------------------------------------------------------------
+  //          the timer used by the tests
+
+  /**
+   * A timer that counts how often it expires.
+   */
+  static class CountingTimer extends TimerWheel.Timer {
+
+    /**
+     * The number of times the timer expired, and a latch
+     * that opens the first time.
+     */
+    AtomicInteger myExpired = new AtomicInteger();
+    CountDownLatch myLatch = new CountDownLatch(1);
+
+    /**
+     * Count the expiry.
+     */
+    protected void expire() {
+      myExpired.incrementAndGet();
+      myLatch.countDown();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          the tests
+
+  /**
+   * Run the tests.
+   */
+  public static void main(String[] args) throws InterruptedException {
+    testCancel();
+    testSameSlot();
+    testExpiry();
+    System.out.println("TimerWheelTest: passed");
+  }
+
+  /**
+   * Cancelling says whether the timer was scheduled, and
+   * scheduling a timer again moves it rather than adding
+   * it twice.
+   */
+  static void testCancel() {
+    TimerWheel wheel = new TimerWheel("TimerWheelTest", 10, 8);
+    CountingTimer timer = new CountingTimer();
+    check(! timer.isScheduled(), "a new timer isn't scheduled");
+    check(! wheel.cancel(timer), "nothing to cancel");
+    wheel.schedule(timer, 50);
+    check(timer.isScheduled() && (wheel.getSize() == 1), "scheduled");
+    wheel.schedule(timer, 500);
+    check(wheel.getSize() == 1, "scheduling again moves the timer");
+    check(wheel.cancel(timer), "cancelled");
+    check((! timer.isScheduled()) && (wheel.getSize() == 0), "gone");
+    check(! wheel.cancel(timer), "cancelled only once");
+    wheel.schedule(timer, 0);
+    check(timer.isScheduled(), "a cancelled timer can be scheduled again");
+    check(wheel.cancel(timer), "and cancelled again");
+  }
+
+  /**
+   * Timers sharing a slot (the same deadline, or
+   * deadlines a turn of the wheel apart) can be taken
+   * out in any order.
+   */
+  static void testSameSlot() {
+    TimerWheel wheel = new TimerWheel("TimerWheelTest", 10, 8);
+    CountingTimer[] timers = new CountingTimer[6];
+    for(int i = 0; i < timers.length; i++) {
+      timers[i] = new CountingTimer();
+      // 8 slots of 10 ms, so every other one is a turn later:
+      wheel.schedule(timers[i], 1000 + (i % 2) * 80);
+    }
+    check(wheel.getSize() == timers.length, "all scheduled");
+    int[] order = { 3, 0, 5, 1, 4, 2 };
+    for(int i = 0; i < order.length; i++) {
+      check(wheel.cancel(timers[order[i]]), "cancel " + order[i]);
+      check(wheel.getSize() == timers.length - 1 - i, "one fewer");
+      for(int j = 0; j < timers.length; j++) {
+        boolean cancelled = false;
+        for(int k = 0; k <= i; k++) {
+          cancelled |= (order[k] == j);
+        }
+        check(timers[j].isScheduled() != cancelled,
+              "timer " + j + " after cancelling " + order[i]);
+      }
+    }
+  }
+
+  /**
+   * With the wheel turning, the timers that weren't
+   * cancelled expire once and the others never do.  The
+   * wheel has fewer slots than ticks to the last deadline,
+   * so it passes the cancelled timers' slots more than
+   * once.
+   */
+  static void testExpiry() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel("TimerWheelTest", 5, 8);
+    CountingTimer[] timers = new CountingTimer[10];
+    for(int i = 0; i < timers.length; i++) {
+      timers[i] = new CountingTimer();
+      wheel.schedule(timers[i], 20 + 10 * i);
+    }
+    CountingTimer last = new CountingTimer();
+    wheel.schedule(last, 200);
+    for(int i = 0; i < timers.length; i += 2) {
+      check(wheel.cancel(timers[i]), "cancel " + i);
+    }
+    wheel.start();
+    try {
+      check(last.myLatch.await(10, TimeUnit.SECONDS), "the last timer");
+      for(int i = 0; i < timers.length; i++) {
+        check(timers[i].myExpired.get() == i % 2, "timer " + i + " expired "
+              + timers[i].myExpired.get() + " times");
+      }
+      check(wheel.getSize() == 0, "nothing left");
+      check(! wheel.cancel(last), "an expired timer isn't scheduled");
+    } finally {
+      wheel.requestStop();
+    }
+  }
+
+  //-------------------------------------------------------------
+  //          internal utilities
+
+  /**
+   * Stop the tests if something is wrong.
+   */
+  static void check(boolean ok, String what) {
+    if(! ok) {
+      throw(new AssertionError(what));
+    }
+  }
+
+}